@@ -21,25 +21,39 @@
 import com.ripariandata.timberwolf.conf4j.ConfigFileException;
 import com.ripariandata.timberwolf.conf4j.ConfigFileMissingException;
 import com.ripariandata.timberwolf.conf4j.ConfigFileParser;
+import com.ripariandata.timberwolf.mail.MailboxItem;
+import com.ripariandata.timberwolf.mail.exchange.AdaptiveRateLimiter;
+import com.ripariandata.timberwolf.mail.exchange.Configuration;
 import com.ripariandata.timberwolf.mail.exchange.ExchangeMailStore;
 import com.ripariandata.timberwolf.mail.exchange.ExchangeRuntimeException;
 import com.ripariandata.timberwolf.mail.exchange.HttpErrorException;
+import com.ripariandata.timberwolf.mail.exchange.LatencyPolicy;
+import com.ripariandata.timberwolf.mail.exchange.RetryPolicy;
 import com.ripariandata.timberwolf.mail.exchange.ServiceCallException;
 import com.ripariandata.timberwolf.services.LdapFetcher;
 import com.ripariandata.timberwolf.services.PrincipalFetchException;
-import com.ripariandata.timberwolf.services.PrincipalFetcher;
 import com.ripariandata.timberwolf.writer.MailWriter;
+import com.ripariandata.timberwolf.writer.SeenMessageIndex;
 import com.ripariandata.timberwolf.writer.UserFolderSyncStateStorage;
+import com.ripariandata.timberwolf.writer.archive.MimeArchive;
+import com.ripariandata.timberwolf.writer.blob.FileSystemBlobStore;
 import com.ripariandata.timberwolf.writer.console.ConsoleMailWriter;
+import com.ripariandata.timberwolf.writer.console.InMemorySeenMessageIndex;
 import com.ripariandata.timberwolf.writer.console.InMemoryUserFolderSyncStateStorage;
 import com.ripariandata.timberwolf.writer.hbase.HBaseMailWriter;
 import com.ripariandata.timberwolf.writer.hbase.HBaseManager;
+import com.ripariandata.timberwolf.writer.hbase.HBaseSeenMessageIndex;
 import com.ripariandata.timberwolf.writer.hbase.HBaseUserFolderSyncStateStorage;
 
 import java.io.IOException;
 import java.io.PrintStream;
 import java.net.HttpURLConnection;
 import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 import javax.security.auth.login.LoginException;
 
@@ -55,6 +69,8 @@ final class App implements PrivilegedAction<Integer>
     private static final String CONFIGURATION_ENTRY = "Timberwolf";
     private static final Logger LOG = LoggerFactory.getLogger(App.class);
     private static final String DEFAULT_CONFIG_LOCATION = "/etc/timberwolf.properties";
+    /** The system property that sets how many idle sockets the JDK keeps for each server. */
+    private static final String MAX_KEEP_ALIVE_PROPERTY = "http.maxConnections";
 
     /** This will get set to true if any hbase arguments are set. */
     private boolean useHBase;
@@ -74,10 +90,13 @@ final class App implements PrivilegedAction<Integer>
     private String domain;
 
     @Option(name = "--exchange-url",
-            usage = "The URL of your Exchange Web Services endpoint.\nFor example: "
+            usage = "The URL of your Exchange Web Services endpoint, or a comma separated list of the URLs on "
+                    + "several Client Access servers to spread requests across.\nFor example: "
                     + "https://example.com/ews/exchange.asmx")
-    @ConfigEntry(name = "exchange.url", usage = "The URL of your Exchange Web Services endpoint.\nFor example: "
-                                              + "https://example.com/ews/exchange.asmx")
+    @ConfigEntry(name = "exchange.url",
+                 usage = "The URL of your Exchange Web Services endpoint, or a comma separated list of the URLs on "
+                         + "several Client Access servers to spread requests across.\nFor example: "
+                         + "https://example.com/ews/exchange.asmx")
     private String exchangeUrl;
 
     @Option(name = "--hbase-quorum",
@@ -114,6 +133,291 @@ final class App implements PrivilegedAction<Integer>
                                                      + "Default family is 'h'.")
     private String hbaseColumnFamily = HBaseMailWriter.DEFAULT_COLUMN_FAMILY;
 
+    @Option(name = "--headers",
+            usage = "A comma separated list of the mail headers to import, out of Body, Subject, Time Sent, "
+                    + "Item ID, Sender, To, Cc, Bcc, Body Truncated, Attachments, Copy Of, Is Read, Deleted and "
+                    + "Export.  Nothing else is fetched from Exchange.  Default is all of them.")
+    @ConfigEntry(name = "headers",
+                 usage = "A comma separated list of the mail headers to import, out of Body, Subject, Time Sent, "
+                         + "Item ID, Sender, To, Cc, Bcc, Body Truncated, Attachments, Copy Of, Is Read, Deleted "
+                         + "and Export.  Nothing else is fetched from Exchange.  Default is all of them.")
+    private String headers;
+
+    @Option(name = "--exchange-max-connections",
+            usage = "The most connections that will be open to the Exchange server at once.  Default is "
+                    + Configuration.DEFAULT_MAX_CONNECTIONS_PER_ENDPOINT + ".")
+    @ConfigEntry(name = "exchange.maxconnections",
+                 usage = "The most connections that will be open to the Exchange server at once.  Default is "
+                         + Configuration.DEFAULT_MAX_CONNECTIONS_PER_ENDPOINT + ".")
+    private String exchangeMaxConnections = Integer.toString(Configuration.DEFAULT_MAX_CONNECTIONS_PER_ENDPOINT);
+
+    @Option(name = "--exchange-idle-timeout",
+            usage = "The number of milliseconds the Exchange server can go without requests before its idle "
+                    + "connections are closed.  Default is " + Configuration.DEFAULT_IDLE_CONNECTION_TIMEOUT + ".")
+    @ConfigEntry(name = "exchange.idletimeout",
+                 usage = "The number of milliseconds the Exchange server can go without requests before its "
+                         + "idle connections are closed.  Default is "
+                         + Configuration.DEFAULT_IDLE_CONNECTION_TIMEOUT + ".")
+    private String exchangeIdleTimeout = Integer.toString(Configuration.DEFAULT_IDLE_CONNECTION_TIMEOUT);
+
+    @Option(name = "--exchange-transport",
+            usage = "How requests are sent to the Exchange server, either 'pooled' to reuse connections between "
+                    + "requests, falling back to 'basic' for a server that closes every connection, or 'basic' to "
+                    + "open a plain connection for each request.  Default is 'pooled'.")
+    @ConfigEntry(name = "exchange.transport",
+                 usage = "How requests are sent to the Exchange server, either 'pooled' to reuse connections "
+                         + "between requests, falling back to 'basic' for a server that closes every connection, "
+                         + "or 'basic' to open a plain connection for each request.  Default is 'pooled'.")
+    private String exchangeTransport = Configuration.DEFAULT_TRANSPORT.name().toLowerCase();
+
+    @Option(name = "--exchange-compress-requests-over",
+            usage = "Requests to the Exchange server of at least this many bytes are sent gzipped.  The server must "
+                    + "be set up to accept compressed requests.  Default is 0, which never compresses requests.")
+    @ConfigEntry(name = "exchange.compressrequestsover",
+                 usage = "Requests to the Exchange server of at least this many bytes are sent gzipped.  The server "
+                         + "must be set up to accept compressed requests.  Default is 0, which never compresses "
+                         + "requests.")
+    private String exchangeCompressRequestsOver =
+            Integer.toString(Configuration.DEFAULT_REQUEST_COMPRESSION_THRESHOLD);
+
+    @Option(name = "--exchange-max-attempts",
+            usage = "The most times a call to the Exchange server is tried when it fails because the server is "
+                    + "busy or slow.  Default is " + RetryPolicy.DEFAULT_MAX_ATTEMPTS + ".")
+    @ConfigEntry(name = "exchange.maxattempts",
+                 usage = "The most times a call to the Exchange server is tried when it fails because the server "
+                         + "is busy or slow.  Default is " + RetryPolicy.DEFAULT_MAX_ATTEMPTS + ".")
+    private String exchangeMaxAttempts = Integer.toString(RetryPolicy.DEFAULT_MAX_ATTEMPTS);
+
+    @Option(name = "--exchange-retry-backoff",
+            usage = "The most milliseconds to wait before retrying a failed call to the Exchange server the first "
+                    + "time, which doubles for each retry after that.  Default is "
+                    + RetryPolicy.DEFAULT_BASE_BACK_OFF + ".")
+    @ConfigEntry(name = "exchange.retrybackoff",
+                 usage = "The most milliseconds to wait before retrying a failed call to the Exchange server the "
+                         + "first time, which doubles for each retry after that.  Default is "
+                         + RetryPolicy.DEFAULT_BASE_BACK_OFF + ".")
+    private String exchangeRetryBackOff = Integer.toString(RetryPolicy.DEFAULT_BASE_BACK_OFF);
+
+    @Option(name = "--exchange-retry-budget",
+            usage = "The percentage of calls to the Exchange server that may be retries, across the whole run.  "
+                    + "Default is " + RetryPolicy.DEFAULT_RETRY_BUDGET + ".")
+    @ConfigEntry(name = "exchange.retrybudget",
+                 usage = "The percentage of calls to the Exchange server that may be retries, across the whole "
+                         + "run.  Default is " + RetryPolicy.DEFAULT_RETRY_BUDGET + ".")
+    private String exchangeRetryBudget = Integer.toString(RetryPolicy.DEFAULT_RETRY_BUDGET);
+
+    @Option(name = "--exchange-min-request-rate",
+            usage = "The fewest requests per second that Timberwolf will slow down to when the Exchange server is "
+                    + "busy.  Default is " + AdaptiveRateLimiter.DEFAULT_MIN_RATE + ".")
+    @ConfigEntry(name = "exchange.minrequestrate",
+                 usage = "The fewest requests per second that Timberwolf will slow down to when the Exchange "
+                         + "server is busy.  Default is " + AdaptiveRateLimiter.DEFAULT_MIN_RATE + ".")
+    private String exchangeMinRequestRate = Integer.toString(AdaptiveRateLimiter.DEFAULT_MIN_RATE);
+
+    @Option(name = "--exchange-max-request-rate",
+            usage = "The most requests per second that Timberwolf will speed up to while the Exchange server "
+                    + "keeps up.  Default is " + AdaptiveRateLimiter.DEFAULT_MAX_RATE
+                    + ", and 0 sends requests as fast as possible.")
+    @ConfigEntry(name = "exchange.maxrequestrate",
+                 usage = "The most requests per second that Timberwolf will speed up to while the Exchange server "
+                         + "keeps up.  Default is " + AdaptiveRateLimiter.DEFAULT_MAX_RATE
+                         + ", and 0 sends requests as fast as possible.")
+    private String exchangeMaxRequestRate = Integer.toString(AdaptiveRateLimiter.DEFAULT_MAX_RATE);
+
+    @Option(name = "--exchange-connect-timeout",
+            usage = "The most milliseconds to wait for a connection to the Exchange server to open.  Default is "
+                    + Configuration.DEFAULT_CONNECT_TIMEOUT + ", and 0 waits forever.")
+    @ConfigEntry(name = "exchange.connecttimeout",
+                 usage = "The most milliseconds to wait for a connection to the Exchange server to open.  Default "
+                         + "is " + Configuration.DEFAULT_CONNECT_TIMEOUT + ", and 0 waits forever.")
+    private String exchangeConnectTimeout = Integer.toString(Configuration.DEFAULT_CONNECT_TIMEOUT);
+
+    @Option(name = "--exchange-read-timeout",
+            usage = "The most milliseconds to wait for any part of a response from the Exchange server.  Default "
+                    + "is " + Configuration.DEFAULT_READ_TIMEOUT + ", and 0 waits forever.")
+    @ConfigEntry(name = "exchange.readtimeout",
+                 usage = "The most milliseconds to wait for any part of a response from the Exchange server.  "
+                         + "Default is " + Configuration.DEFAULT_READ_TIMEOUT + ", and 0 waits forever.")
+    private String exchangeReadTimeout = Integer.toString(Configuration.DEFAULT_READ_TIMEOUT);
+
+    @Option(name = "--exchange-syncfolderitems-deadline",
+            usage = "The most milliseconds a whole SyncFolderItems call to the Exchange server may take.  Default "
+                    + "is " + LatencyPolicy.DEFAULT_DEADLINE + ", and 0 has no deadline.")
+    @ConfigEntry(name = "exchange.syncfolderitemsdeadline",
+                 usage = "The most milliseconds a whole SyncFolderItems call to the Exchange server may take.  "
+                         + "Default is " + LatencyPolicy.DEFAULT_DEADLINE + ", and 0 has no deadline.")
+    private String exchangeSyncFolderItemsDeadline = Integer.toString(LatencyPolicy.DEFAULT_DEADLINE);
+
+    @Option(name = "--exchange-getitem-deadline",
+            usage = "The most milliseconds a whole GetItem or ExportItems call to the Exchange server may take.  "
+                    + "Default is " + LatencyPolicy.DEFAULT_GET_ITEM_DEADLINE + ", and 0 has no deadline.")
+    @ConfigEntry(name = "exchange.getitemdeadline",
+                 usage = "The most milliseconds a whole GetItem or ExportItems call to the Exchange server may "
+                         + "take.  Default is " + LatencyPolicy.DEFAULT_GET_ITEM_DEADLINE + ", and 0 has no deadline.")
+    private String exchangeGetItemDeadline = Integer.toString(LatencyPolicy.DEFAULT_GET_ITEM_DEADLINE);
+
+    @Option(name = "--exchange-folderhierarchy-deadline",
+            usage = "The most milliseconds a whole SyncFolderHierarchy call to the Exchange server may take.  "
+                    + "Default is " + LatencyPolicy.DEFAULT_DEADLINE + ", and 0 has no deadline.")
+    @ConfigEntry(name = "exchange.folderhierarchydeadline",
+                 usage = "The most milliseconds a whole SyncFolderHierarchy call to the Exchange server may take.  "
+                         + "Default is " + LatencyPolicy.DEFAULT_DEADLINE + ", and 0 has no deadline.")
+    private String exchangeFolderHierarchyDeadline = Integer.toString(LatencyPolicy.DEFAULT_DEADLINE);
+
+    @Option(name = "--exchange-hedge-budget",
+            usage = "The percentage of GetItem and SyncFolderHierarchy calls that may be sent a second "
+                    + "time when they are slower than usual, taking whichever answer comes first.  Default is "
+                    + LatencyPolicy.DEFAULT_HEDGE_BUDGET + ", which never sends a second call.")
+    @ConfigEntry(name = "exchange.hedgebudget",
+                 usage = "The percentage of GetItem and SyncFolderHierarchy calls that may be sent "
+                         + "a second time when they are slower than usual, taking whichever answer comes first.  "
+                         + "Default is " + LatencyPolicy.DEFAULT_HEDGE_BUDGET + ", which never sends a second call.")
+    private String exchangeHedgeBudget = Integer.toString(LatencyPolicy.DEFAULT_HEDGE_BUDGET);
+
+    @Option(name = "--exchange-min-item-page-size",
+            usage = "The fewest items to ask the Exchange server for in one GetItem request.  Default is "
+                    + ExchangeMailStore.DEFAULT_MIN_ITEM_PAGE_SIZE + ".")
+    @ConfigEntry(name = "exchange.minitempagesize",
+                 usage = "The fewest items to ask the Exchange server for in one GetItem request.  Default is "
+                         + ExchangeMailStore.DEFAULT_MIN_ITEM_PAGE_SIZE + ".")
+    private String exchangeMinItemPageSize = Integer.toString(ExchangeMailStore.DEFAULT_MIN_ITEM_PAGE_SIZE);
+
+    @Option(name = "--exchange-max-item-page-size",
+            usage = "The most items to ask the Exchange server for in one GetItem request.  Default is "
+                    + ExchangeMailStore.DEFAULT_MAX_ITEM_PAGE_SIZE + ".")
+    @ConfigEntry(name = "exchange.maxitempagesize",
+                 usage = "The most items to ask the Exchange server for in one GetItem request.  Default is "
+                         + ExchangeMailStore.DEFAULT_MAX_ITEM_PAGE_SIZE + ".")
+    private String exchangeMaxItemPageSize = Integer.toString(ExchangeMailStore.DEFAULT_MAX_ITEM_PAGE_SIZE);
+
+    @Option(name = "--exchange-item-page-bytes",
+            usage = "The size, in bytes, that GetItem responses from the Exchange server are aimed at, by "
+                    + "changing how many items are asked for.  Default is "
+                    + Configuration.DEFAULT_TARGET_ITEM_PAGE_BYTES + ", and 0 doesn't aim for a size.")
+    @ConfigEntry(name = "exchange.itempagebytes",
+                 usage = "The size, in bytes, that GetItem responses from the Exchange server are aimed at, by "
+                         + "changing how many items are asked for.  Default is "
+                         + Configuration.DEFAULT_TARGET_ITEM_PAGE_BYTES + ", and 0 doesn't aim for a size.")
+    private String exchangeItemPageBytes = Integer.toString(Configuration.DEFAULT_TARGET_ITEM_PAGE_BYTES);
+
+    @Option(name = "--exchange-item-page-millis",
+            usage = "The time, in milliseconds, that GetItem responses from the Exchange server are aimed at, by "
+                    + "changing how many items are asked for.  Default is "
+                    + Configuration.DEFAULT_TARGET_ITEM_PAGE_MILLIS + ", and 0 doesn't aim for a time.")
+    @ConfigEntry(name = "exchange.itempagemillis",
+                 usage = "The time, in milliseconds, that GetItem responses from the Exchange server are aimed at, "
+                         + "by changing how many items are asked for.  Default is "
+                         + Configuration.DEFAULT_TARGET_ITEM_PAGE_MILLIS + ", and 0 doesn't aim for a time.")
+    private String exchangeItemPageMillis = Integer.toString(Configuration.DEFAULT_TARGET_ITEM_PAGE_MILLIS);
+
+    @Option(name = "--exchange-body-format",
+            usage = "The form that mail bodies are fetched from the Exchange server in, either 'text', 'html' or "
+                    + "'best' for whichever form each was written in.  Default is 'best'.")
+    @ConfigEntry(name = "exchange.bodyformat",
+                 usage = "The form that mail bodies are fetched from the Exchange server in, either 'text', 'html' "
+                         + "or 'best' for whichever form each was written in.  Default is 'best'.")
+    private String exchangeBodyFormat = Configuration.DEFAULT_BODY_FORMAT.name().toLowerCase();
+
+    @Option(name = "--exchange-max-body-size",
+            usage = "The most characters of each mail body that are kept.  Longer bodies are cut short and marked "
+                    + "as truncated.  Default is " + Configuration.DEFAULT_MAX_BODY_SIZE
+                    + ", which keeps every body whole.")
+    @ConfigEntry(name = "exchange.maxbodysize",
+                 usage = "The most characters of each mail body that are kept.  Longer bodies are cut short and "
+                         + "marked as truncated.  Default is " + Configuration.DEFAULT_MAX_BODY_SIZE
+                         + ", which keeps every body whole.")
+    private String exchangeMaxBodySize = Integer.toString(Configuration.DEFAULT_MAX_BODY_SIZE);
+
+    @Option(name = "--exchange-large-item-size",
+            usage = "The size, in bytes, over which a mail's body is fetched from the Exchange server on its own, "
+                    + "after the rest of the mail.  Default is " + ExchangeMailStore.DEFAULT_LARGE_ITEM_SIZE
+                    + ", and 0 fetches every mail whole.")
+    @ConfigEntry(name = "exchange.largeitemsize",
+                 usage = "The size, in bytes, over which a mail's body is fetched from the Exchange server on its "
+                         + "own, after the rest of the mail.  Default is "
+                         + ExchangeMailStore.DEFAULT_LARGE_ITEM_SIZE + ", and 0 fetches every mail whole.")
+    private String exchangeLargeItemSize = Integer.toString(ExchangeMailStore.DEFAULT_LARGE_ITEM_SIZE);
+
+    @Option(name = "--exchange-record-to",
+            usage = "A directory to record every request to the Exchange server, and its response, to, so that "
+                    + "the run can be replayed later.  The recordings hold the mail itself.")
+    @ConfigEntry(name = "exchange.recordto",
+                 usage = "A directory to record every request to the Exchange server, and its response, to, so "
+                         + "that the run can be replayed later.  The recordings hold the mail itself.")
+    private String exchangeRecordTo;
+
+    @Option(name = "--exchange-replay-from",
+            usage = "A directory of recordings to answer requests from, instead of the Exchange server.")
+    @ConfigEntry(name = "exchange.replayfrom",
+                 usage = "A directory of recordings to answer requests from, instead of the Exchange server.")
+    private String exchangeReplayFrom;
+
+    @Option(name = "--attachment-store",
+            usage = "A directory, either local or a URI such as hdfs://namenode/timberwolf/attachments, to store "
+                    + "the file attachments of mails in.  Each attachment is stored once, named by the SHA-256 hash "
+                    + "of its content.  Attachments aren't fetched unless this is given.")
+    @ConfigEntry(name = "attachments.store",
+                 usage = "A directory, either local or a URI such as hdfs://namenode/timberwolf/attachments, to "
+                         + "store the file attachments of mails in.  Each attachment is stored once, named by the "
+                         + "SHA-256 hash of its content.  Attachments aren't fetched unless this is given.")
+    private String attachmentStore;
+
+    @Option(name = "--export-store",
+            usage = "A directory, either local or a URI such as hdfs://namenode/timberwolf/export, to export the "
+                    + "full-fidelity stream of each mail into with ExportItems, instead of fetching it with GetItem.  "
+                    + "Mails are imported with just their Item ID and an Export header with the SHA-256 hash the "
+                    + "stream is named by.  Only folders with no sync state yet are exported; folders that have "
+                    + "been synced before keep using GetItem.")
+    @ConfigEntry(name = "export.store",
+                 usage = "A directory, either local or a URI such as hdfs://namenode/timberwolf/export, to export "
+                         + "the full-fidelity stream of each mail into with ExportItems, instead of fetching it with "
+                         + "GetItem.  Mails are imported with just their Item ID and an Export header with the "
+                         + "SHA-256 hash the stream is named by.  Only folders with no sync state yet are exported; "
+                         + "folders that have been synced before keep using GetItem.")
+    private String exportStore;
+
+    @Option(name = "--mime-archive",
+            usage = "A directory, either local or a URI such as hdfs://namenode/timberwolf/mime, to archive the raw "
+                    + "MIME content of each mail in, as gzipped mbox files in a directory for each user.  Mails are "
+                    + "imported without their Body, Body Truncated or Attachments headers, which the MIME content "
+                    + "holds.")
+    @ConfigEntry(name = "mime.archive",
+                 usage = "A directory, either local or a URI such as hdfs://namenode/timberwolf/mime, to archive the "
+                         + "raw MIME content of each mail in, as gzipped mbox files in a directory for each user.  "
+                         + "Mails are imported without their Body, Body Truncated or Attachments headers, which the "
+                         + "MIME content holds.")
+    private String mimeArchive;
+
+    @Option(name = "--exchange-dedupe-messages",
+            usage = "Whether to fetch each message only once, however many mailboxes it was delivered to, either "
+                    + "'true' or 'false'.  Later copies are imported with just their Item ID and a Copy Of header "
+                    + "naming the copy that was imported in full.  Default is 'false'.")
+    @ConfigEntry(name = "exchange.dedupemessages",
+                 usage = "Whether to fetch each message only once, however many mailboxes it was delivered to, "
+                         + "either 'true' or 'false'.  Later copies are imported with just their Item ID and a "
+                         + "Copy Of header naming the copy that was imported in full.  Default is 'false'.")
+    private String exchangeDedupeMessages = Boolean.FALSE.toString();
+
+    @Option(name = "--exchange-metadata-only",
+            usage = "Whether to import only the headers that come back with the list of new mails in each folder, "
+                    + "either 'true' or 'false'.  This skips half the requests to Exchange, but mails are imported "
+                    + "without their Body, Body Truncated or Attachments headers.  Default is 'false'.")
+    @ConfigEntry(name = "exchange.metadataonly",
+                 usage = "Whether to import only the headers that come back with the list of new mails in each "
+                         + "folder, either 'true' or 'false'.  This skips half the requests to Exchange, but mails "
+                         + "are imported without their Body, Body Truncated or Attachments headers.  Default is "
+                         + "'false'.")
+    private String exchangeMetadataOnly = Boolean.FALSE.toString();
+
+    /** The exchange settings built up from the arguments. */
+    private Configuration exchangeConfig;
+
+    /** The headers to import, or null to import them all. */
+    private Set<String> importedHeaders;
+
+    /** Whether copies of a message in other mailboxes are left out. */
+    private boolean dedupeMessages;
+
     private App()
     {
     }
@@ -211,6 +515,21 @@ private boolean parseArguments(final String[] args) throws IOException, CmdLineE
         LOG.debug("HBase Metadata Table Name: {}", hbaseMetadataTableName);
         LOG.debug("HBase Key Header: {}", hbaseKeyHeader);
         LOG.debug("HBase Column Family: {}", hbaseColumnFamily);
+        LOG.debug("Headers: {}", headers);
+        LOG.debug("Exchange Max Connections: {}", exchangeMaxConnections);
+        LOG.debug("Exchange Idle Timeout: {}", exchangeIdleTimeout);
+        LOG.debug("Exchange Transport: {}", exchangeTransport);
+        LOG.debug("Exchange Compress Requests Over: {}", exchangeCompressRequestsOver);
+        LOG.debug("Exchange Body Format: {}", exchangeBodyFormat);
+        LOG.debug("Exchange Max Body Size: {}", exchangeMaxBodySize);
+        LOG.debug("Exchange Large Item Size: {}", exchangeLargeItemSize);
+        LOG.debug("Exchange Record To: {}", exchangeRecordTo);
+        LOG.debug("Exchange Replay From: {}", exchangeReplayFrom);
+        LOG.debug("Attachment Store: {}", attachmentStore);
+        LOG.debug("Export Store: {}", exportStore);
+        LOG.debug("MIME Archive: {}", mimeArchive);
+        LOG.debug("Exchange Dedupe Messages: {}", exchangeDedupeMessages);
+        LOG.debug("Exchange Metadata Only: {}", exchangeMetadataOnly);
 
         boolean noHBaseArgs =
                 hbaseQuorum == null && hbaseclientPort == null
@@ -230,40 +549,256 @@ private boolean parseArguments(final String[] args) throws IOException, CmdLineE
             throw new CmdLineException(cliParser, "The domain must be specified.");
         }
 
-        if (exchangeUrl == null)
+        if (exchangeUrl == null || parseList(exchangeUrl).isEmpty())
         {
             throw new CmdLineException(cliParser, "The Exchange URL must be specified.");
         }
 
+        if (headers != null)
+        {
+            importedHeaders = parseHeaders(cliParser, headers);
+        }
+        dedupeMessages = parseBoolean(cliParser, "Exchange dedupe messages", exchangeDedupeMessages);
+        boolean metadataOnly = parseBoolean(cliParser, "Exchange metadata only", exchangeMetadataOnly);
+        checkFetchOptions(cliParser, metadataOnly);
+
+        exchangeConfig = new Configuration(ExchangeMailStore.DEFAULT_ID_PAGE_SIZE,
+                                           ExchangeMailStore.DEFAULT_ITEM_PAGE_SIZE)
+                .withConnectionPool(parseInteger(cliParser, "Exchange max connections", exchangeMaxConnections),
+                                    parseInteger(cliParser, "Exchange idle timeout", exchangeIdleTimeout))
+                .withTransport(parseTransport(cliParser, exchangeTransport))
+                .withRequestCompression(parseInteger(cliParser, "Exchange compress requests over",
+                                                     exchangeCompressRequestsOver))
+                .withRetryPolicy(new RetryPolicy(parseInteger(cliParser, "Exchange max attempts", exchangeMaxAttempts),
+                                                 parseInteger(cliParser, "Exchange retry backoff",
+                                                              exchangeRetryBackOff),
+                                                 RetryPolicy.DEFAULT_MAX_BACK_OFF,
+                                                 parseInteger(cliParser, "Exchange retry budget",
+                                                              exchangeRetryBudget)))
+                .withRequestRate(parseInteger(cliParser, "Exchange min request rate", exchangeMinRequestRate),
+                                 parseInteger(cliParser, "Exchange max request rate", exchangeMaxRequestRate))
+                .withTimeouts(parseInteger(cliParser, "Exchange connect timeout", exchangeConnectTimeout),
+                              parseInteger(cliParser, "Exchange read timeout", exchangeReadTimeout))
+                .withLatencyPolicy(new LatencyPolicy(parseInteger(cliParser, "Exchange SyncFolderItems deadline",
+                                                                  exchangeSyncFolderItemsDeadline),
+                                                     parseInteger(cliParser, "Exchange GetItem deadline",
+                                                                  exchangeGetItemDeadline),
+                                                     parseInteger(cliParser, "Exchange SyncFolderHierarchy deadline",
+                                                                  exchangeFolderHierarchyDeadline),
+                                                     parseInteger(cliParser, "Exchange hedge budget",
+                                                                  exchangeHedgeBudget)))
+                .withAdaptiveItemPages(parseInteger(cliParser, "Exchange min item page size", exchangeMinItemPageSize),
+                                       parseInteger(cliParser, "Exchange max item page size", exchangeMaxItemPageSize),
+                                       parseInteger(cliParser, "Exchange item page bytes", exchangeItemPageBytes),
+                                       parseInteger(cliParser, "Exchange item page millis", exchangeItemPageMillis))
+                .withBody(parseBodyFormat(cliParser, exchangeBodyFormat),
+                          parseInteger(cliParser, "Exchange max body size", exchangeMaxBodySize))
+                .withLargeItemSize(parseInteger(cliParser, "Exchange large item size", exchangeLargeItemSize))
+                .withMetadataOnly(metadataOnly)
+                .withRecording(exchangeRecordTo)
+                .withReplay(exchangeReplayFrom)
+                .withAttachmentStore(attachmentStore == null ? null : FileSystemBlobStore.create(attachmentStore))
+                .withExportStore(exportStore == null ? null : FileSystemBlobStore.create(exportStore))
+                .withMimeArchive(mimeArchive == null ? null : MimeArchive.create(mimeArchive));
+
+        // The JDK reads this once for the whole process, the first time it
+        // keeps a connection alive.  Left alone it keeps only a handful of
+        // idle sockets per server, and closes the rest of the pool's sockets
+        // as soon as they're released.
+        if (System.getProperty(MAX_KEEP_ALIVE_PROPERTY) == null)
+        {
+            System.setProperty(MAX_KEEP_ALIVE_PROPERTY,
+                               Integer.toString(exchangeConfig.getMaxConnectionsPerEndpoint()));
+        }
+
         useHBase = allHBaseArgs;
         return true;
     }
 
+    /**
+     * Rejects the options that change how whole mails are fetched when
+     * they're given along with options that never fetch them that way.
+     */
+    private void checkFetchOptions(final CmdLineParser parser, final boolean metadataOnly) throws CmdLineException
+    {
+        if (exportStore != null && mimeArchive != null)
+        {
+            throw new CmdLineException(parser, "The export store and the MIME archive can't both be used, since "
+                                               + "each replaces fetching mails with GetItem.");
+        }
+        if (!metadataOnly)
+        {
+            return;
+        }
+        List<String> conflicts = new ArrayList<String>();
+        if (exportStore != null)
+        {
+            conflicts.add("the export store");
+        }
+        if (mimeArchive != null)
+        {
+            conflicts.add("the MIME archive");
+        }
+        if (attachmentStore != null)
+        {
+            conflicts.add("the attachment store");
+        }
+        if (!Integer.toString(ExchangeMailStore.DEFAULT_LARGE_ITEM_SIZE).equals(exchangeLargeItemSize))
+        {
+            conflicts.add("the Exchange large item size");
+        }
+        if (!conflicts.isEmpty())
+        {
+            throw new CmdLineException(parser, "Exchange metadata only never fetches whole mails, so it can't be "
+                                               + "used with " + join(conflicts) + ".");
+        }
+    }
+
+    private static String join(final List<String> values)
+    {
+        StringBuilder joined = new StringBuilder();
+        for (int i = 0; i < values.size(); i++)
+        {
+            if (i > 0)
+            {
+                joined.append(i == values.size() - 1 ? " or " : ", ");
+            }
+            joined.append(values.get(i));
+        }
+        return joined.toString();
+    }
+
+    private static Configuration.Transport parseTransport(final CmdLineParser parser, final String value)
+        throws CmdLineException
+    {
+        try
+        {
+            return Configuration.Transport.valueOf(value.trim().toUpperCase());
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new CmdLineException(parser, "Exchange transport must be 'pooled' or 'basic', but was \""
+                                               + value + "\".");
+        }
+    }
+
+    private static Configuration.BodyFormat parseBodyFormat(final CmdLineParser parser, final String value)
+        throws CmdLineException
+    {
+        try
+        {
+            return Configuration.BodyFormat.valueOf(value.trim().toUpperCase());
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new CmdLineException(parser, "Exchange body format must be 'text', 'html' or 'best', but was \""
+                                               + value + "\".");
+        }
+    }
+
+    private static Set<String> parseHeaders(final CmdLineParser parser, final String value)
+        throws CmdLineException
+    {
+        List<String> possible = Arrays.asList(MailboxItem.possibleHeaderKeys());
+        Set<String> headerKeys = new LinkedHashSet<String>();
+        for (String header : parseList(value))
+        {
+            if (!possible.contains(header))
+            {
+                throw new CmdLineException(parser, "Header \"" + header + "\" isn't one of " + possible + ".");
+            }
+            headerKeys.add(header);
+        }
+        return headerKeys;
+    }
+
+    private static List<String> parseList(final String value)
+    {
+        List<String> urls = new ArrayList<String>();
+        for (String url : value.split(","))
+        {
+            if (url.trim().length() > 0)
+            {
+                urls.add(url.trim());
+            }
+        }
+        return urls;
+    }
+
+    private static boolean parseBoolean(final CmdLineParser parser, final String name, final String value)
+        throws CmdLineException
+    {
+        String trimmed = value.trim();
+        if (trimmed.equalsIgnoreCase(Boolean.TRUE.toString()))
+        {
+            return true;
+        }
+        if (trimmed.equalsIgnoreCase(Boolean.FALSE.toString()))
+        {
+            return false;
+        }
+        throw new CmdLineException(parser, name + " must be 'true' or 'false', but was \"" + value + "\".");
+    }
+
+    private static int parseInteger(final CmdLineParser parser, final String name, final String value)
+        throws CmdLineException
+    {
+        try
+        {
+            return Integer.parseInt(value.trim());
+        }
+        catch (NumberFormatException e)
+        {
+            throw new CmdLineException(parser, name + " must be a number, but was \"" + value + "\".");
+        }
+    }
+
     public Integer run()
     {
         MailWriter mailWriter;
         UserFolderSyncStateStorage syncStateStorage;
+        SeenMessageIndex seenMessages = null;
         HBaseManager hbaseManager = null;
         if (useHBase)
         {
             hbaseManager = new HBaseManager(hbaseQuorum, hbaseclientPort);
             mailWriter = HBaseMailWriter.create(hbaseManager, hbaseTableName, hbaseKeyHeader,
-                                                hbaseColumnFamily);
+                                                hbaseColumnFamily, importedHeaders);
             syncStateStorage = new HBaseUserFolderSyncStateStorage(hbaseManager, hbaseMetadataTableName);
+            if (dedupeMessages)
+            {
+                seenMessages = new HBaseSeenMessageIndex(hbaseManager, hbaseMetadataTableName);
+            }
         }
         else
         {
-            mailWriter = new ConsoleMailWriter();
+            mailWriter = importedHeaders == null ? new ConsoleMailWriter() : new ConsoleMailWriter(importedHeaders);
             syncStateStorage = new InMemoryUserFolderSyncStateStorage();
+            if (dedupeMessages)
+            {
+                seenMessages = new InMemorySeenMessageIndex();
+            }
         }
 
-        ExchangeMailStore mailStore = new ExchangeMailStore(exchangeUrl);
         try
         {
-            PrincipalFetcher userLister = new LdapFetcher(domain);
+            LdapFetcher userLister = new LdapFetcher(domain);
             Iterable<String> users = userLister.getPrincipals();
+            Configuration storeConfig = exchangeConfig.withHomeServers(userLister.getHomeServers())
+                                                      .withRequiredHeaders(mailWriter.getRequiredHeaders())
+                                                      .withMessageIndex(seenMessages);
+            ExchangeMailStore mailStore = new ExchangeMailStore(parseList(exchangeUrl), storeConfig);
 
             mailWriter.write(mailStore.getMail(users, syncStateStorage));
+            LOG.info("Exchange retries: {}", exchangeConfig.getRetryPolicy());
+            LOG.info("Exchange request rate: {}", mailStore.getRateLimiter());
+            LOG.info("Exchange endpoints: {}", mailStore.getEndpoints());
+            LOG.info("Exchange authentication: {}", exchangeConfig.getAuthSession());
+            LOG.info("Exchange latency: {}", exchangeConfig.getLatencyPolicy());
+            if (storeConfig.getMessageDeduplicator() != null)
+            {
+                LOG.info("Exchange deduplication: {}", storeConfig.getMessageDeduplicator());
+            }
             return 0;
         }
         catch (ExchangeRuntimeException e)
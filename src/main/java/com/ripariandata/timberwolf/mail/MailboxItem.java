@@ -34,6 +34,13 @@
     protected static final String TORECIPIENT_KEY = "To";
     protected static final String CCRECIPIENT_KEY = "Cc";
     protected static final String BCCRECIPIENT_KEY = "Bcc";
+    protected static final String BODY_TRUNCATED_KEY = "Body Truncated";
+    protected static final String ATTACHMENTS_KEY = "Attachments";
+    protected static final String COPY_OF_KEY = "Copy Of";
+    protected static final String IS_READ_KEY = "Is Read";
+    protected static final String DELETED_KEY = "Deleted";
+    protected static final String EXPORT_KEY = "Export";
+    protected static final String ATTACHMENTS_MISSING_KEY = "Attachments Missing";
     protected static final char EMAIL_DELIMITER = ';';
 
     /**
@@ -44,7 +51,8 @@
     public static String[] possibleHeaderKeys()
     {
         return new String[] {BODY_KEY, SUBJECT_KEY, TIME_SENT_KEY, ID_KEY, SENDER_KEY, TORECIPIENT_KEY,
-                              CCRECIPIENT_KEY, BCCRECIPIENT_KEY };
+                              CCRECIPIENT_KEY, BCCRECIPIENT_KEY, BODY_TRUNCATED_KEY, ATTACHMENTS_KEY,
+                              COPY_OF_KEY, IS_READ_KEY, DELETED_KEY, EXPORT_KEY, ATTACHMENTS_MISSING_KEY };
     }
 
     /** Returns all the keys that this item exports. */
@@ -0,0 +1,305 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import com.microsoft.schemas.exchange.services.x2006.messages.ResponseCodeType;
+
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Paces the requests sent to one Exchange endpoint, so that a run goes as
+ * fast as the server's throttling policy allows without tripping it.
+ * <p/>
+ * Requests are spaced out evenly at the current rate.  The rate grows
+ * additively, by about one request per second each second, while responses
+ * come back healthy, and is halved when Exchange says it's busy, a read
+ * times out, or a response takes much longer than usual.  It's never cut
+ * more than once a second, so one burst of errors only counts once, and it
+ * always stays between the configured bounds.
+ */
+public class AdaptiveRateLimiter
+{
+    /** The default fewest requests per second the rate will be cut to. */
+    public static final int DEFAULT_MIN_RATE = 1;
+    /** The default most requests per second the rate will grow to. */
+    public static final int DEFAULT_MAX_RATE = 50;
+    /** The rate a run starts at, unless that's outside the bounds. */
+    public static final int DEFAULT_INITIAL_RATE = 10;
+
+    private static final Logger LOG = LoggerFactory.getLogger(AdaptiveRateLimiter.class);
+
+    private static final double DECREASE_FACTOR = 0.5;
+    private static final double ADDITIVE_INCREASE = 1.0;
+    private static final long DECREASE_COOLDOWN = TimeUnit.SECONDS.toNanos(1);
+    /** A response this many times slower than the smoothed latency is a spike. */
+    private static final int SPIKE_FACTOR = 3;
+    /** Responses faster than this are never spikes, however quick the others have been. */
+    private static final long MIN_SPIKE_MILLIS = 250;
+    /** The weight of each new sample in the smoothed latency. */
+    private static final double LATENCY_WEIGHT = 0.125;
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private final double minRate;
+    private final double maxRate;
+    private double rate;
+    private long nextFree;
+    private long lastDecrease;
+    private double smoothedLatency = -1;
+    private long increases;
+    private long decreases;
+    private long throttles;
+
+    /**
+     * @param minRequestsPerSecond The fewest requests per second the rate will
+     * be cut to.  Must be greater than or equal to 1.
+     * @param maxRequestsPerSecond The most requests per second the rate will
+     * grow to.  Zero or less means requests are never paced.
+     */
+    public AdaptiveRateLimiter(final int minRequestsPerSecond, final int maxRequestsPerSecond)
+    {
+        maxRate = maxRequestsPerSecond;
+        minRate = Math.max(Math.min(minRequestsPerSecond, maxRequestsPerSecond), 1);
+        rate = Math.max(Math.min(DEFAULT_INITIAL_RATE, maxRate), minRate);
+    }
+
+    /** Creates a rate limiter that never holds requests back. */
+    public static AdaptiveRateLimiter unlimited()
+    {
+        return new AdaptiveRateLimiter(0, 0);
+    }
+
+    /** Whether requests are paced at all. */
+    public boolean isEnabled()
+    {
+        return maxRate > 0;
+    }
+
+    /**
+     * Waits until the next request may be sent.
+     *
+     * @throws ServiceCallException If the wait was interrupted.
+     */
+    public void acquire() throws ServiceCallException
+    {
+        if (!isEnabled())
+        {
+            return;
+        }
+        long wait;
+        synchronized (this)
+        {
+            long now = now();
+            long start = Math.max(now, nextFree);
+            nextFree = start + (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+            wait = start - now;
+        }
+        if (wait > 0)
+        {
+            try
+            {
+                sleep(wait);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new ServiceCallException(ServiceCallException.Reason.OTHER,
+                                               "Interrupted while waiting to send a request to Exchange.", e);
+            }
+        }
+    }
+
+    /**
+     * Records a successful response, which raises the rate unless it was a
+     * latency spike.
+     *
+     * @param latencyMillis How long the request took.
+     */
+    public synchronized void onSuccess(final long latencyMillis)
+    {
+        if (!isEnabled())
+        {
+            return;
+        }
+        if (isSpike(latencyMillis))
+        {
+            decrease("a latency spike of " + latencyMillis + " ms");
+        }
+        else if (rate < maxRate)
+        {
+            rate = Math.min(maxRate, rate + ADDITIVE_INCREASE / rate);
+            increases++;
+        }
+        updateLatency(latencyMillis);
+    }
+
+    /**
+     * Records a failed request.  Throttling errors cut the rate; other errors
+     * only count if they were slow.
+     *
+     * @param latencyMillis How long the request took.
+     * @param error The exception the request failed with.
+     */
+    public synchronized void onError(final long latencyMillis, final Exception error)
+    {
+        if (!isEnabled())
+        {
+            return;
+        }
+        if (isThrottling(error))
+        {
+            throttles++;
+            decrease(error.getMessage());
+        }
+        else if (isSpike(latencyMillis))
+        {
+            decrease("a latency spike of " + latencyMillis + " ms");
+        }
+        updateLatency(latencyMillis);
+    }
+
+    private boolean isSpike(final long latencyMillis)
+    {
+        return smoothedLatency >= 0 && latencyMillis > MIN_SPIKE_MILLIS
+               && latencyMillis > SPIKE_FACTOR * smoothedLatency;
+    }
+
+    private void updateLatency(final long latencyMillis)
+    {
+        if (smoothedLatency < 0)
+        {
+            smoothedLatency = latencyMillis;
+        }
+        else
+        {
+            smoothedLatency += LATENCY_WEIGHT * (latencyMillis - smoothedLatency);
+        }
+    }
+
+    private void decrease(final String reason)
+    {
+        long now = now();
+        if ((decreases > 0 && now - lastDecrease < DECREASE_COOLDOWN) || rate <= minRate)
+        {
+            return;
+        }
+        lastDecrease = now;
+        rate = Math.max(minRate, rate * DECREASE_FACTOR);
+        decreases++;
+        LOG.info("Slowing down to {} Exchange requests per second, after {}.", String.format("%.1f", rate), reason);
+    }
+
+    /**
+     * Whether an error means Exchange wants us to slow down: it's busy,
+     * throttling us, or too slow to answer in time.
+     */
+    static boolean isThrottling(final Exception e)
+    {
+        if (e instanceof HttpErrorException)
+        {
+            HttpErrorException httpError = (HttpErrorException) e;
+            return httpError.getErrorCode() == HTTP_TOO_MANY_REQUESTS
+                   || httpError.getErrorCode() == HttpURLConnection.HTTP_UNAVAILABLE
+                   || httpError.getSoapError() == ResponseCodeType.ERROR_SERVER_BUSY;
+        }
+        if (e instanceof ServiceCallException)
+        {
+            ServiceCallException serviceError = (ServiceCallException) e;
+            if (serviceError.getReason() == ServiceCallException.Reason.SOAP)
+            {
+                return serviceError.getSoapError() == ResponseCodeType.ERROR_SERVER_BUSY;
+            }
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause())
+            {
+                if (cause instanceof SocketTimeoutException)
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** The current rate, in requests per second. */
+    public synchronized double getRate()
+    {
+        return rate;
+    }
+
+    public double getMinRate()
+    {
+        return minRate;
+    }
+
+    public double getMaxRate()
+    {
+        return maxRate;
+    }
+
+    /** The smoothed latency of responses in milliseconds, or -1 if there haven't been any. */
+    public synchronized double getSmoothedLatency()
+    {
+        return smoothedLatency;
+    }
+
+    /** The number of times the rate has been raised. */
+    public synchronized long getIncreases()
+    {
+        return increases;
+    }
+
+    /** The number of times the rate has been cut. */
+    public synchronized long getDecreases()
+    {
+        return decreases;
+    }
+
+    /** The number of responses that said Exchange was busy or throttling. */
+    public synchronized long getThrottles()
+    {
+        return throttles;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        if (!isEnabled())
+        {
+            return "unlimited";
+        }
+        return String.format("%.1f requests per second (%.0f to %.0f), %.0f ms smoothed latency, %d increases, "
+                             + "%d decreases, %d throttling responses", rate, minRate, maxRate, smoothedLatency,
+                             increases, decreases, throttles);
+    }
+
+    /** The current time in nanoseconds, for measuring intervals. */
+    long now()
+    {
+        return System.nanoTime();
+    }
+
+    /** Waits the given number of nanoseconds. */
+    void sleep(final long nanos) throws InterruptedException
+    {
+        TimeUnit.NANOSECONDS.sleep(nanos);
+    }
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import com.microsoft.schemas.exchange.services.x2006.messages.GetItemResponseType;
+import com.microsoft.schemas.exchange.services.x2006.messages.GetItemType;
+import com.microsoft.schemas.exchange.services.x2006.messages.SyncFolderItemsResponseType;
+import com.microsoft.schemas.exchange.services.x2006.messages.SyncFolderItemsType;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * AsyncExchangeService makes the same calls as an ExchangeService, but
+ * returns immediately with a Future for the response.
+ * <p/>
+ * The connections underneath ExchangeService block while waiting for
+ * Exchange, so the calls are run on a fixed set of threads, enough for
+ * every one of the service's endpoints to have as many requests in flight
+ * as it's allowed.  The limit itself is kept by the service's
+ * EndpointBalancer, which holds a request back until its endpoint has room.
+ * Calls made while all of the threads are busy wait in line, without
+ * holding up the caller.
+ * <p/>
+ * The limit is set on the service's endpoints, so it applies to the
+ * service's synchronous calls as well.
+ */
+public class AsyncExchangeService
+{
+    private static final AtomicInteger SERVICE_COUNT = new AtomicInteger();
+
+    private final ExchangeService service;
+    private final ExecutorService executor;
+
+    /**
+     * Creates an AsyncExchangeService that sends its calls through the given service.
+     *
+     * @param exchangeService The service that actually makes the calls.
+     * @param maxRequestsInFlight The most calls that will be waiting on any
+     * one Exchange endpoint at once.  Must be greater than or equal to 1.
+     */
+    public AsyncExchangeService(final ExchangeService exchangeService, final int maxRequestsInFlight)
+    {
+        service = exchangeService;
+        EndpointBalancer endpoints = exchangeService.getEndpoints();
+        int limit = Math.max(maxRequestsInFlight, 1);
+        endpoints.limitOutstanding(limit);
+        executor = Executors.newFixedThreadPool(limit * endpoints.getUrls().size(),
+                                                new DaemonThreadFactory("exchange-async-"
+                                                                        + SERVICE_COUNT.incrementAndGet() + "-"));
+    }
+
+    /**
+     * Creates an AsyncExchangeService with the in flight limit from the configuration.
+     *
+     * @param exchangeService The service that actually makes the calls.
+     * @param config The configuration with the limit on requests in flight.
+     */
+    public AsyncExchangeService(final ExchangeService exchangeService, final Configuration config)
+    {
+        this(exchangeService, config.getMaxRequestsInFlight());
+    }
+
+    /**
+     * Starts a sync folder items request.
+     * @param syncFolderItems A SyncFolderItemsType object that specifies the folder to sync.
+     * @param targetUser The principal name of the user to find items for.
+     * @return A Future for the SyncFolderItemsResponseType with the requested items.
+     */
+    public Future<SyncFolderItemsResponseType> syncFolderItems(final SyncFolderItemsType syncFolderItems,
+                                                               final String targetUser)
+    {
+        return executor.submit(new Callable<SyncFolderItemsResponseType>()
+        {
+            @Override
+            public SyncFolderItemsResponseType call() throws ServiceCallException, HttpErrorException
+            {
+                return service.syncFolderItems(syncFolderItems, targetUser);
+            }
+        });
+    }
+
+    /**
+     * Starts a get item request.
+     * @param getItem A GetItemType object that specifies the set of items to
+     *                gather from the Exchange server.
+     * @param targetUser The principal name of the user to get items for.
+     * @return A Future for the GetItemResponseType with the requested items.
+     */
+    public Future<GetItemResponseType> getItem(final GetItemType getItem, final String targetUser)
+    {
+        return executor.submit(new Callable<GetItemResponseType>()
+        {
+            @Override
+            public GetItemResponseType call() throws ServiceCallException, HttpErrorException
+            {
+                return service.getItem(getItem, targetUser);
+            }
+        });
+    }
+
+    /**
+     * Stops accepting new calls.  Calls that have already been made will
+     * still be completed.
+     */
+    public void shutdown()
+    {
+        executor.shutdown();
+    }
+
+    /**
+     * Waits for a call started by this class to finish, and returns its
+     * response, throwing the same exceptions that the synchronous call would.
+     *
+     * @param future The future returned by one of the calls.
+     * @param <T> The type of the response.
+     * @return The response from Exchange.
+     * @throws ServiceCallException If the call failed with a ServiceCallException,
+     *                              or the wait was interrupted.
+     * @throws HttpErrorException If the call failed with an HttpErrorException.
+     */
+    public static <T> T await(final Future<T> future) throws ServiceCallException, HttpErrorException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new ServiceCallException(ServiceCallException.Reason.OTHER,
+                                           "Interrupted while waiting for a response from Exchange.", e);
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof ServiceCallException)
+            {
+                throw (ServiceCallException) cause;
+            }
+            if (cause instanceof HttpErrorException)
+            {
+                throw (HttpErrorException) cause;
+            }
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error)
+            {
+                throw (Error) cause;
+            }
+            throw new ServiceCallException(ServiceCallException.Reason.OTHER,
+                                           "Unexpected error while calling Exchange.", cause);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import com.microsoft.schemas.exchange.services.x2006.messages.GetAttachmentType;
+import com.microsoft.schemas.exchange.services.x2006.types.NonEmptyArrayOfRequestAttachmentIdsType;
+import com.ripariandata.timberwolf.mail.MailboxItem;
+import com.ripariandata.timberwolf.mail.exchange.ExchangeEmail.Attachment;
+import com.ripariandata.timberwolf.writer.blob.BlobStore;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Contains helper functions for storing the attachments of items in a blob store. */
+final class AttachmentHelper
+{
+    private static final Logger LOG = LoggerFactory.getLogger(AttachmentHelper.class);
+
+    /** Enforces not being able to create an instance. */
+    private AttachmentHelper()
+    {
+
+    }
+
+    /**
+     * Creates a GetAttachmentType to request the content of the given attachments.
+     *
+     * @param attachments The attachments to request.
+     * @return The GetAttachmentType necessary to request them.
+     */
+    static GetAttachmentType getGetAttachmentRequest(final List<Attachment> attachments)
+    {
+        GetAttachmentType getAttachment = GetAttachmentType.Factory.newInstance();
+        NonEmptyArrayOfRequestAttachmentIdsType ids = getAttachment.addNewAttachmentIds();
+        for (Attachment attachment : attachments)
+        {
+            ids.addNewAttachmentId().setId(attachment.getId());
+        }
+        return getAttachment;
+    }
+
+    /**
+     * The name an attachment is remembered by in the blob store, so that the
+     * same attachment on a message that was sent to several mailboxes is only
+     * fetched once.  Attachment ids are different in every mailbox, so the
+     * message's Internet message id is used instead, along with the
+     * attachment's position on the message, since a message can have several
+     * attachments with the same name and size.
+     *
+     * @param email The message the attachment is on.
+     * @param position The index of the attachment in the message's file attachments.
+     * @return The alias, or null if the message has no Internet message id.
+     */
+    static String getAlias(final ExchangeEmail email, final int position)
+    {
+        if (email.getInternetMessageId() == null)
+        {
+            return null;
+        }
+        Attachment attachment = email.getAttachments().get(position);
+        return email.getInternetMessageId() + "/" + position + "/" + attachment.getName() + "/"
+               + attachment.getSize();
+    }
+
+    /**
+     * Stores the file attachments of the given items in the configured blob
+     * store, and records where each one went in its item's "Attachments"
+     * header.  Attachments that are already in the store under the same
+     * message aren't fetched again.  If an item's attachments still can't be
+     * fetched after being retried, the item is kept without them rather than
+     * failing the rest of the page.  An item that ends up without some of its
+     * attachments, for that or any other reason, is marked as missing them.
+     *
+     * @param items The items to store the attachments of.
+     * @param exchangeService The backend service for the requests.
+     * @param targetUser The user the items belong to.
+     * @param config The configuration with the blob store.
+     * @throws HttpErrorException If the HTTP response from Exchange has a non-200 status code.
+     * @throws ServiceCallException If there was a non-HTTP error making the Exchange
+     *                              request, or if the response had an error.
+     */
+    static void storeAttachments(final List<MailboxItem> items, final ExchangeService exchangeService,
+                                 final String targetUser, final Configuration config)
+            throws ServiceCallException, HttpErrorException
+    {
+        for (MailboxItem item : items)
+        {
+            if (item instanceof ExchangeEmail && !((ExchangeEmail) item).getAttachments().isEmpty())
+            {
+                storeAttachments((ExchangeEmail) item, exchangeService, targetUser, config);
+            }
+        }
+    }
+
+    private static void storeAttachments(final ExchangeEmail email, final ExchangeService exchangeService,
+                                         final String targetUser, final Configuration config)
+            throws ServiceCallException, HttpErrorException
+    {
+        final BlobStore store = config.getAttachmentStore();
+        List<Attachment> attachments = email.getAttachments();
+        List<String> hashes = new ArrayList<String>();
+        List<Integer> missing = new ArrayList<Integer>();
+        final List<Attachment> toFetch = new ArrayList<Attachment>();
+        for (int i = 0; i < attachments.size(); i++)
+        {
+            String alias = getAlias(email, i);
+            String hash = alias == null ? null : store.find(alias);
+            hashes.add(hash);
+            if (hash == null && attachments.get(i).getId() != null)
+            {
+                missing.add(i);
+                toFetch.add(attachments.get(i));
+            }
+        }
+
+        if (!toFetch.isEmpty())
+        {
+            LOG.debug("Getting {} attachments of item {}.", toFetch.size(), email.getId());
+            try
+            {
+                List<String> fetched = config.getRetryPolicy().call(ExchangeService.GET_ATTACHMENT,
+                    new RetryPolicy.Call<List<String>>()
+                    {
+                        @Override
+                        public List<String> call() throws ServiceCallException, HttpErrorException
+                        {
+                            return exchangeService.getAttachmentStreaming(getGetAttachmentRequest(toFetch),
+                                                                          targetUser, store);
+                        }
+                    });
+                for (int i = 0; i < missing.size() && i < fetched.size(); i++)
+                {
+                    String hash = fetched.get(i);
+                    String alias = getAlias(email, missing.get(i));
+                    if (hash != null && alias != null)
+                    {
+                        store.alias(alias, hash);
+                    }
+                    hashes.set(missing.get(i), hash);
+                }
+            }
+            catch (ServiceCallException e)
+            {
+                skipAttachments(email, e);
+            }
+            catch (HttpErrorException e)
+            {
+                skipAttachments(email, e);
+            }
+        }
+        email.setAttachmentHashes(hashes);
+        if (hashes.contains(null))
+        {
+            email.markAttachmentsMissing();
+        }
+    }
+
+    private static <E extends Exception> void skipAttachments(final ExchangeEmail email, final E e) throws E
+    {
+        if (!RetryPolicy.isTransient(e))
+        {
+            throw e;
+        }
+        LOG.warn("Could not get the attachments of item " + email.getId()
+                 + ", so it will be stored without them and marked as missing them.", e);
+    }
+}
@@ -0,0 +1,404 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import java.io.IOException;
+import java.net.CookieManager;
+import java.net.CookiePolicy;
+import java.net.HttpCookie;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.security.AccessController;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.Subject;
+
+import org.apache.xmlbeans.impl.util.Base64;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.GSSManager;
+import org.ietf.jgss.GSSName;
+import org.ietf.jgss.Oid;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the authenticated session with each Exchange server, so that
+ * requests don't have to negotiate authentication all over again.
+ * <p/>
+ * Left to itself, the JDK sends each request on a new connection without
+ * credentials, gets a 401 back, and only then sends a Negotiate token, so
+ * every new connection costs an extra round trip.  Instead, a request on a
+ * new connection carries a Kerberos token from the start, made with the
+ * service ticket already held by the logged in subject, so it doesn't go
+ * back to the KDC either.  Once a server has accepted one, requests that
+ * reuse a pooled connection, which IIS already has authenticated, don't
+ * carry a token at all.  A new token is only made for a new connection,
+ * after the server answers 401, or once the service ticket has expired.
+ * Tokens are made outside the session's lock, so a slow credential lookup
+ * for one request doesn't hold up the others.
+ * <p/>
+ * Any cookies Exchange sets, such as its session and backend routing
+ * cookies, are kept and sent back with later requests to the same server,
+ * and are forgotten if the server answers 401.
+ * <p/>
+ * If there's no logged in subject, or it can't make a Kerberos token for a
+ * server, requests to it are sent without one and the JDK authenticates
+ * them itself, as it always has.  The handshakes counted are the tokens
+ * made here, plus the ones the JDK is known to have made: when a request
+ * that was expected to reuse an authenticated connection turns out to
+ * have gone out on a new one, without a token, to a server that needs one.
+ */
+public class AuthSession
+{
+    private static final Logger LOG = LoggerFactory.getLogger(AuthSession.class);
+
+    private static final String AUTHORIZATION_HEADER = "Authorization";
+    private static final String COOKIE_HEADER = "Cookie";
+    private static final String NEGOTIATE = "Negotiate ";
+    private static final String SPNEGO_OID = "1.3.6.1.5.5.2";
+    private static final String SERVICE_NAME = "HTTP@";
+    private static final int PER_THOUSAND = 1000;
+
+    private final CookieManager cookies = new CookieManager(null, CookiePolicy.ACCEPT_ALL);
+    private final Map<String, Server> servers = new HashMap<String, Server>();
+    private final Map<HttpURLConnection, Server> expectedReuse = new WeakHashMap<HttpURLConnection, Server>();
+    private long calls;
+    private long handshakes;
+    private long jdkHandshakes;
+    private long rejections;
+
+    /**
+     * Gets a connection ready to send a request: adds the server's cookies,
+     * and a Negotiate token if the connection needs one.
+     *
+     * @param connection The connection the request will be sent on, which
+     * hasn't been written to yet.
+     * @param url The address the request is going to.
+     * @param reusedConnection Whether the request is expected to go out on
+     * a connection that has already been authenticated.
+     */
+    public void prepare(final HttpURLConnection connection, final URL url, final boolean reusedConnection)
+    {
+        String host = url.getHost();
+        long now = now();
+        String cookieHeader;
+        Server server;
+        boolean needsToken;
+        synchronized (this)
+        {
+            calls++;
+            cookieHeader = getCookieHeader(url);
+            server = getServer(host);
+            needsToken = !server.negotiateDisabled
+                         && !(reusedConnection && server.established && now < server.expires);
+            if (!needsToken && !server.negotiateDisabled)
+            {
+                expectedReuse.put(connection, server);
+            }
+        }
+        if (cookieHeader != null)
+        {
+            connection.setRequestProperty(COOKIE_HEADER, cookieHeader);
+        }
+        if (!needsToken)
+        {
+            return;
+        }
+
+        Token token = createToken(host);
+        if (token == null)
+        {
+            return;
+        }
+        connection.setRequestProperty(AUTHORIZATION_HEADER, NEGOTIATE + token.value);
+        synchronized (this)
+        {
+            handshakes++;
+            server.negotiates = true;
+            server.expires = token.lifetimeMillis == Long.MAX_VALUE ? Long.MAX_VALUE : now + token.lifetimeMillis;
+        }
+    }
+
+    /** Gets the Cookie header with the cookies kept for the url, or null if there aren't any. */
+    private String getCookieHeader(final URL url)
+    {
+        URI uri = toUri(url);
+        if (uri == null)
+        {
+            return null;
+        }
+        List<HttpCookie> stored = cookies.getCookieStore().get(uri);
+        if (stored.isEmpty())
+        {
+            return null;
+        }
+        StringBuilder header = new StringBuilder();
+        for (HttpCookie cookie : stored)
+        {
+            if (header.length() > 0)
+            {
+                header.append("; ");
+            }
+            header.append(cookie.getName()).append('=').append(cookie.getValue());
+        }
+        return header.toString();
+    }
+
+    /**
+     * Learns from a response: keeps the cookies it set, and notes whether the
+     * server accepted the request's credentials.
+     *
+     * @param connection The connection, once its response has been read.
+     */
+    public void update(final HttpURLConnection connection)
+    {
+        update(connection, false);
+    }
+
+    /**
+     * Learns from a response: keeps the cookies it set, and notes whether the
+     * server accepted the request's credentials.  If the request went out
+     * without a token, expecting to reuse an authenticated connection, but
+     * is known to have opened a new one, the JDK must have answered the
+     * server's challenge itself, and that handshake is counted.
+     *
+     * @param connection The connection, once its response has been read.
+     * @param openedConnection Whether the request is known to have gone out
+     * on a connection that was opened for it.
+     */
+    public synchronized void update(final HttpURLConnection connection, final boolean openedConnection)
+    {
+        Server expected = expectedReuse.remove(connection);
+        int code;
+        try
+        {
+            code = connection.getResponseCode();
+        }
+        catch (IOException e)
+        {
+            return;
+        }
+        URL url = connection.getURL();
+        if (url == null || code <= 0)
+        {
+            return;
+        }
+        URI uri = toUri(url);
+        Server server = getServer(url.getHost());
+        if (code == HttpURLConnection.HTTP_UNAUTHORIZED)
+        {
+            rejections++;
+            server.established = false;
+            if (uri != null)
+            {
+                for (HttpCookie cookie : cookies.getCookieStore().get(uri))
+                {
+                    cookies.getCookieStore().remove(uri, cookie);
+                }
+            }
+            LOG.debug("{} rejected our credentials, the next request will authenticate again.", url.getHost());
+            return;
+        }
+        server.established = true;
+        if (openedConnection && expected != null && expected.negotiates)
+        {
+            handshakes++;
+            jdkHandshakes++;
+            LOG.debug("A request to {} expected to reuse an authenticated connection, but opened a new one.",
+                      url.getHost());
+        }
+        Map<String, List<String>> headers = connection.getHeaderFields();
+        if (uri != null && headers != null)
+        {
+            try
+            {
+                cookies.put(uri, headers);
+            }
+            catch (IOException e)
+            {
+                LOG.debug("Could not keep the cookies from " + url.getHost() + ".", e);
+            }
+        }
+    }
+
+    /**
+     * Makes a Negotiate token for the given server, with the Kerberos
+     * credentials of the subject the current code is running as.
+     *
+     * @return The token, or null if one couldn't be made.
+     */
+    Token createToken(final String host)
+    {
+        if (Subject.getSubject(AccessController.getContext()) == null)
+        {
+            return null;
+        }
+        try
+        {
+            GSSManager manager = GSSManager.getInstance();
+            GSSName service = manager.createName(SERVICE_NAME + host, GSSName.NT_HOSTBASED_SERVICE);
+            GSSContext context = manager.createContext(service, new Oid(SPNEGO_OID), null,
+                                                       GSSContext.DEFAULT_LIFETIME);
+            try
+            {
+                context.requestMutualAuth(false);
+                context.requestCredDeleg(false);
+                byte[] token = context.initSecContext(new byte[0], 0, 0);
+                int lifetime = context.getLifetime();
+                return new Token(new String(Base64.encode(token), "US-ASCII"),
+                                 lifetime == GSSContext.INDEFINITE_LIFETIME ? Long.MAX_VALUE
+                                                                            : TimeUnit.SECONDS.toMillis(lifetime));
+            }
+            finally
+            {
+                context.dispose();
+            }
+        }
+        catch (GSSException e)
+        {
+            synchronized (this)
+            {
+                getServer(host).negotiateDisabled = true;
+            }
+            LOG.info("Could not make a Kerberos token for {}, leaving its authentication to the JDK: {}", host,
+                     e.getMessage());
+            LOG.debug("", e);
+            return null;
+        }
+        catch (IOException e)
+        {
+            LOG.debug("Could not encode the Kerberos token.", e);
+            return null;
+        }
+    }
+
+    private Server getServer(final String host)
+    {
+        Server server = servers.get(host);
+        if (server == null)
+        {
+            server = new Server();
+            servers.put(host, server);
+        }
+        return server;
+    }
+
+    private static URI toUri(final URL url)
+    {
+        try
+        {
+            return url.toURI();
+        }
+        catch (URISyntaxException e)
+        {
+            return null;
+        }
+    }
+
+    /** The current time in milliseconds. */
+    long now()
+    {
+        return System.currentTimeMillis();
+    }
+
+    /** The number of requests that have been sent. */
+    public synchronized long getCalls()
+    {
+        return calls;
+    }
+
+    /**
+     * The number of Negotiate handshakes for requests, both the tokens made
+     * here and the ones the JDK is known to have made.
+     */
+    public synchronized long getHandshakes()
+    {
+        return handshakes;
+    }
+
+    /**
+     * The number of handshakes the JDK made for requests that were expected
+     * to reuse an authenticated connection, but went out on a new one.
+     */
+    public synchronized long getJdkHandshakes()
+    {
+        return jdkHandshakes;
+    }
+
+    /** The number of requests the server answered with 401. */
+    public synchronized long getRejections()
+    {
+        return rejections;
+    }
+
+    /** The number of handshakes for every thousand requests. */
+    public synchronized double getHandshakesPerThousandCalls()
+    {
+        return calls == 0 ? 0 : (double) handshakes * PER_THOUSAND / calls;
+    }
+
+    /** The cookies being kept for the given server. */
+    synchronized List<HttpCookie> getCookies(final URL url)
+    {
+        URI uri = toUri(url);
+        return uri == null ? Collections.<HttpCookie>emptyList() : cookies.getCookieStore().get(uri);
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return String.format("%d handshakes in %d calls (%.1f per 1000 calls, %d by the JDK), %d rejected",
+                             handshakes, calls, getHandshakesPerThousandCalls(), jdkHandshakes, rejections);
+    }
+
+    /** A Negotiate token, and how long the ticket it was made from lasts. */
+    static final class Token
+    {
+        private final String value;
+        private final long lifetimeMillis;
+
+        /**
+         * @param encoded The token, base64 encoded.
+         * @param lifetime The number of milliseconds until the ticket expires.
+         */
+        Token(final String encoded, final long lifetime)
+        {
+            value = encoded;
+            lifetimeMillis = lifetime;
+        }
+    }
+
+    /** What's known about the session with one server. */
+    private static final class Server
+    {
+        private boolean established;
+        private long expires = Long.MAX_VALUE;
+        /** Whether a token has been made for the server, so its requests need one. */
+        private boolean negotiates;
+        /** Whether making a token for the server failed, so the JDK is left to authenticate it. */
+        private boolean negotiateDisabled;
+    }
+}
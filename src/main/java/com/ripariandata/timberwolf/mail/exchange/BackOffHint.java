@@ -0,0 +1,198 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import com.microsoft.schemas.exchange.services.x2006.messages.ResponseCodeType;
+
+import java.io.StringReader;
+import java.net.HttpURLConnection;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.xmlbeans.XmlCursor;
+import org.apache.xmlbeans.XmlObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the hints Exchange gives about how long to wait before trying a
+ * failed request again.
+ * <p/>
+ * When Exchange is throttling, the error comes with a BackOffMilliseconds
+ * value in its MessageXml, either in the response message or in the detail
+ * of a SOAP fault.  Servers in front of Exchange may send a Retry-After
+ * header instead.
+ */
+final class BackOffHint
+{
+    private static final Logger LOG = LoggerFactory.getLogger(BackOffHint.class);
+
+    private static final String BACK_OFF_MILLISECONDS = "BackOffMilliseconds";
+    private static final String VALUE = "Value";
+    private static final QName NAME = new QName("Name");
+    private static final String RETRY_AFTER = "Retry-After";
+
+    private BackOffHint()
+    {
+    }
+
+    private static long parseMillis(final String value)
+    {
+        try
+        {
+            return Math.max(Long.parseLong(value.trim()), 0);
+        }
+        catch (NumberFormatException e)
+        {
+            LOG.debug("Ignoring back off hint \"{}\", which isn't a number.", value);
+            return 0;
+        }
+    }
+
+    /**
+     * Gets the back off hint from the MessageXml of an xmlbeans response message.
+     *
+     * @param messageXml The MessageXml element, which may be null.
+     * @return The number of milliseconds to wait, or zero if there was no hint.
+     */
+    static long fromMessageXml(final XmlObject messageXml)
+    {
+        if (messageXml == null)
+        {
+            return 0;
+        }
+        XmlCursor cursor = messageXml.newCursor();
+        try
+        {
+            for (boolean found = cursor.toFirstChild(); found; found = cursor.toNextSibling())
+            {
+                if (VALUE.equals(cursor.getName().getLocalPart())
+                    && BACK_OFF_MILLISECONDS.equals(cursor.getAttributeText(NAME)))
+                {
+                    return parseMillis(cursor.getTextValue());
+                }
+            }
+            return 0;
+        }
+        finally
+        {
+            cursor.dispose();
+        }
+    }
+
+    /**
+     * Gets the back off hint from a MessageXml element.
+     *
+     * @param reader A reader positioned at the start of the MessageXml
+     * element, which will be left at its end.
+     * @return The number of milliseconds to wait, or zero if there was no hint.
+     */
+    static long readMessageXml(final XMLStreamReader reader) throws XMLStreamException
+    {
+        long backOff = 0;
+        while (StreamingResponseParser.nextChild(reader))
+        {
+            if (VALUE.equals(reader.getLocalName())
+                && BACK_OFF_MILLISECONDS.equals(reader.getAttributeValue(null, NAME.getLocalPart())))
+            {
+                backOff = parseMillis(reader.getElementText());
+            }
+            else
+            {
+                StreamingResponseParser.skipElement(reader);
+            }
+        }
+        return backOff;
+    }
+
+    /**
+     * Gets the wait from the Retry-After header of a response, which is
+     * either a number of seconds or a date.
+     *
+     * @return The number of milliseconds to wait, or zero if there was no header.
+     */
+    static long fromRetryAfter(final HttpURLConnection conn)
+    {
+        String value = conn.getHeaderField(RETRY_AFTER);
+        if (value == null)
+        {
+            return 0;
+        }
+        try
+        {
+            return TimeUnit.SECONDS.toMillis(Math.max(Long.parseLong(value.trim()), 0));
+        }
+        catch (NumberFormatException e)
+        {
+            long date = conn.getHeaderFieldDate(RETRY_AFTER, 0);
+            return date == 0 ? 0 : Math.max(date - System.currentTimeMillis(), 0);
+        }
+    }
+
+    /**
+     * Creates the exception for an HTTP error, with the response code and
+     * back off hint from the SOAP fault in its body, if there is one.
+     *
+     * @param code The HTTP status code.
+     * @param retryAfter The wait from the Retry-After header, or zero.
+     * @param body The body of the error response, which may be empty.
+     * @return The exception to throw.
+     */
+    static HttpErrorException forHttpError(final int code, final long retryAfter, final String body)
+    {
+        ResponseCodeType.Enum soapError = null;
+        long backOff = retryAfter;
+        if (body != null && body.length() > 0)
+        {
+            try
+            {
+                XMLStreamReader reader = StreamingResponseParser.FACTORY.createXMLStreamReader(new StringReader(body));
+                try
+                {
+                    while (reader.hasNext())
+                    {
+                        if (reader.next() != XMLStreamReader.START_ELEMENT)
+                        {
+                            continue;
+                        }
+                        if ("ResponseCode".equals(reader.getLocalName()))
+                        {
+                            soapError = ResponseCodeType.Enum.forString(reader.getElementText().trim());
+                        }
+                        else if ("MessageXml".equals(reader.getLocalName()))
+                        {
+                            backOff = Math.max(backOff, readMessageXml(reader));
+                        }
+                    }
+                }
+                finally
+                {
+                    reader.close();
+                }
+            }
+            catch (XMLStreamException e)
+            {
+                LOG.debug("The error response was not a SOAP fault.", e);
+            }
+        }
+        return new HttpErrorException(code, soapError, backOff);
+    }
+}
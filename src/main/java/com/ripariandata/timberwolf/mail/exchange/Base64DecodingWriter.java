@@ -0,0 +1,130 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ * A Writer that takes base64 text and writes the bytes it decodes to an
+ * OutputStream, a few at a time, so that large content never has to be held
+ * in memory whole.  Whitespace in the text is ignored.
+ */
+class Base64DecodingWriter extends Writer
+{
+    private static final String ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+    private static final int ASCII_LIMIT = 128;
+    private static final int[] VALUES = new int[ASCII_LIMIT];
+    private static final int BITS_PER_CHAR = 6;
+    private static final int BITS_PER_BYTE = 8;
+    private static final int BYTE_MASK = 0xFF;
+    private static final int BUFFER_SIZE = 8192;
+
+    static
+    {
+        for (int i = 0; i < VALUES.length; i++)
+        {
+            VALUES[i] = -1;
+        }
+        for (int i = 0; i < ALPHABET.length(); i++)
+        {
+            VALUES[ALPHABET.charAt(i)] = i;
+        }
+    }
+
+    private final OutputStream out;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int buffered;
+    /** The bits decoded so far that don't make up a whole byte yet. */
+    private int bits;
+    private int bitCount;
+    private boolean padded;
+
+    /** @param output The stream to write the decoded bytes to. */
+    Base64DecodingWriter(final OutputStream output)
+    {
+        out = output;
+    }
+
+    @Override
+    public void write(final char[] text, final int offset, final int length) throws IOException
+    {
+        for (int i = offset; i < offset + length; i++)
+        {
+            decode(text[i]);
+        }
+    }
+
+    private void decode(final char c) throws IOException
+    {
+        if (Character.isWhitespace(c))
+        {
+            return;
+        }
+        if (c == '=')
+        {
+            padded = true;
+            return;
+        }
+        if (padded || c >= VALUES.length || VALUES[c] < 0)
+        {
+            throw new IOException("Invalid base64 character '" + c + "'.");
+        }
+        bits = (bits << BITS_PER_CHAR) | VALUES[c];
+        bitCount += BITS_PER_CHAR;
+        if (bitCount >= BITS_PER_BYTE)
+        {
+            bitCount -= BITS_PER_BYTE;
+            if (buffered == buffer.length)
+            {
+                flushBuffer();
+            }
+            buffer[buffered++] = (byte) ((bits >> bitCount) & BYTE_MASK);
+        }
+    }
+
+    private void flushBuffer() throws IOException
+    {
+        out.write(buffer, 0, buffered);
+        buffered = 0;
+    }
+
+    /** Writes out the bytes decoded so far.  The stream itself isn't flushed. */
+    @Override
+    public void flush() throws IOException
+    {
+        flushBuffer();
+    }
+
+    /**
+     * Writes out the rest of the decoded bytes.  The stream is left open.
+     *
+     * @throws IOException If the text ended partway through a byte.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        flushBuffer();
+        // Leftover bits are only allowed as the padding of the last group.
+        if (bitCount >= BITS_PER_CHAR)
+        {
+            throw new IOException("The base64 text ended partway through a byte.");
+        }
+    }
+}
@@ -0,0 +1,261 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import com.ripariandata.timberwolf.mail.MailboxItem;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.Vector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Gets the new items in all of one user's folders, filling each GetItem
+ * request with ids from as many folders as it takes.
+ * <p/>
+ * Running a SyncFolderItemIterator for each folder makes at least one
+ * GetItem request per folder, so a mailbox with a couple of hundred folders
+ * that each have a few new items takes a couple of hundred round trips.
+ * This syncs folders, in order, until it has a full page of ids, and then
+ * gets that page, so the same mailbox takes a handful.
+ * <p/>
+ * A folder's sync state is kept back until every id that sync returned, and
+ * every id queued before them, has been handed out and the iterator has been
+ * asked for more, just like SyncFolderItemIterator does for one folder.  If
+ * the run stops partway, each folder picks up from the last sync whose items
+ * all made it out.
+ * <p/>
+ * Deletions and read flag changes don't need fetching, so they're handed
+ * out at the front of the next page, and counted separately from the ids
+ * when working out which sync states can be stored.
+ * <p/>
+ * When items are exported, only the items of folders that are being synced
+ * for the first time are, so a page never mixes those folders' ids with
+ * the ids of folders that have been synced before.
+ */
+public class CoalescingItemIterator extends BaseChainIterator<MailboxItem>
+{
+    private static final Logger LOG = LoggerFactory.getLogger(CoalescingItemIterator.class);
+    private final ExchangeService service;
+    private final Configuration config;
+    private final String user;
+    private final Queue<FolderContext> folders;
+    private final Vector<String> pendingIds = new Vector<String>();
+    private final Vector<MailboxItem> pendingChanges = new Vector<MailboxItem>();
+    private final Queue<PendingSyncState> pendingSyncStates = new LinkedList<PendingSyncState>();
+    private final ItemPageSizer pageSizer;
+    private FolderContext currentFolder;
+    private String currentSyncState;
+    private boolean pendingExported;
+    private long queued;
+    private long delivered;
+    private long changesQueued;
+    private long changesDelivered;
+    private int lastPageSize;
+    private int lastPageChanges;
+
+    /**
+     * @param exchangeService The service to get the items with.
+     * @param configuration The page sizes and sync state storage to use.
+     * @param targetUser The principal name of the user whose folders these are.
+     * @param userFolders The folders to get the new items from, in the order to sync them.
+     * @param itemPageSizer Picks the size of each GetItem page.
+     */
+    public CoalescingItemIterator(final ExchangeService exchangeService, final Configuration configuration,
+                                  final String targetUser, final Queue<FolderContext> userFolders,
+                                  final ItemPageSizer itemPageSizer)
+    {
+        pageSizer = itemPageSizer;
+        service = exchangeService;
+        config = configuration;
+        user = targetUser;
+        folders = userFolders;
+    }
+
+    @Override
+    protected Iterator<MailboxItem> createIterator()
+    {
+        // Everything in the last page has been handed out now.
+        delivered += lastPageSize;
+        changesDelivered += lastPageChanges;
+        lastPageSize = 0;
+        lastPageChanges = 0;
+        storeSyncStates();
+
+        // A page of changes is handed out on its own too, since when only
+        // metadata is crawled every new item comes back as one.
+        while (pendingIds.size() < pageSizer.getPageSize() && pendingChanges.size() < pageSizer.getPageSize()
+               && fetchedTheSameWay() && syncNextPage())
+        {
+            storeSyncStates();
+        }
+        if (pendingIds.isEmpty() && pendingChanges.isEmpty())
+        {
+            return null;
+        }
+
+        Vector<MailboxItem> page = new Vector<MailboxItem>(pendingChanges);
+        lastPageChanges = pendingChanges.size();
+        pendingChanges.clear();
+        if (pendingIds.isEmpty())
+        {
+            LOG.debug("Handing out {} changes.", page.size());
+            return page.iterator();
+        }
+
+        try
+        {
+            Vector<MailboxItem> items = config.getRetryPolicy().call(ExchangeService.GET_ITEM,
+                new RetryPolicy.Call<Vector<MailboxItem>>()
+                {
+                    @Override
+                    public Vector<MailboxItem> call() throws ServiceCallException, HttpErrorException
+                    {
+                        // Read each attempt, since a failed attempt may have shrunk the page.
+                        int pageSize = Math.min(pageSizer.getPageSize(), pendingIds.size());
+                        Vector<MailboxItem> items =
+                                pageSizer.getItems(pageSize, 0, pendingIds, service, user, pendingExported);
+                        pendingIds.subList(0, pageSize).clear();
+                        lastPageSize = pageSize;
+                        return items;
+                    }
+                });
+            LOG.debug("Got {} emails.", items.size());
+            page.addAll(items);
+            return page.iterator();
+        }
+        catch (ServiceCallException e)
+        {
+            throw ExchangeRuntimeException.log(LOG, new ExchangeRuntimeException("Failed to get emails.", e));
+        }
+        catch (HttpErrorException e)
+        {
+            throw ExchangeRuntimeException.log(LOG, new ExchangeRuntimeException("Failed to get emails.", e));
+        }
+    }
+
+    /**
+     * Returns whether the ids of the next folder page to sync would be
+     * fetched the same way as the ids already queued, which is always so
+     * unless items are being exported.
+     */
+    private boolean fetchedTheSameWay()
+    {
+        FolderContext next = currentFolder == null ? folders.peek() : currentFolder;
+        return pendingIds.isEmpty() || next == null || isExported(next) == pendingExported;
+    }
+
+    /** Returns whether the items of the given folder are exported instead of fetched with GetItem. */
+    private boolean isExported(final FolderContext folder)
+    {
+        return config.getExportStore() != null && folder.isFirstSync();
+    }
+
+    /**
+     * Syncs the next page of the current folder, or of the next folder if the
+     * current one is done, and queues the ids it returns.
+     *
+     * @return False if every folder has been synced to the end.
+     */
+    private boolean syncNextPage()
+    {
+        if (currentFolder == null)
+        {
+            if (folders.isEmpty())
+            {
+                return false;
+            }
+            currentFolder = folders.poll();
+            currentSyncState = currentFolder.getSyncStateToken();
+        }
+        final FolderContext folder = currentFolder;
+        final String syncState = currentSyncState;
+        try
+        {
+            SyncFolderItemsHelper.SyncFolderItemsResult result = config.getRetryPolicy().call(
+                ExchangeService.SYNC_FOLDER_ITEMS, new RetryPolicy.Call<SyncFolderItemsHelper.SyncFolderItemsResult>()
+                {
+                    @Override
+                    public SyncFolderItemsHelper.SyncFolderItemsResult call()
+                            throws ServiceCallException, HttpErrorException
+                    {
+                        return SyncFolderItemsHelper.syncFolderItems(service, config, folder, syncState);
+                    }
+                });
+            LOG.debug("Got {} email ids and {} other changes, which were {}the last of them.",
+                      new Object[] {result.getIds().size(), result.getChanges().size(),
+                                    result.includesLastItem() ? "" : "not "});
+            if (pendingIds.isEmpty())
+            {
+                pendingExported = isExported(folder);
+            }
+            pendingIds.addAll(result.getIds());
+            queued += result.getIds().size();
+            pendingChanges.addAll(result.getChanges());
+            changesQueued += result.getChanges().size();
+            currentSyncState = result.getSyncState();
+            pendingSyncStates.add(new PendingSyncState(folder, currentSyncState, queued, changesQueued));
+            if (result.includesLastItem())
+            {
+                currentFolder = null;
+            }
+            return true;
+        }
+        catch (ServiceCallException e)
+        {
+            throw ExchangeRuntimeException.log(LOG, new ExchangeRuntimeException("Failed to sync folder items.", e));
+        }
+        catch (HttpErrorException e)
+        {
+            throw ExchangeRuntimeException.log(LOG, new ExchangeRuntimeException("Failed to sync folder items.", e));
+        }
+    }
+
+    /** Stores the sync states whose items have all been handed out, in the order they were synced. */
+    private void storeSyncStates()
+    {
+        while (!pendingSyncStates.isEmpty() && pendingSyncStates.peek().lastId <= delivered
+               && pendingSyncStates.peek().lastChange <= changesDelivered)
+        {
+            PendingSyncState done = pendingSyncStates.poll();
+            done.folder.setSyncStateToken(done.syncState);
+        }
+    }
+
+    /**
+     * A sync state that can be stored once the ids and changes up to the end
+     * of its sync have been handed out.
+     */
+    private static final class PendingSyncState
+    {
+        private final FolderContext folder;
+        private final String syncState;
+        private final long lastId;
+        private final long lastChange;
+
+        private PendingSyncState(final FolderContext syncedFolder, final String newSyncState,
+                                 final long idsQueuedSoFar, final long changesQueuedSoFar)
+        {
+            folder = syncedFolder;
+            syncState = newSyncState;
+            lastId = idsQueuedSoFar;
+            lastChange = changesQueuedSoFar;
+        }
+    }
+}
@@ -17,18 +17,111 @@
  */
 package com.ripariandata.timberwolf.mail.exchange;
 
+import com.ripariandata.timberwolf.writer.SeenMessageIndex;
 import com.ripariandata.timberwolf.writer.UserFolderSyncStateStorage;
+import com.ripariandata.timberwolf.writer.archive.MimeArchive;
+import com.ripariandata.timberwolf.writer.blob.BlobStore;
 import com.ripariandata.timberwolf.writer.console.InMemoryUserFolderSyncStateStorage;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
 /**
  * This class contains any configurable settings
  * that will effect the exchange service calls.
  */
 public class Configuration
 {
+    /** The ways that requests can be sent to Exchange. */
+    public enum Transport
+    {
+        /**
+         * A plain connection is opened for each request, with no limits on
+         * how many are open at once, and any reuse is left to the JDK.
+         */
+        BASIC,
+        /**
+         * Connections are limited per endpoint and kept alive to be reused by
+         * later requests.  An endpoint that closes the connection after every
+         * response falls back to basic connections.
+         */
+        POOLED
+    }
+
+    /** The forms that item bodies can be asked for in. */
+    public enum BodyFormat
+    {
+        /** Whichever form the body was written in. */
+        BEST,
+        /** HTML, converted from plain text if need be. */
+        HTML,
+        /** Plain text, converted from HTML if need be, which is usually far smaller. */
+        TEXT
+    }
+
+    /** The default transport used to send requests to Exchange. */
+    public static final Transport DEFAULT_TRANSPORT = Transport.POOLED;
+    /** The default limit on simultaneous connections to one Exchange endpoint. */
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_ENDPOINT = 8;
+    /**
+     * The default number of milliseconds an idle connection is kept; this
+     * matches how long the JDK keeps idle sockets alive by default.
+     */
+    public static final int DEFAULT_IDLE_CONNECTION_TIMEOUT = 5000;
+    /**
+     * By default requests are never compressed, since Exchange servers only
+     * accept compressed requests when IIS has been set up to decompress them.
+     */
+    public static final int DEFAULT_REQUEST_COMPRESSION_THRESHOLD = 0;
+    /** The default number of milliseconds to wait for a connection to Exchange to open. */
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+    /** The default number of milliseconds to wait for any part of a response from Exchange. */
+    public static final int DEFAULT_READ_TIMEOUT = 10000;
+    /** The default form that item bodies are asked for in. */
+    public static final BodyFormat DEFAULT_BODY_FORMAT = BodyFormat.BEST;
+    /** By default bodies are kept whole, however long they are. */
+    public static final int DEFAULT_MAX_BODY_SIZE = 0;
+    /** The default size, in bytes once decompressed, that GetItem pages are sized to aim for. */
+    public static final int DEFAULT_TARGET_ITEM_PAGE_BYTES = 4 * 1024 * 1024;
+    /** The default time, in milliseconds, that GetItem pages are sized to aim for. */
+    public static final int DEFAULT_TARGET_ITEM_PAGE_MILLIS = 5000;
+
     private final int idPageSize;
     private final int itemPageSize;
+    private int minItemPageSize;
+    private int maxItemPageSize;
+    private int targetItemPageBytes;
+    private int targetItemPageMillis;
     private UserFolderSyncStateStorage syncStateStorage;
+    private int maxConnectionsPerEndpoint = DEFAULT_MAX_CONNECTIONS_PER_ENDPOINT;
+    private int idleConnectionTimeout = DEFAULT_IDLE_CONNECTION_TIMEOUT;
+    private Transport transport = DEFAULT_TRANSPORT;
+    private int maxRequestsInFlight = DEFAULT_MAX_CONNECTIONS_PER_ENDPOINT;
+    private int requestCompressionThreshold = DEFAULT_REQUEST_COMPRESSION_THRESHOLD;
+    private boolean streamingParserEnabled = true;
+    private boolean getItemCoalescingEnabled = true;
+    private RetryPolicy retryPolicy = new RetryPolicy();
+    private AuthSession authSession = new AuthSession();
+    private LatencyPolicy latencyPolicy = new LatencyPolicy();
+    private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private int readTimeout = DEFAULT_READ_TIMEOUT;
+    private int minRequestRate = AdaptiveRateLimiter.DEFAULT_MIN_RATE;
+    private int maxRequestRate = AdaptiveRateLimiter.DEFAULT_MAX_RATE;
+    private String recordingDirectory;
+    private String replayDirectory;
+    private Map<String, String> homeServers = Collections.emptyMap();
+    private Set<String> requiredHeaders;
+    private BodyFormat bodyFormat = DEFAULT_BODY_FORMAT;
+    private int maxBodySize = DEFAULT_MAX_BODY_SIZE;
+    private int largeItemSize;
+    private BlobStore attachmentStore;
+    private MessageDeduplicator messageDeduplicator;
+    private boolean metadataOnly;
+    private BlobStore exportStore;
+    private MimeArchive mimeArchive;
 
     /**
      * @param sizeOfIdPages Must be greater than or equal to 1.
@@ -42,6 +135,8 @@ public Configuration(final int sizeOfIdPages, final int sizeOfItemPages,
         // Asking for negative or zero max items is nonsensical.
         idPageSize = Math.max(sizeOfIdPages, 1);
         itemPageSize = Math.max(sizeOfItemPages, 1);
+        minItemPageSize = itemPageSize;
+        maxItemPageSize = itemPageSize;
         syncStateStorage = userFolderSyncStateStorage;
     }
 
@@ -56,16 +151,101 @@ public Configuration(final int sizeOfIdPages, final int sizeOfItemPages)
         this(sizeOfIdPages, sizeOfItemPages, new InMemoryUserFolderSyncStateStorage());
     }
 
+    /** Creates a copy of the given configuration, to be modified by one of the with methods. */
+    private Configuration(final Configuration other)
+    {
+        idPageSize = other.idPageSize;
+        itemPageSize = other.itemPageSize;
+        minItemPageSize = other.minItemPageSize;
+        maxItemPageSize = other.maxItemPageSize;
+        targetItemPageBytes = other.targetItemPageBytes;
+        targetItemPageMillis = other.targetItemPageMillis;
+        syncStateStorage = other.syncStateStorage;
+        maxConnectionsPerEndpoint = other.maxConnectionsPerEndpoint;
+        idleConnectionTimeout = other.idleConnectionTimeout;
+        transport = other.transport;
+        maxRequestsInFlight = other.maxRequestsInFlight;
+        requestCompressionThreshold = other.requestCompressionThreshold;
+        streamingParserEnabled = other.streamingParserEnabled;
+        getItemCoalescingEnabled = other.getItemCoalescingEnabled;
+        retryPolicy = other.retryPolicy;
+        authSession = other.authSession;
+        latencyPolicy = other.latencyPolicy;
+        connectTimeout = other.connectTimeout;
+        readTimeout = other.readTimeout;
+        minRequestRate = other.minRequestRate;
+        maxRequestRate = other.maxRequestRate;
+        recordingDirectory = other.recordingDirectory;
+        replayDirectory = other.replayDirectory;
+        homeServers = other.homeServers;
+        requiredHeaders = other.requiredHeaders;
+        bodyFormat = other.bodyFormat;
+        maxBodySize = other.maxBodySize;
+        largeItemSize = other.largeItemSize;
+        attachmentStore = other.attachmentStore;
+        messageDeduplicator = other.messageDeduplicator;
+        metadataOnly = other.metadataOnly;
+        exportStore = other.exportStore;
+        mimeArchive = other.mimeArchive;
+    }
+
     public int getIdPageSize()
     {
         return idPageSize;
     }
 
+    /** The number of items each user's GetItem pages start out at. */
     public int getItemPageSize()
     {
         return itemPageSize;
     }
 
+    /** The fewest items a GetItem page is shrunk to. */
+    public int getMinItemPageSize()
+    {
+        return minItemPageSize;
+    }
+
+    /** The most items a GetItem page is grown to. */
+    public int getMaxItemPageSize()
+    {
+        return maxItemPageSize;
+    }
+
+    /** The size, in bytes once decompressed, that GetItem pages are sized to aim for, or zero for no aim. */
+    public int getTargetItemPageBytes()
+    {
+        return targetItemPageBytes;
+    }
+
+    /** The time, in milliseconds, that GetItem pages are sized to aim for, or zero for no aim. */
+    public int getTargetItemPageMillis()
+    {
+        return targetItemPageMillis;
+    }
+
+    /**
+     * Returns a copy of this configuration whose GetItem pages are resized as
+     * the run goes, starting at the item page size, to aim for responses of
+     * a given size and time.  Without this, every page is the item page size.
+     *
+     * @param minPageSize The fewest items to ask for in one GetItem request.  Must be at least 1.
+     * @param maxPageSize The most items to ask for in one GetItem request.
+     * @param targetBytes The response size, in bytes once decompressed, to aim for.  Zero doesn't aim for one.
+     * @param targetMillis The response time, in milliseconds, to aim for.  Zero doesn't aim for one.
+     * @return The new configuration.
+     */
+    public Configuration withAdaptiveItemPages(final int minPageSize, final int maxPageSize, final int targetBytes,
+                                               final int targetMillis)
+    {
+        Configuration config = new Configuration(this);
+        config.minItemPageSize = Math.max(minPageSize, 1);
+        config.maxItemPageSize = Math.max(maxPageSize, config.minItemPageSize);
+        config.targetItemPageBytes = Math.max(targetBytes, 0);
+        config.targetItemPageMillis = Math.max(targetMillis, 0);
+        return config;
+    }
+
     public UserFolderSyncStateStorage getSyncStateStorage()
     {
         return syncStateStorage;
@@ -73,6 +253,538 @@ public UserFolderSyncStateStorage getSyncStateStorage()
 
     public Configuration withSyncStateStorage(final UserFolderSyncStateStorage userFolderSyncStateStorage)
     {
-        return new Configuration(idPageSize, itemPageSize, userFolderSyncStateStorage);
+        Configuration config = new Configuration(this);
+        config.syncStateStorage = userFolderSyncStateStorage;
+        return config;
+    }
+
+    public int getMaxConnectionsPerEndpoint()
+    {
+        return maxConnectionsPerEndpoint;
+    }
+
+    public int getIdleConnectionTimeout()
+    {
+        return idleConnectionTimeout;
+    }
+
+    /**
+     * Returns a copy of this configuration with different connection pool settings.
+     *
+     * @param maxConnections The most connections to have open to a single
+     * endpoint at once.  Must be greater than or equal to 1.
+     * @param idleTimeout The number of milliseconds an endpoint can go
+     * without requests before its idle connections are closed.  Must be greater than or equal to 0.
+     * @return The new configuration.
+     */
+    public Configuration withConnectionPool(final int maxConnections, final int idleTimeout)
+    {
+        Configuration config = new Configuration(this);
+        config.maxConnectionsPerEndpoint = Math.max(maxConnections, 1);
+        config.idleConnectionTimeout = Math.max(idleTimeout, 0);
+        return config;
+    }
+
+    public Transport getTransport()
+    {
+        return transport;
+    }
+
+    /**
+     * Returns a copy of this configuration that sends requests with a different transport.
+     *
+     * @param requestTransport The transport to use.  If this is null, the default transport is used.
+     * @return The new configuration.
+     */
+    public Configuration withTransport(final Transport requestTransport)
+    {
+        Configuration config = new Configuration(this);
+        config.transport = requestTransport == null ? DEFAULT_TRANSPORT : requestTransport;
+        return config;
+    }
+
+    /**
+     * The most asynchronous requests that will be waiting on one Exchange
+     * endpoint at once.  Unless it's been set, this is the same as the
+     * connection limit, so queued requests never wait on the pool instead.
+     */
+    public int getMaxRequestsInFlight()
+    {
+        return maxRequestsInFlight;
+    }
+
+    /**
+     * Returns a copy of this configuration with a different limit on asynchronous requests.
+     *
+     * @param maxRequests The most requests to have in flight to a single
+     * endpoint at once.  Must be greater than or equal to 1.
+     * @return The new configuration.
+     */
+    public Configuration withMaxRequestsInFlight(final int maxRequests)
+    {
+        Configuration config = new Configuration(this);
+        config.maxRequestsInFlight = Math.max(maxRequests, 1);
+        return config;
+    }
+
+    /** The size in bytes at which requests are gzipped, or zero if they are never compressed. */
+    public int getRequestCompressionThreshold()
+    {
+        return requestCompressionThreshold;
+    }
+
+    /**
+     * Returns a copy of this configuration that gzips large requests.
+     *
+     * @param threshold Requests of at least this many bytes are compressed.
+     * Zero or less means requests are never compressed.
+     * @return The new configuration.
+     */
+    public Configuration withRequestCompression(final int threshold)
+    {
+        Configuration config = new Configuration(this);
+        config.requestCompressionThreshold = Math.max(threshold, 0);
+        return config;
+    }
+
+    /** Whether GetItem and SyncFolderItems responses are streamed, rather than parsed into xmlbeans objects. */
+    public boolean isStreamingParserEnabled()
+    {
+        return streamingParserEnabled;
+    }
+
+    /**
+     * Returns a copy of this configuration that turns the streaming parser on or off.
+     *
+     * @param enabled False to always parse responses into xmlbeans objects.
+     * @return The new configuration.
+     */
+    public Configuration withStreamingParser(final boolean enabled)
+    {
+        Configuration config = new Configuration(this);
+        config.streamingParserEnabled = enabled;
+        return config;
+    }
+
+    /**
+     * Whether the new items in all of a user's folders are gathered into
+     * full GetItem requests, rather than getting each folder's items on
+     * their own.
+     */
+    public boolean isGetItemCoalescingEnabled()
+    {
+        return getItemCoalescingEnabled;
+    }
+
+    /**
+     * Returns a copy of this configuration that turns coalescing GetItem
+     * requests across folders on or off.
+     *
+     * @param enabled False to make separate GetItem requests for each page of each folder.
+     * @return The new configuration.
+     */
+    public Configuration withGetItemCoalescing(final boolean enabled)
+    {
+        Configuration config = new Configuration(this);
+        config.getItemCoalescingEnabled = enabled;
+        return config;
+    }
+
+    /**
+     * The policy for retrying failed calls to Exchange.  This is shared by
+     * every copy of the configuration, so that the whole run draws on the
+     * same retry budget.
+     */
+    public RetryPolicy getRetryPolicy()
+    {
+        return retryPolicy;
+    }
+
+    /**
+     * Returns a copy of this configuration that retries failed calls with a different policy.
+     *
+     * @param policy The policy to use.  If this is null, the default policy is used.
+     * @return The new configuration.
+     */
+    public Configuration withRetryPolicy(final RetryPolicy policy)
+    {
+        Configuration config = new Configuration(this);
+        config.retryPolicy = policy == null ? new RetryPolicy() : policy;
+        return config;
+    }
+
+    /**
+     * The authenticated session with the Exchange servers.  Like the retry
+     * policy, this is shared by every copy of the configuration.
+     */
+    public AuthSession getAuthSession()
+    {
+        return authSession;
+    }
+
+    /**
+     * Returns a copy of this configuration that authenticates requests with a different session.
+     *
+     * @param session The session to use.  If this is null, a new session is used.
+     * @return The new configuration.
+     */
+    public Configuration withAuthSession(final AuthSession session)
+    {
+        Configuration config = new Configuration(this);
+        config.authSession = session == null ? new AuthSession() : session;
+        return config;
+    }
+
+    /**
+     * The deadlines for each type of call, and when to hedge them.  Like the
+     * retry policy, this is shared by every copy of the configuration.
+     */
+    public LatencyPolicy getLatencyPolicy()
+    {
+        return latencyPolicy;
+    }
+
+    /**
+     * Returns a copy of this configuration with different deadlines and hedging.
+     *
+     * @param policy The policy to use.  If this is null, the default policy is used.
+     * @return The new configuration.
+     */
+    public Configuration withLatencyPolicy(final LatencyPolicy policy)
+    {
+        Configuration config = new Configuration(this);
+        config.latencyPolicy = policy == null ? new LatencyPolicy() : policy;
+        return config;
+    }
+
+    /** The number of milliseconds to wait for a connection to Exchange to open, or zero to wait forever. */
+    public int getConnectTimeout()
+    {
+        return connectTimeout;
+    }
+
+    /** The number of milliseconds to wait for any part of a response, or zero to wait forever. */
+    public int getReadTimeout()
+    {
+        return readTimeout;
+    }
+
+    /**
+     * Returns a copy of this configuration with different socket timeouts.
+     * These bound each wait on the network, while the latency policy's
+     * deadlines bound whole calls.
+     *
+     * @param connectMillis The most milliseconds to wait for a connection to open.  Zero waits forever.
+     * @param readMillis The most milliseconds to wait for any part of a response.  Zero waits forever.
+     * @return The new configuration.
+     */
+    public Configuration withTimeouts(final int connectMillis, final int readMillis)
+    {
+        Configuration config = new Configuration(this);
+        config.connectTimeout = Math.max(connectMillis, 0);
+        config.readTimeout = Math.max(readMillis, 0);
+        return config;
+    }
+
+    /** The fewest requests per second the rate limiter will slow down to. */
+    public int getMinRequestRate()
+    {
+        return minRequestRate;
+    }
+
+    /** The most requests per second the rate limiter will speed up to, or zero if requests aren't paced. */
+    public int getMaxRequestRate()
+    {
+        return maxRequestRate;
+    }
+
+    /**
+     * Returns a copy of this configuration with different bounds on the rate of requests.
+     *
+     * @param minRate The fewest requests per second to slow down to.  Must be
+     * greater than or equal to 1.
+     * @param maxRate The most requests per second to speed up to.  Zero or
+     * less means requests aren't paced at all.
+     * @return The new configuration.
+     */
+    public Configuration withRequestRate(final int minRate, final int maxRate)
+    {
+        Configuration config = new Configuration(this);
+        config.maxRequestRate = Math.max(maxRate, 0);
+        config.minRequestRate = Math.max(minRate, 1);
+        return config;
+    }
+
+    /** The directory that requests and responses are recorded to, or null if they aren't recorded. */
+    public String getRecordingDirectory()
+    {
+        return recordingDirectory;
+    }
+
+    /**
+     * Returns a copy of this configuration that records every request to
+     * Exchange, and the response it got, so they can be replayed later.
+     *
+     * @param directory The directory to write the recordings to, or null to not record.
+     * @return The new configuration.
+     */
+    public Configuration withRecording(final String directory)
+    {
+        Configuration config = new Configuration(this);
+        config.recordingDirectory = directory;
+        return config;
+    }
+
+    /** The directory that responses are replayed from instead of asking Exchange, or null to ask Exchange. */
+    public String getReplayDirectory()
+    {
+        return replayDirectory;
+    }
+
+    /**
+     * Returns a copy of this configuration that answers requests from
+     * recordings, instead of sending them to Exchange.  Requests aren't paced
+     * while replaying, so the rest of the pipeline can be run as fast as it
+     * will go.
+     *
+     * @param directory The directory the recordings were written to, or null to ask Exchange.
+     * @return The new configuration.
+     */
+    public Configuration withReplay(final String directory)
+    {
+        Configuration config = new Configuration(this);
+        config.replayDirectory = directory;
+        return config;
+    }
+
+    /** The mailbox server that holds each user's mailbox, by principal name, for those that are known. */
+    public Map<String, String> getHomeServers()
+    {
+        return homeServers;
+    }
+
+    /**
+     * Returns a copy of this configuration that knows which mailbox server
+     * each user's mailbox is on, so requests for mailboxes on the same server
+     * can be routed together.
+     *
+     * @param servers The home server of each user, by principal name.  Users
+     * that aren't in it are routed on their own.
+     * @return The new configuration.
+     */
+    public Configuration withHomeServers(final Map<String, String> servers)
+    {
+        Configuration config = new Configuration(this);
+        config.homeServers = Collections.unmodifiableMap(new HashMap<String, String>(servers));
+        return config;
+    }
+
+    /**
+     * The mail headers that GetItem requests ask Exchange for, or null if
+     * every property of each item is asked for.
+     */
+    public Set<String> getRequiredHeaders()
+    {
+        return requiredHeaders;
+    }
+
+    /**
+     * Returns a copy of this configuration that only asks Exchange for the
+     * properties that make up the given headers, so that properties nothing
+     * will write, like the body, are never downloaded.
+     *
+     * @param headers The MailboxItem header keys that are written, or null to
+     * ask for every property.
+     * @return The new configuration.
+     */
+    public Configuration withRequiredHeaders(final Set<String> headers)
+    {
+        Configuration config = new Configuration(this);
+        config.requiredHeaders = headers == null ? null
+                                 : Collections.unmodifiableSet(new HashSet<String>(headers));
+        return config;
+    }
+
+    /** The form that item bodies are asked for in. */
+    public BodyFormat getBodyFormat()
+    {
+        return bodyFormat;
+    }
+
+    /**
+     * The most characters of each item's body that are kept, or 0 to keep
+     * every body whole.
+     */
+    public int getMaxBodySize()
+    {
+        return maxBodySize;
+    }
+
+    /**
+     * Returns a copy of this configuration that asks for bodies in the given
+     * form and cuts them off after the given number of characters.  Items
+     * whose bodies are cut off are marked as truncated.
+     *
+     * @param format The form to ask for bodies in.
+     * @param maxCharacters The most characters of each body to keep, or 0 to keep them whole.
+     * @return The new configuration.
+     */
+    public Configuration withBody(final BodyFormat format, final int maxCharacters)
+    {
+        Configuration config = new Configuration(this);
+        config.bodyFormat = format;
+        config.maxBodySize = Math.max(maxCharacters, 0);
+        return config;
+    }
+
+    /**
+     * The size, in bytes, over which an item's body is fetched in a GetItem
+     * request of its own, or 0 if items are fetched whole in a single pass.
+     */
+    public int getLargeItemSize()
+    {
+        return largeItemSize;
+    }
+
+    /**
+     * Returns a copy of this configuration that gets items in two passes:
+     * first everything but the bodies, along with each item's size, and then
+     * the bodies.  The bodies of small items are fetched together, while
+     * each item over the given size gets a request of its own, so that one
+     * huge message can't hold up or fail the rest of its page.
+     *
+     * @param bytes The size over which an item's body is fetched on its own,
+     * or 0 to fetch items whole in a single pass.
+     * @return The new configuration.
+     */
+    public Configuration withLargeItemSize(final int bytes)
+    {
+        Configuration config = new Configuration(this);
+        config.largeItemSize = Math.max(bytes, 0);
+        return config;
+    }
+
+    /** The blob store that attachments are put in, or null if attachments aren't fetched. */
+    public BlobStore getAttachmentStore()
+    {
+        return attachmentStore;
+    }
+
+    /**
+     * Returns a copy of this configuration that fetches the file attachments
+     * of each item into the given blob store, as the items are fetched.  The
+     * store is shared between the copies.
+     *
+     * @param store The store to put attachments in, or null to leave
+     * attachments alone.
+     * @return The new configuration.
+     */
+    public Configuration withAttachmentStore(final BlobStore store)
+    {
+        Configuration config = new Configuration(this);
+        config.attachmentStore = store;
+        return config;
+    }
+
+    /**
+     * Keeps copies of a message in other mailboxes from being fetched in
+     * full, or null if every item is fetched.
+     */
+    public MessageDeduplicator getMessageDeduplicator()
+    {
+        return messageDeduplicator;
+    }
+
+    /**
+     * Returns a copy of this configuration that only fetches each message
+     * in full once, however many mailboxes it was delivered to.  Later copies
+     * are handed out as items with just their own id and the id of the copy
+     * that was fetched.  The deduplicator is shared between the copies of
+     * the configuration.
+     *
+     * @param index The index of messages that have been stored in full, or
+     * null to fetch every item.
+     * @return The new configuration.
+     */
+    public Configuration withMessageIndex(final SeenMessageIndex index)
+    {
+        Configuration config = new Configuration(this);
+        config.messageDeduplicator = index == null ? null : new MessageDeduplicator(index);
+        return config;
+    }
+
+    /**
+     * Whether items are built straight from the SyncFolderItems responses,
+     * without any GetItem requests.
+     */
+    public boolean isMetadataOnly()
+    {
+        return metadataOnly;
+    }
+
+    /**
+     * Returns a copy of this configuration that asks SyncFolderItems for
+     * every required header but the body and attachments, and hands out the
+     * new items just as they come back, so GetItem is never called.  That's
+     * half the requests to Exchange, but the items have no body or
+     * attachments.
+     *
+     * @param enabled Whether to only crawl the metadata of each item.
+     * @return The new configuration.
+     */
+    public Configuration withMetadataOnly(final boolean enabled)
+    {
+        Configuration config = new Configuration(this);
+        config.metadataOnly = enabled;
+        return config;
+    }
+
+    /** The blob store that new folders' items are exported into, or null if items are fetched with GetItem. */
+    public BlobStore getExportStore()
+    {
+        return exportStore;
+    }
+
+    /**
+     * Returns a copy of this configuration that fetches pages of items with
+     * ExportItems instead of GetItem, putting the full-fidelity stream of
+     * each item into the given blob store.  The items handed out only have
+     * their id and the hash of their stream.  Only the items of folders that
+     * have no sync state yet are exported; folders that have been synced
+     * before are still fetched with GetItem.  The store is shared between
+     * the copies.
+     *
+     * @param store The store to export items into, or null to fetch items
+     * with GetItem.
+     * @return The new configuration.
+     */
+    public Configuration withExportStore(final BlobStore store)
+    {
+        Configuration config = new Configuration(this);
+        config.exportStore = store;
+        return config;
+    }
+
+    /** The archive that the MIME content of items is put in, or null if it isn't fetched. */
+    public MimeArchive getMimeArchive()
+    {
+        return mimeArchive;
+    }
+
+    /**
+     * Returns a copy of this configuration that fetches the MIME content of
+     * each item along with the rest of it, and puts it in the given archive
+     * instead of reading the body and attachments.  The archive is shared
+     * between the copies.
+     *
+     * @param archive The archive to put MIME content in, or null to leave
+     * MIME content out.
+     * @return The new configuration.
+     */
+    public Configuration withMimeArchive(final MimeArchive archive)
+    {
+        Configuration config = new Configuration(this);
+        config.mimeArchive = archive;
+        return config;
     }
 }
@@ -0,0 +1,98 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Wraps response streams so that they are decompressed as they are read,
+ * according to the response's Content-Encoding.
+ */
+final class ContentDecoder
+{
+    private static final int ZLIB_HEADER_SIZE = 2;
+    private static final int ZLIB_METHOD_MASK = 0x0F;
+    private static final int ZLIB_DEFLATE_METHOD = 8;
+    private static final int ZLIB_CHECK_DIVISOR = 31;
+    private static final int BITS_PER_BYTE = 8;
+    private static final int BYTE_MASK = 0xFF;
+
+    private ContentDecoder()
+    {
+    }
+
+    /**
+     * Returns a stream of the decompressed response.
+     *
+     * @param contentEncoding The Content-Encoding of the response, which may be null.
+     * @param stream The response as it came over the wire.
+     * @return A stream that decompresses the response while it's read.
+     * @throws IOException If the encoding isn't supported, or the compressed
+     * data couldn't be read.
+     */
+    static InputStream decode(final String contentEncoding, final InputStream stream) throws IOException
+    {
+        String encoding = contentEncoding == null ? "" : contentEncoding.trim().toLowerCase();
+        if (encoding.length() == 0 || encoding.equals("identity"))
+        {
+            return stream;
+        }
+        if (encoding.equals("gzip") || encoding.equals("x-gzip"))
+        {
+            return new GZIPInputStream(stream);
+        }
+        if (encoding.equals("deflate"))
+        {
+            return inflate(stream);
+        }
+        throw new IOException("Unsupported content encoding \"" + contentEncoding + "\".");
+    }
+
+    /**
+     * HTTP says deflate bodies are zlib streams, but some servers, older IIS
+     * among them, send raw deflate data instead, so this checks for the zlib
+     * header before deciding how to inflate.
+     */
+    private static InputStream inflate(final InputStream stream) throws IOException
+    {
+        PushbackInputStream pushback = new PushbackInputStream(stream, ZLIB_HEADER_SIZE);
+        byte[] header = new byte[ZLIB_HEADER_SIZE];
+        int read = 0;
+        while (read < ZLIB_HEADER_SIZE)
+        {
+            int count = pushback.read(header, read, ZLIB_HEADER_SIZE - read);
+            if (count < 0)
+            {
+                break;
+            }
+            read += count;
+        }
+        pushback.unread(header, 0, read);
+
+        int headerValue = ((header[0] & BYTE_MASK) << BITS_PER_BYTE) | (header[1] & BYTE_MASK);
+        boolean zlib = read == ZLIB_HEADER_SIZE
+                       && (header[0] & ZLIB_METHOD_MASK) == ZLIB_DEFLATE_METHOD
+                       && headerValue % ZLIB_CHECK_DIVISOR == 0;
+        return new InflaterInputStream(pushback, new Inflater(!zlib));
+    }
+}
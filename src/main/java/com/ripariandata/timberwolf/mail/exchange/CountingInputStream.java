@@ -0,0 +1,76 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/** An InputStream that keeps track of how many bytes have been read through it. */
+class CountingInputStream extends FilterInputStream
+{
+    private long count;
+
+    CountingInputStream(final InputStream stream)
+    {
+        super(stream);
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        int b = super.read();
+        if (b >= 0)
+        {
+            count++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(final byte[] buffer, final int offset, final int length) throws IOException
+    {
+        int read = super.read(buffer, offset, length);
+        if (read > 0)
+        {
+            count += read;
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(final long n) throws IOException
+    {
+        long skipped = super.skip(n);
+        count += skipped;
+        return skipped;
+    }
+
+    /** Mark and reset would make the count ambiguous, so they aren't supported. */
+    @Override
+    public boolean markSupported()
+    {
+        return false;
+    }
+
+    /** Returns the number of bytes read or skipped so far. */
+    long getCount()
+    {
+        return count;
+    }
+}
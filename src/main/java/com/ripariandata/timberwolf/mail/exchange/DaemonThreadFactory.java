@@ -0,0 +1,45 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Makes daemon threads for running Exchange calls in the background, so the
+ * run can end while a call is still finishing.
+ */
+final class DaemonThreadFactory implements ThreadFactory
+{
+    private final String prefix;
+    private final AtomicInteger count = new AtomicInteger();
+
+    /** @param namePrefix The start of each thread's name, which is followed by its number. */
+    DaemonThreadFactory(final String namePrefix)
+    {
+        prefix = namePrefix;
+    }
+
+    @Override
+    public Thread newThread(final Runnable runnable)
+    {
+        Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
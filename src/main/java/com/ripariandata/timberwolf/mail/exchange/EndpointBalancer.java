@@ -0,0 +1,438 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import com.microsoft.schemas.exchange.services.x2006.messages.ResponseCodeType;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Spreads requests across several Exchange endpoints that serve the same
+ * mailboxes, such as the Client Access servers in one site.
+ * <p/>
+ * Each request goes to the endpoint with the fewest requests outstanding,
+ * taking turns when there's a tie, so a node that answers slowly ends up
+ * with less of the work.  Each endpoint also has a circuit breaker: after a
+ * few failures in a row that point at the node itself, such as a connection
+ * error, a timeout, or a bad gateway, no more requests are sent to it for a
+ * while.  Once that time is up, one request is let through as a trial; if it
+ * works the endpoint is used again, and if not it's left alone for another
+ * while.  Errors about the mailbox or the request itself, and Exchange saying
+ * it's busy, are the same on every node, so they don't count against one.
+ * <p/>
+ * If every endpoint's breaker is open, requests go to the one that will be
+ * ready soonest rather than failing outright, and the retry policy decides
+ * whether to keep trying.
+ * <p/>
+ * Requests for a mailbox stick to the endpoint the first of them went to,
+ * as long as that endpoint's breaker stays closed.  When the home server of
+ * each mailbox is known, every mailbox on the same server shares a route,
+ * so a Client Access server keeps talking to the same few mailbox servers
+ * instead of proxying to all of them.
+ * <p/>
+ * The number of requests outstanding at each endpoint can be capped.  A
+ * request whose endpoint is at the cap waits until one of that endpoint's
+ * requests finishes, rather than going to another endpoint, so that its
+ * mailbox keeps its route.
+ */
+public class EndpointBalancer
+{
+    /** The default number of failures in a row that stop requests to an endpoint. */
+    public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+    /** The default number of milliseconds an endpoint is left alone after it has failed. */
+    public static final long DEFAULT_OPEN_MILLIS = 30000;
+
+    private static final Logger LOG = LoggerFactory.getLogger(EndpointBalancer.class);
+
+    private final List<Endpoint> endpoints;
+    private final int failureThreshold;
+    private final long openNanos;
+    private final Map<String, String> homeServers;
+    private final Map<String, Endpoint> routes = new HashMap<String, Endpoint>();
+    private int nextIndex;
+    private long rerouted;
+    private int maxOutstanding = Integer.MAX_VALUE;
+
+    /**
+     * @param urls The URLs of the Exchange endpoints, which must all serve the
+     * same mailboxes.
+     */
+    public EndpointBalancer(final List<String> urls)
+    {
+        this(urls, DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_MILLIS);
+    }
+
+    /**
+     * @param urls The URLs of the Exchange endpoints, which must all serve the
+     * same mailboxes.
+     * @param threshold The number of failures in a row that stop requests to an endpoint.
+     * @param openMillis The number of milliseconds an endpoint is left alone after it has failed.
+     */
+    public EndpointBalancer(final List<String> urls, final int threshold, final long openMillis)
+    {
+        this(urls, threshold, openMillis, Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * @param urls The URLs of the Exchange endpoints, which must all serve the
+     * same mailboxes.
+     * @param threshold The number of failures in a row that stop requests to an endpoint.
+     * @param openMillis The number of milliseconds an endpoint is left alone after it has failed.
+     * @param mailboxHomeServers The mailbox server that holds each user's
+     * mailbox, by principal name.  Users that aren't in it get a route of
+     * their own.
+     */
+    public EndpointBalancer(final List<String> urls, final int threshold, final long openMillis,
+                            final Map<String, String> mailboxHomeServers)
+    {
+        if (urls == null || urls.isEmpty())
+        {
+            throw new IllegalArgumentException("At least one Exchange endpoint is needed.");
+        }
+        List<Endpoint> list = new ArrayList<Endpoint>(urls.size());
+        for (String url : urls)
+        {
+            list.add(new Endpoint(url));
+        }
+        endpoints = Collections.unmodifiableList(list);
+        failureThreshold = Math.max(threshold, 1);
+        openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+        homeServers = new HashMap<String, String>();
+        for (Map.Entry<String, String> entry : mailboxHomeServers.entrySet())
+        {
+            homeServers.put(entry.getKey().toLowerCase(Locale.ENGLISH), entry.getValue());
+        }
+    }
+
+    /**
+     * Caps the number of requests outstanding at each endpoint.
+     *
+     * @param max The most requests that can be outstanding at one endpoint.
+     * Must be greater than or equal to 1.
+     */
+    synchronized void limitOutstanding(final int max)
+    {
+        maxOutstanding = Math.max(max, 1);
+        notifyAll();
+    }
+
+    /** The most requests that can be outstanding at one endpoint. */
+    synchronized int getMaxOutstanding()
+    {
+        return maxOutstanding;
+    }
+
+    /**
+     * Picks the endpoint for the next request, and counts the request as
+     * outstanding there until it's given back to {@link #release}.
+     *
+     * @throws ServiceCallException If the thread was interrupted while
+     * waiting for the endpoint to have room for the request.
+     */
+    synchronized Endpoint acquire() throws ServiceCallException
+    {
+        return acquire(null);
+    }
+
+    /**
+     * Picks the endpoint for the next request for a mailbox, which is the
+     * endpoint its route has been using unless that one has failed.  If the
+     * endpoint already has as many requests outstanding as it's allowed,
+     * this waits until it has room.
+     *
+     * @param mailbox The principal name of the mailbox's user, or null if
+     * the request isn't for one mailbox.
+     * @throws ServiceCallException If the thread was interrupted while
+     * waiting for the endpoint to have room for the request.
+     */
+    synchronized Endpoint acquire(final String mailbox) throws ServiceCallException
+    {
+        String route = getRoute(mailbox);
+        while (true)
+        {
+            Endpoint best = route == null ? null : routes.get(route);
+            if (best == null || best.isOpen())
+            {
+                if (best != null)
+                {
+                    rerouted++;
+                }
+                best = pick();
+                if (route != null)
+                {
+                    routes.put(route, best);
+                }
+            }
+            if (best.outstanding < maxOutstanding)
+            {
+                best.outstanding++;
+                best.requests++;
+                return best;
+            }
+            try
+            {
+                wait();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new ServiceCallException(ServiceCallException.Reason.OTHER,
+                                               "Interrupted while waiting to send a request to " + best.url, e);
+            }
+        }
+    }
+
+    /** The route requests for the given mailbox share, or null if there's none. */
+    String getRoute(final String mailbox)
+    {
+        if (mailbox == null)
+        {
+            return null;
+        }
+        String key = mailbox.toLowerCase(Locale.ENGLISH);
+        String homeServer = homeServers.get(key);
+        return homeServer == null ? key : homeServer;
+    }
+
+    /** Picks the least busy endpoint that hasn't failed. */
+    private Endpoint pick()
+    {
+        long now = now();
+        Endpoint best = null;
+        Endpoint soonest = null;
+        int count = endpoints.size();
+        for (int i = 0; i < count; i++)
+        {
+            Endpoint endpoint = endpoints.get((nextIndex + i) % count);
+            if (endpoint.isOpen())
+            {
+                if (now - endpoint.openedAt >= openNanos && !endpoint.trial)
+                {
+                    // The first endpoint ready for a trial gets it, so it can recover.
+                    best = endpoint;
+                    endpoint.trial = true;
+                    break;
+                }
+                if (soonest == null || endpoint.openedAt < soonest.openedAt)
+                {
+                    soonest = endpoint;
+                }
+            }
+            else if (best == null || endpoint.outstanding < best.outstanding)
+            {
+                best = endpoint;
+            }
+        }
+        if (best == null)
+        {
+            LOG.debug("Every Exchange endpoint has failed recently, trying {} anyway.", soonest.url);
+            best = soonest;
+        }
+        nextIndex = (endpoints.indexOf(best) + 1) % count;
+        return best;
+    }
+
+    /**
+     * Records how a request to an endpoint went.
+     *
+     * @param endpoint The endpoint the request was sent to.
+     * @param error The exception the request failed with, or null if it worked.
+     */
+    synchronized void release(final Endpoint endpoint, final Exception error)
+    {
+        endpoint.outstanding--;
+        notifyAll();
+        boolean wasTrial = endpoint.trial;
+        endpoint.trial = false;
+        if (error != null && isEndpointFailure(error))
+        {
+            endpoint.failures++;
+            endpoint.consecutiveFailures++;
+            if (wasTrial || (!endpoint.isOpen() && endpoint.consecutiveFailures >= failureThreshold))
+            {
+                endpoint.openedAt = now();
+                endpoint.opened = true;
+                endpoint.trips++;
+                LOG.warn("Not sending requests to {} for {} ms, after {} failures in a row: {}",
+                         new Object[] {endpoint.url, TimeUnit.NANOSECONDS.toMillis(openNanos),
+                                       endpoint.consecutiveFailures, error.getMessage()});
+            }
+        }
+        else
+        {
+            endpoint.consecutiveFailures = 0;
+            if (endpoint.isOpen())
+            {
+                endpoint.opened = false;
+                LOG.info("{} is answering again.", endpoint.url);
+            }
+        }
+    }
+
+    /**
+     * Whether an error says something is wrong with the endpoint, rather than
+     * with the request, the mailbox, or how hard we're using Exchange.
+     */
+    static boolean isEndpointFailure(final Exception e)
+    {
+        if (e instanceof HttpErrorException)
+        {
+            HttpErrorException httpError = (HttpErrorException) e;
+            if (httpError.getSoapError() == ResponseCodeType.ERROR_SERVER_BUSY)
+            {
+                return false;
+            }
+            int code = httpError.getErrorCode();
+            return code == HttpURLConnection.HTTP_BAD_GATEWAY || code == HttpURLConnection.HTTP_UNAVAILABLE
+                   || code == HttpURLConnection.HTTP_GATEWAY_TIMEOUT;
+        }
+        if (e instanceof ServiceCallException && !(e instanceof UnexpectedResponseException)
+            && ((ServiceCallException) e).getReason() == ServiceCallException.Reason.OTHER)
+        {
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause())
+            {
+                if (cause instanceof IOException)
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** The URLs of the endpoints, in the order they were given. */
+    public List<String> getUrls()
+    {
+        List<String> urls = new ArrayList<String>(endpoints.size());
+        for (Endpoint endpoint : endpoints)
+        {
+            urls.add(endpoint.url);
+        }
+        return urls;
+    }
+
+    /** The number of requests to the given endpoint that haven't finished yet. */
+    public synchronized int getOutstanding(final String url)
+    {
+        Endpoint endpoint = find(url);
+        return endpoint == null ? 0 : endpoint.outstanding;
+    }
+
+    /** The number of requests that have been sent to the given endpoint. */
+    public synchronized long getRequests(final String url)
+    {
+        Endpoint endpoint = find(url);
+        return endpoint == null ? 0 : endpoint.requests;
+    }
+
+    /** The number of requests to the given endpoint that failed because of the endpoint. */
+    public synchronized long getFailures(final String url)
+    {
+        Endpoint endpoint = find(url);
+        return endpoint == null ? 0 : endpoint.failures;
+    }
+
+    /** Whether requests to the given endpoint have been stopped because it keeps failing. */
+    public synchronized boolean isOpen(final String url)
+    {
+        Endpoint endpoint = find(url);
+        return endpoint != null && endpoint.isOpen();
+    }
+
+    /** The number of routes that moved to another endpoint because theirs had failed. */
+    public synchronized long getRerouted()
+    {
+        return rerouted;
+    }
+
+    private Endpoint find(final String url)
+    {
+        for (Endpoint endpoint : endpoints)
+        {
+            if (endpoint.url.equals(url))
+            {
+                return endpoint;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        StringBuilder builder = new StringBuilder();
+        for (Endpoint endpoint : endpoints)
+        {
+            if (builder.length() > 0)
+            {
+                builder.append("; ");
+            }
+            builder.append(String.format("%s: %d requests, %d failures, stopped %d times%s", endpoint.url,
+                                         endpoint.requests, endpoint.failures, endpoint.trips,
+                                         endpoint.isOpen() ? " (stopped now)" : ""));
+        }
+        builder.append(String.format("; %d mailbox routes, %d moved", routes.size(), rerouted));
+        return builder.toString();
+    }
+
+    /** The current time in nanoseconds, for measuring intervals. */
+    long now()
+    {
+        return System.nanoTime();
+    }
+
+    /** One Exchange endpoint, and how it has been doing. */
+    static final class Endpoint
+    {
+        private final String url;
+        private int outstanding;
+        private int consecutiveFailures;
+        private boolean opened;
+        private long openedAt;
+        private boolean trial;
+        private long requests;
+        private long failures;
+        private long trips;
+
+        private Endpoint(final String address)
+        {
+            url = address;
+        }
+
+        String getUrl()
+        {
+            return url;
+        }
+
+        private boolean isOpen()
+        {
+            return opened;
+        }
+    }
+}
@@ -20,16 +20,44 @@
 
 import com.microsoft.schemas.exchange.services.x2006.types.ArrayOfRecipientsType;
 import com.microsoft.schemas.exchange.services.x2006.types.EmailAddressType;
+import com.microsoft.schemas.exchange.services.x2006.types.FileAttachmentType;
 import com.microsoft.schemas.exchange.services.x2006.types.MessageType;
 import com.microsoft.schemas.exchange.services.x2006.types.SingleRecipientType;
+import com.microsoft.schemas.exchange.services.x2006.types.UnindexedFieldURIType;
 import com.ripariandata.timberwolf.mail.MailboxItem;
+import com.ripariandata.timberwolf.writer.archive.MimeArchiveException;
+import com.ripariandata.timberwolf.writer.archive.MimeArchiveFile;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.text.DateFormat;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.xmlbeans.GDate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.ripariandata.timberwolf.mail.exchange.StreamingResponseParser.TYPES_NAMESPACE;
+import static com.ripariandata.timberwolf.mail.exchange.StreamingResponseParser.decodeBase64;
+import static com.ripariandata.timberwolf.mail.exchange.StreamingResponseParser.isElement;
+import static com.ripariandata.timberwolf.mail.exchange.StreamingResponseParser.nextChild;
+import static com.ripariandata.timberwolf.mail.exchange.StreamingResponseParser.readBoolean;
+import static com.ripariandata.timberwolf.mail.exchange.StreamingResponseParser.readLong;
+import static com.ripariandata.timberwolf.mail.exchange.StreamingResponseParser.readText;
+import static com.ripariandata.timberwolf.mail.exchange.StreamingResponseParser.skipElement;
 
 /**
  * ExchangeEmail represents an email message from an Exchange server.
@@ -45,13 +73,48 @@
  * <li>"To": A semicolon-delimited list of recipients.
  * <li>"Cc": A semicolon-delimited list of cc-recipients.
  * <li>"Bcc": A semicolon-delimited list of bcc-recipients.
+ * <li>"Body Truncated": "true" if the body was cut short by
+ * {@link #truncateBody(int)}, or couldn't be fetched at all.
+ * <li>"Attachments": A semicolon-delimited list of the file attachments that
+ * were stored in a blob store, each as the hash of its content, a space, and
+ * its file name.
+ * <li>"Copy Of": The item ID of another copy of the same message, from
+ * another mailbox, that was stored in full.  Items with this header have
+ * nothing else but their own item ID.
+ * <li>"Is Read": "true" or "false", whether the email has been read.  Items
+ * whose read flag was the only thing that changed since the last sync have
+ * nothing else but this and their item ID.
+ * <li>"Deleted": "true" if the item was deleted from its folder since the last
+ * sync.  Such items have nothing else but their item ID.
+ * <li>"Export": The hash that the item's full-fidelity ExportItems stream was
+ * stored as in a blob store.  Such items have nothing else but their item ID.
+ * <li>"Attachments Missing": "true" if some of the file attachments couldn't
+ * be stored, so they aren't in "Attachments".
  * </ul>
  */
 public class ExchangeEmail extends MailboxItem
 {
+    private static final Logger LOG = LoggerFactory.getLogger(ExchangeEmail.class);
+
     /** The headers that this email exports. */
     private final Map<String, String> headers;
 
+    /** The size of the item in bytes, as Exchange reports it, or -1 if it wasn't asked for. */
+    private long size = -1;
+
+    /** The Internet message id of the email, or null if it wasn't asked for. */
+    private String internetMessageId;
+
+    /** The file attachments on the email, which are fetched separately. */
+    private final List<Attachment> attachments = new ArrayList<Attachment>();
+
+    /** Creates an email with just an id, to be filled in by one of the static factories. */
+    private ExchangeEmail(final String itemId)
+    {
+        headers = new HashMap<String, String>();
+        headers.put(ID_KEY, itemId);
+    }
+
     public ExchangeEmail(final MessageType message)
     {
         headers = new HashMap<String, String>();
@@ -68,12 +131,7 @@ public ExchangeEmail(final MessageType message)
 
         if (message.isSetDateTimeSent())
         {
-            Date time = message.getDateTimeSent().getTime();
-            // I'd really like an equivalent of C#'s InvariantCulture, but it
-            // looks like this is the closest I can get in Java.
-            DateFormat format = DateFormat.getDateTimeInstance(
-                DateFormat.MEDIUM, DateFormat.MEDIUM, Locale.US);
-            headers.put(TIME_SENT_KEY, format.format(time));
+            headers.put(TIME_SENT_KEY, formatTime(message.getDateTimeSent().getTime()));
         }
 
         if (message.isSetItemId())
@@ -81,6 +139,30 @@ public ExchangeEmail(final MessageType message)
             headers.put(ID_KEY, message.getItemId().getId());
         }
 
+        if (message.isSetSize())
+        {
+            size = message.getSize();
+        }
+
+        if (message.isSetInternetMessageId())
+        {
+            internetMessageId = message.getInternetMessageId();
+        }
+
+        if (message.isSetIsRead())
+        {
+            headers.put(IS_READ_KEY, Boolean.toString(message.getIsRead()));
+        }
+
+        if (message.isSetAttachments())
+        {
+            for (FileAttachmentType attachment : message.getAttachments().getFileAttachmentArray())
+            {
+                attachments.add(new Attachment(attachment.getAttachmentId().getId(), attachment.getName(),
+                                               attachment.isSetSize() ? attachment.getSize() : -1));
+            }
+        }
+
         // There isn't any documentation on the difference between Sender and
         // From.  I'm preferring From here purely based on the example response
         // given at:
@@ -122,6 +204,448 @@ else if (message.isSetSender())
         }
     }
 
+    /**
+     * Reads an email straight from a Message element in a response, without
+     * creating a MessageType for it first.  The headers are the same as
+     * those the MessageType constructor would export.
+     *
+     * @param message A reader positioned at the start of a Message element.
+     * It's left at the end of that element.
+     * @throws XMLStreamException If the message couldn't be read.
+     */
+    ExchangeEmail(final XMLStreamReader message) throws XMLStreamException
+    {
+        this(message, null);
+    }
+
+    /**
+     * Reads an email straight from a Message element in a response, and
+     * decodes its MIME content, if it has any, into a MIME archive as it's
+     * read.  The MIME content is never held in memory whole.
+     *
+     * @param message A reader positioned at the start of a Message element.
+     * It's left at the end of that element.
+     * @param mimeArchive The archive file to add the MIME content to, or
+     * null to skip it.
+     * @throws XMLStreamException If the message couldn't be read.
+     */
+    ExchangeEmail(final XMLStreamReader message, final MimeArchiveFile mimeArchive) throws XMLStreamException
+    {
+        this(message, mimeArchive, 0);
+    }
+
+    /**
+     * Reads an email straight from a Message element in a response, keeping
+     * no more of its body than the given number of characters, and marking
+     * it as truncated if anything was cut off.  With a reader that hands out
+     * long text in pieces, the rest of the body is never held in memory.
+     *
+     * @param message A reader positioned at the start of a Message element.
+     * It's left at the end of that element.
+     * @param mimeArchive The archive file to add the MIME content to, or
+     * null to skip it.
+     * @param maxBodyLength The most characters of body to keep, or 0 to keep it all.
+     * @throws XMLStreamException If the message couldn't be read.
+     */
+    ExchangeEmail(final XMLStreamReader message, final MimeArchiveFile mimeArchive, final int maxBodyLength)
+            throws XMLStreamException
+    {
+        headers = new HashMap<String, String>();
+
+        // As above, From is preferred over Sender.
+        boolean hasFrom = false;
+        String from = null;
+        String sender = null;
+        while (nextChild(message))
+        {
+            if (isElement(message, TYPES_NAMESPACE, "Body") && maxBodyLength > 0)
+            {
+                StringBuilder body = new StringBuilder();
+                if (readText(message, maxBodyLength, body))
+                {
+                    headers.put(BODY_TRUNCATED_KEY, Boolean.TRUE.toString());
+                }
+                headers.put(BODY_KEY, body.toString());
+            }
+            else if (isElement(message, TYPES_NAMESPACE, "Body"))
+            {
+                headers.put(BODY_KEY, message.getElementText());
+            }
+            else if (isElement(message, TYPES_NAMESPACE, "Subject"))
+            {
+                headers.put(SUBJECT_KEY, message.getElementText());
+            }
+            else if (isElement(message, TYPES_NAMESPACE, "DateTimeSent"))
+            {
+                headers.put(TIME_SENT_KEY, formatTime(readDateTime(message)));
+            }
+            else if (isElement(message, TYPES_NAMESPACE, "ItemId"))
+            {
+                headers.put(ID_KEY, message.getAttributeValue(null, "Id"));
+                skipElement(message);
+            }
+            else if (isElement(message, TYPES_NAMESPACE, "Size"))
+            {
+                size = readLong(message);
+            }
+            else if (isElement(message, TYPES_NAMESPACE, "InternetMessageId"))
+            {
+                internetMessageId = message.getElementText();
+            }
+            else if (isElement(message, TYPES_NAMESPACE, "IsRead"))
+            {
+                headers.put(IS_READ_KEY, Boolean.toString(readBoolean(message)));
+            }
+            else if (isElement(message, TYPES_NAMESPACE, "Attachments"))
+            {
+                readAttachments(message, attachments);
+            }
+            else if (mimeArchive != null && isElement(message, TYPES_NAMESPACE, "MimeContent"))
+            {
+                archiveMimeContent(message, mimeArchive);
+            }
+            else if (isElement(message, TYPES_NAMESPACE, "From"))
+            {
+                hasFrom = true;
+                from = readSingleRecipient(message);
+            }
+            else if (isElement(message, TYPES_NAMESPACE, "Sender"))
+            {
+                sender = readSingleRecipient(message);
+            }
+            else if (isElement(message, TYPES_NAMESPACE, "ToRecipients"))
+            {
+                headers.put(TORECIPIENT_KEY, readRecipients(message));
+            }
+            else if (isElement(message, TYPES_NAMESPACE, "CcRecipients"))
+            {
+                headers.put(CCRECIPIENT_KEY, readRecipients(message));
+            }
+            else if (isElement(message, TYPES_NAMESPACE, "BccRecipients"))
+            {
+                headers.put(BCCRECIPIENT_KEY, readRecipients(message));
+            }
+            else
+            {
+                skipElement(message);
+            }
+        }
+
+        String address = hasFrom ? from : sender;
+        if (address != null)
+        {
+            headers.put(SENDER_KEY, address);
+        }
+    }
+
+    /**
+     * Creates a reference to a copy of the same message that was stored in
+     * full, in place of fetching this one.
+     *
+     * @param itemId The Exchange id of this copy.
+     * @param firstCopyId The Exchange id of the copy that was stored in full.
+     * @return The reference.
+     */
+    static ExchangeEmail copyOf(final String itemId, final String firstCopyId)
+    {
+        ExchangeEmail copy = new ExchangeEmail(itemId);
+        copy.headers.put(COPY_OF_KEY, firstCopyId);
+        return copy;
+    }
+
+    /**
+     * Creates a marker for an item that was deleted from its folder since
+     * the last sync, so whatever was stored for it can be dropped.
+     *
+     * @param itemId The Exchange id of the deleted item.
+     * @return The marker.
+     */
+    static ExchangeEmail deleted(final String itemId)
+    {
+        ExchangeEmail deleted = new ExchangeEmail(itemId);
+        deleted.headers.put(DELETED_KEY, Boolean.TRUE.toString());
+        return deleted;
+    }
+
+    /**
+     * Creates an update for an item that was only marked read or unread
+     * since the last sync, which doesn't need the item fetched again.
+     *
+     * @param itemId The Exchange id of the item.
+     * @param isRead Whether the item is now read.
+     * @return The update.
+     */
+    static ExchangeEmail readFlagChanged(final String itemId, final boolean isRead)
+    {
+        ExchangeEmail changed = new ExchangeEmail(itemId);
+        changed.headers.put(IS_READ_KEY, Boolean.toString(isRead));
+        return changed;
+    }
+
+    /**
+     * Creates a reference to the full-fidelity stream of an item that was
+     * exported into a blob store, in place of its properties.
+     *
+     * @param itemId The Exchange id of the item.
+     * @param hash The hash the stream was stored as.
+     * @return The reference.
+     */
+    static ExchangeEmail exported(final String itemId, final String hash)
+    {
+        ExchangeEmail exported = new ExchangeEmail(itemId);
+        exported.headers.put(EXPORT_KEY, hash);
+        return exported;
+    }
+
+    /**
+     * Whether any of the given headers are read from the body.
+     *
+     * @param headerKeys The headers that are wanted, or null for all of them.
+     * @return True if the body needs to be fetched for those headers.
+     */
+    static boolean includesBody(final Collection<String> headerKeys)
+    {
+        return headerKeys == null || headerKeys.contains(BODY_KEY) || headerKeys.contains(BODY_TRUNCATED_KEY);
+    }
+
+    /**
+     * Whether any of the given headers need the item's attachments.
+     *
+     * @param headerKeys The headers that are wanted, or null for all of them.
+     * @return True if attachments need to be fetched for those headers.
+     */
+    static boolean includesAttachments(final Collection<String> headerKeys)
+    {
+        return headerKeys == null || headerKeys.contains(ATTACHMENTS_KEY)
+               || headerKeys.contains(ATTACHMENTS_MISSING_KEY);
+    }
+
+    /**
+     * Leaves the body out of the given headers.
+     *
+     * @param headerKeys The headers that are wanted, or null for all of them.
+     * @return The same headers without the ones read from the body.
+     */
+    static Set<String> withoutBody(final Collection<String> headerKeys)
+    {
+        Set<String> keys = new HashSet<String>(
+                headerKeys == null ? Arrays.asList(possibleHeaderKeys()) : headerKeys);
+        keys.remove(BODY_KEY);
+        keys.remove(BODY_TRUNCATED_KEY);
+        return keys;
+    }
+
+    /**
+     * Leaves the body and attachments out of the given headers, which are
+     * the ones SyncFolderItems can't return.
+     *
+     * @param headerKeys The headers that are wanted, or null for all of them.
+     * @return The same headers without the ones read from the body or attachments.
+     */
+    static Set<String> withoutContent(final Collection<String> headerKeys)
+    {
+        Set<String> keys = withoutBody(headerKeys);
+        keys.remove(ATTACHMENTS_KEY);
+        keys.remove(ATTACHMENTS_MISSING_KEY);
+        return keys;
+    }
+
+    /**
+     * Lists the item properties that the given headers are read from, so a
+     * GetItem request can ask for just those.  The item id isn't listed,
+     * since every GetItem response has it.
+     *
+     * @param headerKeys The headers that are wanted.  Keys this class never
+     * exports are ignored.
+     * @return The properties to ask for, each once.
+     */
+    static List<UnindexedFieldURIType.Enum> getFieldUris(final Collection<String> headerKeys)
+    {
+        List<UnindexedFieldURIType.Enum> fields = new ArrayList<UnindexedFieldURIType.Enum>();
+        if (headerKeys.contains(BODY_KEY) || headerKeys.contains(BODY_TRUNCATED_KEY))
+        {
+            fields.add(UnindexedFieldURIType.ITEM_BODY);
+        }
+        if (headerKeys.contains(SUBJECT_KEY))
+        {
+            fields.add(UnindexedFieldURIType.ITEM_SUBJECT);
+        }
+        if (headerKeys.contains(TIME_SENT_KEY))
+        {
+            fields.add(UnindexedFieldURIType.ITEM_DATE_TIME_SENT);
+        }
+        if (headerKeys.contains(SENDER_KEY))
+        {
+            // The sender header falls back on Sender when there's no From.
+            fields.add(UnindexedFieldURIType.MESSAGE_FROM);
+            fields.add(UnindexedFieldURIType.MESSAGE_SENDER);
+        }
+        if (headerKeys.contains(TORECIPIENT_KEY))
+        {
+            fields.add(UnindexedFieldURIType.MESSAGE_TO_RECIPIENTS);
+        }
+        if (headerKeys.contains(CCRECIPIENT_KEY))
+        {
+            fields.add(UnindexedFieldURIType.MESSAGE_CC_RECIPIENTS);
+        }
+        if (headerKeys.contains(BCCRECIPIENT_KEY))
+        {
+            fields.add(UnindexedFieldURIType.MESSAGE_BCC_RECIPIENTS);
+        }
+        if (headerKeys.contains(IS_READ_KEY))
+        {
+            fields.add(UnindexedFieldURIType.MESSAGE_IS_READ);
+        }
+        if (headerKeys.contains(ATTACHMENTS_KEY) || headerKeys.contains(ATTACHMENTS_MISSING_KEY))
+        {
+            // Attachments are stored under the message id, so the same file
+            // sent to several mailboxes is only fetched once.
+            fields.add(UnindexedFieldURIType.ITEM_ATTACHMENTS);
+            fields.add(UnindexedFieldURIType.MESSAGE_INTERNET_MESSAGE_ID);
+        }
+        return fields;
+    }
+
+    private static String formatTime(final Date time)
+    {
+        // I'd really like an equivalent of C#'s InvariantCulture, but it
+        // looks like this is the closest I can get in Java.
+        DateFormat format = DateFormat.getDateTimeInstance(
+            DateFormat.MEDIUM, DateFormat.MEDIUM, Locale.US);
+        return format.format(time);
+    }
+
+    private static Date readDateTime(final XMLStreamReader reader) throws XMLStreamException
+    {
+        String value = reader.getElementText().trim();
+        try
+        {
+            return new GDate(value).getDate();
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new XMLStreamException("Invalid date and time " + value + ".", reader.getLocation(), e);
+        }
+    }
+
+    /**
+     * Reads the file attachments listed in an Attachments element.  Item
+     * attachments, which are whole mails of their own, are skipped.
+     */
+    private static void readAttachments(final XMLStreamReader reader, final List<Attachment> attachments)
+            throws XMLStreamException
+    {
+        while (nextChild(reader))
+        {
+            if (isElement(reader, TYPES_NAMESPACE, "FileAttachment"))
+            {
+                String id = null;
+                String name = null;
+                long attachmentSize = -1;
+                while (nextChild(reader))
+                {
+                    if (isElement(reader, TYPES_NAMESPACE, "AttachmentId"))
+                    {
+                        id = reader.getAttributeValue(null, "Id");
+                        skipElement(reader);
+                    }
+                    else if (isElement(reader, TYPES_NAMESPACE, "Name"))
+                    {
+                        name = reader.getElementText();
+                    }
+                    else if (isElement(reader, TYPES_NAMESPACE, "Size"))
+                    {
+                        attachmentSize = readLong(reader);
+                    }
+                    else
+                    {
+                        skipElement(reader);
+                    }
+                }
+                attachments.add(new Attachment(id, name, attachmentSize));
+            }
+            else
+            {
+                skipElement(reader);
+            }
+        }
+    }
+
+    /**
+     * Decodes the base64 MimeContent element straight into a new message in
+     * the archive file, so the raw message is never in memory whole.
+     */
+    private static void archiveMimeContent(final XMLStreamReader reader, final MimeArchiveFile mimeArchive)
+            throws XMLStreamException
+    {
+        try
+        {
+            OutputStream mime = mimeArchive.newMessage();
+            decodeBase64(reader, mime, "the MIME content of a message");
+            mime.close();
+        }
+        catch (IOException e)
+        {
+            throw MimeArchiveException.log(LOG, new MimeArchiveException("Could not archive the MIME content of a"
+                                                                         + " message.", e));
+        }
+    }
+
+    /** Reads the email address out of a single recipient element, such as From. */
+    private static String readSingleRecipient(final XMLStreamReader reader) throws XMLStreamException
+    {
+        String address = null;
+        while (nextChild(reader))
+        {
+            if (isElement(reader, TYPES_NAMESPACE, "Mailbox"))
+            {
+                address = readEmailAddress(reader);
+            }
+            else
+            {
+                skipElement(reader);
+            }
+        }
+        return address;
+    }
+
+    /** Reads a list of recipients, such as ToRecipients, into a delimited string. */
+    private static String readRecipients(final XMLStreamReader reader) throws XMLStreamException
+    {
+        StringBuilder emailList = new StringBuilder();
+        while (nextChild(reader))
+        {
+            if (isElement(reader, TYPES_NAMESPACE, "Mailbox"))
+            {
+                emailList.append(readEmailAddress(reader));
+                emailList.append(EMAIL_DELIMITER);
+            }
+            else
+            {
+                skipElement(reader);
+            }
+        }
+        return emailList.toString();
+    }
+
+    /** Reads the EmailAddress out of a Mailbox element. */
+    private static String readEmailAddress(final XMLStreamReader reader) throws XMLStreamException
+    {
+        String address = null;
+        while (nextChild(reader))
+        {
+            if (isElement(reader, TYPES_NAMESPACE, "EmailAddress"))
+            {
+                address = reader.getElementText();
+            }
+            else
+            {
+                skipElement(reader);
+            }
+        }
+        return address;
+    }
+
     private static String getRecipientString(
             final ArrayOfRecipientsType recipients)
     {
@@ -134,6 +658,109 @@ private static String getRecipientString(
         return emailList.toString();
     }
 
+    /** The Exchange id of this item, or null if it wasn't in the response. */
+    String getId()
+    {
+        return headers.get(ID_KEY);
+    }
+
+    /** The size of the item in bytes, as Exchange reports it, or -1 if it wasn't asked for. */
+    long getSize()
+    {
+        return size;
+    }
+
+    /** The Internet message id of this item, or null if it wasn't in the response. */
+    String getInternetMessageId()
+    {
+        return internetMessageId;
+    }
+
+    /** The file attachments on this item, which are fetched separately. */
+    List<Attachment> getAttachments()
+    {
+        return attachments;
+    }
+
+    /**
+     * Records where this item's attachments were stored.
+     *
+     * @param hashes The hash each attachment was stored under, in the same
+     * order as {@link #getAttachments()}, with null for any that weren't
+     * stored.
+     */
+    void setAttachmentHashes(final List<String> hashes)
+    {
+        StringBuilder references = new StringBuilder();
+        for (int i = 0; i < attachments.size(); i++)
+        {
+            if (hashes.get(i) != null)
+            {
+                references.append(hashes.get(i));
+                references.append(' ');
+                references.append(attachments.get(i).getName());
+                references.append(EMAIL_DELIMITER);
+            }
+        }
+        headers.put(ATTACHMENTS_KEY, references.toString());
+    }
+
+    /** Marks this item as missing some of its file attachments, because they couldn't be stored. */
+    void markAttachmentsMissing()
+    {
+        headers.put(ATTACHMENTS_MISSING_KEY, Boolean.TRUE.toString());
+    }
+
+    /**
+     * Takes the body from a copy of this item that was fetched with just its
+     * body.
+     *
+     * @param bodyOnly The copy with the body.
+     */
+    void setBody(final ExchangeEmail bodyOnly)
+    {
+        String body = bodyOnly.headers.get(BODY_KEY);
+        if (body != null)
+        {
+            headers.put(BODY_KEY, body);
+        }
+        if (bodyOnly.headers.containsKey(BODY_TRUNCATED_KEY))
+        {
+            headers.put(BODY_TRUNCATED_KEY, Boolean.TRUE.toString());
+        }
+    }
+
+    /** Marks this item as truncated because its body couldn't be fetched at all. */
+    void markBodyMissing()
+    {
+        headers.remove(BODY_KEY);
+        headers.put(BODY_TRUNCATED_KEY, Boolean.TRUE.toString());
+    }
+
+    /**
+     * Cuts the body down to the given number of characters, and marks this
+     * email as truncated if anything was cut off.
+     *
+     * @param maxLength The most characters of body to keep, or 0 to keep it all.
+     */
+    void truncateBody(final int maxLength)
+    {
+        String body = headers.get(BODY_KEY);
+        if (maxLength <= 0 || body == null || body.length() <= maxLength)
+        {
+            return;
+        }
+
+        int end = maxLength;
+        if (Character.isHighSurrogate(body.charAt(end - 1)))
+        {
+            // Don't leave half of a character behind.
+            end--;
+        }
+        headers.put(BODY_KEY, body.substring(0, end));
+        headers.put(BODY_TRUNCATED_KEY, Boolean.TRUE.toString());
+    }
+
     @Override
     public final String[] getHeaderKeys()
     {
@@ -151,4 +778,37 @@ public final String getHeader(final String key)
     {
         return headers.get(key);
     }
+
+    /** A file attached to an email, as listed in a GetItem response. */
+    static final class Attachment
+    {
+        private final String id;
+        private final String name;
+        private final long size;
+
+        Attachment(final String attachmentId, final String fileName, final long attachmentSize)
+        {
+            id = attachmentId;
+            name = fileName;
+            size = attachmentSize;
+        }
+
+        /** The Exchange id used to fetch the attachment's content. */
+        String getId()
+        {
+            return id;
+        }
+
+        /** The attachment's file name. */
+        String getName()
+        {
+            return name;
+        }
+
+        /** The attachment's size in bytes, or -1 if Exchange didn't say. */
+        long getSize()
+        {
+            return size;
+        }
+    }
 }
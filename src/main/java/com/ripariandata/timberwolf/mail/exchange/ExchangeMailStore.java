@@ -21,7 +21,10 @@
 import com.ripariandata.timberwolf.mail.MailboxItem;
 import com.ripariandata.timberwolf.writer.UserFolderSyncStateStorage;
 
+import java.io.File;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 
 /**
  * This is the MailStore implementation for Exchange email.
@@ -30,11 +33,11 @@
  */
 public class ExchangeMailStore implements MailStore
 {
-    /*
+    /**
      * When you get the ids for messages you can control the number of items
-     * returned at a time,
+     * returned at a time.
      */
-    private static final int DEFAULT_ID_PAGE_SIZE = SyncFolderItemsHelper.MAX_SYNC_COUNT;
+    public static final int DEFAULT_ID_PAGE_SIZE = SyncFolderItemsHelper.MAX_SYNC_COUNT;
 
     /**
      * GetItems takes multiple ids, but we don't want to call GetItems on all
@@ -43,7 +46,16 @@ public class ExchangeMailStore implements MailStore
      * This should evenly divide DEFAULT_ID_PAGE_SIZE.
      *
      */
-    private static final int DEFAULT_ITEM_PAGE_SIZE = 64;
+    public static final int DEFAULT_ITEM_PAGE_SIZE = 64;
+
+    /** The fewest items a GetItem page shrinks to, by default, when the items are large or slow. */
+    public static final int DEFAULT_MIN_ITEM_PAGE_SIZE = 8;
+
+    /** The most items a GetItem page grows to, by default, when the items are small and quick. */
+    public static final int DEFAULT_MAX_ITEM_PAGE_SIZE = SyncFolderItemsHelper.MAX_SYNC_COUNT;
+
+    /** The size, in bytes, over which an item's body is fetched on its own, by default. */
+    public static final int DEFAULT_LARGE_ITEM_SIZE = 1024 * 1024;
 
     /** The service that does the sending of soap packages to exchange. */
     private final ExchangeService exchangeService;
@@ -74,6 +86,40 @@ public ExchangeMailStore(final String exchangeUrl, final int idPagesSize, final
         this(new ExchangeService(exchangeUrl), idPagesSize, itemPageSize);
     }
 
+    /**
+     * Creates an ExchangeMailStore with the given configuration, which sends
+     * its requests to Exchange the way the configuration says to.
+     *
+     * @param exchangeUrl the url to the exchange web service such as
+     * https://devexch01.int.tartarus.com/ews/exchange.asmx.
+     * @param configuration the page sizes and connection settings to use.
+     */
+    public ExchangeMailStore(final String exchangeUrl, final Configuration configuration)
+    {
+        this(Collections.singletonList(exchangeUrl), configuration);
+    }
+
+    /**
+     * Creates an ExchangeMailStore with the given configuration, which
+     * spreads its requests across several Exchange servers that all serve
+     * the same mailboxes.
+     *
+     * @param exchangeUrls the urls to the exchange web services on each server.
+     * @param configuration the page sizes and connection settings to use.
+     */
+    public ExchangeMailStore(final List<String> exchangeUrls, final Configuration configuration)
+    {
+        exchangeService = new ExchangeService(new EndpointBalancer(exchangeUrls,
+                                                                   EndpointBalancer.DEFAULT_FAILURE_THRESHOLD,
+                                                                   EndpointBalancer.DEFAULT_OPEN_MILLIS,
+                                                                   configuration.getHomeServers()),
+                                              createConnectionFactory(configuration),
+                                              configuration.isStreamingParserEnabled(),
+                                              createRateLimiter(configuration),
+                                              configuration.getLatencyPolicy());
+        config = configuration;
+    }
+
     /**
      * Creates a new ExchangeMailStore for getting mail.
      *
@@ -90,6 +136,83 @@ public ExchangeMailStore(final String exchangeUrl, final int idPagesSize, final
         config = new Configuration(idPageSize, itemPageSize);
     }
 
+    /**
+     * Creates the connection factory for the transport named in the
+     * configuration, unless the configuration replays recorded responses
+     * instead.
+     *
+     * @param configuration the configuration with the transport settings.
+     * @return the connection factory that ExchangeService should use.
+     */
+    static HttpUrlConnectionFactory createConnectionFactory(final Configuration configuration)
+    {
+        HttpUrlConnectionFactory factory;
+        if (configuration.getReplayDirectory() != null)
+        {
+            factory = new ReplayHttpUrlConnectionFactory(new File(configuration.getReplayDirectory()));
+        }
+        else
+        {
+            factory = createTransport(configuration);
+        }
+        if (configuration.getRecordingDirectory() != null)
+        {
+            factory = new RecordingHttpUrlConnectionFactory(factory, new File(configuration.getRecordingDirectory()),
+                                                            RecordingHttpUrlConnectionFactory.DEFAULT_MAX_FILE_BYTES);
+        }
+        return factory;
+    }
+
+    private static HttpUrlConnectionFactory createTransport(final Configuration configuration)
+    {
+        HttpUrlConnectionFactory basic = new SaslHttpUrlConnectionFactory(
+                configuration.getRequestCompressionThreshold(), configuration.getAuthSession(),
+                configuration.getConnectTimeout(), configuration.getReadTimeout());
+        switch (configuration.getTransport())
+        {
+            case BASIC:
+                return basic;
+            case POOLED:
+            default:
+                return new FallbackHttpUrlConnectionFactory(
+                        new PooledHttpUrlConnectionFactory(configuration.getMaxConnectionsPerEndpoint(),
+                                                           configuration.getIdleConnectionTimeout(),
+                                                           configuration.getRequestCompressionThreshold(),
+                                                           configuration.getAuthSession(),
+                                                           configuration.getConnectTimeout(),
+                                                           configuration.getReadTimeout()),
+                        basic, FallbackHttpUrlConnectionFactory.DEFAULT_CLOSED_CONNECTION_LIMIT);
+        }
+    }
+
+    /** Replayed responses come back as fast as they can be read, so there's nothing to pace. */
+    private static AdaptiveRateLimiter createRateLimiter(final Configuration configuration)
+    {
+        if (configuration.getReplayDirectory() != null)
+        {
+            return AdaptiveRateLimiter.unlimited();
+        }
+        return new AdaptiveRateLimiter(configuration.getMinRequestRate(), configuration.getMaxRequestRate());
+    }
+
+    /** Returns the rate limiter that paces the requests to Exchange. */
+    public AdaptiveRateLimiter getRateLimiter()
+    {
+        return exchangeService.getRateLimiter();
+    }
+
+    /** Returns the deadlines and hedging for calls to Exchange. */
+    public LatencyPolicy getLatencyPolicy()
+    {
+        return exchangeService.getLatencyPolicy();
+    }
+
+    /** Returns the Exchange endpoints that requests are spread across. */
+    public EndpointBalancer getEndpoints()
+    {
+        return exchangeService.getEndpoints();
+    }
+
     @Override
     public final Iterable<MailboxItem> getMail(final Iterable<String> users,
                                                final UserFolderSyncStateStorage syncStateStorage)
@@ -17,25 +17,41 @@
  */
 package com.ripariandata.timberwolf.mail.exchange;
 
-import com.microsoft.schemas.exchange.services.x2006.messages.FindFolderResponseType;
-import com.microsoft.schemas.exchange.services.x2006.messages.FindFolderType;
+import com.microsoft.schemas.exchange.services.x2006.messages.ExportItemsType;
+import com.microsoft.schemas.exchange.services.x2006.messages.GetAttachmentType;
 import com.microsoft.schemas.exchange.services.x2006.messages.GetItemResponseType;
 import com.microsoft.schemas.exchange.services.x2006.messages.GetItemType;
+import com.microsoft.schemas.exchange.services.x2006.messages.SyncFolderHierarchyType;
 import com.microsoft.schemas.exchange.services.x2006.messages.SyncFolderItemsResponseType;
 import com.microsoft.schemas.exchange.services.x2006.messages.SyncFolderItemsType;
-
+import com.ripariandata.timberwolf.mail.MailboxItem;
+import com.ripariandata.timberwolf.mail.exchange.SyncFolderHierarchyHelper.FolderHierarchyResult;
+import com.ripariandata.timberwolf.mail.exchange.SyncFolderItemsHelper.SyncFolderItemsResult;
+import com.ripariandata.timberwolf.writer.archive.MimeArchive;
+import com.ripariandata.timberwolf.writer.blob.BlobStore;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.xmlbeans.XmlException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmlsoap.schemas.soap.envelope.BodyType;
 import org.xmlsoap.schemas.soap.envelope.EnvelopeDocument;
-import org.xmlsoap.schemas.soap.envelope.EnvelopeType;
 
 import static com.ripariandata.timberwolf.Utilities.inputStreamToString;
 
@@ -45,21 +61,107 @@
  * objects that come back.
  *
  * Note that all the service calls are performed synchronously.
+ *
+ * The streaming variants of the calls skip the xmlbeans objects, and read
+ * just what Timberwolf needs straight out of the response as it arrives.
  */
 public class ExchangeService
 {
     private static final Logger LOG = LoggerFactory.getLogger(ExchangeService.class);
 
-    private static final String DECLARATION = "<?xml version=\"1.0\" encoding=\"utf-8\"?>";
-    private static final String SOAP_ENCODING = "UTF-8";
+    static final String SYNC_FOLDER_ITEMS = "SyncFolderItems";
+    static final String GET_ITEM = "GetItem";
+    static final String SYNC_FOLDER_HIERARCHY = "SyncFolderHierarchy";
+    static final String GET_ATTACHMENT = "GetAttachment";
+    static final String EXPORT_ITEMS = "ExportItems";
 
-    private String endpoint;
+    private final EndpointBalancer endpoints;
     private HttpUrlConnectionFactory connectionFactory;
+    private final TransferStatistics transferStatistics = new TransferStatistics();
+    private final boolean streamingParserEnabled;
+    private final AdaptiveRateLimiter rateLimiter;
+    private final LatencyPolicy latencyPolicy;
+    private final ResponseParser<BodyType> soapBodyParser = new ResponseParser<BodyType>()
+    {
+        @Override
+        public BodyType parse(final InputStream response, final String charset) throws ServiceCallException
+        {
+            EnvelopeDocument envelope = parseResponse(response, charset);
+            if (LOG.isTraceEnabled())
+            {
+                LOG.trace("SOAP response received.  SOAP envelope:");
+                LOG.trace(envelope.toString());
+            }
+            return getSoapBody(envelope);
+        }
+    };
 
     public ExchangeService(final String url, final HttpUrlConnectionFactory factory)
     {
-        endpoint = url;
+        this(url, factory, true);
+    }
+
+    /**
+     * Creates a new ExchangeService that talks to the given Exchange server
+     * over connections from the given factory.
+     *
+     * @param url A string representing the URL of the service endpoint for the Exchange server.
+     * @param factory The factory that creates connections to the server.
+     * @param useStreamingParser Whether callers should use the streaming calls where they can.
+     */
+    public ExchangeService(final String url, final HttpUrlConnectionFactory factory,
+                           final boolean useStreamingParser)
+    {
+        this(url, factory, useStreamingParser, AdaptiveRateLimiter.unlimited());
+    }
+
+    /**
+     * Creates a new ExchangeService that paces its requests with the given rate limiter.
+     *
+     * @param url A string representing the URL of the service endpoint for the Exchange server.
+     * @param factory The factory that creates connections to the server.
+     * @param useStreamingParser Whether callers should use the streaming calls where they can.
+     * @param limiter The rate limiter that every request to the server waits on.
+     */
+    public ExchangeService(final String url, final HttpUrlConnectionFactory factory,
+                           final boolean useStreamingParser, final AdaptiveRateLimiter limiter)
+    {
+        this(new EndpointBalancer(Collections.singletonList(url)), factory, useStreamingParser, limiter);
+    }
+
+    /**
+     * Creates a new ExchangeService that spreads its requests across several
+     * Exchange servers that all serve the same mailboxes.
+     *
+     * @param balancer The endpoints to send requests to, which picks one for each request.
+     * @param factory The factory that creates connections to the servers.
+     * @param useStreamingParser Whether callers should use the streaming calls where they can.
+     * @param limiter The rate limiter that every request to the servers waits on.
+     */
+    public ExchangeService(final EndpointBalancer balancer, final HttpUrlConnectionFactory factory,
+                           final boolean useStreamingParser, final AdaptiveRateLimiter limiter)
+    {
+        this(balancer, factory, useStreamingParser, limiter, LatencyPolicy.none());
+    }
+
+    /**
+     * Creates a new ExchangeService whose calls have deadlines, and may be hedged.
+     *
+     * @param balancer The endpoints to send requests to, which picks one for each request.
+     * @param factory The factory that creates connections to the servers.
+     * @param useStreamingParser Whether callers should use the streaming calls where they can.
+     * @param limiter The rate limiter that every request to the servers waits on.
+     * @param latency The deadlines for each type of call, and when to hedge them.
+     */
+    public ExchangeService(final EndpointBalancer balancer, final HttpUrlConnectionFactory factory,
+                           final boolean useStreamingParser, final AdaptiveRateLimiter limiter,
+                           final LatencyPolicy latency)
+    {
+        endpoints = balancer;
         connectionFactory = factory;
+        streamingParserEnabled = useStreamingParser;
+        rateLimiter = limiter;
+        latencyPolicy = latency;
     }
 
     /**
@@ -73,43 +175,378 @@ public ExchangeService(final String url)
     }
 
     /**
-     * Sends a SOAP envelope request and returns the response.
-     *
+     * Whether the streaming calls should be used in place of the xmlbeans
+     * ones.  The xmlbeans calls always work, and are the fallback for
+     * responses that the streaming calls can't handle.
+     */
+    public boolean isStreamingParserEnabled()
+    {
+        return streamingParserEnabled;
+    }
+
+    /**
+     * Returns the number of bytes received for each type of call, before and
+     * after decompression.
+     */
+    public TransferStatistics getTransferStatistics()
+    {
+        return transferStatistics;
+    }
+
+    /** Returns the rate limiter that paces the requests to this service's endpoints. */
+    public AdaptiveRateLimiter getRateLimiter()
+    {
+        return rateLimiter;
+    }
+
+    /** Returns the deadlines and hedging for this service's calls. */
+    public LatencyPolicy getLatencyPolicy()
+    {
+        return latencyPolicy;
+    }
+
+    /** Returns the endpoints this service sends its requests to. */
+    public EndpointBalancer getEndpoints()
+    {
+        return endpoints;
+    }
+
+    /**
+     * Sends a SOAP envelope request, once the rate limiter allows it, to the
+     * endpoint its mailbox is routed to, and returns the response.  How long the request
+     * took, and whether it failed because Exchange was throttling us, adjusts
+     * the rate for the requests after it, and whether it failed because of
+     * the endpoint counts towards taking that endpoint out of use.  The call
+     * is cut off at its deadline, and may be hedged, as the latency policy
+     * says.
      *
-     * @param envelope An EnvelopeDocument with the SOAP envelope to send to Exchange.
-     * @return An SOAP body from the Exchange's response.
+     * @param request The SOAP envelope to send to Exchange.
+     * @param callType The name of the call being made, which the transfer statistics are kept under.
+     * @param parser The parser that turns the response into the result.
+     * @param <T> The type of the result.
+     * @return The result parsed from the Exchange's response.
      * @throws HttpErrorException If the HTTP response from Exchange has a non-200 status code.
      * @throws ServiceCallException If there was a non-HTTP error sending the response,
      *                              such as an improper encoding or IO error.
      */
-    private BodyType sendRequest(final EnvelopeDocument envelope)
+    private <T> T sendRequest(final RequestBody request, final String callType, final ResponseParser<T> parser)
         throws HttpErrorException, ServiceCallException
     {
-        String request = DECLARATION + envelope.xmlText();
-        LOG.trace("Sending SOAP request to {}.  SOAP envelope:", endpoint);
-        LOG.trace(envelope.toString());
+        long hedgeDelay = latencyPolicy.getHedgeDelay(callType);
+        if (hedgeDelay < 0)
+        {
+            return attempt(request, callType, parser);
+        }
+        return hedge(request, callType, parser, hedgeDelay);
+    }
+
+    /**
+     * Sends a request, and if it hasn't been answered after the given delay,
+     * sends it again and returns whichever answer comes first.  If one of
+     * them fails, the other one still gets the chance to work.  Whichever
+     * attempt is still going once there's an answer is abandoned.
+     */
+    private <T> T hedge(final RequestBody request, final String callType, final ResponseParser<T> parser,
+                        final long delay)
+        throws HttpErrorException, ServiceCallException
+    {
+        CompletionService<T> calls = new ExecutorCompletionService<T>(latencyPolicy.getWorkers());
+        HedgedAttempt<T> firstAttempt = new HedgedAttempt<T>(request, callType, parser);
+        firstAttempt.future = calls.submit(firstAttempt);
+        HedgedAttempt<T> hedgeAttempt = null;
+        Future<T> hedge = null;
+        try
+        {
+            Future<T> first = calls.poll(delay, TimeUnit.MILLISECONDS);
+            if (first == null)
+            {
+                if (latencyPolicy.takeHedge(callType))
+                {
+                    LOG.debug("{} call is taking longer than {} ms, sending it again.", callType, delay);
+                    hedgeAttempt = new HedgedAttempt<T>(request, callType, parser);
+                    hedge = calls.submit(hedgeAttempt);
+                    hedgeAttempt.future = hedge;
+                }
+                first = calls.take();
+            }
+            try
+            {
+                return hedgeResult(callType, first, hedge);
+            }
+            catch (ExecutionException e)
+            {
+                if (hedge == null)
+                {
+                    throw unwrap(e);
+                }
+                LOG.debug("One of the hedged {} calls failed, waiting for the other one.", callType);
+                try
+                {
+                    return hedgeResult(callType, calls.take(), hedge);
+                }
+                catch (ExecutionException second)
+                {
+                    throw unwrap(second);
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new ServiceCallException(ServiceCallException.Reason.OTHER,
+                                           "Interrupted while waiting for Exchange to answer.", e);
+        }
+        finally
+        {
+            firstAttempt.abandon();
+            if (hedgeAttempt != null)
+            {
+                hedgeAttempt.abandon();
+            }
+        }
+    }
+
+    private <T> T hedgeResult(final String callType, final Future<T> done, final Future<T> hedge)
+        throws ExecutionException, InterruptedException
+    {
+        T result = done.get();
+        if (done == hedge)
+        {
+            latencyPolicy.recordHedgeWin(callType);
+        }
+        return result;
+    }
 
-        HttpURLConnection conn = createConnection(request);
-        int code = getResponseCode(conn);
+    /**
+     * One of the attempts of a hedged call, which keeps hold of its
+     * connection so that it can be closed once the attempt is abandoned.
+     * Interrupting the attempt's thread isn't enough by itself, since a
+     * blocking read from the connection doesn't notice it.
+     */
+    private final class HedgedAttempt<T> implements Callable<T>
+    {
+        private final RequestBody request;
+        private final String callType;
+        private final ResponseParser<T> parser;
+        private volatile Future<T> future;
+        private volatile HttpURLConnection connection;
+        private volatile boolean abandoned;
+
+        private HedgedAttempt(final RequestBody body, final String type, final ResponseParser<T> responseParser)
+        {
+            request = body;
+            callType = type;
+            parser = responseParser;
+        }
 
-        String charset = getCharset(conn);
+        @Override
+        public T call() throws HttpErrorException, ServiceCallException
+        {
+            return attempt(request, callType, parser, this);
+        }
 
-        InputStream responseData = getInputStream(conn);
+        /** Hands over the connection the attempt is using, closing it if the attempt was already abandoned. */
+        private void opened(final HttpURLConnection conn)
+        {
+            connection = conn;
+            if (abandoned)
+            {
+                conn.disconnect();
+            }
+        }
 
-        int amtAvailable = getAmountAvailable(responseData);
+        /** Stops the attempt, if it's still going, and closes its connection. */
+        private void abandon()
+        {
+            if (future == null || future.isDone())
+            {
+                return;
+            }
+            abandoned = true;
+            future.cancel(true);
+            HttpURLConnection conn = connection;
+            if (conn != null)
+            {
+                LOG.debug("Closing the connection of an abandoned {} call.", callType);
+                conn.disconnect();
+            }
+        }
+    }
 
-        if (code == HttpURLConnection.HTTP_OK)
+    /** Gets back the exception a call on another thread failed with. */
+    private static ServiceCallException unwrap(final ExecutionException e) throws HttpErrorException
+    {
+        Throwable cause = e.getCause();
+        if (cause instanceof HttpErrorException)
         {
-            checkNonEmptyResponse(request, amtAvailable);
+            throw (HttpErrorException) cause;
+        }
+        if (cause instanceof ServiceCallException)
+        {
+            return (ServiceCallException) cause;
+        }
+        if (cause instanceof RuntimeException)
+        {
+            throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error)
+        {
+            throw (Error) cause;
+        }
+        return new ServiceCallException(ServiceCallException.Reason.OTHER, "The call to Exchange failed.", cause);
+    }
 
-            EnvelopeDocument response = parseResponse(responseData, charset);
-            LOG.trace("SOAP response received from {}.  SOAP envelope:", endpoint);
-            LOG.trace(response.toString());
-            return getSoapBody(response);
+    /** Sends a request once, and returns the response. */
+    private <T> T attempt(final RequestBody request, final String callType, final ResponseParser<T> parser)
+        throws HttpErrorException, ServiceCallException
+    {
+        return attempt(request, callType, parser, null);
+    }
+
+    /**
+     * Sends a request once, and returns the response.  If the request is one
+     * of the attempts of a hedged call, its connection is handed to that
+     * attempt, so that it can be closed if the attempt is abandoned, and the
+     * failure an abandoned attempt ends with isn't held against the endpoint
+     * or the rate.
+     */
+    private <T> T attempt(final RequestBody request, final String callType, final ResponseParser<T> parser,
+                          final HedgedAttempt<T> hedged)
+        throws HttpErrorException, ServiceCallException
+    {
+        rateLimiter.acquire();
+        EndpointBalancer.Endpoint endpoint = endpoints.acquire(request.getAnchorMailbox());
+        Exception failure = null;
+        long start = System.nanoTime();
+        try
+        {
+            T result = exchange(endpoint.getUrl(), request, callType, parser, hedged);
+            long latency = elapsedMillis(start);
+            rateLimiter.onSuccess(latency);
+            latencyPolicy.record(callType, latency);
+            return result;
         }
-        else
+        catch (HttpErrorException e)
+        {
+            if (hedged == null || !hedged.abandoned)
+            {
+                failure = e;
+                rateLimiter.onError(elapsedMillis(start), e);
+            }
+            throw e;
+        }
+        catch (ServiceCallException e)
+        {
+            if (hedged == null || !hedged.abandoned)
+            {
+                failure = e;
+                rateLimiter.onError(elapsedMillis(start), e);
+            }
+            throw e;
+        }
+        finally
+        {
+            endpoints.release(endpoint, failure);
+        }
+    }
+
+    private static long elapsedMillis(final long start)
+    {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    /** Sends a request to the given endpoint and parses the response, without any pacing. */
+    private <T> T exchange(final String endpoint, final RequestBody request, final String callType,
+                           final ResponseParser<T> parser, final HedgedAttempt<T> hedged)
+        throws HttpErrorException, ServiceCallException
+    {
+        if (LOG.isTraceEnabled())
+        {
+            LOG.trace("Sending SOAP request to {}.  SOAP envelope:", endpoint);
+            LOG.trace(request.toString());
+        }
+
+        HttpURLConnection conn = createConnection(endpoint, request);
+        LatencyPolicy.Deadline deadline = latencyPolicy.startDeadline(callType, conn);
+        try
+        {
+            if (hedged != null)
+            {
+                hedged.opened(conn);
+            }
+
+            int code = getResponseCode(conn);
+
+            String charset = getCharset(conn);
+
+            InputStream rawData = code >= HttpURLConnection.HTTP_BAD_REQUEST ? getErrorStream(conn)
+                                                                             : getInputStream(conn);
+            CountingInputStream wireData = new CountingInputStream(rawData);
+            CountingInputStream decodedData = new CountingInputStream(decode(conn, wireData));
+            InputStream responseData = new BufferedInputStream(decodedData);
+
+            int amtAvailable = getAmountAvailable(responseData);
+
+            if (code == HttpURLConnection.HTTP_OK)
+            {
+                checkNonEmptyResponse(request, amtAvailable);
+
+                T response = parser.parse(responseData, charset);
+                recordTransfer(endpoint, callType, wireData.getCount(), decodedData.getCount());
+                return response;
+            }
+            else
+            {
+                return logAndThrowHttpErrorCode(request, code, BackOffHint.fromRetryAfter(conn), responseData,
+                                                amtAvailable, charset);
+            }
+        }
+        catch (ServiceCallException e)
+        {
+            if (deadline.isExpired())
+            {
+                // Whatever went wrong was because the connection was closed under it.
+                SocketTimeoutException timeout = new SocketTimeoutException(
+                        callType + " call did not finish within " + deadline.getMillis() + " ms.");
+                timeout.initCause(e);
+                throw new ServiceCallException(ServiceCallException.Reason.OTHER, timeout.getMessage(), timeout);
+            }
+            throw e;
+        }
+        finally
+        {
+            deadline.cancel();
+            connectionFactory.release(conn);
+        }
+    }
+
+    private void recordTransfer(final String endpoint, final String callType, final long wireBytes,
+                                final long decodedBytes)
+    {
+        transferStatistics.record(callType, wireBytes, decodedBytes);
+        if (LOG.isDebugEnabled())
+        {
+            LOG.debug(String.format("%s response from %s: %d bytes received, %d bytes uncompressed.",
+                                    callType, endpoint, wireBytes, decodedBytes));
+        }
+    }
+
+    /**
+     * Wraps the response so that it's decompressed as it's read, if the
+     * server compressed it.
+     */
+    private static InputStream decode(final HttpURLConnection conn, final InputStream wireData)
+            throws ServiceCallException
+    {
+        String encoding = conn.getContentEncoding();
+        try
+        {
+            return ContentDecoder.decode(encoding, wireData);
+        }
+        catch (IOException e)
         {
-            return logAndThrowHttpErrorCode(request, code, responseData, amtAvailable, charset);
+            throw ServiceCallException.log(LOG, new ServiceCallException(ServiceCallException.Reason.OTHER,
+                    "There was an error decompressing the response with content encoding " + encoding + ".", e));
         }
     }
 
@@ -152,32 +589,36 @@ private static String getCharset(final HttpURLConnection connection)
         return defaultCharset;
     }
 
-    private BodyType logAndThrowHttpErrorCode(final String request, final int code, final InputStream responseData,
-                                              final int amtAvailable, final String charset)
+    private <T> T logAndThrowHttpErrorCode(final RequestBody request, final int code, final long retryAfter,
+                                           final InputStream responseData, final int amtAvailable,
+                                           final String charset)
             throws ServiceCallException, HttpErrorException
     {
         LOG.error("Server responded with HTTP error code {}.", code);
         if (!LOG.isTraceEnabled())
         {
             LOG.debug("Request that generated the error:");
-            LOG.debug(request);
+            LOG.debug("{}", request);
         }
 
+        String body = "";
         if (amtAvailable > 0)
         {
-            LOG.debug("Error response body:");
             try
             {
-                LOG.debug(inputStreamToString(responseData, charset));
+                body = inputStreamToString(responseData, charset);
             }
             catch (IOException ioe)
             {
                 throw ServiceCallException.log(LOG, new ServiceCallException(ServiceCallException.Reason.OTHER,
                                 "Error reading from the response stream.", ioe));
             }
+            LOG.debug("Error response body:");
+            LOG.debug(body);
         }
 
-        throw new HttpErrorException(code);
+        // The body is usually a SOAP fault, which may say when to try again.
+        throw BackOffHint.forHttpError(code, retryAfter, body);
     }
 
     /**
@@ -197,7 +638,7 @@ private BodyType getSoapBody(final EnvelopeDocument response) throws ServiceCall
         else
         {
             LOG.error("SOAP envelope did not contain a valid body.");
-            if (!LOG.isTraceEnabled())
+            if (!LOG.isTraceEnabled() && LOG.isDebugEnabled())
             {
                 LOG.debug("SOAP envelope:");
                 LOG.debug(response.xmlText());
@@ -207,7 +648,7 @@ private BodyType getSoapBody(final EnvelopeDocument response) throws ServiceCall
         }
     }
 
-    private void checkNonEmptyResponse(final String request, final int amtAvailable) throws ServiceCallException
+    private void checkNonEmptyResponse(final RequestBody request, final int amtAvailable) throws ServiceCallException
     {
         if (amtAvailable == 0)
         {
@@ -215,7 +656,7 @@ private void checkNonEmptyResponse(final String request, final int amtAvailable)
             if (!LOG.isTraceEnabled())
             {
                 LOG.debug("Request that generated the empty response:");
-                LOG.debug(request);
+                LOG.debug("{}", request);
             }
             throw new ServiceCallException(ServiceCallException.Reason.OTHER, "Response has empty body.");
         }
@@ -237,10 +678,13 @@ private EnvelopeDocument parseResponse(final InputStream responseData, final Str
         catch (XmlException e)
         {
             LOG.error("There was an error parsing the SOAP response from Exchange.");
-            LOG.debug("Response body:");
             try
             {
-                LOG.debug(inputStreamToString(responseData, charset));
+                if (LOG.isDebugEnabled())
+                {
+                    LOG.debug("Response body:");
+                    LOG.debug(inputStreamToString(responseData, charset));
+                }
                 throw new ServiceCallException(ServiceCallException.Reason.OTHER, "Error parsing SOAP response.", e);
             }
             catch (IOException ioe)
@@ -258,11 +702,19 @@ private int getAmountAvailable(final InputStream responseData) throws ServiceCal
         try
         {
             amtAvailable = responseData.available();
+            if (amtAvailable == 0)
+            {
+                // available() only counts what has already arrived, so check
+                // whether the response really is empty or just hasn't shown up yet.
+                responseData.mark(1);
+                amtAvailable = responseData.read() < 0 ? 0 : 1;
+                responseData.reset();
+            }
         }
         catch (IOException e)
         {
             throw ServiceCallException.log(LOG, new ServiceCallException(ServiceCallException.Reason.OTHER,
-                    "There was an error reading from the response stream."));
+                    "There was an error reading from the response stream.", e));
         }
         return amtAvailable;
     }
@@ -282,42 +734,47 @@ private InputStream getInputStream(final HttpURLConnection conn) throws ServiceC
         return responseData;
     }
 
-    private int getResponseCode(final HttpURLConnection conn) throws ServiceCallException
+    /**
+     * Gets the body of a 4xx or 5xx response, which HttpURLConnection only
+     * gives out through getErrorStream.
+     */
+    private static InputStream getErrorStream(final HttpURLConnection conn)
     {
-        int code;
+        InputStream errorData = conn.getErrorStream();
+        if (errorData != null)
+        {
+            return errorData;
+        }
         try
         {
-            code = conn.getResponseCode();
+            errorData = conn.getInputStream();
         }
         catch (IOException e)
         {
-            throw ServiceCallException.log(LOG, new ServiceCallException(ServiceCallException.Reason.OTHER,
-                    "There was an error getting the HTTP status code for the response.", e));
+            LOG.debug("There was no body for the error response.", e);
         }
-        return code;
+        return errorData == null ? new ByteArrayInputStream(new byte[0]) : errorData;
     }
 
-    private HttpURLConnection createConnection(final String request) throws ServiceCallException
+    private int getResponseCode(final HttpURLConnection conn) throws ServiceCallException
     {
-        HttpURLConnection conn;
+        int code;
         try
         {
-            conn = connectionFactory.newInstance(endpoint, request.getBytes(SOAP_ENCODING));
+            code = conn.getResponseCode();
         }
-        catch (UnsupportedEncodingException e)
+        catch (IOException e)
         {
             throw ServiceCallException.log(LOG, new ServiceCallException(ServiceCallException.Reason.OTHER,
-                    "Request body could not be encoded into " + SOAP_ENCODING, e));
+                    "There was an error getting the HTTP status code for the response.", e));
         }
-        return conn;
+        return code;
     }
 
-    EnvelopeDocument createEmptyRequest(final String targetUser)
+    private HttpURLConnection createConnection(final String endpoint, final RequestBody request)
+            throws ServiceCallException
     {
-        EnvelopeDocument request = EnvelopeDocument.Factory.newInstance();
-        EnvelopeType envelope = request.addNewEnvelope();
-        envelope.addNewHeader().addNewExchangeImpersonation().addNewConnectingSID().setPrincipalName(targetUser);
-        return request;
+        return connectionFactory.newInstance(endpoint, request);
     }
 
     /**
@@ -333,11 +790,54 @@ public SyncFolderItemsResponseType syncFolderItems(final SyncFolderItemsType syn
                                                        final String targetUser)
             throws ServiceCallException, HttpErrorException
     {
-        EnvelopeDocument request = createEmptyRequest(targetUser);
-        EnvelopeType envelope = request.getEnvelope();
-        envelope.addNewBody().setSyncFolderItems(syncFolderItems);
+        RequestBody request = RequestTemplate.SYNC_FOLDER_ITEMS.newRequest(targetUser, syncFolderItems);
+
+        return sendRequest(request, SYNC_FOLDER_ITEMS, soapBodyParser).getSyncFolderItemsResponse();
+    }
+
+    /**
+     * Returns the new item ids from a sync folder items request, reading
+     * them from the response as it streams in.
+     *
+     * @param syncFolderItems A SyncFolderItemsType object that specifies the folder to sync.
+     * @param targetUser The principal name of the user to find items for.
+     * @return The new ids and sync state from the response.
+     * @throws UnexpectedResponseException If the response couldn't be streamed, in
+     *                                     which case syncFolderItems should be used instead.
+     * @throws ServiceCallException If there was a non-HTTP error sending the response,
+     *                              or the response contained an error.
+     * @throws HttpErrorException If the HTTP response from Exchange has a non-200 status code.
+     */
+    public SyncFolderItemsResult syncFolderItemsStreaming(final SyncFolderItemsType syncFolderItems,
+                                                          final String targetUser)
+            throws ServiceCallException, HttpErrorException
+    {
+        return syncFolderItemsStreaming(syncFolderItems, targetUser, false);
+    }
 
-        return sendRequest(request).getSyncFolderItemsResponse();
+    /**
+     * Returns the changes from a sync folder items request, reading them
+     * from the response as it streams in.
+     *
+     * @param syncFolderItems A SyncFolderItemsType object that specifies the folder to sync.
+     * @param targetUser The principal name of the user to find items for.
+     * @param metadataOnly Whether the new items are built from the properties
+     * in the response, as changes, instead of being returned as ids to fetch.
+     * @return The new ids or items and sync state from the response.
+     * @throws UnexpectedResponseException If the response couldn't be streamed, in
+     *                                     which case syncFolderItems should be used instead.
+     * @throws ServiceCallException If there was a non-HTTP error sending the response,
+     *                              or the response contained an error.
+     * @throws HttpErrorException If the HTTP response from Exchange has a non-200 status code.
+     */
+    public SyncFolderItemsResult syncFolderItemsStreaming(final SyncFolderItemsType syncFolderItems,
+                                                          final String targetUser, final boolean metadataOnly)
+            throws ServiceCallException, HttpErrorException
+    {
+        RequestBody request = RequestTemplate.SYNC_FOLDER_ITEMS.newRequest(targetUser, syncFolderItems);
+
+        return sendRequest(request, SYNC_FOLDER_ITEMS,
+                           new SyncFolderItemsResponseParser(syncFolderItems.getSyncState(), metadataOnly));
     }
 
     /**
@@ -354,28 +854,153 @@ public SyncFolderItemsResponseType syncFolderItems(final SyncFolderItemsType syn
     public GetItemResponseType getItem(final GetItemType getItem, final String targetUser)
         throws ServiceCallException, HttpErrorException
     {
-        EnvelopeDocument request = createEmptyRequest(targetUser);
-        EnvelopeType envelope = request.getEnvelope();
-        envelope.addNewBody().setGetItem(getItem);
+        RequestBody request = RequestTemplate.GET_ITEM.newRequest(targetUser, getItem);
+
+        return sendRequest(request, GET_ITEM, soapBodyParser).getGetItemResponse();
+    }
+
+    /**
+     * Returns the emails from a get item request, creating each one as it
+     * streams in rather than building the whole response first.
+     *
+     * @param getItem A GetItemType object that specifies the set of items to
+     *                gather from the Exchange server.
+     * @param targetUser The principal name of the user to get items for.
+     * @return The emails in the response.
+     * @throws UnexpectedResponseException If the response couldn't be streamed, in
+     *                                     which case getItem should be used instead.
+     * @throws ServiceCallException If there was a non-HTTP error sending the response,
+     *                              or the response contained an error.
+     * @throws HttpErrorException If the HTTP response from Exchange has a non-200 status code.
+     */
+    public Vector<MailboxItem> getItemStreaming(final GetItemType getItem, final String targetUser)
+        throws ServiceCallException, HttpErrorException
+    {
+        RequestBody request = RequestTemplate.GET_ITEM.newRequest(targetUser, getItem);
+
+        return sendRequest(request, GET_ITEM, new GetItemResponseParser());
+    }
+
+    /**
+     * Returns the emails from a get item request, keeping no more of each
+     * body than the given number of characters.  The rest of each body is
+     * read a piece at a time and dropped as it streams in, so a large body
+     * is never held in memory whole.
+     *
+     * @param getItem A GetItemType object that specifies the set of items to
+     *                gather from the Exchange server.
+     * @param targetUser The principal name of the user to get items for.
+     * @param maxBodyLength The most characters of each body to keep, which
+     *                      must be greater than 0.
+     * @return The emails in the response, marked as truncated if some of
+     *         their body was left out.
+     * @throws UnexpectedResponseException If the response couldn't be streamed.
+     * @throws ServiceCallException If there was a non-HTTP error sending the response,
+     *                              or the response contained an error.
+     * @throws HttpErrorException If the HTTP response from Exchange has a non-200 status code.
+     */
+    public Vector<MailboxItem> getItemStreaming(final GetItemType getItem, final String targetUser,
+                                                final int maxBodyLength)
+        throws ServiceCallException, HttpErrorException
+    {
+        RequestBody request = RequestTemplate.GET_ITEM.newRequest(targetUser, getItem);
 
-        return sendRequest(request).getGetItemResponse();
+        return sendRequest(request, GET_ITEM, new GetItemResponseParser(maxBodyLength));
     }
 
     /**
-     * Returns the response of a FindFolder request.
-     * @param findFolder The FindFolder request,
-     * @param targetUser The principal name of the user to find folders for.
-     * @return The response.
-     * @throws ServiceCallException A non-HTTP error has occurred during the request.
-     * @throws HttpErrorException A HTTP error has occurred during the request.
+     * Returns the emails from a get item request, and decodes the MIME
+     * content of each one straight into a new file of a MIME archive as it
+     * streams in, so the MIME content is never held in memory whole.  There's
+     * no fallback to building the whole response first, since that would hold
+     * all of it.
+     *
+     * @param getItem A GetItemType object that specifies the set of items to
+     *                gather from the Exchange server, including their MIME content.
+     * @param targetUser The principal name of the user to get items for.
+     * @param mimeArchive The archive to put the MIME content in.
+     * @return The emails in the response.
+     * @throws UnexpectedResponseException If the response couldn't be streamed.
+     * @throws ServiceCallException If there was a non-HTTP error sending the response,
+     *                              or the response contained an error.
+     * @throws HttpErrorException If the HTTP response from Exchange has a non-200 status code.
+     */
+    public Vector<MailboxItem> getItemStreaming(final GetItemType getItem, final String targetUser,
+                                                final MimeArchive mimeArchive)
+        throws ServiceCallException, HttpErrorException
+    {
+        RequestBody request = RequestTemplate.GET_ITEM.newRequest(targetUser, getItem);
+
+        return sendRequest(request, GET_ITEM, new GetItemResponseParser(mimeArchive, targetUser));
+    }
+
+    /**
+     * Stores the content of the file attachments from a get attachment
+     * request, decoding each one straight into the blob store as it streams
+     * in, so no attachment is ever held in memory whole.
+     *
+     * @param getAttachment A GetAttachmentType object that specifies the
+     *                      attachments to fetch.
+     * @param targetUser The principal name of the user the attachments belong to.
+     * @param store The blob store to put the attachments in.
+     * @return The hash each attachment was stored under, in the order they
+     *         were asked for, with null for attachments that aren't files.
+     * @throws ServiceCallException If there was a non-HTTP error sending the response,
+     *                              or the response contained an error.
+     * @throws HttpErrorException If the HTTP response from Exchange has a non-200 status code.
+     */
+    public List<String> getAttachmentStreaming(final GetAttachmentType getAttachment, final String targetUser,
+                                               final BlobStore store)
+        throws ServiceCallException, HttpErrorException
+    {
+        RequestBody request = RequestTemplate.GET_ATTACHMENT.newRequest(targetUser, getAttachment);
+
+        return sendRequest(request, GET_ATTACHMENT, new GetAttachmentResponseParser(store));
+    }
+
+    /**
+     * Returns the folders created and deleted since the sync state in a
+     * sync folder hierarchy request, reading them from the response as it
+     * streams in.
+     *
+     * @param syncFolderHierarchy The SyncFolderHierarchy request.
+     * @param targetUser The principal name of the user to sync the folders of.
+     * @return The created and deleted folder ids and the new sync state.
+     * @throws ServiceCallException If there was a non-HTTP error sending the response,
+     *                              or the response contained an error.
+     * @throws HttpErrorException If the HTTP response from Exchange has a non-200 status code.
+     */
+    public FolderHierarchyResult syncFolderHierarchyStreaming(final SyncFolderHierarchyType syncFolderHierarchy,
+                                                              final String targetUser)
+        throws ServiceCallException, HttpErrorException
+    {
+        RequestBody request = RequestTemplate.SYNC_FOLDER_HIERARCHY.newRequest(targetUser, syncFolderHierarchy);
+
+        return sendRequest(request, SYNC_FOLDER_HIERARCHY,
+                           new SyncFolderHierarchyResponseParser(syncFolderHierarchy.getSyncState()));
+    }
+
+    /**
+     * Exports the full-fidelity streams of the given items into a blob
+     * store, decoding each one as it's read from the response, so a stream
+     * is never in memory whole.  The SOAP envelope schema has no
+     * ExportItems response, so there's no XmlBeans version of this call.
+     *
+     * @param exportItems An ExportItemsType object that specifies the items to export.
+     * @param targetUser The principal name of the user whose items these are.
+     * @param store The store to put the exported streams in.
+     * @return An item for each exported item, with its id and the hash of its stream.
+     * @throws UnexpectedResponseException If the response couldn't be streamed.
+     * @throws ServiceCallException If there was a non-HTTP error sending the response,
+     *                              or the response contained an error.
+     * @throws HttpErrorException If the HTTP response from Exchange has a non-200 status code.
      */
-    public FindFolderResponseType findFolder(final FindFolderType findFolder, final String targetUser)
+    public Vector<MailboxItem> exportItemsStreaming(final ExportItemsType exportItems, final String targetUser,
+                                                    final BlobStore store)
         throws ServiceCallException, HttpErrorException
     {
-        EnvelopeDocument request = createEmptyRequest(targetUser);
-        EnvelopeType envelope = request.getEnvelope();
-        envelope.addNewBody().setFindFolder(findFolder);
+        RequestBody request = RequestTemplate.EXPORT_ITEMS.newRequest(targetUser, exportItems);
 
-        return sendRequest(request).getFindFolderResponse();
+        return sendRequest(request, EXPORT_ITEMS, new ExportItemsResponseParser(store));
     }
 }
@@ -0,0 +1,88 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import com.microsoft.schemas.exchange.services.x2006.messages.ExportItemsType;
+import com.microsoft.schemas.exchange.services.x2006.types.NonEmptyArrayOfItemIdsType;
+import com.ripariandata.timberwolf.mail.MailboxItem;
+import com.ripariandata.timberwolf.writer.blob.BlobStore;
+
+import java.util.List;
+import java.util.Vector;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Contains helper functions for exporting the full-fidelity streams of
+ * items into a blob store with ExportItems, in place of GetItem.
+ * <p/>
+ * An exported stream holds everything about the item, so one request for a
+ * page of them carries much less XML than a GetItem request for all their
+ * properties.  The items handed out only have their id and the hash of
+ * their stream, so this is meant for archiving a backfill.
+ */
+final class ExportItemsHelper
+{
+    private static final Logger LOG = LoggerFactory.getLogger(ExportItemsHelper.class);
+
+    /** Enforces not being able to create an instance. */
+    private ExportItemsHelper()
+    {
+
+    }
+
+    /**
+     * Creates an ExportItemsType to request the streams of the given items.
+     *
+     * @param ids The ids of the items to export.
+     * @return The ExportItemsType necessary to request them.
+     */
+    static ExportItemsType getExportItemsRequest(final List<String> ids)
+    {
+        ExportItemsType exportItems = ExportItemsType.Factory.newInstance();
+        NonEmptyArrayOfItemIdsType itemIds = exportItems.addNewItemIds();
+        for (String id : ids)
+        {
+            itemIds.addNewItemId().setId(id);
+        }
+        return exportItems;
+    }
+
+    /**
+     * Exports the given items into a blob store.
+     *
+     * @param ids The ids of the items to export.
+     * @param exchangeService The backend service used for contacting Exchange.
+     * @param targetUser The user to impersonate for the Exchange ExportItems request.
+     * @param store The store to put the exported streams in.
+     * @return An item for each exported item, with its id and the hash of its stream.
+     * @throws HttpErrorException If the HTTP response from Exchange has a non-200 status code.
+     * @throws ServiceCallException If there was a non-HTTP error making the Exchange
+     *                              request, or the response had an error in it.
+     */
+    static Vector<MailboxItem> exportItems(final List<String> ids, final ExchangeService exchangeService,
+                                           final String targetUser, final BlobStore store)
+            throws ServiceCallException, HttpErrorException
+    {
+        Vector<MailboxItem> items = exchangeService.exportItemsStreaming(getExportItemsRequest(ids), targetUser,
+                                                                         store);
+        LOG.debug("Exported {} of {} items.", items.size(), ids.size());
+        return items;
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import com.microsoft.schemas.exchange.services.x2006.messages.ResponseCodeType;
+import com.ripariandata.timberwolf.mail.MailboxItem;
+import com.ripariandata.timberwolf.writer.blob.BlobStore;
+
+import java.util.Vector;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streams the exported items in an ExportItems response into a blob store.
+ * The base64 data of each item is decoded as it is read, a piece at a time,
+ * so an item is never in memory whole.
+ */
+class ExportItemsResponseParser extends StreamingResponseParser<Vector<MailboxItem>>
+{
+    private static final Logger LOG = LoggerFactory.getLogger(ExportItemsResponseParser.class);
+
+    private final BlobStore store;
+
+    /** @param blobStore The store to put the exported items in. */
+    ExportItemsResponseParser(final BlobStore blobStore)
+    {
+        super("ExportItemsResponse", CHUNKED_FACTORY);
+        store = blobStore;
+    }
+
+    @Override
+    Vector<MailboxItem> readResponse(final XMLStreamReader reader) throws XMLStreamException, ServiceCallException
+    {
+        Vector<MailboxItem> items = new Vector<MailboxItem>();
+        while (nextChild(reader))
+        {
+            if (isElement(reader, MESSAGES_NAMESPACE, "ResponseMessages"))
+            {
+                while (nextChild(reader))
+                {
+                    readResponseMessage(reader, items);
+                }
+            }
+            else
+            {
+                skipElement(reader);
+            }
+        }
+        return items;
+    }
+
+    private void readResponseMessage(final XMLStreamReader reader, final Vector<MailboxItem> items)
+            throws XMLStreamException, ServiceCallException
+    {
+        String id = null;
+        String hash = null;
+        while (nextChild(reader))
+        {
+            if (isElement(reader, MESSAGES_NAMESPACE, "ResponseCode"))
+            {
+                try
+                {
+                    checkResponseCode(reader);
+                }
+                catch (ServiceCallException e)
+                {
+                    if (e.getSoapError() != ResponseCodeType.ERROR_ITEM_NOT_FOUND)
+                    {
+                        throw e;
+                    }
+                    // Just like GetItem, the deletion comes with the next sync.
+                    LOG.debug("An item was deleted before it could be exported, so it was skipped.");
+                    return;
+                }
+            }
+            else if (isElement(reader, MESSAGES_NAMESPACE, "ItemId"))
+            {
+                id = reader.getAttributeValue(null, "Id");
+                skipElement(reader);
+            }
+            else if (isElement(reader, MESSAGES_NAMESPACE, "Data"))
+            {
+                hash = storeBase64(reader, store, "an exported item");
+            }
+            else
+            {
+                skipElement(reader);
+            }
+        }
+        if (id != null && hash != null)
+        {
+            items.add(ExchangeEmail.exported(id, hash));
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import java.net.HttpURLConnection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends requests through a preferred connection factory, and switches an
+ * endpoint over to a fallback factory once it's clear that endpoint can't
+ * make use of the preferred one.
+ * <p/>
+ * This is what lets the pooled transport fall back to plain connections: a
+ * server that answers with "Connection: close" shuts every socket down after
+ * one response, whatever the client asks for, so limiting and keeping track
+ * of its connections only holds requests back.  Once an endpoint has closed
+ * the connection after enough responses in a row, its requests go through
+ * the fallback factory for the rest of the run.
+ */
+class FallbackHttpUrlConnectionFactory implements HttpUrlConnectionFactory
+{
+    /** The default number of closed connections in a row after which an endpoint falls back. */
+    static final int DEFAULT_CLOSED_CONNECTION_LIMIT = 3;
+
+    private static final Logger LOG = LoggerFactory.getLogger(FallbackHttpUrlConnectionFactory.class);
+    private static final String CONNECTION_HEADER = "Connection";
+    private static final String CLOSE = "close";
+
+    private final HttpUrlConnectionFactory preferred;
+    private final HttpUrlConnectionFactory fallback;
+    private final int closedConnectionLimit;
+    private final ConcurrentMap<String, AtomicInteger> closedInARow = new ConcurrentHashMap<String, AtomicInteger>();
+    private final ConcurrentMap<String, Boolean> fallenBack = new ConcurrentHashMap<String, Boolean>();
+    private final Map<HttpURLConnection, String> preferredConnections =
+            Collections.synchronizedMap(new IdentityHashMap<HttpURLConnection, String>());
+
+    /**
+     * @param preferredFactory The factory requests go through to begin with.
+     * @param fallbackFactory The factory an endpoint's requests go through
+     * once it has fallen back.
+     * @param closedConnections The number of responses in a row that have to
+     * close their connection before the endpoint falls back.
+     */
+    FallbackHttpUrlConnectionFactory(final HttpUrlConnectionFactory preferredFactory,
+                                     final HttpUrlConnectionFactory fallbackFactory, final int closedConnections)
+    {
+        preferred = preferredFactory;
+        fallback = fallbackFactory;
+        closedConnectionLimit = Math.max(closedConnections, 1);
+    }
+
+    @Override
+    public HttpURLConnection newInstance(final String address, final RequestBody request)
+            throws ServiceCallException
+    {
+        if (hasFallenBack(address))
+        {
+            return fallback.newInstance(address, request);
+        }
+        HttpURLConnection connection = preferred.newInstance(address, request);
+        preferredConnections.put(connection, address);
+        return connection;
+    }
+
+    @Override
+    public void release(final HttpURLConnection connection)
+    {
+        String address = preferredConnections.remove(connection);
+        if (address == null)
+        {
+            fallback.release(connection);
+            return;
+        }
+        boolean closed = CLOSE.equalsIgnoreCase(connection.getHeaderField(CONNECTION_HEADER));
+        preferred.release(connection);
+        AtomicInteger count = getClosedInARow(address);
+        if (!closed)
+        {
+            count.set(0);
+        }
+        else if (count.incrementAndGet() >= closedConnectionLimit && fallenBack.putIfAbsent(address, true) == null)
+        {
+            LOG.warn("{} closed the connection after {} responses in a row, so its requests will no longer "
+                     + "be pooled.", address, closedConnectionLimit);
+        }
+    }
+
+    /** Whether the endpoint's requests go through the fallback factory. */
+    boolean hasFallenBack(final String address)
+    {
+        return fallenBack.containsKey(address);
+    }
+
+    private AtomicInteger getClosedInARow(final String address)
+    {
+        AtomicInteger count = closedInARow.get(address);
+        if (count == null)
+        {
+            closedInARow.putIfAbsent(address, new AtomicInteger());
+            count = closedInARow.get(address);
+        }
+        return count;
+    }
+}
@@ -35,6 +35,7 @@
     private final String stringFolder;
     private final String user;
     private UserFolderSyncStateStorage syncStateStorage;
+    private Boolean firstSync;
 
     public FolderContext(final String folder, final String targetUser,
                          final UserFolderSyncStateStorage userFolderSyncStateStorage)
@@ -74,9 +75,30 @@ public String getUser()
     public String getSyncStateToken()
     {
         final String syncStateToken = syncStateStorage.getLastSyncState(user, stringFolder);
+        if (firstSync == null)
+        {
+            firstSync = syncStateToken == null || syncStateToken.length() == 0;
+        }
         return syncStateToken == null ? "" : syncStateToken;
     }
 
+    /**
+     * Returns whether this folder had no sync token when it was first looked
+     * at, so that every item in it is being fetched for the first time.  The
+     * answer stays the same once the sync tokens from this run start being
+     * stored.
+     *
+     * @return True if the folder had never been synced before.
+     */
+    public boolean isFirstSync()
+    {
+        if (firstSync == null)
+        {
+            getSyncStateToken();
+        }
+        return firstSync;
+    }
+
     /**
      * Sets the sync token returned from Exchange when syncing this folder.
      * This should not be called until after all items are retrieved; this can
@@ -17,36 +17,38 @@
  */
 package com.ripariandata.timberwolf.mail.exchange;
 
-import com.microsoft.schemas.exchange.services.x2006.types.DistinguishedFolderIdNameType;
 import com.ripariandata.timberwolf.mail.MailboxItem;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.Queue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Runs a SyncFolderItemsIterator for each folder found with findFolders.
+ * Runs a SyncFolderItemIterator for each folder found with
+ * SyncFolderHierarchy, or one CoalescingItemIterator over all of them when
+ * GetItem requests are coalesced.
  */
-public class FindFolderIterator extends BaseChainIterator<MailboxItem>
+public class FolderHierarchyIterator extends BaseChainIterator<MailboxItem>
 {
-    private static final Logger LOG = LoggerFactory.getLogger(FindFolderIterator.class);
+    private static final Logger LOG = LoggerFactory.getLogger(FolderHierarchyIterator.class);
     private ExchangeService service;
     private Configuration config;
     private Queue<String> folderQueue;
     private String user;
+    private ItemPageSizer pageSizer;
 
-    public FindFolderIterator(final ExchangeService exchangeService, final Configuration configuration,
-                              final String targetUser)
+    public FolderHierarchyIterator(final ExchangeService exchangeService, final Configuration configuration,
+                                   final String targetUser)
     {
         service = exchangeService;
         config = configuration;
         user = targetUser;
+        pageSizer = new ItemPageSizer(configuration);
 
         try
         {
-            folderQueue = FindFolderHelper.findFolders(exchangeService,
-                                                       FindFolderHelper.getFindFoldersRequest(
-                                                               DistinguishedFolderIdNameType.MSGFOLDERROOT), user);
+            folderQueue = SyncFolderHierarchyHelper.syncFolders(service, config, user);
             if (folderQueue.size() == 0)
             {
                 LOG.warn("Did not find any folders.");
@@ -75,7 +77,16 @@ protected Iterator<MailboxItem> createIterator()
         {
             return null;
         }
+        if (config.isGetItemCoalescingEnabled())
+        {
+            Queue<FolderContext> folders = new LinkedList<FolderContext>();
+            while (folderQueue.size() > 0)
+            {
+                folders.add(new FolderContext(folderQueue.poll(), user, config.getSyncStateStorage()));
+            }
+            return new CoalescingItemIterator(service, config, user, folders, pageSizer);
+        }
         FolderContext folder = new FolderContext(folderQueue.poll(), user, config.getSyncStateStorage());
-        return new SyncFolderItemIterator(service, config, folder);
+        return new SyncFolderItemIterator(service, config, folder, pageSizer);
     }
 }
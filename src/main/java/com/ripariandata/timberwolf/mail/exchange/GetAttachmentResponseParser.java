@@ -0,0 +1,113 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import com.ripariandata.timberwolf.writer.blob.BlobStore;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Streams the content of the file attachments in a GetAttachment response
+ * into a blob store.  The base64 content of each attachment is decoded as it
+ * is read, a piece at a time, so an attachment is never in memory whole.
+ */
+class GetAttachmentResponseParser extends StreamingResponseParser<List<String>>
+{
+    private final BlobStore store;
+
+    /** @param blobStore The store to put the attachments in. */
+    GetAttachmentResponseParser(final BlobStore blobStore)
+    {
+        super("GetAttachmentResponse", CHUNKED_FACTORY);
+        store = blobStore;
+    }
+
+    @Override
+    List<String> readResponse(final XMLStreamReader reader) throws XMLStreamException, ServiceCallException
+    {
+        List<String> hashes = new ArrayList<String>();
+        while (nextChild(reader))
+        {
+            if (isElement(reader, MESSAGES_NAMESPACE, "ResponseMessages"))
+            {
+                while (nextChild(reader))
+                {
+                    readResponseMessage(reader, hashes);
+                }
+            }
+            else
+            {
+                skipElement(reader);
+            }
+        }
+        return hashes;
+    }
+
+    private void readResponseMessage(final XMLStreamReader reader, final List<String> hashes)
+            throws XMLStreamException, ServiceCallException
+    {
+        while (nextChild(reader))
+        {
+            if (isElement(reader, MESSAGES_NAMESPACE, "ResponseCode"))
+            {
+                checkResponseCode(reader);
+            }
+            else if (isElement(reader, MESSAGES_NAMESPACE, "Attachments"))
+            {
+                while (nextChild(reader))
+                {
+                    if (isElement(reader, TYPES_NAMESPACE, "FileAttachment"))
+                    {
+                        hashes.add(readFileAttachment(reader));
+                    }
+                    else
+                    {
+                        // Item attachments are whole mails, not files.
+                        hashes.add(null);
+                        skipElement(reader);
+                    }
+                }
+            }
+            else
+            {
+                skipElement(reader);
+            }
+        }
+    }
+
+    private String readFileAttachment(final XMLStreamReader reader) throws XMLStreamException
+    {
+        String hash = null;
+        while (nextChild(reader))
+        {
+            if (isElement(reader, TYPES_NAMESPACE, "Content"))
+            {
+                hash = storeBase64(reader, store, "an attachment");
+            }
+            else
+            {
+                skipElement(reader);
+            }
+        }
+        return hash;
+    }
+}
@@ -21,11 +21,23 @@
 import com.microsoft.schemas.exchange.services.x2006.messages.GetItemType;
 import com.microsoft.schemas.exchange.services.x2006.messages.ItemInfoResponseMessageType;
 import com.microsoft.schemas.exchange.services.x2006.messages.ResponseCodeType;
+import com.microsoft.schemas.exchange.services.x2006.types.BodyTypeResponseType;
 import com.microsoft.schemas.exchange.services.x2006.types.DefaultShapeNamesType;
+import com.microsoft.schemas.exchange.services.x2006.types.FieldURIDocument;
+import com.microsoft.schemas.exchange.services.x2006.types.ItemResponseShapeType;
 import com.microsoft.schemas.exchange.services.x2006.types.MessageType;
 import com.microsoft.schemas.exchange.services.x2006.types.NonEmptyArrayOfBaseItemIdsType;
+import com.microsoft.schemas.exchange.services.x2006.types.NonEmptyArrayOfPathsToElementType;
+import com.microsoft.schemas.exchange.services.x2006.types.PathToUnindexedFieldType;
+import com.microsoft.schemas.exchange.services.x2006.types.UnindexedFieldURIType;
 import com.ripariandata.timberwolf.mail.MailboxItem;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -48,9 +60,58 @@ private GetItemHelper()
      * @return The GetItemType necessary to request the info for those ids
      */
     static GetItemType getGetItemsRequest(final List<String> ids)
+    {
+        return getGetItemsRequest(ids, null);
+    }
+
+    /**
+     * Creates a GetItemType to request only the properties behind the given
+     * headers for the given ids.
+     *
+     * @param ids The ids to request
+     * @param headers The MailboxItem headers that are wanted, or null to request all properties.
+     * @return The GetItemType necessary to request the info for those ids
+     */
+    static GetItemType getGetItemsRequest(final List<String> ids, final Set<String> headers)
+    {
+        return getGetItemsRequest(ids, headers, Configuration.DEFAULT_BODY_FORMAT);
+    }
+
+    /**
+     * Creates a GetItemType to request only the properties behind the given
+     * headers for the given ids, with bodies in the given form.
+     *
+     * @param ids The ids to request
+     * @param headers The MailboxItem headers that are wanted, or null to request all properties.
+     * @param bodyFormat The form to request bodies in.
+     * @return The GetItemType necessary to request the info for those ids
+     */
+    static GetItemType getGetItemsRequest(final List<String> ids, final Set<String> headers,
+                                          final Configuration.BodyFormat bodyFormat)
     {
         GetItemType getItem = GetItemType.Factory.newInstance();
-        getItem.addNewItemShape().setBaseShape(DefaultShapeNamesType.ALL_PROPERTIES);
+        ItemResponseShapeType shape = getItem.addNewItemShape();
+        // Best is what Exchange sends when no body type is asked for.
+        if (bodyFormat == Configuration.BodyFormat.HTML)
+        {
+            shape.setBodyType(BodyTypeResponseType.HTML);
+        }
+        else if (bodyFormat == Configuration.BodyFormat.TEXT)
+        {
+            shape.setBodyType(BodyTypeResponseType.TEXT);
+        }
+        if (headers == null)
+        {
+            shape.setBaseShape(DefaultShapeNamesType.ALL_PROPERTIES);
+        }
+        else
+        {
+            shape.setBaseShape(DefaultShapeNamesType.ID_ONLY);
+            for (UnindexedFieldURIType.Enum field : ExchangeEmail.getFieldUris(headers))
+            {
+                addProperty(shape, field);
+            }
+        }
         NonEmptyArrayOfBaseItemIdsType items = getItem.addNewItemIds();
         if (ids != null)
         {
@@ -62,6 +123,47 @@ static GetItemType getGetItemsRequest(final List<String> ids)
         return getItem;
     }
 
+    /** Adds a property to those the given shape asks for on top of its base shape. */
+    static void addProperty(final ItemResponseShapeType shape, final UnindexedFieldURIType.Enum field)
+    {
+        NonEmptyArrayOfPathsToElementType properties = shape.isSetAdditionalProperties()
+                ? shape.getAdditionalProperties() : shape.addNewAdditionalProperties();
+        // Path is abstract in the schema, so each one has to be swapped for
+        // the FieldURI element that stands in for it.
+        PathToUnindexedFieldType path = (PathToUnindexedFieldType) properties.addNewPath().substitute(
+                FieldURIDocument.type.getDocumentElementName(), PathToUnindexedFieldType.type);
+        path.setFieldURI(field);
+    }
+
+    /**
+     * Creates a GetItemType to request everything but the bodies of the
+     * given items, along with their sizes.
+     *
+     * @param ids The ids to request
+     * @param headers The MailboxItem headers that are wanted, or null for all of them.
+     * @return The GetItemType necessary to request the info for those ids
+     */
+    static GetItemType getGetItemHeadersRequest(final List<String> ids, final Set<String> headers)
+    {
+        GetItemType getItem = getGetItemsRequest(ids, ExchangeEmail.withoutBody(headers));
+        addProperty(getItem.getItemShape(), UnindexedFieldURIType.ITEM_SIZE);
+        return getItem;
+    }
+
+    /**
+     * Creates a GetItemType to request just the bodies of the given items.
+     *
+     * @param ids The ids to request
+     * @param bodyFormat The form to request bodies in.
+     * @return The GetItemType necessary to request the bodies of those ids
+     */
+    static GetItemType getGetItemBodiesRequest(final List<String> ids, final Configuration.BodyFormat bodyFormat)
+    {
+        GetItemType getItem = getGetItemsRequest(ids, Collections.<String>emptySet(), bodyFormat);
+        addProperty(getItem.getItemShape(), UnindexedFieldURIType.ITEM_BODY);
+        return getItem;
+    }
+
     /**
      * Get a list of items from the server.
      *
@@ -81,20 +183,294 @@ static GetItemType getGetItemsRequest(final List<String> ids)
     static Vector<MailboxItem> getItems(final int count, final int startIndex, final Vector<String> ids,
                                         final ExchangeService exchangeService, final String targetUser)
             throws ServiceCallException, HttpErrorException
+    {
+        return getItems(count, startIndex, ids, exchangeService, targetUser, null);
+    }
+
+    /**
+     * Get a list of items from the server, with only the properties behind
+     * the configuration's required headers, and bodies in the configured form
+     * and cut down to the configured size.  If the configuration has an
+     * export store, the items are exported into it with ExportItems instead,
+     * and if it has a MIME archive, their MIME content is put in it in place
+     * of their bodies and attachments.
+     *
+     * @param count The number of items to get.
+     * @param startIndex The index in ids of the first item to get
+     * @param ids A list of ids to get
+     * @param exchangeService The backend service used for contacting Exchange.
+     * @param targetUser The user to impersonate for the Exchange GetItem request.
+     * @param config The configuration with the headers and body settings, or
+     *               null to get all properties and keep bodies whole.
+     * @return A list of mailbox items that correspond to the given ids.
+     * @throws HttpErrorException If the HTTP response from Exchange has a non-200 status code.
+     * @throws ServiceCallException If there was a non-HTTP error making the Exchange
+     *                              request, or if the SOAP find item response has a message
+     *                              with a response code other than "No Error".
+     */
+    static Vector<MailboxItem> getItems(final int count, final int startIndex, final Vector<String> ids,
+                                        final ExchangeService exchangeService, final String targetUser,
+                                        final Configuration config)
+            throws ServiceCallException, HttpErrorException
     {
         int max = Math.min(startIndex + count, ids.size());
         if (max <= startIndex)
         {
             return new Vector<MailboxItem>();
         }
-        LOG.trace("Making request:\n" + getGetItemsRequest(ids.subList(startIndex, max)).toString());
-        GetItemResponseType response = exchangeService.getItem(getGetItemsRequest(ids.subList(startIndex, max)),
-                                                               targetUser);
+        if (config == null)
+        {
+            return getItems(getGetItemsRequest(ids.subList(startIndex, max)), exchangeService, targetUser);
+        }
+
+        List<String> pageIds = ids.subList(startIndex, max);
+        MessageDeduplicator deduplicator = config.getMessageDeduplicator();
+        if (deduplicator == null)
+        {
+            return fetchItems(pageIds, exchangeService, targetUser, config);
+        }
+
+        List<String> fetchIds = new ArrayList<String>();
+        Map<String, String> copies = new LinkedHashMap<String, String>();
+        for (String id : pageIds)
+        {
+            String firstCopy = deduplicator.getFirstCopy(id);
+            if (firstCopy == null)
+            {
+                fetchIds.add(id);
+            }
+            else
+            {
+                copies.put(id, firstCopy);
+            }
+        }
+        Vector<MailboxItem> items = null;
+        try
+        {
+            items = fetchItems(fetchIds, exchangeService, targetUser, config);
+        }
+        finally
+        {
+            if (items == null)
+            {
+                deduplicator.failed(fetchIds);
+            }
+        }
+        // Only let go of the first copies and the references to them once
+        // the page can't be retried any more.
+        deduplicator.fetched(fetchIds, items);
+        for (Map.Entry<String, String> copy : copies.entrySet())
+        {
+            items.add(ExchangeEmail.copyOf(copy.getKey(), copy.getValue()));
+            deduplicator.handedOut(copy.getKey());
+        }
+        return items;
+    }
+
+    /** Gets the given items in whichever way the configuration asks for. */
+    private static Vector<MailboxItem> fetchItems(final List<String> pageIds, final ExchangeService exchangeService,
+                                                  final String targetUser, final Configuration config)
+            throws ServiceCallException, HttpErrorException
+    {
+        Vector<MailboxItem> items;
+        if (pageIds.isEmpty())
+        {
+            items = new Vector<MailboxItem>();
+        }
+        else if (config.getExportStore() != null)
+        {
+            items = ExportItemsHelper.exportItems(pageIds, exchangeService, targetUser, config.getExportStore());
+        }
+        else if (config.getMimeArchive() != null)
+        {
+            items = getItemsWithMime(pageIds, exchangeService, targetUser, config);
+        }
+        else if (config.getLargeItemSize() > 0 && ExchangeEmail.includesBody(config.getRequiredHeaders()))
+        {
+            items = getItemsInTwoPasses(pageIds, exchangeService, targetUser, config);
+        }
+        else
+        {
+            items = getItems(getGetItemsRequest(pageIds, config.getRequiredHeaders(), config.getBodyFormat()),
+                             exchangeService, targetUser);
+        }
+        if (config.getMaxBodySize() > 0)
+        {
+            for (MailboxItem item : items)
+            {
+                if (item instanceof ExchangeEmail)
+                {
+                    ((ExchangeEmail) item).truncateBody(config.getMaxBodySize());
+                }
+            }
+        }
+        if (config.getAttachmentStore() != null && config.getMimeArchive() == null
+            && ExchangeEmail.includesAttachments(config.getRequiredHeaders()))
+        {
+            AttachmentHelper.storeAttachments(items, exchangeService, targetUser, config);
+        }
+        return items;
+    }
+
+    /**
+     * Creates a GetItemType to request the MIME content of the given items,
+     * along with the properties behind the given headers other than the body
+     * and attachments, which the MIME content already holds.
+     *
+     * @param ids The ids to request
+     * @param headers The MailboxItem headers that are wanted, or null for all of them.
+     * @return The GetItemType necessary to request the MIME content of those ids
+     */
+    static GetItemType getGetItemMimeRequest(final List<String> ids, final Set<String> headers)
+    {
+        GetItemType getItem = getGetItemsRequest(ids, ExchangeEmail.withoutContent(headers));
+        getItem.getItemShape().setIncludeMimeContent(true);
+        return getItem;
+    }
+
+    /**
+     * Gets items with their MIME content, which goes straight into the
+     * configured MIME archive rather than into the items.  This is always
+     * streamed, since MIME content is too big to build the whole response.
+     */
+    private static Vector<MailboxItem> getItemsWithMime(final List<String> ids,
+                                                        final ExchangeService exchangeService,
+                                                        final String targetUser, final Configuration config)
+            throws ServiceCallException, HttpErrorException
+    {
+        GetItemType request = getGetItemMimeRequest(ids, config.getRequiredHeaders());
+        LOG.trace("Making request:\n{}", request);
+        return exchangeService.getItemStreaming(request, targetUser, config.getMimeArchive());
+    }
+
+    /**
+     * Gets items without their bodies, and then gets the bodies: those of
+     * small items all together, and those of large items one at a time.
+     * When the responses are streamed, each body is cut down to the
+     * configured size as it's read, so a large body is only held in memory
+     * whole if bodies are kept whole.  A large item's body that can't be fetched for a reason that might go
+     * away is left out and the item is marked as truncated, rather than
+     * failing the rest of the page.  The body isn't retried on its own,
+     * since the whole page is already retried by whoever asked for it, and
+     * retrying at both levels would multiply the attempts.
+     */
+    private static Vector<MailboxItem> getItemsInTwoPasses(final List<String> ids,
+                                                           final ExchangeService exchangeService,
+                                                           final String targetUser, final Configuration config)
+            throws ServiceCallException, HttpErrorException
+    {
+        Vector<MailboxItem> items = getItems(getGetItemHeadersRequest(ids, config.getRequiredHeaders()),
+                                             exchangeService, targetUser);
+
+        Map<String, ExchangeEmail> emails = new HashMap<String, ExchangeEmail>();
+        List<String> smallIds = new ArrayList<String>();
+        List<String> largeIds = new ArrayList<String>();
+        for (MailboxItem item : items)
+        {
+            if (item instanceof ExchangeEmail && ((ExchangeEmail) item).getId() != null)
+            {
+                ExchangeEmail email = (ExchangeEmail) item;
+                emails.put(email.getId(), email);
+                if (email.getSize() > config.getLargeItemSize())
+                {
+                    largeIds.add(email.getId());
+                }
+                else
+                {
+                    smallIds.add(email.getId());
+                }
+            }
+        }
+
+        if (!smallIds.isEmpty())
+        {
+            addBodies(getGetItemBodiesRequest(smallIds, config.getBodyFormat()), emails, exchangeService,
+                      targetUser, config.getMaxBodySize());
+        }
+        for (String id : largeIds)
+        {
+            LOG.debug("Getting the {} byte body of item {} on its own.", emails.get(id).getSize(), id);
+            GetItemType request = getGetItemBodiesRequest(Collections.singletonList(id), config.getBodyFormat());
+            try
+            {
+                addBodies(request, emails, exchangeService, targetUser, config.getMaxBodySize());
+            }
+            catch (ServiceCallException e)
+            {
+                skipBody(emails.get(id), e);
+            }
+            catch (HttpErrorException e)
+            {
+                skipBody(emails.get(id), e);
+            }
+        }
+        return items;
+    }
+
+    private static void addBodies(final GetItemType request, final Map<String, ExchangeEmail> emails,
+                                  final ExchangeService exchangeService, final String targetUser,
+                                  final int maxBodyLength)
+            throws ServiceCallException, HttpErrorException
+    {
+        for (MailboxItem item : getItems(request, exchangeService, targetUser, maxBodyLength))
+        {
+            ExchangeEmail bodyOnly = (ExchangeEmail) item;
+            ExchangeEmail email = emails.get(bodyOnly.getId());
+            if (email != null)
+            {
+                email.setBody(bodyOnly);
+            }
+        }
+    }
+
+    private static <E extends Exception> void skipBody(final ExchangeEmail email, final E e) throws E
+    {
+        if (!RetryPolicy.isTransient(e))
+        {
+            throw e;
+        }
+        LOG.warn("Could not get the " + email.getSize() + " byte body of item " + email.getId()
+                 + ", so it will be stored without one.", e);
+        email.markBodyMissing();
+    }
+
+    private static Vector<MailboxItem> getItems(final GetItemType request, final ExchangeService exchangeService,
+                                                final String targetUser)
+            throws ServiceCallException, HttpErrorException
+    {
+        return getItems(request, exchangeService, targetUser, 0);
+    }
+
+    /**
+     * Gets the items a request asks for.  When the response is streamed,
+     * bodies longer than the given length are cut down as they're read,
+     * rather than after the whole body has been built.
+     */
+    private static Vector<MailboxItem> getItems(final GetItemType request, final ExchangeService exchangeService,
+                                                final String targetUser, final int maxBodyLength)
+            throws ServiceCallException, HttpErrorException
+    {
+        LOG.trace("Making request:\n{}", request);
+        if (exchangeService.isStreamingParserEnabled())
+        {
+            try
+            {
+                if (maxBodyLength > 0)
+                {
+                    return exchangeService.getItemStreaming(request, targetUser, maxBodyLength);
+                }
+                return exchangeService.getItemStreaming(request, targetUser);
+            }
+            catch (UnexpectedResponseException e)
+            {
+                LOG.debug("Could not stream the get item response, requesting it again without streaming.", e);
+            }
+        }
+        GetItemResponseType response = exchangeService.getItem(request, targetUser);
 
         if (response == null)
         {
-            LOG.debug("Exchange service returned null get item response for request:\n{}",
-                      getGetItemsRequest(ids.subList(startIndex, max)).toString());
+            LOG.debug("Exchange service returned null get item response for request:\n{}", request);
             throw new ServiceCallException(ServiceCallException.Reason.OTHER, "Null response from Exchange service.");
         }
 
@@ -103,10 +479,18 @@ static Vector<MailboxItem> getItems(final int count, final int startIndex, final
         for (ItemInfoResponseMessageType message : array)
         {
             ResponseCodeType.Enum errorCode = message.getResponseCode();
+            if (errorCode == ResponseCodeType.ERROR_ITEM_NOT_FOUND)
+            {
+                // The item was deleted after it was synced, and its deletion
+                // will come with the next sync.
+                LOG.debug("An item was deleted before it could be fetched, so it was skipped.");
+                continue;
+            }
             if (errorCode != null && errorCode != ResponseCodeType.NO_ERROR)
             {
                 LOG.debug(errorCode.toString());
-                throw new ServiceCallException(errorCode, "SOAP response contained an error.");
+                throw new ServiceCallException(errorCode, "SOAP response contained an error.",
+                                               BackOffHint.fromMessageXml(message.getMessageXml()));
             }
 
             for (MessageType item : message.getItems().getMessageArray())
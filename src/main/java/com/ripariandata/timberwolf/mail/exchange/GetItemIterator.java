@@ -38,14 +38,30 @@ public class GetItemIterator extends BaseChainIterator<MailboxItem>
     private int currentStart;
     private Configuration config;
     private FolderContext folder;
+    private ItemPageSizer pageSizer;
 
     public GetItemIterator(final ExchangeService exchangeService, final Vector<String> messageIds,
                            final Configuration configuration, final FolderContext folderContext)
+    {
+        this(exchangeService, messageIds, configuration, folderContext, new ItemPageSizer(configuration));
+    }
+
+    /**
+     * @param exchangeService The service to get the items with.
+     * @param messageIds The ids of the items to get.
+     * @param configuration The configuration to use.
+     * @param folderContext The folder the items are in.
+     * @param itemPageSizer Picks the size of each page, and is shared by all the user's folders.
+     */
+    public GetItemIterator(final ExchangeService exchangeService, final Vector<String> messageIds,
+                           final Configuration configuration, final FolderContext folderContext,
+                           final ItemPageSizer itemPageSizer)
     {
         service = exchangeService;
         ids = messageIds;
         config = configuration;
         folder = folderContext;
+        pageSizer = itemPageSizer;
         currentStart = 0;
     }
 
@@ -58,10 +74,22 @@ protected Iterator<MailboxItem> createIterator()
         }
         try
         {
-            int pageSize = config.getItemPageSize();
-            Vector<MailboxItem> ret = GetItemHelper.getItems(pageSize, currentStart, ids, service, folder.getUser());
+            Vector<MailboxItem> ret = config.getRetryPolicy().call(ExchangeService.GET_ITEM,
+                new RetryPolicy.Call<Vector<MailboxItem>>()
+                {
+                    @Override
+                    public Vector<MailboxItem> call() throws ServiceCallException, HttpErrorException
+                    {
+                        // Read each attempt, since a failed attempt may have shrunk the page.
+                        int pageSize = pageSizer.getPageSize();
+                        Vector<MailboxItem> items =
+                                pageSizer.getItems(pageSize, currentStart, ids, service, folder.getUser(),
+                                                   folder.isFirstSync());
+                        currentStart += pageSize;
+                        return items;
+                    }
+                });
             LOG.debug("Got {} email ids.", ret.size());
-            currentStart += pageSize;
             return ret.iterator();
         }
         catch (ServiceCallException e)
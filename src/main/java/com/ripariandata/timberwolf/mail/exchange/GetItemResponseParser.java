@@ -0,0 +1,185 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import com.microsoft.schemas.exchange.services.x2006.messages.ResponseCodeType;
+import com.ripariandata.timberwolf.mail.MailboxItem;
+import com.ripariandata.timberwolf.writer.archive.MimeArchive;
+import com.ripariandata.timberwolf.writer.archive.MimeArchiveException;
+import com.ripariandata.timberwolf.writer.archive.MimeArchiveFile;
+
+import java.io.IOException;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streams the emails out of a GetItem response, creating each ExchangeEmail
+ * directly from the XML.
+ * <p/>
+ * Given a MIME archive, the MIME content of the emails is decoded into a new
+ * file of the archive as it's read, and the file is committed once the
+ * whole response has been read.  If the same call is made twice, because
+ * it was hedged, only the first response to be read is kept in the archive.
+ * <p/>
+ * Given a body length, only that much of each body is kept, and the rest of
+ * it is read a piece at a time and dropped, so a large body is never held
+ * in memory whole.
+ */
+class GetItemResponseParser extends StreamingResponseParser<Vector<MailboxItem>>
+{
+    private static final Logger LOG = LoggerFactory.getLogger(GetItemResponseParser.class);
+
+    private final MimeArchive mimeArchive;
+    private final String user;
+    private final int maxBodyLength;
+    private final AtomicBoolean archived = new AtomicBoolean();
+
+    GetItemResponseParser()
+    {
+        super("GetItemResponse");
+        mimeArchive = null;
+        user = null;
+        maxBodyLength = 0;
+    }
+
+    /** @param maxBodyChars The most characters of each body to keep, which must be greater than 0. */
+    GetItemResponseParser(final int maxBodyChars)
+    {
+        super("GetItemResponse", CHUNKED_FACTORY);
+        mimeArchive = null;
+        user = null;
+        maxBodyLength = maxBodyChars;
+    }
+
+    /**
+     * @param archive The archive to put the MIME content of the emails in.
+     * @param targetUser The principal name of the user the emails belong to.
+     */
+    GetItemResponseParser(final MimeArchive archive, final String targetUser)
+    {
+        super("GetItemResponse", CHUNKED_FACTORY);
+        mimeArchive = archive;
+        user = targetUser;
+        maxBodyLength = 0;
+    }
+
+    @Override
+    Vector<MailboxItem> readResponse(final XMLStreamReader reader) throws XMLStreamException, ServiceCallException
+    {
+        if (mimeArchive == null)
+        {
+            return readItems(reader, null, maxBodyLength);
+        }
+        MimeArchiveFile file = mimeArchive.open(user);
+        try
+        {
+            Vector<MailboxItem> items = readItems(reader, file, maxBodyLength);
+            if (archived.compareAndSet(false, true))
+            {
+                file.commit();
+            }
+            return items;
+        }
+        catch (IOException e)
+        {
+            // Only a response that made it into the archive stops the others.
+            archived.set(false);
+            throw MimeArchiveException.log(LOG, new MimeArchiveException("Could not archive the MIME content of "
+                                                                         + file.getMessageCount() + " messages.",
+                                                                         e));
+        }
+        finally
+        {
+            file.abort();
+        }
+    }
+
+    private static Vector<MailboxItem> readItems(final XMLStreamReader reader, final MimeArchiveFile file,
+                                                 final int maxBodyLength)
+            throws XMLStreamException, ServiceCallException
+    {
+        Vector<MailboxItem> items = new Vector<MailboxItem>();
+        while (nextChild(reader))
+        {
+            if (isElement(reader, MESSAGES_NAMESPACE, "ResponseMessages"))
+            {
+                while (nextChild(reader))
+                {
+                    readResponseMessage(reader, items, file, maxBodyLength);
+                }
+            }
+            else
+            {
+                skipElement(reader);
+            }
+        }
+        return items;
+    }
+
+    private static void readResponseMessage(final XMLStreamReader reader, final Vector<MailboxItem> items,
+                                            final MimeArchiveFile file, final int maxBodyLength)
+            throws XMLStreamException, ServiceCallException
+    {
+        while (nextChild(reader))
+        {
+            if (isElement(reader, MESSAGES_NAMESPACE, "ResponseCode"))
+            {
+                try
+                {
+                    checkResponseCode(reader);
+                }
+                catch (ServiceCallException e)
+                {
+                    if (e.getSoapError() != ResponseCodeType.ERROR_ITEM_NOT_FOUND)
+                    {
+                        throw e;
+                    }
+                    // The item was deleted after it was synced, and its
+                    // deletion will come with the next sync.  The rest of
+                    // the response message has already been read.
+                    LOG.debug("An item was deleted before it could be fetched, so it was skipped.");
+                    return;
+                }
+            }
+            else if (isElement(reader, MESSAGES_NAMESPACE, "Items"))
+            {
+                while (nextChild(reader))
+                {
+                    if (isElement(reader, TYPES_NAMESPACE, "Message"))
+                    {
+                        items.add(new ExchangeEmail(reader, file, maxBodyLength));
+                    }
+                    else
+                    {
+                        skipElement(reader);
+                    }
+                }
+            }
+            else
+            {
+                skipElement(reader);
+            }
+        }
+    }
+}
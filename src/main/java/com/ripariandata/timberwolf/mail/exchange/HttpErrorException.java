@@ -17,6 +17,8 @@
  */
 package com.ripariandata.timberwolf.mail.exchange;
 
+import com.microsoft.schemas.exchange.services.x2006.messages.ResponseCodeType;
+
 /**
  * Exception that gets thrown when an HTTP request returns
  * an error (non-200) response.
@@ -24,6 +26,8 @@
 public class HttpErrorException extends Exception
 {
     private int errorCode;
+    private ResponseCodeType.Enum soapErrorClass;
+    private long backOffMillis;
 
     public HttpErrorException(final int error)
     {
@@ -31,8 +35,37 @@ public HttpErrorException(final int error)
         errorCode = error;
     }
 
+    /**
+     * @param error The HTTP status code.
+     * @param soapError The response code from the SOAP fault in the body, or null if there wasn't one.
+     * @param backOff The number of milliseconds the server asked us to wait
+     * before trying again, or zero if it didn't say.
+     */
+    public HttpErrorException(final int error, final ResponseCodeType.Enum soapError, final long backOff)
+    {
+        this(error);
+        soapErrorClass = soapError;
+        backOffMillis = backOff;
+    }
+
     public int getErrorCode()
     {
         return errorCode;
     }
+
+    /** Gets the Exchange response code from the SOAP fault that came with the error, or null if there wasn't one. */
+    public ResponseCodeType.Enum getSoapError()
+    {
+        return soapErrorClass;
+    }
+
+    /**
+     * Gets the number of milliseconds the server asked us to wait before
+     * trying again, from a Retry-After header or the SOAP fault, or zero if
+     * it didn't say.
+     */
+    public long getBackOffMillis()
+    {
+        return backOffMillis;
+    }
 }
@@ -24,7 +24,13 @@
 {
     /**
      * Constructs a new HttpURLConnection that will make a request to the
-     * specified url with the specified request as a payload.
+     * specified url, with the specified request written as its payload.
      */
-    HttpURLConnection newInstance(String address, byte[] request) throws ServiceCallException;
+    HttpURLConnection newInstance(String address, RequestBody request) throws ServiceCallException;
+
+    /**
+     * Hands back a connection returned by newInstance once its response has
+     * been read, so that the underlying socket can be reused or closed.
+     */
+    void release(HttpURLConnection connection);
 }
@@ -0,0 +1,171 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import com.ripariandata.timberwolf.mail.MailboxItem;
+
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Picks how many items to ask for in each GetItem request for one user.
+ * <p/>
+ * A fixed page size is too small for a mailbox of short notifications and
+ * too big for one full of large HTML mail, where a page can run past the
+ * read timeout.  After each page, this works out how many items like the
+ * ones just fetched would fit in the configured response size and response
+ * time, and moves the page size there, growing by at most double each
+ * time.  A page that fails for a reason that might go away, such as a
+ * timeout, halves the size before it's tried again.  The size always stays
+ * within the configuration's bounds.
+ */
+public class ItemPageSizer
+{
+    private static final Logger LOG = LoggerFactory.getLogger(ItemPageSizer.class);
+    private static final int GROWTH = 2;
+
+    private final int minPageSize;
+    private final int maxPageSize;
+    private final long targetBytes;
+    private final long targetMillis;
+    private final Configuration configuration;
+    private final Configuration getItemConfiguration;
+    private int pageSize;
+
+    /** @param config The configuration with the starting page size, its bounds and the targets. */
+    public ItemPageSizer(final Configuration config)
+    {
+        minPageSize = config.getMinItemPageSize();
+        maxPageSize = config.getMaxItemPageSize();
+        targetBytes = config.getTargetItemPageBytes();
+        targetMillis = config.getTargetItemPageMillis();
+        configuration = config;
+        getItemConfiguration = config.getExportStore() == null ? config : config.withExportStore(null);
+        pageSize = clamp(config.getItemPageSize());
+    }
+
+    /** The number of items to ask for in the next GetItem request. */
+    public synchronized int getPageSize()
+    {
+        return pageSize;
+    }
+
+    /**
+     * Gets a page of items, the way GetItemHelper.getItems does with the
+     * configuration, and adjusts the page size by how the request went.
+     * The items are only exported into the configuration's export store if
+     * they're from a folder that's being synced for the first time; items
+     * from a folder that has been synced before are fetched with GetItem.
+     *
+     * @param count The number of items to get, which should be the current page size.
+     * @param startIndex The index in ids of the first item to get.
+     * @param ids A list of ids to get.
+     * @param exchangeService The backend service used for contacting Exchange.
+     * @param targetUser The user to impersonate for the Exchange GetItem request.
+     * @param firstSync Whether the items are from a folder that had never been synced before.
+     * @return A list of mailbox items that correspond to the given ids.
+     * @throws HttpErrorException If the HTTP response from Exchange has a non-200 status code.
+     * @throws ServiceCallException If there was a non-HTTP error making the Exchange request.
+     */
+    Vector<MailboxItem> getItems(final int count, final int startIndex, final Vector<String> ids,
+                                 final ExchangeService exchangeService, final String targetUser,
+                                 final boolean firstSync)
+            throws ServiceCallException, HttpErrorException
+    {
+        TransferStatistics statistics = exchangeService.getTransferStatistics();
+        Configuration pageConfiguration = firstSync ? configuration : getItemConfiguration;
+        String callType = pageConfiguration.getExportStore() == null ? ExchangeService.GET_ITEM
+                          : ExchangeService.EXPORT_ITEMS;
+        long bytesBefore = statistics == null ? 0 : statistics.getUncompressedBytes(callType);
+        long start = System.nanoTime();
+        try
+        {
+            Vector<MailboxItem> items = GetItemHelper.getItems(count, startIndex, ids, exchangeService, targetUser,
+                                                               pageConfiguration);
+            long bytes = statistics == null ? 0
+                         : statistics.getUncompressedBytes(callType) - bytesBefore;
+            recordSuccess(Math.min(count, ids.size() - startIndex), bytes,
+                          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            return items;
+        }
+        catch (ServiceCallException e)
+        {
+            recordFailure(e);
+            throw e;
+        }
+        catch (HttpErrorException e)
+        {
+            recordFailure(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Moves the page size towards the number of items that would fit in the
+     * target response size and time, if they're like the ones in this page.
+     *
+     * @param requested The number of items that were asked for.
+     * @param bytes The size of the response, or zero if it isn't known.
+     * @param millis How long the request took.
+     */
+    synchronized void recordSuccess(final int requested, final long bytes, final long millis)
+    {
+        if (requested <= 0)
+        {
+            return;
+        }
+        double fits = maxPageSize;
+        if (bytes > 0 && targetBytes > 0)
+        {
+            fits = Math.min(fits, (double) targetBytes * requested / bytes);
+        }
+        if (millis > 0 && targetMillis > 0)
+        {
+            fits = Math.min(fits, (double) targetMillis * requested / millis);
+        }
+        resize((int) Math.min(fits, (long) pageSize * GROWTH), bytes, millis);
+    }
+
+    /** Halves the page size if the request might work when smaller. */
+    synchronized void recordFailure(final Exception e)
+    {
+        if (RetryPolicy.isTransient(e))
+        {
+            resize(pageSize / GROWTH, 0, 0);
+        }
+    }
+
+    private void resize(final int size, final long bytes, final long millis)
+    {
+        int next = clamp(size);
+        if (next != pageSize)
+        {
+            LOG.debug("Changing the GetItem page size from {} to {} items, after a {} byte page that took {} ms.",
+                      new Object[] {pageSize, next, bytes, millis});
+            pageSize = next;
+        }
+    }
+
+    private int clamp(final int size)
+    {
+        return Math.max(minPageSize, Math.min(maxPageSize, size));
+    }
+}
@@ -0,0 +1,353 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps slow calls to Exchange from holding up the rest of a run.
+ * <p/>
+ * Each type of call has a deadline for the whole call, from sending the
+ * request to parsing the last of the response.  A call that's still going
+ * when its deadline passes has its connection closed, and fails as though
+ * it had timed out, so the retry policy can try it again.
+ * <p/>
+ * GetItem and SyncFolderHierarchy calls, and only those, can also be
+ * hedged: once such a call has taken longer than 95% of recent calls of
+ * its type, the same request is sent again, on another connection or to
+ * another endpoint, and whichever answers first is used.  SyncFolderItems
+ * isn't hedged because it moves the folder's sync state on, and
+ * ExportItems isn't because it streams each item into the export store as
+ * it's read.  The slower
+ * one is abandoned and its connection closed, so it doesn't hold on to a
+ * connection or an endpoint slot.  Hedges come out of a budget, a
+ * percentage of the calls that could be hedged, so a server that's slow
+ * for everyone doesn't get twice the load.
+ * <p/>
+ * Like the retry policy, one policy is shared by the whole run, and it
+ * keeps running totals of its deadlines and hedges.
+ */
+public class LatencyPolicy
+{
+    /** The default number of milliseconds a GetItem or ExportItems call may take, which fetch whole messages. */
+    public static final int DEFAULT_GET_ITEM_DEADLINE = 120000;
+    /** The default number of milliseconds the other calls may take. */
+    public static final int DEFAULT_DEADLINE = 60000;
+    /** By default, calls aren't hedged. */
+    public static final int DEFAULT_HEDGE_BUDGET = 0;
+
+    private static final Logger LOG = LoggerFactory.getLogger(LatencyPolicy.class);
+
+    /** The number of recent latencies the hedging delay is worked out from. */
+    private static final int WINDOW = 200;
+    /** Calls aren't hedged until there are enough latencies to know what's slow. */
+    private static final int MIN_SAMPLES = 20;
+    private static final double HEDGE_PERCENTILE = 0.95;
+    /** Calls are never hedged sooner than this, however quick the others have been. */
+    private static final long MIN_HEDGE_DELAY = 50;
+    private static final int PERCENT = 100;
+
+    private final Map<String, Integer> deadlines = new HashMap<String, Integer>();
+    private final int hedgeBudget;
+    private final ConcurrentMap<String, Totals> totals = new ConcurrentHashMap<String, Totals>();
+    private ScheduledExecutorService timer;
+    private ExecutorService workers;
+
+    /**
+     * @param syncFolderItemsDeadline The most milliseconds a SyncFolderItems call may take.
+     * @param getItemDeadline The most milliseconds a GetItem or ExportItems call may take.
+     * @param folderHierarchyDeadline The most milliseconds a SyncFolderHierarchy call may take.
+     * @param hedgeBudgetPercent The percentage of GetItem and SyncFolderHierarchy
+     * calls that may be hedged.  Zero turns hedging off.
+     */
+    public LatencyPolicy(final int syncFolderItemsDeadline, final int getItemDeadline,
+                         final int folderHierarchyDeadline, final int hedgeBudgetPercent)
+    {
+        deadlines.put(ExchangeService.SYNC_FOLDER_ITEMS, Math.max(syncFolderItemsDeadline, 0));
+        deadlines.put(ExchangeService.GET_ITEM, Math.max(getItemDeadline, 0));
+        deadlines.put(ExchangeService.EXPORT_ITEMS, Math.max(getItemDeadline, 0));
+        deadlines.put(ExchangeService.SYNC_FOLDER_HIERARCHY, Math.max(folderHierarchyDeadline, 0));
+        hedgeBudget = Math.max(hedgeBudgetPercent, 0);
+    }
+
+    /** Creates a policy with the default deadlines, that doesn't hedge. */
+    public LatencyPolicy()
+    {
+        this(DEFAULT_DEADLINE, DEFAULT_GET_ITEM_DEADLINE, DEFAULT_DEADLINE, DEFAULT_HEDGE_BUDGET);
+    }
+
+    /** Creates a policy that lets calls take as long as they take. */
+    public static LatencyPolicy none()
+    {
+        return new LatencyPolicy(0, 0, 0, 0);
+    }
+
+    /** The most milliseconds the given type of call may take, or zero if there's no limit. */
+    public int getDeadline(final String callType)
+    {
+        Integer deadline = deadlines.get(callType);
+        return deadline == null ? 0 : deadline;
+    }
+
+    public int getHedgeBudget()
+    {
+        return hedgeBudget;
+    }
+
+    /**
+     * Closes the given connection if the call using it is still going when
+     * its deadline passes.
+     *
+     * @return The deadline, which must be cancelled once the call is over.
+     */
+    Deadline startDeadline(final String callType, final HttpURLConnection connection)
+    {
+        int millis = getDeadline(callType);
+        Deadline deadline = new Deadline(callType, millis);
+        if (millis > 0)
+        {
+            deadline.timeout = getTimer().schedule(deadline.new Expiry(connection), millis, TimeUnit.MILLISECONDS);
+        }
+        return deadline;
+    }
+
+    /** Records how long a successful call took. */
+    void record(final String callType, final long latencyMillis)
+    {
+        getTotals(callType).record(latencyMillis);
+    }
+
+    /** Whether calls of the given type can be hedged, which only GetItem and SyncFolderHierarchy calls can. */
+    static boolean isHedgeable(final String callType)
+    {
+        return ExchangeService.GET_ITEM.equals(callType) || ExchangeService.SYNC_FOLDER_HIERARCHY.equals(callType);
+    }
+
+    /**
+     * How long to wait for a GetItem or SyncFolderHierarchy call before
+     * hedging it, which is how long 95% of recent calls of its type have
+     * taken.
+     *
+     * @return The delay in milliseconds, or -1 if the call shouldn't be hedged.
+     */
+    long getHedgeDelay(final String callType)
+    {
+        if (hedgeBudget == 0 || !isHedgeable(callType))
+        {
+            return -1;
+        }
+        Totals callTotals = getTotals(callType);
+        callTotals.hedgeable.incrementAndGet();
+        long delay = callTotals.percentile(HEDGE_PERCENTILE);
+        return delay < 0 ? -1 : Math.max(delay, MIN_HEDGE_DELAY);
+    }
+
+    /** Takes a hedge from the budget, if there's one left. */
+    boolean takeHedge(final String callType)
+    {
+        Totals callTotals = getTotals(callType);
+        while (true)
+        {
+            long taken = callTotals.hedges.get();
+            if (taken >= callTotals.hedgeable.get() * hedgeBudget / PERCENT)
+            {
+                return false;
+            }
+            if (callTotals.hedges.compareAndSet(taken, taken + 1))
+            {
+                return true;
+            }
+        }
+    }
+
+    /** Records that the hedge answered before the call it was hedging. */
+    void recordHedgeWin(final String callType)
+    {
+        getTotals(callType).hedgeWins.incrementAndGet();
+    }
+
+    /**
+     * The threads hedged calls run on.  They're made as they're needed, by
+     * the calls themselves, so they run as the same logged in subject.
+     */
+    synchronized ExecutorService getWorkers()
+    {
+        if (workers == null)
+        {
+            workers = Executors.newCachedThreadPool(new DaemonThreadFactory("exchange-call-"));
+        }
+        return workers;
+    }
+
+    private synchronized ScheduledExecutorService getTimer()
+    {
+        if (timer == null)
+        {
+            timer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("exchange-deadline-"));
+        }
+        return timer;
+    }
+
+    private Totals getTotals(final String callType)
+    {
+        Totals callTotals = totals.get(callType);
+        if (callTotals == null)
+        {
+            totals.putIfAbsent(callType, new Totals());
+            callTotals = totals.get(callType);
+        }
+        return callTotals;
+    }
+
+    /** The number of calls of the given type that ran past their deadline. */
+    public long getExpired(final String callType)
+    {
+        Totals callTotals = totals.get(callType);
+        return callTotals == null ? 0 : callTotals.expired.get();
+    }
+
+    /** The number of calls of the given type that were hedged. */
+    public long getHedges(final String callType)
+    {
+        Totals callTotals = totals.get(callType);
+        return callTotals == null ? 0 : callTotals.hedges.get();
+    }
+
+    /** The number of hedged calls of the given type where the hedge answered first. */
+    public long getHedgeWins(final String callType)
+    {
+        Totals callTotals = totals.get(callType);
+        return callTotals == null ? 0 : callTotals.hedgeWins.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        Map<String, String> summary = new TreeMap<String, String>();
+        for (Map.Entry<String, Totals> entry : totals.entrySet())
+        {
+            Totals callTotals = entry.getValue();
+            summary.put(entry.getKey(), String.format("%d past deadline, %d hedged, %d hedges answered first, "
+                                                      + "%d ms 95th percentile", callTotals.expired.get(),
+                                                      callTotals.hedges.get(), callTotals.hedgeWins.get(),
+                                                      callTotals.percentile(HEDGE_PERCENTILE)));
+        }
+        return summary.toString();
+    }
+
+    /** The deadline of one call. */
+    final class Deadline
+    {
+        private final String callType;
+        private final int millis;
+        private volatile boolean expired;
+        private ScheduledFuture<?> timeout;
+
+        private Deadline(final String type, final int deadlineMillis)
+        {
+            callType = type;
+            millis = deadlineMillis;
+        }
+
+        /** Whether the deadline passed before the call was over. */
+        boolean isExpired()
+        {
+            return expired;
+        }
+
+        int getMillis()
+        {
+            return millis;
+        }
+
+        /** Stops the deadline, once the call is over. */
+        void cancel()
+        {
+            if (timeout != null)
+            {
+                timeout.cancel(false);
+            }
+        }
+
+        /** Closes the connection of a call that has run past its deadline. */
+        private final class Expiry implements Runnable
+        {
+            private final HttpURLConnection connection;
+
+            private Expiry(final HttpURLConnection conn)
+            {
+                connection = conn;
+            }
+
+            @Override
+            public void run()
+            {
+                expired = true;
+                getTotals(callType).expired.incrementAndGet();
+                LOG.warn("{} call took longer than its deadline of {} ms, closing its connection.", callType,
+                         millis);
+                connection.disconnect();
+            }
+        }
+    }
+
+    /** The running totals for one type of call, and its recent latencies. */
+    private static final class Totals
+    {
+        private final AtomicLong expired = new AtomicLong();
+        private final AtomicLong hedgeable = new AtomicLong();
+        private final AtomicLong hedges = new AtomicLong();
+        private final AtomicLong hedgeWins = new AtomicLong();
+        private final long[] latencies = new long[WINDOW];
+        private int samples;
+
+        private synchronized void record(final long latencyMillis)
+        {
+            latencies[samples % WINDOW] = latencyMillis;
+            samples++;
+        }
+
+        /** The given percentile of the recent latencies, or -1 if there aren't enough of them. */
+        private synchronized long percentile(final double fraction)
+        {
+            int count = Math.min(samples, WINDOW);
+            if (count < MIN_SAMPLES)
+            {
+                return -1;
+            }
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            return sorted[(int) Math.ceil(fraction * count) - 1];
+        }
+    }
+}
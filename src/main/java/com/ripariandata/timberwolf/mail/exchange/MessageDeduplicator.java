@@ -0,0 +1,216 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import com.ripariandata.timberwolf.mail.MailboxItem;
+import com.ripariandata.timberwolf.writer.SeenMessageIndex;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps a message that was delivered to many mailboxes from being fetched
+ * in full from every one of them.
+ * <p/>
+ * As each folder is synced, every new item's Internet message id and size
+ * are looked up in a SeenMessageIndex.  The first copy of a message that
+ * isn't in the index yet is claimed, but only here in memory, and fetched
+ * as usual.  Once its page has been fetched and handed out, the claim is
+ * written to the index.  If the first copy never arrives, because it was
+ * deleted or its page failed, the claim is dropped and the next copy is
+ * fetched in full instead.
+ * <p/>
+ * Every later copy is noted here, and when its page is fetched it's left
+ * out of the GetItem request and handed out as a reference to the first
+ * copy, as long as the first copy is in the index by then.
+ */
+public class MessageDeduplicator
+{
+    private final SeenMessageIndex index;
+    /** The message key of each synced item that hasn't been fetched or handed out yet. */
+    private final Map<String, String> keys = new HashMap<String, String>();
+    /** The synced items that are later copies of another item's message. */
+    private final Set<String> copies = new HashSet<String>();
+    /** The item claiming to be the first copy of each message, until its page is fetched. */
+    private final Map<String, String> claims = new HashMap<String, String>();
+    /** The first copy of each message that is known to be in the index. */
+    private final Map<String, String> stored = new HashMap<String, String>();
+    private long copiesFound;
+
+    /** @param seenMessages The index of the messages that have been stored in full. */
+    public MessageDeduplicator(final SeenMessageIndex seenMessages)
+    {
+        index = seenMessages;
+    }
+
+    /**
+     * Makes the key that copies of the same message share.
+     *
+     * @return The key, or null if the message can't be recognized in other
+     * mailboxes.
+     */
+    static String getMessageKey(final String internetMessageId, final long size)
+    {
+        if (internetMessageId == null || size < 0)
+        {
+            return null;
+        }
+        return internetMessageId + " " + size;
+    }
+
+    private String getStoredCopy(final String messageKey)
+    {
+        String firstCopy = stored.get(messageKey);
+        if (firstCopy == null)
+        {
+            firstCopy = index.getFirstCopy(messageKey);
+            if (firstCopy != null)
+            {
+                stored.put(messageKey, firstCopy);
+            }
+        }
+        return firstCopy;
+    }
+
+    /**
+     * Records a newly synced item, claiming it as the first copy of its
+     * message if no other copy has been seen.
+     *
+     * @param itemId The Exchange id of the item.
+     * @param messageKey The key of the item's message, or null if it has none.
+     */
+    synchronized void recordSynced(final String itemId, final String messageKey)
+    {
+        if (messageKey == null)
+        {
+            return;
+        }
+        String firstCopy = getStoredCopy(messageKey);
+        if (firstCopy == null)
+        {
+            firstCopy = claims.get(messageKey);
+            if (firstCopy == null)
+            {
+                claims.put(messageKey, itemId);
+                firstCopy = itemId;
+            }
+        }
+        if (!firstCopy.equals(itemId))
+        {
+            copiesFound++;
+            copies.add(itemId);
+        }
+        keys.put(itemId, messageKey);
+    }
+
+    /**
+     * Finds the first copy of the given item's message, if the item is a
+     * later copy that doesn't need to be fetched.
+     *
+     * @param itemId The Exchange id of the item.
+     * @return The id of the first copy, or null if the item needs to be
+     * fetched, either because it's the first copy or because the first copy
+     * hasn't been stored yet.
+     */
+    synchronized String getFirstCopy(final String itemId)
+    {
+        if (!copies.contains(itemId))
+        {
+            return null;
+        }
+        return getStoredCopy(keys.get(itemId));
+    }
+
+    /**
+     * Records that a page of items was fetched and is being handed out.
+     * The first copies in it are written to the index, and the claims of
+     * those that weren't returned, because they were deleted, are dropped.
+     *
+     * @param requested The ids of the items that were asked for.
+     * @param items The items that came back.
+     */
+    synchronized void fetched(final Collection<String> requested, final Collection<MailboxItem> items)
+    {
+        Set<String> returned = new HashSet<String>();
+        for (MailboxItem item : items)
+        {
+            if (item instanceof ExchangeEmail && ((ExchangeEmail) item).getId() != null)
+            {
+                returned.add(((ExchangeEmail) item).getId());
+            }
+        }
+        for (String id : requested)
+        {
+            String messageKey = keys.remove(id);
+            copies.remove(id);
+            if (messageKey == null)
+            {
+                continue;
+            }
+            if (returned.contains(id))
+            {
+                // Another run may have stored a copy of its own since.
+                stored.put(messageKey, index.claimFirstCopy(messageKey, id));
+            }
+            if (id.equals(claims.get(messageKey)))
+            {
+                claims.remove(messageKey);
+            }
+        }
+    }
+
+    /**
+     * Drops the claims of the items in a page that couldn't be fetched, so
+     * that the next copy of each of their messages is fetched in full.
+     *
+     * @param requested The ids of the items that were asked for.
+     */
+    synchronized void failed(final Collection<String> requested)
+    {
+        for (String id : requested)
+        {
+            String messageKey = keys.get(id);
+            if (messageKey != null && id.equals(claims.get(messageKey)))
+            {
+                claims.remove(messageKey);
+            }
+        }
+    }
+
+    /** Forgets a later copy once the reference to its first copy has been handed out. */
+    synchronized void handedOut(final String itemId)
+    {
+        copies.remove(itemId);
+        keys.remove(itemId);
+    }
+
+    /** The number of synced items that were later copies of an earlier message. */
+    public synchronized long getCopiesFound()
+    {
+        return copiesFound;
+    }
+
+    @Override
+    public String toString()
+    {
+        return getCopiesFound() + " later copies of earlier messages were found";
+    }
+}
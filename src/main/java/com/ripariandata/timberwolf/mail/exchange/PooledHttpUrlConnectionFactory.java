@@ -0,0 +1,571 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A SaslHttpUrlConnectionFactory that keeps connections to each server alive
+ * between requests.
+ * <p/>
+ * The sockets themselves are held by the JDK's keep-alive cache; this class
+ * makes sure responses are fully drained so that sockets are eligible for
+ * that cache, limits the number of simultaneous connections to any one
+ * server, and gives every HTTPS connection the same TLS socket factory, so
+ * that both the socket and the TLS session can be reused.
+ * <p/>
+ * That socket factory sees every TLS socket the JDK opens, so for HTTPS
+ * servers the counts of requests and of sockets opened show how many
+ * requests really went out on a kept-alive socket.  The same sockets are
+ * closed once their server has had no requests for longer than the idle
+ * timeout, rather than risk sending on one the server has already dropped.
+ * The authenticated session is told when a request that was expected to
+ * reuse a socket opened a new one instead.  Plain HTTP gives no such hook,
+ * so those connections are kept alive the same way, but aren't counted or
+ * closed early.
+ * <p/>
+ * How many idle sockets the JDK keeps for each server is the process-wide
+ * http.maxConnections system property, which only takes effect if it's set
+ * before the first connection is made.  App sets it at startup.
+ */
+class PooledHttpUrlConnectionFactory extends SaslHttpUrlConnectionFactory
+{
+    private static final Logger LOG = LoggerFactory.getLogger(PooledHttpUrlConnectionFactory.class);
+
+    private static final String SECURE_PROTOCOL = "https";
+    private static final int DRAIN_BUFFER_SIZE = 4096;
+    private static final long STATISTICS_LOG_INTERVAL = 10000;
+
+    private final int maxConnections;
+    private final long idleTimeout;
+    private final TrackingSslSocketFactory sslSocketFactory;
+    private final ConcurrentMap<String, Endpoint> endpoints = new ConcurrentHashMap<String, Endpoint>();
+    private final Map<HttpURLConnection, Lease> leased =
+            Collections.synchronizedMap(new IdentityHashMap<HttpURLConnection, Lease>());
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxConnectionsPerEndpoint The most connections that will be open
+     * to a single server at once.  Must be greater than or equal to 1.
+     * @param idleConnectionTimeout The number of milliseconds a server can go
+     * without requests before its idle HTTPS connections are closed.
+     */
+    PooledHttpUrlConnectionFactory(final int maxConnectionsPerEndpoint, final long idleConnectionTimeout)
+    {
+        this(maxConnectionsPerEndpoint, idleConnectionTimeout, 0);
+    }
+
+    /**
+     * @param maxConnectionsPerEndpoint The most connections that will be open
+     * to a single server at once.  Must be greater than or equal to 1.
+     * @param idleConnectionTimeout The number of milliseconds a server can go
+     * without requests before its idle HTTPS connections are closed.
+     * @param requestCompressionThreshold Requests of at least this many bytes
+     * are sent gzipped.  Zero or less means requests are never compressed.
+     */
+    PooledHttpUrlConnectionFactory(final int maxConnectionsPerEndpoint, final long idleConnectionTimeout,
+                                   final int requestCompressionThreshold)
+    {
+        this(maxConnectionsPerEndpoint, idleConnectionTimeout, requestCompressionThreshold, new AuthSession());
+    }
+
+    /**
+     * @param maxConnectionsPerEndpoint The most connections that will be open
+     * to a single server at once.  Must be greater than or equal to 1.
+     * @param idleConnectionTimeout The number of milliseconds a server can go
+     * without requests before its idle HTTPS connections are closed.
+     * @param requestCompressionThreshold Requests of at least this many bytes
+     * are sent gzipped.  Zero or less means requests are never compressed.
+     * @param session The authenticated session that requests reuse.  Requests
+     * that get an idle connection don't authenticate again.
+     */
+    PooledHttpUrlConnectionFactory(final int maxConnectionsPerEndpoint, final long idleConnectionTimeout,
+                                   final int requestCompressionThreshold, final AuthSession session)
+    {
+        this(maxConnectionsPerEndpoint, idleConnectionTimeout, requestCompressionThreshold, session,
+             Configuration.DEFAULT_CONNECT_TIMEOUT, Configuration.DEFAULT_READ_TIMEOUT);
+    }
+
+    /**
+     * @param maxConnectionsPerEndpoint The most connections that will be open
+     * to a single server at once.  Must be greater than or equal to 1.
+     * @param idleConnectionTimeout The number of milliseconds a server can go
+     * without requests before its idle HTTPS connections are closed.
+     * @param requestCompressionThreshold Requests of at least this many bytes
+     * are sent gzipped.  Zero or less means requests are never compressed.
+     * @param session The authenticated session that requests reuse.  Requests
+     * that get an idle connection don't authenticate again.
+     * @param connectTimeoutMillis The most milliseconds to wait for a connection to open.
+     * @param readTimeoutMillis The most milliseconds to wait for any part of a response.
+     */
+    PooledHttpUrlConnectionFactory(final int maxConnectionsPerEndpoint, final long idleConnectionTimeout,
+                                   final int requestCompressionThreshold, final AuthSession session,
+                                   final int connectTimeoutMillis, final int readTimeoutMillis)
+    {
+        this(maxConnectionsPerEndpoint, idleConnectionTimeout, requestCompressionThreshold, session,
+             connectTimeoutMillis, readTimeoutMillis, HttpsURLConnection.getDefaultSSLSocketFactory());
+    }
+
+    /**
+     * @param maxConnectionsPerEndpoint The most connections that will be open
+     * to a single server at once.  Must be greater than or equal to 1.
+     * @param idleConnectionTimeout The number of milliseconds a server can go
+     * without requests before its idle HTTPS connections are closed.
+     * @param requestCompressionThreshold Requests of at least this many bytes
+     * are sent gzipped.  Zero or less means requests are never compressed.
+     * @param session The authenticated session that requests reuse.  Requests
+     * that get an idle connection don't authenticate again.
+     * @param connectTimeoutMillis The most milliseconds to wait for a connection to open.
+     * @param readTimeoutMillis The most milliseconds to wait for any part of a response.
+     * @param socketFactory The factory that makes the TLS sockets for HTTPS connections.
+     */
+    PooledHttpUrlConnectionFactory(final int maxConnectionsPerEndpoint, final long idleConnectionTimeout,
+                                   final int requestCompressionThreshold, final AuthSession session,
+                                   final int connectTimeoutMillis, final int readTimeoutMillis,
+                                   final SSLSocketFactory socketFactory)
+    {
+        super(requestCompressionThreshold, session, connectTimeoutMillis, readTimeoutMillis);
+        maxConnections = Math.max(maxConnectionsPerEndpoint, 1);
+        idleTimeout = idleConnectionTimeout;
+        sslSocketFactory = new TrackingSslSocketFactory(socketFactory);
+    }
+
+    @Override
+    public HttpURLConnection newInstance(final String address, final RequestBody request)
+            throws ServiceCallException
+    {
+        Endpoint endpoint = getEndpoint(address);
+        try
+        {
+            endpoint.permits.acquire();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw ServiceCallException.log(LOG, new ServiceCallException(ServiceCallException.Reason.OTHER,
+                    "Interrupted while waiting for a connection to " + address, e));
+        }
+
+        boolean reused = endpoint.lease(System.currentTimeMillis());
+        if (endpoint.secure)
+        {
+            logStatisticsPeriodically(requests.incrementAndGet());
+        }
+
+        long opened = sslSocketFactory.getOpenedByThisThread();
+        try
+        {
+            HttpURLConnection connection = super.newInstance(address, request, reused);
+            leased.put(connection, new Lease(endpoint, opened));
+            return connection;
+        }
+        catch (ServiceCallException e)
+        {
+            endpoint.release(System.currentTimeMillis());
+            throw e;
+        }
+    }
+
+    @Override
+    protected HttpURLConnection openConnection(final URL url) throws IOException
+    {
+        HttpURLConnection connection = super.openConnection(url);
+        if (connection instanceof HttpsURLConnection)
+        {
+            // Keep-alive sockets are only reused by connections with the same
+            // socket factory, and the factory's context holds the TLS sessions.
+            ((HttpsURLConnection) connection).setSSLSocketFactory(sslSocketFactory);
+        }
+        return connection;
+    }
+
+    @Override
+    public void release(final HttpURLConnection connection)
+    {
+        Lease lease = leased.remove(connection);
+        getAuthSession().update(connection, lease != null && lease.openedSocket());
+        if (!drain(connection))
+        {
+            connection.disconnect();
+        }
+        if (lease == null)
+        {
+            LOG.debug("Released a connection that did not come from this pool.");
+            return;
+        }
+        lease.endpoint.release(System.currentTimeMillis());
+    }
+
+    /**
+     * Reads whatever is left of the response and closes it, which is what
+     * allows the JDK to put the socket back in its keep-alive cache.
+     *
+     * @return True if the response was read to the end, false if the socket
+     * can't be reused.
+     */
+    private static boolean drain(final HttpURLConnection connection)
+    {
+        InputStream response = getResponseStream(connection);
+        if (response == null)
+        {
+            return false;
+        }
+        try
+        {
+            byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+            int read = response.read(buffer);
+            while (read >= 0)
+            {
+                read = response.read(buffer);
+            }
+            response.close();
+            return true;
+        }
+        catch (IOException e)
+        {
+            LOG.debug("Could not drain the response stream, the connection will be closed.", e);
+            return false;
+        }
+    }
+
+    /** Gets the bookkeeping for the server the address is on, which is shared by all its paths. */
+    private Endpoint getEndpoint(final String address) throws ServiceCallException
+    {
+        URL url;
+        try
+        {
+            url = new URL(address);
+        }
+        catch (MalformedURLException e)
+        {
+            throw ServiceCallException.log(LOG, new ServiceCallException(ServiceCallException.Reason.OTHER,
+                    "Improperly formed URL " + address, e));
+        }
+        int port = url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+        String key = url.getProtocol() + "://" + url.getHost().toLowerCase() + ":" + port;
+        Endpoint endpoint = endpoints.get(key);
+        if (endpoint == null)
+        {
+            endpoints.putIfAbsent(key, new Endpoint(url.getHost(), port,
+                                                    SECURE_PROTOCOL.equalsIgnoreCase(url.getProtocol())));
+            endpoint = endpoints.get(key);
+        }
+        return endpoint;
+    }
+
+    private void logStatisticsPeriodically(final long count)
+    {
+        if (count % STATISTICS_LOG_INTERVAL == 0)
+        {
+            LOG.info("Connection pool after {} requests: {}", count, this);
+        }
+    }
+
+    /** Returns the number of requests sent to HTTPS servers, whose sockets are counted. */
+    long getRequests()
+    {
+        return requests.get();
+    }
+
+    /** Returns the number of TLS sockets the JDK opened for this pool's requests. */
+    long getConnectionsOpened()
+    {
+        return sslSocketFactory.opened.get();
+    }
+
+    /** Returns the number of requests to HTTPS servers that went out on a kept-alive socket. */
+    long getConnectionsReused()
+    {
+        return Math.max(requests.get() - sslSocketFactory.opened.get(), 0);
+    }
+
+    /** Returns the number of idle TLS sockets that were closed for going unused past the idle timeout. */
+    long getEvictions()
+    {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%d connections opened, %d reused, %d closed while idle", getConnectionsOpened(),
+                             getConnectionsReused(), evictions.get());
+    }
+
+    /** A request that has been sent through the pool and not yet released. */
+    private final class Lease
+    {
+        private final Endpoint endpoint;
+        private final Thread thread = Thread.currentThread();
+        private final long openedBefore;
+
+        /**
+         * @param leasedEndpoint The server the request went to.
+         * @param socketsOpened The number of TLS sockets the sending thread
+         * had opened before the request.
+         */
+        private Lease(final Endpoint leasedEndpoint, final long socketsOpened)
+        {
+            endpoint = leasedEndpoint;
+            openedBefore = socketsOpened;
+        }
+
+        /**
+         * Whether the JDK is known to have opened a socket for the request.
+         * The JDK connects on the thread that sends the request and reads
+         * its response, so this is only known when that same thread is
+         * releasing it.
+         */
+        private boolean openedSocket()
+        {
+            return endpoint.secure && thread == Thread.currentThread()
+                   && sslSocketFactory.getOpenedByThisThread() > openedBefore;
+        }
+    }
+
+    /** The connection bookkeeping for a single server. */
+    private final class Endpoint
+    {
+        private final String host;
+        private final int port;
+        private final boolean secure;
+        private final Semaphore permits = new Semaphore(maxConnections, true);
+        private int outstanding;
+        private long idleSince;
+
+        private Endpoint(final String endpointHost, final int endpointPort, final boolean endpointSecure)
+        {
+            host = endpointHost;
+            port = endpointPort;
+            secure = endpointSecure;
+        }
+
+        /**
+         * Notes that a request is about to be sent, closing the server's
+         * sockets first if it has had no requests for too long.
+         *
+         * @return True if the server has an open socket that no other request
+         * is using, which the JDK will send this request on.
+         */
+        private synchronized boolean lease(final long now)
+        {
+            if (outstanding == 0 && now - idleSince > idleTimeout)
+            {
+                evictions.addAndGet(sslSocketFactory.close(host, port));
+            }
+            boolean reusable = sslSocketFactory.countOpen(host, port) > outstanding;
+            outstanding++;
+            return reusable;
+        }
+
+        /** Notes that a request's response has been read, or that it failed to be sent. */
+        private synchronized void release(final long now)
+        {
+            outstanding--;
+            if (outstanding == 0)
+            {
+                idleSince = now;
+            }
+            permits.release();
+        }
+    }
+
+    /**
+     * Wraps the TLS socket factory given to HTTPS connections, to see every
+     * socket the JDK opens for them.
+     */
+    private static final class TrackingSslSocketFactory extends SSLSocketFactory
+    {
+        private final SSLSocketFactory delegate;
+        private final List<Socket> sockets = new LinkedList<Socket>();
+        private final AtomicLong opened = new AtomicLong();
+        private final ThreadLocal<long[]> openedByThread = new ThreadLocal<long[]>()
+        {
+            @Override
+            protected long[] initialValue()
+            {
+                return new long[1];
+            }
+        };
+
+        private TrackingSslSocketFactory(final SSLSocketFactory socketFactory)
+        {
+            delegate = socketFactory;
+        }
+
+        /** The number of sockets that have been opened on the current thread. */
+        private long getOpenedByThisThread()
+        {
+            return openedByThread.get()[0];
+        }
+
+        private Socket track(final Socket socket)
+        {
+            opened.incrementAndGet();
+            openedByThread.get()[0]++;
+            synchronized (sockets)
+            {
+                Iterator<Socket> open = sockets.iterator();
+                while (open.hasNext())
+                {
+                    if (open.next().isClosed())
+                    {
+                        open.remove();
+                    }
+                }
+                sockets.add(socket);
+            }
+            return socket;
+        }
+
+        /** Counts the open sockets connected to the given server. */
+        private int countOpen(final String host, final int port)
+        {
+            int count = 0;
+            synchronized (sockets)
+            {
+                for (Socket socket : sockets)
+                {
+                    if (!socket.isClosed() && isConnectedTo(socket, host, port))
+                    {
+                        count++;
+                    }
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Closes the open sockets connected to the given server.
+         *
+         * @return The number of sockets closed.
+         */
+        private int close(final String host, final int port)
+        {
+            int closed = 0;
+            synchronized (sockets)
+            {
+                Iterator<Socket> open = sockets.iterator();
+                while (open.hasNext())
+                {
+                    Socket socket = open.next();
+                    if (socket.isClosed())
+                    {
+                        open.remove();
+                    }
+                    else if (isConnectedTo(socket, host, port))
+                    {
+                        open.remove();
+                        closed++;
+                        try
+                        {
+                            socket.close();
+                        }
+                        catch (IOException e)
+                        {
+                            LOG.debug("Error closing an idle connection.", e);
+                        }
+                    }
+                }
+            }
+            return closed;
+        }
+
+        private static boolean isConnectedTo(final Socket socket, final String host, final int port)
+        {
+            InetAddress address = socket.getInetAddress();
+            return address != null && socket.getPort() == port
+                   && (host.equals(address.getHostAddress()) || host.equalsIgnoreCase(address.getHostName()));
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites()
+        {
+            return delegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites()
+        {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException
+        {
+            return track(delegate.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(final Socket socket, final String host, final int port, final boolean autoClose)
+            throws IOException
+        {
+            return track(delegate.createSocket(socket, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket(final String host, final int port) throws IOException
+        {
+            return track(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(final String host, final int port, final InetAddress localHost,
+                                   final int localPort) throws IOException
+        {
+            return track(delegate.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(final InetAddress host, final int port) throws IOException
+        {
+            return track(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(final InetAddress address, final int port, final InetAddress localAddress,
+                                   final int localPort) throws IOException
+        {
+            return track(delegate.createSocket(address, port, localAddress, localPort));
+        }
+    }
+}
@@ -0,0 +1,398 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records every request made through another connection factory, and the
+ * response it got, to files in a directory, so that real traffic can be
+ * replayed later with {@link ReplayHttpUrlConnectionFactory}.
+ * <p/>
+ * Responses are recorded as they came over the wire, still compressed if
+ * they were, and each one is written once its connection is released.  A
+ * new file is started once the current one is bigger than the limit, and
+ * a later run adds files after the ones already there.  If a recording
+ * can't be written, that's logged and recording stops, but the requests
+ * themselves carry on.
+ * <p/>
+ * The recordings hold whole mailboxes' worth of mail, so they need to be
+ * looked after as carefully as the mail itself.
+ */
+class RecordingHttpUrlConnectionFactory implements HttpUrlConnectionFactory
+{
+    /** The default size in bytes a recording file grows to before the next one is started. */
+    static final long DEFAULT_MAX_FILE_BYTES = 64L * 1024 * 1024;
+
+    private static final Logger LOG = LoggerFactory.getLogger(RecordingHttpUrlConnectionFactory.class);
+    private static final String RETRY_AFTER = "Retry-After";
+    private static final String CONTENT_TYPE = "Content-Type";
+    private static final int DRAIN_BUFFER_SIZE = 4096;
+
+    private final HttpUrlConnectionFactory factory;
+    private final File directory;
+    private final long maxFileBytes;
+    private OutputStream out;
+    private long written;
+    private int fileIndex = -1;
+    private boolean stopped;
+    private long records;
+
+    /**
+     * @param connectionFactory The factory that really makes the connections.
+     * @param recordingDirectory The directory to write the recordings to,
+     * which is created if it doesn't exist.
+     * @param maxBytes The size a recording file grows to before the next one is started.
+     */
+    RecordingHttpUrlConnectionFactory(final HttpUrlConnectionFactory connectionFactory,
+                                      final File recordingDirectory, final long maxBytes)
+    {
+        factory = connectionFactory;
+        directory = recordingDirectory;
+        maxFileBytes = maxBytes;
+    }
+
+    @Override
+    public HttpURLConnection newInstance(final String address, final RequestBody request)
+            throws ServiceCallException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try
+        {
+            request.writeTo(bytes);
+        }
+        catch (IOException e)
+        {
+            throw ServiceCallException.log(LOG, new ServiceCallException(ServiceCallException.Reason.OTHER,
+                    "There was an error writing the request.", e));
+        }
+        byte[] requestBytes = bytes.toByteArray();
+        HttpURLConnection connection = factory.newInstance(address, new RecordedRequest(requestBytes, request));
+        return new CapturedConnection(connection, address, requestBytes);
+    }
+
+    @Override
+    public void release(final HttpURLConnection connection)
+    {
+        if (connection instanceof CapturedConnection)
+        {
+            CapturedConnection captured = (CapturedConnection) connection;
+            WireRecord record = captured.finish();
+            if (record != null)
+            {
+                write(record);
+            }
+            factory.release(captured.connection);
+        }
+        else
+        {
+            factory.release(connection);
+        }
+    }
+
+    private synchronized void write(final WireRecord record)
+    {
+        if (stopped)
+        {
+            return;
+        }
+        try
+        {
+            if (out == null || written >= maxFileBytes)
+            {
+                startFile();
+            }
+            written += record.writeTo(out);
+            records++;
+        }
+        catch (IOException e)
+        {
+            LOG.error("Could not record Exchange traffic to " + directory + ", so recording has stopped.", e);
+            stopped = true;
+            close();
+        }
+    }
+
+    private void startFile() throws IOException
+    {
+        close();
+        if (fileIndex < 0)
+        {
+            if (!directory.isDirectory() && !directory.mkdirs())
+            {
+                throw new IOException("Could not create the directory " + directory + ".");
+            }
+            List<File> existing = WireRecord.listRecordings(directory);
+            fileIndex = existing.size();
+            while (new File(directory, WireRecord.fileName(fileIndex)).exists())
+            {
+                fileIndex++;
+            }
+        }
+        else
+        {
+            fileIndex++;
+        }
+        File file = new File(directory, WireRecord.fileName(fileIndex));
+        out = new BufferedOutputStream(new FileOutputStream(file));
+        written = 0;
+        LOG.info("Recording Exchange traffic to {}.", file);
+    }
+
+    /** The number of requests that have been recorded. */
+    public synchronized long getRecords()
+    {
+        return records;
+    }
+
+    /** Closes the current recording file.  Any later requests are recorded to a new one. */
+    public synchronized void close()
+    {
+        if (out != null)
+        {
+            try
+            {
+                out.close();
+            }
+            catch (IOException e)
+            {
+                LOG.debug("Error closing the recording file.", e);
+            }
+            out = null;
+        }
+    }
+
+    /** A request that has already been written out, so it isn't written twice. */
+    private static final class RecordedRequest implements RequestBody
+    {
+        private final byte[] bytes;
+        private final RequestBody original;
+
+        private RecordedRequest(final byte[] requestBytes, final RequestBody request)
+        {
+            bytes = requestBytes;
+            original = request;
+        }
+
+        @Override
+        public void writeTo(final OutputStream stream) throws IOException
+        {
+            stream.write(bytes);
+        }
+
+        @Override
+        public String getAnchorMailbox()
+        {
+            return original.getAnchorMailbox();
+        }
+
+        @Override
+        public String toString()
+        {
+            return original.toString();
+        }
+    }
+
+    /** Keeps a copy of everything read from a stream. */
+    private static final class CapturingInputStream extends FilterInputStream
+    {
+        private final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+        private CapturingInputStream(final InputStream stream)
+        {
+            super(stream);
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            int b = super.read();
+            if (b >= 0)
+            {
+                copy.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) throws IOException
+        {
+            int read = super.read(buffer, offset, length);
+            if (read > 0)
+            {
+                copy.write(buffer, offset, read);
+            }
+            return read;
+        }
+
+        /** Skipped bytes still need to be recorded, so they're read instead. */
+        @Override
+        public long skip(final long n) throws IOException
+        {
+            long skipped = 0;
+            while (skipped < n && read() >= 0)
+            {
+                skipped++;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported()
+        {
+            return false;
+        }
+
+        /** Reads whatever the caller didn't, and returns all of it. */
+        private byte[] finish() throws IOException
+        {
+            byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+            int read;
+            do
+            {
+                read = read(buffer, 0, buffer.length);
+            }
+            while (read >= 0);
+            return copy.toByteArray();
+        }
+    }
+
+    /** Hands out a connection's response while keeping a copy of it. */
+    private static final class CapturedConnection extends HttpURLConnection
+    {
+        private final HttpURLConnection connection;
+        private final String address;
+        private final byte[] request;
+        private int code = -1;
+        private CapturingInputStream body;
+
+        private CapturedConnection(final HttpURLConnection realConnection, final String url,
+                                   final byte[] requestBytes)
+        {
+            super(realConnection.getURL());
+            connection = realConnection;
+            address = url;
+            request = requestBytes;
+        }
+
+        @Override
+        public int getResponseCode() throws IOException
+        {
+            code = connection.getResponseCode();
+            return code;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException
+        {
+            if (body == null)
+            {
+                body = new CapturingInputStream(connection.getInputStream());
+            }
+            return body;
+        }
+
+        @Override
+        public InputStream getErrorStream()
+        {
+            if (body == null)
+            {
+                InputStream errorData = connection.getErrorStream();
+                if (errorData == null)
+                {
+                    return null;
+                }
+                body = new CapturingInputStream(errorData);
+            }
+            return body;
+        }
+
+        @Override
+        public String getHeaderField(final String name)
+        {
+            return connection.getHeaderField(name);
+        }
+
+        @Override
+        public long getHeaderFieldDate(final String name, final long defaultValue)
+        {
+            return connection.getHeaderFieldDate(name, defaultValue);
+        }
+
+        @Override
+        public String getContentEncoding()
+        {
+            return connection.getContentEncoding();
+        }
+
+        @Override
+        public void connect() throws IOException
+        {
+            connection.connect();
+        }
+
+        @Override
+        public void disconnect()
+        {
+            connection.disconnect();
+        }
+
+        @Override
+        public boolean usingProxy()
+        {
+            return connection.usingProxy();
+        }
+
+        /** The record of this exchange, or null if there was no response to record. */
+        private WireRecord finish()
+        {
+            if (code < 0)
+            {
+                return null;
+            }
+            byte[] response = new byte[0];
+            if (body != null)
+            {
+                try
+                {
+                    response = body.finish();
+                }
+                catch (IOException e)
+                {
+                    LOG.debug("Could not read the whole response to record it.", e);
+                    return null;
+                }
+            }
+            return new WireRecord(address, request, code, connection.getHeaderField(CONTENT_TYPE),
+                                  connection.getContentEncoding(), connection.getHeaderField(RETRY_AFTER),
+                                  response);
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Answers requests from the recordings made by a
+ * {@link RecordingHttpUrlConnectionFactory}, without any network at all, so
+ * that the whole fetch, parse and write pipeline can be run, timed and
+ * profiled offline against real Exchange responses.
+ * <p/>
+ * The recordings are all read into memory the first time a request is made.
+ * Each request gets the response recorded for a request with exactly the
+ * same body, whichever endpoint it's sent to.  When the same request was
+ * recorded more than once, the responses are given out in the order they
+ * were recorded, and the last one is repeated after that.  A request that
+ * was never recorded fails.
+ */
+class ReplayHttpUrlConnectionFactory implements HttpUrlConnectionFactory
+{
+    private static final Logger LOG = LoggerFactory.getLogger(ReplayHttpUrlConnectionFactory.class);
+    private static final String CONTENT_TYPE = "Content-Type";
+    private static final String CONTENT_ENCODING = "Content-Encoding";
+    private static final String RETRY_AFTER = "Retry-After";
+
+    private final File directory;
+    private Map<ByteBuffer, List<WireRecord>> recorded;
+    private final Map<ByteBuffer, Integer> served = new HashMap<ByteBuffer, Integer>();
+    private long replayed;
+    private long missed;
+
+    /** @param recordingDirectory The directory the recordings were written to. */
+    ReplayHttpUrlConnectionFactory(final File recordingDirectory)
+    {
+        directory = recordingDirectory;
+    }
+
+    @Override
+    public HttpURLConnection newInstance(final String address, final RequestBody request)
+            throws ServiceCallException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try
+        {
+            request.writeTo(bytes);
+        }
+        catch (IOException e)
+        {
+            throw ServiceCallException.log(LOG, new ServiceCallException(ServiceCallException.Reason.OTHER,
+                    "There was an error writing the request.", e));
+        }
+        ByteBuffer key = ByteBuffer.wrap(bytes.toByteArray());
+
+        WireRecord record;
+        synchronized (this)
+        {
+            load();
+            List<WireRecord> responses = recorded.get(key);
+            if (responses == null)
+            {
+                missed++;
+                LOG.debug("No response was recorded for this request:\n{}", request);
+                throw new ServiceCallException(ServiceCallException.Reason.OTHER,
+                                               "No response was recorded for a request to " + address + ".");
+            }
+            Integer count = served.get(key);
+            int index = count == null ? 0 : count;
+            record = responses.get(Math.min(index, responses.size() - 1));
+            served.put(key, index + 1);
+            replayed++;
+        }
+        return new ReplayedConnection(record);
+    }
+
+    @Override
+    public void release(final HttpURLConnection connection)
+    {
+        // There's nothing to give back.
+    }
+
+    private void load() throws ServiceCallException
+    {
+        if (recorded != null)
+        {
+            return;
+        }
+        List<File> files = WireRecord.listRecordings(directory);
+        if (files.isEmpty())
+        {
+            throw ServiceCallException.log(LOG, new ServiceCallException(ServiceCallException.Reason.OTHER,
+                    "There are no recordings of Exchange traffic in " + directory + "."));
+        }
+        Map<ByteBuffer, List<WireRecord>> records = new HashMap<ByteBuffer, List<WireRecord>>();
+        int count = 0;
+        for (File file : files)
+        {
+            count += read(file, records);
+        }
+        LOG.info("Replaying {} recorded Exchange responses from {}.", count, directory);
+        recorded = records;
+    }
+
+    private static int read(final File file, final Map<ByteBuffer, List<WireRecord>> records)
+            throws ServiceCallException
+    {
+        int count = 0;
+        try
+        {
+            InputStream in = new BufferedInputStream(new FileInputStream(file));
+            try
+            {
+                for (WireRecord record = WireRecord.readFrom(in); record != null; record = WireRecord.readFrom(in))
+                {
+                    ByteBuffer key = ByteBuffer.wrap(record.getRequest());
+                    List<WireRecord> responses = records.get(key);
+                    if (responses == null)
+                    {
+                        responses = new ArrayList<WireRecord>();
+                        records.put(key, responses);
+                    }
+                    responses.add(record);
+                    count++;
+                }
+            }
+            catch (EOFException e)
+            {
+                LOG.warn("The recording {} was cut off, so its last record was skipped.", file);
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException e)
+        {
+            throw ServiceCallException.log(LOG, new ServiceCallException(ServiceCallException.Reason.OTHER,
+                    "There was an error reading the recording " + file + ".", e));
+        }
+        return count;
+    }
+
+    /** The number of requests that were answered from the recordings. */
+    public synchronized long getReplayed()
+    {
+        return replayed;
+    }
+
+    /** The number of requests that had no recorded response. */
+    public synchronized long getMissed()
+    {
+        return missed;
+    }
+
+    /** A connection that gives back a recorded response. */
+    private static final class ReplayedConnection extends HttpURLConnection
+    {
+        private final WireRecord record;
+
+        private ReplayedConnection(final WireRecord wireRecord)
+        {
+            // Nothing asks a connection for its URL, and the recorded address might not be a valid one.
+            super(null);
+            record = wireRecord;
+            responseCode = record.getResponseCode();
+        }
+
+        @Override
+        public int getResponseCode()
+        {
+            return record.getResponseCode();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException
+        {
+            // Like a real connection, unsuccessful responses only come from the error stream.
+            if (record.getResponseCode() >= HTTP_BAD_REQUEST)
+            {
+                throw new IOException("Server returned HTTP response code: " + record.getResponseCode());
+            }
+            return new ByteArrayInputStream(record.getResponse());
+        }
+
+        @Override
+        public InputStream getErrorStream()
+        {
+            if (record.getResponseCode() >= HTTP_BAD_REQUEST)
+            {
+                return new ByteArrayInputStream(record.getResponse());
+            }
+            return null;
+        }
+
+        @Override
+        public String getHeaderField(final String name)
+        {
+            if (CONTENT_TYPE.equalsIgnoreCase(name))
+            {
+                return record.getContentType();
+            }
+            if (CONTENT_ENCODING.equalsIgnoreCase(name))
+            {
+                return record.getContentEncoding();
+            }
+            if (RETRY_AFTER.equalsIgnoreCase(name))
+            {
+                return record.getRetryAfter();
+            }
+            return null;
+        }
+
+        @Override
+        public String getContentEncoding()
+        {
+            return record.getContentEncoding();
+        }
+
+        @Override
+        public void connect()
+        {
+            connected = true;
+        }
+
+        @Override
+        public void disconnect()
+        {
+            connected = false;
+        }
+
+        @Override
+        public boolean usingProxy()
+        {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The body of a request to Exchange, which writes itself to a connection
+ * rather than being held in memory as a string or byte array first.
+ * <p/>
+ * toString renders the whole body, so it should only be used for logging
+ * when the log level calls for it.
+ */
+interface RequestBody
+{
+    /** Writes the body, encoded as UTF-8, to the given stream. */
+    void writeTo(OutputStream out) throws IOException;
+
+    /**
+     * The principal name of the user whose mailbox the request is for, which
+     * Exchange routes the request by, or null if it isn't for one mailbox.
+     */
+    String getAnchorMailbox();
+}
@@ -0,0 +1,166 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+import javax.xml.namespace.QName;
+
+import org.apache.xmlbeans.XmlObject;
+import org.apache.xmlbeans.XmlOptions;
+
+/**
+ * A precompiled SOAP envelope for one kind of Exchange request.
+ * <p/>
+ * The envelope and its headers never change apart from the user's name, so they're encoded once, and each request just writes those
+ * bytes, the name, and then has xmlbeans save the request element straight
+ * to the output.  No envelope document, string or byte array is built for
+ * the request along the way.
+ */
+final class RequestTemplate
+{
+    /** The template for SyncFolderItems requests. */
+    static final RequestTemplate SYNC_FOLDER_ITEMS = new RequestTemplate("SyncFolderItems");
+    /** The template for GetItem requests. */
+    static final RequestTemplate GET_ITEM = new RequestTemplate("GetItem");
+    /**
+     * The template for ExportItems requests.  ExportItems only exists from
+     * Exchange 2010 SP1, and Exchange validates a request without a version
+     * against the 2007 SP1 schema, so this one has to say which it needs.
+     */
+    static final RequestTemplate EXPORT_ITEMS = new RequestTemplate("ExportItems", "Exchange2010_SP1");
+    /** The template for GetAttachment requests. */
+    static final RequestTemplate GET_ATTACHMENT = new RequestTemplate("GetAttachment");
+    /** The template for SyncFolderHierarchy requests. */
+    static final RequestTemplate SYNC_FOLDER_HIERARCHY = new RequestTemplate("SyncFolderHierarchy");
+
+    private static final String ENCODING = "UTF-8";
+    private static final byte[] PRELUDE = encode(
+            "<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+            + "<soapenv:Envelope xmlns:soapenv=\"" + StreamingResponseParser.SOAP_NAMESPACE + "\">"
+            + "<soapenv:Header>"
+            + "<typ:ExchangeImpersonation xmlns:typ=\"" + StreamingResponseParser.TYPES_NAMESPACE + "\">"
+            + "<typ:ConnectingSID>"
+            + "<typ:PrincipalName>");
+    private static final String IMPERSONATION_FINALE =
+            "</typ:PrincipalName>"
+            + "</typ:ConnectingSID>"
+            + "</typ:ExchangeImpersonation>";
+    private static final String HEADER_FINALE =
+            "</soapenv:Header>"
+            + "<soapenv:Body>";
+    private static final byte[] FINALE = encode(
+            "</soapenv:Body>"
+            + "</soapenv:Envelope>");
+
+    private final byte[] headerFinale;
+    private final XmlOptions saveOptions;
+
+    /** @param operation The local name of the request element, such as "GetItem". */
+    private RequestTemplate(final String operation)
+    {
+        this(operation, null);
+    }
+
+    /**
+     * @param operation The local name of the request element, such as "GetItem".
+     * @param serverVersion The oldest version of Exchange that has the
+     * operation, such as "Exchange2010_SP1", or null to leave the version out.
+     */
+    private RequestTemplate(final String operation, final String serverVersion)
+    {
+        String version = serverVersion == null ? ""
+                : "<typ:RequestServerVersion xmlns:typ=\"" + StreamingResponseParser.TYPES_NAMESPACE
+                  + "\" Version=\"" + serverVersion + "\"/>";
+        headerFinale = encode(IMPERSONATION_FINALE + version + HEADER_FINALE);
+        saveOptions = new XmlOptions();
+        saveOptions.setSaveSyntheticDocumentElement(new QName(StreamingResponseParser.MESSAGES_NAMESPACE,
+                                                              operation));
+        saveOptions.setSaveNoXmlDecl();
+        // Declares the types namespace once on the request element, instead
+        // of on every item id.
+        saveOptions.setSaveAggressiveNamespaces();
+        saveOptions.setCharacterEncoding(ENCODING);
+    }
+
+    private static byte[] encode(final String text)
+    {
+        try
+        {
+            return text.getBytes(ENCODING);
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            // Every JVM is required to support UTF-8.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String escape(final String text)
+    {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    /**
+     * Creates a request from this template.
+     *
+     * @param targetUser The principal name of the user to impersonate.
+     * @param request The request element, such as a GetItemType.
+     * @return The body of the request.
+     */
+    RequestBody newRequest(final String targetUser, final XmlObject request)
+    {
+        final byte[] user = encode(escape(targetUser));
+        return new RequestBody()
+        {
+            @Override
+            public void writeTo(final OutputStream out) throws IOException
+            {
+                out.write(PRELUDE);
+                out.write(user);
+                out.write(headerFinale);
+                request.save(out, saveOptions);
+                out.write(FINALE);
+            }
+
+            @Override
+            public String getAnchorMailbox()
+            {
+                return targetUser;
+            }
+
+            @Override
+            public String toString()
+            {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try
+                {
+                    writeTo(bytes);
+                    return bytes.toString(ENCODING);
+                }
+                catch (IOException e)
+                {
+                    return "Request could not be written: " + e.getMessage();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,40 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import java.io.InputStream;
+
+/**
+ * Turns the body of a successful HTTP response from Exchange into the
+ * result of a service call.
+ *
+ * @param <T> The type of the result.
+ */
+interface ResponseParser<T>
+{
+    /**
+     * Parses a response.
+     *
+     * @param response The response stream, already decompressed.
+     * @param charset The character set named by the response's Content-Type.
+     * @return The result of the service call.
+     * @throws ServiceCallException If the response couldn't be read, or
+     * contained an error.
+     */
+    T parse(InputStream response, String charset) throws ServiceCallException;
+}
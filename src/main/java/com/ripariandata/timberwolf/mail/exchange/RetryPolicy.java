@@ -0,0 +1,376 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import com.microsoft.schemas.exchange.services.x2006.messages.ResponseCodeType;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Retries calls to Exchange that fail for reasons that are likely to go
+ * away, such as the server being busy or a read timing out.
+ * <p/>
+ * Between attempts the policy waits for a random time up to an exponentially
+ * growing limit, or for as long as Exchange asked, whichever is longer.  All
+ * the calls in a run share a retry budget, which grows with the number of
+ * calls made, so a server that keeps failing makes the run give up on
+ * mailboxes rather than stall on them.
+ * <p/>
+ * The policy also keeps running totals of its retries for each type of call.
+ */
+public class RetryPolicy
+{
+    /** The default number of times a call is tried before giving up. */
+    public static final int DEFAULT_MAX_ATTEMPTS = 4;
+    /** The default wait, in milliseconds, before the first retry. */
+    public static final int DEFAULT_BASE_BACK_OFF = 500;
+    /** The default longest wait, in milliseconds, before any retry. */
+    public static final int DEFAULT_MAX_BACK_OFF = 60000;
+    /** The default percentage of calls that may be retries. */
+    public static final int DEFAULT_RETRY_BUDGET = 10;
+
+    private static final Logger LOG = LoggerFactory.getLogger(RetryPolicy.class);
+
+    /** Retries that are allowed before enough calls have been made to earn them. */
+    private static final int BUDGET_RESERVE = 10;
+    private static final int PERCENT = 100;
+    private static final int MAX_SHIFT = 30;
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    private static final Set<Integer> TRANSIENT_HTTP_ERRORS = Collections.unmodifiableSet(new HashSet<Integer>(
+            Arrays.asList(HttpURLConnection.HTTP_CLIENT_TIMEOUT, HTTP_TOO_MANY_REQUESTS,
+                          HttpURLConnection.HTTP_BAD_GATEWAY, HttpURLConnection.HTTP_UNAVAILABLE,
+                          HttpURLConnection.HTTP_GATEWAY_TIMEOUT)));
+
+    private static final Set<ResponseCodeType.Enum> TRANSIENT_SOAP_ERRORS =
+            Collections.unmodifiableSet(new HashSet<ResponseCodeType.Enum>(Arrays.asList(
+                    ResponseCodeType.ERROR_SERVER_BUSY,
+                    ResponseCodeType.ERROR_TIMEOUT_EXPIRED,
+                    ResponseCodeType.ERROR_INTERNAL_SERVER_TRANSIENT_ERROR,
+                    ResponseCodeType.ERROR_MAILBOX_STORE_UNAVAILABLE,
+                    ResponseCodeType.ERROR_MAILBOX_MOVE_IN_PROGRESS,
+                    ResponseCodeType.ERROR_CONNECTION_FAILED,
+                    ResponseCodeType.ERROR_EXCEEDED_CONNECTION_COUNT,
+                    ResponseCodeType.ERROR_PROXY_REQUEST_PROCESSING_FAILED)));
+
+    /**
+     * A call to Exchange that can be made more than once.
+     *
+     * @param <T> The type of the call's result.
+     */
+    public interface Call<T>
+    {
+        T call() throws ServiceCallException, HttpErrorException;
+    }
+
+    private final int maxAttempts;
+    private final long baseBackOff;
+    private final long maxBackOff;
+    private final int retryBudget;
+    private final Random random = new Random();
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final ConcurrentMap<String, Totals> totals = new ConcurrentHashMap<String, Totals>();
+
+    /** Creates a retry policy with the default settings. */
+    public RetryPolicy()
+    {
+        this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_BACK_OFF, DEFAULT_MAX_BACK_OFF, DEFAULT_RETRY_BUDGET);
+    }
+
+    /**
+     * @param attempts The most times a call is tried.  One means calls are never retried.
+     * @param baseBackOffMillis The most milliseconds to wait before the first
+     * retry; this doubles for each retry after that.
+     * @param maxBackOffMillis The most milliseconds to wait before any retry.
+     * A call is given up on if Exchange asks for a longer wait than this.
+     * @param retryBudgetPercent The percentage of all calls that may be
+     * retries, on top of a small reserve for the start of the run.
+     */
+    public RetryPolicy(final int attempts, final int baseBackOffMillis, final int maxBackOffMillis,
+                       final int retryBudgetPercent)
+    {
+        maxAttempts = Math.max(attempts, 1);
+        baseBackOff = Math.max(baseBackOffMillis, 0);
+        maxBackOff = Math.max(maxBackOffMillis, baseBackOff);
+        retryBudget = Math.max(retryBudgetPercent, 0);
+    }
+
+    public int getMaxAttempts()
+    {
+        return maxAttempts;
+    }
+
+    /**
+     * Makes a call, retrying it if it fails with a transient error.
+     *
+     * @param callType The name of the call, such as "GetItem", which the totals are kept under.
+     * @param call The call to make.
+     * @param <T> The type of the call's result.
+     * @return The result of the first successful attempt.
+     * @throws ServiceCallException If the last attempt failed with a ServiceCallException.
+     * @throws HttpErrorException If the last attempt failed with an HttpErrorException.
+     */
+    public <T> T call(final String callType, final Call<T> call) throws ServiceCallException, HttpErrorException
+    {
+        Totals callTotals = getTotals(callType);
+        int attempt = 1;
+        while (true)
+        {
+            calls.incrementAndGet();
+            callTotals.attempts.incrementAndGet();
+            long delay;
+            try
+            {
+                T result = call.call();
+                if (attempt > 1)
+                {
+                    callTotals.recovered.incrementAndGet();
+                }
+                return result;
+            }
+            catch (ServiceCallException e)
+            {
+                delay = retryDelay(callType, callTotals, attempt, e, e.getBackOffMillis());
+                if (delay < 0)
+                {
+                    throw e;
+                }
+            }
+            catch (HttpErrorException e)
+            {
+                delay = retryDelay(callType, callTotals, attempt, e, e.getBackOffMillis());
+                if (delay < 0)
+                {
+                    throw e;
+                }
+            }
+            sleep(delay);
+            attempt++;
+        }
+    }
+
+    /**
+     * Decides whether a failed attempt should be tried again.
+     *
+     * @return The number of milliseconds to wait before the next attempt, or
+     * -1 if the error should be thrown instead.
+     */
+    private long retryDelay(final String callType, final Totals callTotals, final int attempt, final Exception e,
+                            final long hint)
+    {
+        if (!isTransient(e))
+        {
+            return -1;
+        }
+        if (attempt >= maxAttempts)
+        {
+            callTotals.exhausted.incrementAndGet();
+            LOG.warn("{} failed {} times, giving up: {}", new Object[] {callType, attempt, e.getMessage()});
+            return -1;
+        }
+        if (hint > maxBackOff)
+        {
+            callTotals.exhausted.incrementAndGet();
+            LOG.warn("{} failed and Exchange asked to wait {} ms before trying again, which is too long: {}",
+                     new Object[] {callType, hint, e.getMessage()});
+            return -1;
+        }
+        if (!takeRetryFromBudget())
+        {
+            callTotals.exhausted.incrementAndGet();
+            LOG.warn("{} failed, and the retry budget for this run has been used up: {}", callType, e.getMessage());
+            return -1;
+        }
+
+        long ceiling = Math.min(maxBackOff, baseBackOff << Math.min(attempt - 1, MAX_SHIFT));
+        long delay = Math.max(hint, (long) (random.nextDouble() * ceiling));
+        callTotals.retries.incrementAndGet();
+        callTotals.backOff.addAndGet(delay);
+        LOG.info("{} failed, trying again in {} ms: {}", new Object[] {callType, delay, e.getMessage()});
+        LOG.debug("", e);
+        return delay;
+    }
+
+    private boolean takeRetryFromBudget()
+    {
+        while (true)
+        {
+            long taken = retries.get();
+            if (taken >= BUDGET_RESERVE + calls.get() * retryBudget / PERCENT)
+            {
+                return false;
+            }
+            if (retries.compareAndSet(taken, taken + 1))
+            {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Waits before the next attempt.
+     *
+     * @param millis The number of milliseconds to wait.
+     * @throws ServiceCallException If the wait was interrupted.
+     */
+    void sleep(final long millis) throws ServiceCallException
+    {
+        try
+        {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new ServiceCallException(ServiceCallException.Reason.OTHER,
+                                           "Interrupted while waiting to retry a call to Exchange.", e);
+        }
+    }
+
+    /**
+     * Whether an error from Exchange is likely to go away if the call is made
+     * again.  That's the case for busy servers, throttling, timeouts and
+     * other IO errors, but not for bad requests, missing items or failed
+     * authentication.
+     */
+    public static boolean isTransient(final Exception e)
+    {
+        if (e instanceof HttpErrorException)
+        {
+            HttpErrorException httpError = (HttpErrorException) e;
+            return TRANSIENT_HTTP_ERRORS.contains(httpError.getErrorCode())
+                   || TRANSIENT_SOAP_ERRORS.contains(httpError.getSoapError());
+        }
+        if (e instanceof UnexpectedResponseException || !(e instanceof ServiceCallException))
+        {
+            return false;
+        }
+        ServiceCallException serviceError = (ServiceCallException) e;
+        switch (serviceError.getReason())
+        {
+            case SOAP:
+                return TRANSIENT_SOAP_ERRORS.contains(serviceError.getSoapError());
+            case OTHER:
+                for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause())
+                {
+                    if (cause instanceof IOException)
+                    {
+                        return true;
+                    }
+                }
+                return false;
+            case AUTHENTICATION:
+            default:
+                return false;
+        }
+    }
+
+    private Totals getTotals(final String callType)
+    {
+        Totals callTotals = totals.get(callType);
+        if (callTotals == null)
+        {
+            totals.putIfAbsent(callType, new Totals());
+            callTotals = totals.get(callType);
+        }
+        return callTotals;
+    }
+
+    /** Returns the number of attempts made for the given type of call, including retries. */
+    public long getAttempts(final String callType)
+    {
+        Totals callTotals = totals.get(callType);
+        return callTotals == null ? 0 : callTotals.attempts.get();
+    }
+
+    /** Returns the number of retries made for the given type of call. */
+    public long getRetries(final String callType)
+    {
+        Totals callTotals = totals.get(callType);
+        return callTotals == null ? 0 : callTotals.retries.get();
+    }
+
+    /** Returns the number of calls of the given type that succeeded after being retried. */
+    public long getRecovered(final String callType)
+    {
+        Totals callTotals = totals.get(callType);
+        return callTotals == null ? 0 : callTotals.recovered.get();
+    }
+
+    /**
+     * Returns the number of calls of the given type that failed with a
+     * transient error, but weren't retried again because they ran out of
+     * attempts, the wait was too long or the budget was used up.
+     */
+    public long getExhausted(final String callType)
+    {
+        Totals callTotals = totals.get(callType);
+        return callTotals == null ? 0 : callTotals.exhausted.get();
+    }
+
+    /** Returns the total milliseconds spent waiting to retry the given type of call. */
+    public long getBackOffMillis(final String callType)
+    {
+        Totals callTotals = totals.get(callType);
+        return callTotals == null ? 0 : callTotals.backOff.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Totals> entry : new TreeMap<String, Totals>(totals).entrySet())
+        {
+            if (builder.length() > 0)
+            {
+                builder.append("; ");
+            }
+            Totals callTotals = entry.getValue();
+            builder.append(String.format("%s: %d attempts, %d retries, %d recovered, %d given up, %d ms backing off",
+                                         entry.getKey(), callTotals.attempts.get(), callTotals.retries.get(),
+                                         callTotals.recovered.get(), callTotals.exhausted.get(),
+                                         callTotals.backOff.get()));
+        }
+        return builder.toString();
+    }
+
+    /** The running totals for one type of call. */
+    private static final class Totals
+    {
+        private final AtomicLong attempts = new AtomicLong();
+        private final AtomicLong retries = new AtomicLong();
+        private final AtomicLong recovered = new AtomicLong();
+        private final AtomicLong exhausted = new AtomicLong();
+        private final AtomicLong backOff = new AtomicLong();
+    }
+}
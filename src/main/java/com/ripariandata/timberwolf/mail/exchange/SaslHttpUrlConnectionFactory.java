@@ -17,12 +17,15 @@
  */
 package com.ripariandata.timberwolf.mail.exchange;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.ProtocolException;
 import java.net.URL;
+import java.util.zip.GZIPOutputStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,24 +38,105 @@ class SaslHttpUrlConnectionFactory implements HttpUrlConnectionFactory
     private static final Logger LOG = LoggerFactory.getLogger(SaslHttpUrlConnectionFactory.class);
 
     private static final String HTTP_METHOD = "POST";
-    private static final int TIMEOUT = 10000;
     private static final String CONTENT_TYPE_HEADER = "Content-Type";
     private static final String SOAP_CONTENT_TYPE = "text/xml";
-    private static final String CONTENT_LENGTH_HEADER = "Content-Length";
+    private static final String ACCEPT_ENCODING_HEADER = "Accept-Encoding";
+    private static final String ACCEPTED_ENCODINGS = "gzip, deflate";
+    private static final String CONTENT_ENCODING_HEADER = "Content-Encoding";
+    /** Tells a Client Access server which mailbox to route the request to, without looking it up itself. */
+    private static final String ANCHOR_MAILBOX_HEADER = "X-AnchorMailbox";
+    private static final String GZIP_ENCODING = "gzip";
 
-    public HttpURLConnection newInstance(final String address, final byte[] request) throws ServiceCallException
+    private final int compressRequestsOver;
+    private final AuthSession authSession;
+    private final int connectTimeout;
+    private final int readTimeout;
+
+    /** Creates a factory that never compresses requests. */
+    SaslHttpUrlConnectionFactory()
+    {
+        this(0);
+    }
+
+    /**
+     * @param requestCompressionThreshold Requests of at least this many bytes
+     * are sent gzipped.  Zero or less means requests are never compressed.
+     */
+    SaslHttpUrlConnectionFactory(final int requestCompressionThreshold)
+    {
+        this(requestCompressionThreshold, new AuthSession());
+    }
+
+    /**
+     * @param requestCompressionThreshold Requests of at least this many bytes
+     * are sent gzipped.  Zero or less means requests are never compressed.
+     * @param session The authenticated session that requests reuse.
+     */
+    SaslHttpUrlConnectionFactory(final int requestCompressionThreshold, final AuthSession session)
+    {
+        this(requestCompressionThreshold, session, Configuration.DEFAULT_CONNECT_TIMEOUT,
+             Configuration.DEFAULT_READ_TIMEOUT);
+    }
+
+    /**
+     * @param requestCompressionThreshold Requests of at least this many bytes
+     * are sent gzipped.  Zero or less means requests are never compressed.
+     * @param session The authenticated session that requests reuse.
+     * @param connectTimeoutMillis The most milliseconds to wait for a connection to open.
+     * @param readTimeoutMillis The most milliseconds to wait for any part of a response.
+     */
+    SaslHttpUrlConnectionFactory(final int requestCompressionThreshold, final AuthSession session,
+                                 final int connectTimeoutMillis, final int readTimeoutMillis)
+    {
+        compressRequestsOver = requestCompressionThreshold;
+        authSession = session;
+        connectTimeout = connectTimeoutMillis;
+        readTimeout = readTimeoutMillis;
+    }
+
+    public HttpURLConnection newInstance(final String address, final RequestBody request)
+            throws ServiceCallException
+    {
+        return newInstance(address, request, false);
+    }
+
+    /**
+     * Makes the connection for a request.
+     *
+     * @param reusedConnection Whether the request is expected to go out on a
+     * kept-alive connection that has already been authenticated.
+     */
+    protected HttpURLConnection newInstance(final String address, final RequestBody request,
+                                            final boolean reusedConnection)
+            throws ServiceCallException
     {
         try
         {
             URL url = new URL(address);
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            HttpURLConnection conn = openConnection(url);
 
             conn.setRequestMethod(HTTP_METHOD);
             conn.setDoOutput(true);
-            conn.setReadTimeout(TIMEOUT);
+            conn.setConnectTimeout(connectTimeout);
+            conn.setReadTimeout(readTimeout);
             conn.setRequestProperty(CONTENT_TYPE_HEADER, SOAP_CONTENT_TYPE);
-            conn.setRequestProperty(CONTENT_LENGTH_HEADER, "" + request.length);
-            conn.getOutputStream().write(request);
+            conn.setRequestProperty(ACCEPT_ENCODING_HEADER, ACCEPTED_ENCODINGS);
+            if (request.getAnchorMailbox() != null)
+            {
+                conn.setRequestProperty(ANCHOR_MAILBOX_HEADER, request.getAnchorMailbox());
+            }
+            authSession.prepare(conn, url, reusedConnection);
+            if (compressRequestsOver > 0)
+            {
+                writeCompressible(conn, request);
+            }
+            else
+            {
+                // The connection buffers what's written and sets the length
+                // itself.  Streaming mode would avoid that buffer, but then
+                // the body couldn't be resent after a Negotiate challenge.
+                request.writeTo(conn.getOutputStream());
+            }
             return conn;
         }
         catch (MalformedURLException e)
@@ -63,12 +147,86 @@ public HttpURLConnection newInstance(final String address, final byte[] request)
         catch (ProtocolException e)
         {
             throw ServiceCallException.log(LOG, new ServiceCallException(ServiceCallException.Reason.OTHER,
-                    "Protocol exception when contacting URL " + address + " with request " + new String(request), e));
+                    "Protocol exception when contacting URL " + address + " with request " + request, e));
         }
         catch (IOException e)
         {
             throw ServiceCallException.log(LOG, new ServiceCallException(ServiceCallException.Reason.OTHER,
-                    "IO exception when contacting URL " + address + " with request " + new String(request), e));
+                    "IO exception when contacting URL " + address + " with request " + request, e));
+        }
+    }
+
+    /**
+     * Writes the request, gzipped if it's over the compression threshold.
+     * The size isn't known until the request is written, so it goes to a
+     * buffer first.
+     */
+    private void writeCompressible(final HttpURLConnection conn, final RequestBody request) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        request.writeTo(bytes);
+        if (bytes.size() >= compressRequestsOver)
+        {
+            conn.setRequestProperty(CONTENT_ENCODING_HEADER, GZIP_ENCODING);
+            GZIPOutputStream zipped = new GZIPOutputStream(conn.getOutputStream());
+            bytes.writeTo(zipped);
+            zipped.finish();
+        }
+        else
+        {
+            bytes.writeTo(conn.getOutputStream());
+        }
+    }
+
+    /**
+     * Opens the connection that a request will be written to.  Subclasses can
+     * override this to adjust the connection before any request data is sent.
+     */
+    protected HttpURLConnection openConnection(final URL url) throws IOException
+    {
+        return (HttpURLConnection) url.openConnection();
+    }
+
+    public void release(final HttpURLConnection connection)
+    {
+        authSession.update(connection);
+        // Closing the response stream, rather than disconnecting, lets the JDK
+        // keep the socket alive for the next request to the same server.
+        InputStream response = getResponseStream(connection);
+        if (response != null)
+        {
+            try
+            {
+                response.close();
+            }
+            catch (IOException e)
+            {
+                LOG.debug("Error closing the response stream.", e);
+            }
+        }
+    }
+
+    /** The authenticated session that requests from this factory reuse. */
+    AuthSession getAuthSession()
+    {
+        return authSession;
+    }
+
+    /**
+     * Gets whichever stream holds the body of the response, which is the
+     * error stream for unsuccessful requests.
+     *
+     * @return The response stream, or null if there isn't one.
+     */
+    protected static InputStream getResponseStream(final HttpURLConnection connection)
+    {
+        try
+        {
+            return connection.getInputStream();
+        }
+        catch (IOException e)
+        {
+            return connection.getErrorStream();
         }
     }
 }
@@ -39,6 +39,7 @@ public class ServiceCallException extends Exception
 
     private Reason errorReason;
     private ResponseCodeType.Enum soapErrorClass;
+    private long backOffMillis;
 
     public ServiceCallException(final Reason reason, final String message)
     {
@@ -59,6 +60,20 @@ public ServiceCallException(final ResponseCodeType.Enum errorClass, final String
         soapErrorClass = errorClass;
     }
 
+    /**
+     * Creates an exception for an Exchange response code that came with a
+     * hint about how long to wait before trying again, as ErrorServerBusy does.
+     *
+     * @param errorClass The response code.
+     * @param message The detail message.
+     * @param backOff The number of milliseconds to wait, or zero if there was no hint.
+     */
+    public ServiceCallException(final ResponseCodeType.Enum errorClass, final String message, final long backOff)
+    {
+        this(errorClass, message);
+        backOffMillis = backOff;
+    }
+
     /** Gets the reason that the service call failed. */
     public Reason getReason()
     {
@@ -79,6 +94,15 @@ public ResponseCodeType.Enum getSoapError()
         return null;
     }
 
+    /**
+     * Gets the number of milliseconds Exchange asked us to wait before trying
+     * again, or zero if it didn't say.
+     */
+    public long getBackOffMillis()
+    {
+        return backOffMillis;
+    }
+
     /**
      * Logs a ServiceCallException to the appropriate logs.
      * @param logger The logger to use for logging.
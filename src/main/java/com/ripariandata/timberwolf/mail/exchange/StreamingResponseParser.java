@@ -0,0 +1,394 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import com.microsoft.schemas.exchange.services.x2006.messages.ResponseCodeType;
+import com.ripariandata.timberwolf.writer.blob.BlobOutputStream;
+import com.ripariandata.timberwolf.writer.blob.BlobStore;
+import com.ripariandata.timberwolf.writer.blob.BlobStoreException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A ResponseParser that reads the response with a StAX pull parser as it
+ * comes off the wire, instead of building an XmlBeans document for it.
+ * <p/>
+ * This class finds the response element inside the SOAP envelope, and
+ * subclasses pick out the parts of the response they need from there,
+ * skipping everything else.  Anything that doesn't look like a normal
+ * response, such as a SOAP fault, results in an UnexpectedResponseException.
+ *
+ * @param <T> The type of the result.
+ */
+abstract class StreamingResponseParser<T> implements ResponseParser<T>
+{
+    static final String SOAP_NAMESPACE = "http://schemas.xmlsoap.org/soap/envelope/";
+    static final String MESSAGES_NAMESPACE = "http://schemas.microsoft.com/exchange/services/2006/messages";
+    static final String TYPES_NAMESPACE = "http://schemas.microsoft.com/exchange/services/2006/types";
+
+    private static final Logger LOG = LoggerFactory.getLogger(StreamingResponseParser.class);
+    private static final int CHUNK_SIZE = 8192;
+    /** The factory for all the stream readers that parse Exchange responses. */
+    static final XMLInputFactory FACTORY = createFactory(true);
+    /**
+     * A factory for stream readers that may hand out long text in pieces, for
+     * responses whose text is too big to hold in memory at once.
+     */
+    static final XMLInputFactory CHUNKED_FACTORY = createFactory(false);
+
+    private final String responseElement;
+    private final XMLInputFactory readerFactory;
+
+    /**
+     * @param responseElementName The local name of the element in the SOAP
+     * body that holds the response, such as "GetItemResponse".
+     */
+    StreamingResponseParser(final String responseElementName)
+    {
+        this(responseElementName, FACTORY);
+    }
+
+    /**
+     * @param responseElementName The local name of the element in the SOAP
+     * body that holds the response, such as "GetItemResponse".
+     * @param factory The factory to create the response's reader with.
+     */
+    StreamingResponseParser(final String responseElementName, final XMLInputFactory factory)
+    {
+        responseElement = responseElementName;
+        readerFactory = factory;
+    }
+
+    private static XMLInputFactory createFactory(final boolean coalescing)
+    {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, coalescing);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    @Override
+    public T parse(final InputStream response, final String charset) throws ServiceCallException
+    {
+        try
+        {
+            XMLStreamReader reader = readerFactory.createXMLStreamReader(response);
+            try
+            {
+                T result = readEnvelope(reader);
+                // Read the rest of the envelope, so the whole response is
+                // accounted for and the connection is left at the end of it.
+                while (reader.hasNext())
+                {
+                    reader.next();
+                }
+                return result;
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+        catch (XMLStreamException e)
+        {
+            throw new UnexpectedResponseException("The streaming parser could not read the response.", e);
+        }
+    }
+
+    private T readEnvelope(final XMLStreamReader reader) throws XMLStreamException, ServiceCallException
+    {
+        reader.nextTag();
+        if (!isElement(reader, SOAP_NAMESPACE, "Envelope"))
+        {
+            throw new UnexpectedResponseException("Response was not a SOAP envelope.");
+        }
+        while (nextChild(reader))
+        {
+            if (isElement(reader, SOAP_NAMESPACE, "Body"))
+            {
+                if (!nextChild(reader))
+                {
+                    throw new UnexpectedResponseException("SOAP response had an empty body.");
+                }
+                if (!isElement(reader, MESSAGES_NAMESPACE, responseElement))
+                {
+                    throw new UnexpectedResponseException("SOAP response contained " + reader.getLocalName()
+                                                          + " instead of " + responseElement + ".");
+                }
+                return readResponse(reader);
+            }
+            skipElement(reader);
+        }
+        throw new UnexpectedResponseException("SOAP response did not contain a body.");
+    }
+
+    /**
+     * Reads the response element.
+     *
+     * @param reader A reader positioned at the start of the response element.
+     * It must be left at the end of the response element.
+     * @return The result of the service call.
+     * @throws XMLStreamException If the response couldn't be read.
+     * @throws ServiceCallException If the response contained an error.
+     */
+    abstract T readResponse(XMLStreamReader reader) throws XMLStreamException, ServiceCallException;
+
+    /**
+     * Reads a ResponseCode element, and throws if it holds anything but NoError.
+     * The exception carries the back off hint from the response message's
+     * MessageXml, if there is one.
+     */
+    static void checkResponseCode(final XMLStreamReader reader) throws XMLStreamException, ServiceCallException
+    {
+        String code = reader.getElementText().trim();
+        ResponseCodeType.Enum errorCode = ResponseCodeType.Enum.forString(code);
+        if (errorCode == null)
+        {
+            throw new UnexpectedResponseException("SOAP response contained an unknown response code " + code + ".");
+        }
+        if (errorCode != ResponseCodeType.NO_ERROR)
+        {
+            LOG.debug(errorCode.toString());
+            // The rest of the response message may hold a hint about when
+            // to try again.
+            long backOff = 0;
+            while (nextChild(reader))
+            {
+                if (isElement(reader, MESSAGES_NAMESPACE, "MessageXml"))
+                {
+                    backOff = BackOffHint.readMessageXml(reader);
+                }
+                else
+                {
+                    skipElement(reader);
+                }
+            }
+            throw new ServiceCallException(errorCode, "SOAP response contained an error.", backOff);
+        }
+    }
+
+    /** Reads an element holding an xs:boolean. */
+    static boolean readBoolean(final XMLStreamReader reader) throws XMLStreamException
+    {
+        String value = reader.getElementText().trim();
+        if (value.equals("true") || value.equals("1"))
+        {
+            return true;
+        }
+        if (value.equals("false") || value.equals("0"))
+        {
+            return false;
+        }
+        throw new XMLStreamException("Invalid boolean value " + value + ".", reader.getLocation());
+    }
+
+    /** Reads the text of an element as a whole number, such as an item's Size. */
+    static long readLong(final XMLStreamReader reader) throws XMLStreamException
+    {
+        String value = reader.getElementText().trim();
+        try
+        {
+            return Long.parseLong(value);
+        }
+        catch (NumberFormatException e)
+        {
+            throw new XMLStreamException("Invalid number " + value + ".", reader.getLocation(), e);
+        }
+    }
+
+    /**
+     * Moves to the next child of the current element.
+     *
+     * @return True if the reader is now at the start of a child element,
+     * false if it has reached the end of the current element instead.
+     */
+    static boolean nextChild(final XMLStreamReader reader) throws XMLStreamException
+    {
+        while (reader.hasNext())
+        {
+            int event = reader.next();
+            if (event == XMLStreamReader.START_ELEMENT)
+            {
+                return true;
+            }
+            if (event == XMLStreamReader.END_ELEMENT)
+            {
+                return false;
+            }
+        }
+        throw new XMLStreamException("Response ended in the middle of an element.", reader.getLocation());
+    }
+
+    /** Moves past the end of the element the reader is at the start of. */
+    static void skipElement(final XMLStreamReader reader) throws XMLStreamException
+    {
+        int depth = 1;
+        while (depth > 0)
+        {
+            int event = reader.next();
+            if (event == XMLStreamReader.START_ELEMENT)
+            {
+                depth++;
+            }
+            else if (event == XMLStreamReader.END_ELEMENT)
+            {
+                depth--;
+            }
+        }
+    }
+
+    /** Returns true if the reader is at the start of the given element. */
+    static boolean isElement(final XMLStreamReader reader, final String namespace, final String localName)
+    {
+        return localName.equals(reader.getLocalName()) && namespace.equals(reader.getNamespaceURI());
+    }
+
+    /**
+     * Decodes the base64 text of an element into a new blob, a piece at a
+     * time, leaving the reader at the end of the element.  The reader should
+     * come from CHUNKED_FACTORY, so the text is never in memory whole.
+     *
+     * @param reader A reader positioned at the start of the element.
+     * @param store The store to put the blob in.
+     * @param what What the content is, for logging.
+     * @return The hash the blob was stored as.
+     * @throws XMLStreamException If the element has anything but text in it.
+     */
+    static String storeBase64(final XMLStreamReader reader, final BlobStore store, final String what)
+            throws XMLStreamException
+    {
+        BlobOutputStream blob = store.create();
+        try
+        {
+            decodeBase64(reader, blob, what);
+            String hash = blob.commit();
+            LOG.debug("Stored {} as {}.", what, hash);
+            return hash;
+        }
+        catch (IOException e)
+        {
+            throw BlobStoreException.log(LOG, new BlobStoreException("Could not store " + what + ".", e));
+        }
+        finally
+        {
+            blob.abort();
+        }
+    }
+
+    /**
+     * Decodes the base64 text of an element into a stream, a piece at a time,
+     * leaving the reader at the end of the element.  The reader should come
+     * from CHUNKED_FACTORY, so the text is never in memory whole.  The
+     * stream is left open.
+     *
+     * @param reader A reader positioned at the start of the element.
+     * @param out The stream to write the decoded content to.
+     * @param what What the content is, for errors.
+     * @throws XMLStreamException If the element has anything but text in it.
+     * @throws IOException If the content couldn't be written.
+     */
+    static void decodeBase64(final XMLStreamReader reader, final OutputStream out, final String what)
+            throws XMLStreamException, IOException
+    {
+        Base64DecodingWriter decoder = new Base64DecodingWriter(out);
+        char[] chunk = new char[CHUNK_SIZE];
+        while (reader.next() != XMLStreamConstants.END_ELEMENT)
+        {
+            if (reader.isCharacters())
+            {
+                copyText(reader, chunk, decoder);
+            }
+            else if (reader.isStartElement())
+            {
+                throw new XMLStreamException("Unexpected element in " + what + ".", reader.getLocation());
+            }
+        }
+        decoder.close();
+    }
+
+    /**
+     * Reads the text of an element, keeping at most the given number of
+     * characters of it, and leaves the reader at the end of the element.
+     * With a reader from CHUNKED_FACTORY, the text past the limit is never
+     * in memory whole.  A character made of two chars is never cut in half.
+     *
+     * @param reader A reader positioned at the start of the element.
+     * @param maxLength The most characters to keep, or 0 to keep them all.
+     * @param text The builder to append the kept text to.
+     * @return Whether any of the text was left out.
+     * @throws XMLStreamException If the element has anything but text in it.
+     */
+    static boolean readText(final XMLStreamReader reader, final int maxLength, final StringBuilder text)
+            throws XMLStreamException
+    {
+        int start = text.length();
+        boolean cut = false;
+        int event;
+        while ((event = reader.next()) != XMLStreamConstants.END_ELEMENT)
+        {
+            if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA
+                || event == XMLStreamConstants.SPACE)
+            {
+                int room = maxLength <= 0 ? Integer.MAX_VALUE : maxLength - (text.length() - start);
+                int length = reader.getTextLength();
+                if (length > room)
+                {
+                    cut = true;
+                    length = room;
+                }
+                text.append(reader.getTextCharacters(), reader.getTextStart(), length);
+            }
+            else if (event == XMLStreamConstants.START_ELEMENT)
+            {
+                throw new XMLStreamException("Unexpected element in text.", reader.getLocation());
+            }
+        }
+        if (cut && text.length() > start && Character.isHighSurrogate(text.charAt(text.length() - 1)))
+        {
+            text.setLength(text.length() - 1);
+        }
+        return cut;
+    }
+
+    /** Copies the current text event to the decoder, without making a string of it. */
+    private static void copyText(final XMLStreamReader reader, final char[] chunk, final Base64DecodingWriter decoder)
+            throws XMLStreamException, IOException
+    {
+        int start = 0;
+        int copied;
+        do
+        {
+            copied = reader.getTextCharacters(start, chunk, 0, chunk.length);
+            decoder.write(chunk, 0, copied);
+            start += copied;
+        }
+        while (copied == chunk.length);
+    }
+}
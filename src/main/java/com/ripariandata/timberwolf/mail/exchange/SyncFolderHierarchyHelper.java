@@ -0,0 +1,220 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import com.microsoft.schemas.exchange.services.x2006.messages.ResponseCodeType;
+import com.microsoft.schemas.exchange.services.x2006.messages.SyncFolderHierarchyType;
+import com.microsoft.schemas.exchange.services.x2006.types.DefaultShapeNamesType;
+import com.microsoft.schemas.exchange.services.x2006.types.DistinguishedFolderIdNameType;
+import com.ripariandata.timberwolf.writer.UserFolderSyncStateStorage;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Contains helper methods for SyncFolderHierarchy requests, which keep each
+ * user's list of folders up to date between runs.
+ * <p/>
+ * The folders found last time, and the hierarchy sync state they were found
+ * with, are kept in the UserFolderSyncStateStorage.  Each run only asks
+ * Exchange for the folders that were created or deleted since then, which
+ * for most users is nothing.
+ */
+public final class SyncFolderHierarchyHelper
+{
+    private static final Logger LOG = LoggerFactory.getLogger(SyncFolderHierarchyHelper.class);
+
+    /** Enforces not being able to create an instance. */
+    private SyncFolderHierarchyHelper()
+    {
+
+    }
+
+    /**
+     * Creates a SyncFolderHierarchyType to request the changes to the folders
+     * under the root of the user's mail folders.
+     *
+     * @param syncState The sync state to get the changes since, or null to
+     * get every folder.
+     * @return The SyncFolderHierarchyType for the changes since the given sync state.
+     */
+    static SyncFolderHierarchyType getSyncFolderHierarchyRequest(final String syncState)
+    {
+        SyncFolderHierarchyType syncFolderHierarchy = SyncFolderHierarchyType.Factory.newInstance();
+        syncFolderHierarchy.addNewFolderShape().setBaseShape(DefaultShapeNamesType.ID_ONLY);
+        syncFolderHierarchy.addNewSyncFolderId().addNewDistinguishedFolderId()
+                .setId(DistinguishedFolderIdNameType.MSGFOLDERROOT);
+        if (syncState != null && syncState.length() > 0)
+        {
+            syncFolderHierarchy.setSyncState(syncState);
+        }
+        return syncFolderHierarchy;
+    }
+
+    /**
+     * Gets the ids of all the user's mail folders, bringing the stored list
+     * of them up to date.
+     *
+     * @param exchangeService The Exchange service to use.
+     * @param config The configuration with the sync state storage and retry policy.
+     * @param targetUser The user whose folders to get.
+     * @return A queue of the ids of all the folders.
+     * @throws ServiceCallException If the Exchange service could not be connected to.
+     * @throws HttpErrorException If the response could not be parsed.
+     */
+    static Queue<String> syncFolders(final ExchangeService exchangeService, final Configuration config,
+                                     final String targetUser)
+            throws ServiceCallException, HttpErrorException
+    {
+        UserFolderSyncStateStorage storage = config.getSyncStateStorage();
+        String oldSyncState = storage.getLastHierarchySyncState(targetUser);
+        Set<String> folders = new LinkedHashSet<String>();
+        if (oldSyncState != null && storage.getFolders(targetUser) != null)
+        {
+            folders.addAll(storage.getFolders(targetUser));
+        }
+        else
+        {
+            oldSyncState = null;
+        }
+
+        String syncState = oldSyncState;
+        while (true)
+        {
+            FolderHierarchyResult result;
+            try
+            {
+                result = syncFolderHierarchy(exchangeService, config, targetUser, syncState);
+            }
+            catch (ServiceCallException e)
+            {
+                if (syncState == null || e.getSoapError() != ResponseCodeType.ERROR_INVALID_SYNC_STATE_DATA)
+                {
+                    throw e;
+                }
+                LOG.warn("The stored folder hierarchy sync state for {} is no longer valid, "
+                         + "so all of their folders will be found again.", targetUser);
+                folders.clear();
+                syncState = null;
+                oldSyncState = null;
+                continue;
+            }
+            folders.addAll(result.getCreatedFolderIds());
+            folders.removeAll(result.getDeletedFolderIds());
+            syncState = result.getSyncState();
+            LOG.debug("Found {} new and {} deleted folders for {}.",
+                      new Object[] {result.getCreatedFolderIds().size(), result.getDeletedFolderIds().size(),
+                                    targetUser});
+            if (result.includesLastFolder())
+            {
+                break;
+            }
+        }
+
+        if (syncState != null && !syncState.equals(oldSyncState))
+        {
+            storage.setFolderHierarchy(targetUser, new ArrayList<String>(folders), syncState);
+        }
+        return new LinkedList<String>(folders);
+    }
+
+    private static FolderHierarchyResult syncFolderHierarchy(final ExchangeService exchangeService,
+                                                             final Configuration config, final String targetUser,
+                                                             final String syncState)
+            throws ServiceCallException, HttpErrorException
+    {
+        final SyncFolderHierarchyType request = getSyncFolderHierarchyRequest(syncState);
+        return config.getRetryPolicy().call(ExchangeService.SYNC_FOLDER_HIERARCHY,
+            new RetryPolicy.Call<FolderHierarchyResult>()
+            {
+                @Override
+                public FolderHierarchyResult call() throws ServiceCallException, HttpErrorException
+                {
+                    return exchangeService.syncFolderHierarchyStreaming(request, targetUser);
+                }
+            });
+    }
+
+    /** The result returned from syncing a user's folder hierarchy. */
+    public static final class FolderHierarchyResult
+    {
+        private final List<String> createdFolderIds = new ArrayList<String>();
+        private final List<String> deletedFolderIds = new ArrayList<String>();
+        private boolean includesLastFolder = true;
+        private String syncState;
+
+        FolderHierarchyResult(final String oldSyncState)
+        {
+            syncState = oldSyncState;
+        }
+
+        void addCreatedFolder(final String folderId)
+        {
+            createdFolderIds.add(folderId);
+        }
+
+        void addDeletedFolder(final String folderId)
+        {
+            deletedFolderIds.add(folderId);
+        }
+
+        /** The ids of the mail folders that were created, or changed, since the old sync state. */
+        public List<String> getCreatedFolderIds()
+        {
+            return createdFolderIds;
+        }
+
+        /** The ids of the folders that were deleted since the old sync state. */
+        public List<String> getDeletedFolderIds()
+        {
+            return deletedFolderIds;
+        }
+
+        /**
+         * The sync state returned by the request, or the one passed in if
+         * the response didn't have one.
+         */
+        public String getSyncState()
+        {
+            return syncState;
+        }
+
+        /** Whether the response had all of the changes, rather than just the first of them. */
+        public boolean includesLastFolder()
+        {
+            return includesLastFolder;
+        }
+
+        void setIncludesLastFolder(final boolean includesLastFolderFromResponse)
+        {
+            includesLastFolder = includesLastFolderFromResponse;
+        }
+
+        void setSyncState(final String newSyncState)
+        {
+            syncState = newSyncState;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import com.ripariandata.timberwolf.mail.exchange.SyncFolderHierarchyHelper.FolderHierarchyResult;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Streams the created and deleted folder ids and the sync state out of a
+ * SyncFolderHierarchy response.
+ * <p/>
+ * Only plain mail folders are kept out of the created and updated folders,
+ * just as FindFolder only returned those.  Calendar, contacts, tasks and
+ * search folders are skipped.
+ */
+class SyncFolderHierarchyResponseParser extends StreamingResponseParser<FolderHierarchyResult>
+{
+    private final String oldSyncState;
+
+    /**
+     * @param syncState The sync state sent with the request, which is kept
+     * if the response doesn't have a new one.
+     */
+    SyncFolderHierarchyResponseParser(final String syncState)
+    {
+        super("SyncFolderHierarchyResponse");
+        oldSyncState = syncState;
+    }
+
+    @Override
+    FolderHierarchyResult readResponse(final XMLStreamReader reader) throws XMLStreamException, ServiceCallException
+    {
+        FolderHierarchyResult result = new FolderHierarchyResult(oldSyncState);
+        while (nextChild(reader))
+        {
+            if (isElement(reader, MESSAGES_NAMESPACE, "ResponseMessages"))
+            {
+                while (nextChild(reader))
+                {
+                    readResponseMessage(reader, result);
+                }
+            }
+            else
+            {
+                skipElement(reader);
+            }
+        }
+        return result;
+    }
+
+    private static void readResponseMessage(final XMLStreamReader reader, final FolderHierarchyResult result)
+            throws XMLStreamException, ServiceCallException
+    {
+        while (nextChild(reader))
+        {
+            if (isElement(reader, MESSAGES_NAMESPACE, "ResponseCode"))
+            {
+                checkResponseCode(reader);
+            }
+            else if (isElement(reader, MESSAGES_NAMESPACE, "SyncState"))
+            {
+                result.setSyncState(reader.getElementText());
+            }
+            else if (isElement(reader, MESSAGES_NAMESPACE, "IncludesLastFolderInRange"))
+            {
+                result.setIncludesLastFolder(readBoolean(reader));
+            }
+            else if (isElement(reader, MESSAGES_NAMESPACE, "Changes"))
+            {
+                readChanges(reader, result);
+            }
+            else
+            {
+                skipElement(reader);
+            }
+        }
+    }
+
+    private static void readChanges(final XMLStreamReader reader, final FolderHierarchyResult result)
+            throws XMLStreamException
+    {
+        while (nextChild(reader))
+        {
+            // A folder that was moved or renamed comes as an Update, and is
+            // kept just like a new one.
+            if (isElement(reader, TYPES_NAMESPACE, "Create") || isElement(reader, TYPES_NAMESPACE, "Update"))
+            {
+                while (nextChild(reader))
+                {
+                    if (isElement(reader, TYPES_NAMESPACE, "Folder"))
+                    {
+                        String id = readFolderId(reader);
+                        if (id != null)
+                        {
+                            result.addCreatedFolder(id);
+                        }
+                    }
+                    else
+                    {
+                        skipElement(reader);
+                    }
+                }
+            }
+            else if (isElement(reader, TYPES_NAMESPACE, "Delete"))
+            {
+                String id = readFolderId(reader);
+                if (id != null)
+                {
+                    result.addDeletedFolder(id);
+                }
+            }
+            else
+            {
+                skipElement(reader);
+            }
+        }
+    }
+
+    /** Reads the FolderId out of the current element, skipping everything else in it. */
+    private static String readFolderId(final XMLStreamReader reader) throws XMLStreamException
+    {
+        String id = null;
+        while (nextChild(reader))
+        {
+            if (isElement(reader, TYPES_NAMESPACE, "FolderId"))
+            {
+                id = reader.getAttributeValue(null, "Id");
+            }
+            skipElement(reader);
+        }
+        return id;
+    }
+}
@@ -25,7 +25,9 @@
 /**
  * Runs a GetItemIterator over many ids, retrieved more efficiently with syncFolderItems.
  * <p/>
- * This class pages the calls to syncFolderItems.
+ * This class pages the calls to syncFolderItems.  Deletions and read flag
+ * changes from each page are handed out before the page's new and updated
+ * items are fetched.
  */
 public class SyncFolderItemIterator extends BaseChainIterator<MailboxItem>
 {
@@ -35,19 +37,43 @@ public class SyncFolderItemIterator extends BaseChainIterator<MailboxItem>
     private FolderContext folder;
     private boolean retrievedLastItem;
     private String syncState;
+    private ItemPageSizer pageSizer;
+    /** The items to fetch after the current page's changes have been handed out. */
+    private Iterator<MailboxItem> pendingItems;
 
     public SyncFolderItemIterator(final ExchangeService exchangeService,
                                   final Configuration configuration,
                                   final FolderContext folderContext)
+    {
+        this(exchangeService, configuration, folderContext, new ItemPageSizer(configuration));
+    }
+
+    /**
+     * @param exchangeService The service to get the items with.
+     * @param configuration The configuration to use.
+     * @param folderContext The folder to sync.
+     * @param itemPageSizer Picks the size of each GetItem page, and is shared by all the user's folders.
+     */
+    public SyncFolderItemIterator(final ExchangeService exchangeService,
+                                  final Configuration configuration,
+                                  final FolderContext folderContext,
+                                  final ItemPageSizer itemPageSizer)
     {
         service = exchangeService;
         config = configuration;
         folder = folderContext;
+        pageSizer = itemPageSizer;
     }
 
     @Override
     protected Iterator<MailboxItem> createIterator()
     {
+        if (pendingItems != null)
+        {
+            Iterator<MailboxItem> items = pendingItems;
+            pendingItems = null;
+            return items;
+        }
         try
         {
             if (syncState == null)
@@ -65,20 +91,32 @@ protected Iterator<MailboxItem> createIterator()
             {
                 return null;
             }
-            SyncFolderItemsHelper.SyncFolderItemsResult result =
-                    SyncFolderItemsHelper.syncFolderItems(service, config, folder);
+            SyncFolderItemsHelper.SyncFolderItemsResult result = config.getRetryPolicy().call(
+                ExchangeService.SYNC_FOLDER_ITEMS, new RetryPolicy.Call<SyncFolderItemsHelper.SyncFolderItemsResult>()
+                {
+                    @Override
+                    public SyncFolderItemsHelper.SyncFolderItemsResult call()
+                            throws ServiceCallException, HttpErrorException
+                    {
+                        return SyncFolderItemsHelper.syncFolderItems(service, config, folder);
+                    }
+                });
             syncState = result.getSyncState();
-            LOG.debug("Got {} email ids, which were {}the last of them.", result.getIds().size(),
-                      result.includesLastItem() ? "" : "not ");
+            LOG.debug("Got {} email ids and {} other changes, which were {}the last of them.",
+                      new Object[] {result.getIds().size(), result.getChanges().size(),
+                                    result.includesLastItem() ? "" : "not "});
             retrievedLastItem = result.includesLastItem();
+            Iterator<MailboxItem> items = null;
             if (result.getIds().size() > 0)
             {
-                return new GetItemIterator(service, result.getIds(), config, folder);
+                items = new GetItemIterator(service, result.getIds(), config, folder, pageSizer);
             }
-            else
+            if (result.getChanges().size() > 0)
             {
-                return null;
+                pendingItems = items;
+                return result.getChanges().iterator();
             }
+            return items;
         }
         catch (ServiceCallException e)
         {
@@ -23,7 +23,16 @@
 import com.microsoft.schemas.exchange.services.x2006.messages.SyncFolderItemsResponseType;
 import com.microsoft.schemas.exchange.services.x2006.messages.SyncFolderItemsType;
 import com.microsoft.schemas.exchange.services.x2006.types.DefaultShapeNamesType;
+import com.microsoft.schemas.exchange.services.x2006.types.ItemResponseShapeType;
+import com.microsoft.schemas.exchange.services.x2006.types.MessageType;
+import com.microsoft.schemas.exchange.services.x2006.types.SyncFolderItemsChangesType;
 import com.microsoft.schemas.exchange.services.x2006.types.SyncFolderItemsCreateOrUpdateType;
+import com.microsoft.schemas.exchange.services.x2006.types.SyncFolderItemsDeleteType;
+import com.microsoft.schemas.exchange.services.x2006.types.SyncFolderItemsReadFlagType;
+import com.microsoft.schemas.exchange.services.x2006.types.UnindexedFieldURIType;
+import com.ripariandata.timberwolf.mail.MailboxItem;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Vector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -54,11 +63,43 @@ private SyncFolderItemsHelper()
      *         the given folder since the given sync state.
      */
     public static SyncFolderItemsType getSyncFolderItemsRequest(final Configuration config, final FolderContext folder)
+    {
+        return getSyncFolderItemsRequest(config, folder, folder.getSyncStateToken());
+    }
+
+    /**
+     * Creates a SyncFolderItemsType to request the new items under the given
+     * folder context since a sync state that hasn't been stored yet.
+     *
+     * @param config The configuration for this instance of Timberwolf.
+     * @param folder The current folder being searched.
+     * @param syncState The sync state to get the changes since.
+     * @return The SyncFolderItemsType necessary to request new items from
+     *         the given folder since the given sync state.
+     */
+    static SyncFolderItemsType getSyncFolderItemsRequest(final Configuration config, final FolderContext folder,
+                                                         final String syncState)
     {
         SyncFolderItemsType syncFolderItems = SyncFolderItemsType.Factory.newInstance();
-        syncFolderItems.addNewItemShape().setBaseShape(DefaultShapeNamesType.ID_ONLY);
+        ItemResponseShapeType shape = syncFolderItems.addNewItemShape();
+        shape.setBaseShape(DefaultShapeNamesType.ID_ONLY);
+        if (config.isMetadataOnly())
+        {
+            // Everything the items are written with comes back with the sync, so they're never fetched.
+            for (UnindexedFieldURIType.Enum field
+                    : ExchangeEmail.getFieldUris(ExchangeEmail.withoutContent(config.getRequiredHeaders())))
+            {
+                GetItemHelper.addProperty(shape, field);
+            }
+        }
+        else if (config.getMessageDeduplicator() != null)
+        {
+            // Enough to recognize copies of the same message in other mailboxes.
+            GetItemHelper.addProperty(shape, UnindexedFieldURIType.MESSAGE_INTERNET_MESSAGE_ID);
+            GetItemHelper.addProperty(shape, UnindexedFieldURIType.ITEM_SIZE);
+        }
         syncFolderItems.setSyncFolderId(folder.getTargetFolder());
-        syncFolderItems.setSyncState(folder.getSyncStateToken());
+        syncFolderItems.setSyncState(syncState);
         syncFolderItems.setMaxChangesReturned(Math.min(MAX_SYNC_COUNT, config.getIdPageSize()));
         return syncFolderItems;
     }
@@ -76,7 +117,35 @@ public static SyncFolderItemsResult syncFolderItems(final ExchangeService exchan
                                                         final FolderContext folder)
             throws ServiceCallException, HttpErrorException
     {
-        return syncFolderItems(exchangeService, getSyncFolderItemsRequest(config, folder), folder.getUser(), folder);
+        return syncFolderItems(exchangeService, config, folder, folder.getSyncStateToken());
+    }
+
+    /**
+     * Gets a list of the new ids for the given folder of the current user,
+     * since a sync state that hasn't been stored yet.
+     *
+     * @param exchangeService The actual service to use when requesting ids.
+     * @param config The configuration for this instance of Timberwolf.
+     * @param folder The folder to sync.
+     * @param syncState The sync state to get the changes since.
+     * @return The SyncFolderItems result returned from Exchange.
+     */
+    static SyncFolderItemsResult syncFolderItems(final ExchangeService exchangeService, final Configuration config,
+                                                 final FolderContext folder, final String syncState)
+            throws ServiceCallException, HttpErrorException
+    {
+        SyncFolderItemsResult result = syncFolderItems(exchangeService,
+                                                       getSyncFolderItemsRequest(config, folder, syncState),
+                                                       folder.getUser(), syncState, config.isMetadataOnly());
+        MessageDeduplicator deduplicator = config.getMessageDeduplicator();
+        if (deduplicator != null)
+        {
+            for (String id : result.getIds())
+            {
+                deduplicator.recordSynced(id, result.getMessageKeys().get(id));
+            }
+        }
+        return result;
     }
 
     /**
@@ -85,14 +154,29 @@ public static SyncFolderItemsResult syncFolderItems(final ExchangeService exchan
      * @param exchangeService The actual service to use when requesting ids.
      * @param syncFolderItemsRequest The request to send to exchange.
      * @param targetUser The user to impersonate for this request.
-     * @param folder The folder to sync.
+     * @param oldSyncState The sync state the request was made with.
+     * @param metadataOnly Whether the new items are built from the response,
+     * instead of being returned as ids to fetch.
      * @return The SyncFolderItems result return from Exchange.
      */
     private static SyncFolderItemsResult syncFolderItems(final ExchangeService exchangeService,
                                                          final SyncFolderItemsType syncFolderItemsRequest,
-                                                         final String targetUser, final FolderContext folder)
+                                                         final String targetUser, final String oldSyncState,
+                                                         final boolean metadataOnly)
             throws ServiceCallException, HttpErrorException
     {
+        if (exchangeService.isStreamingParserEnabled())
+        {
+            try
+            {
+                return exchangeService.syncFolderItemsStreaming(syncFolderItemsRequest, targetUser, metadataOnly);
+            }
+            catch (UnexpectedResponseException e)
+            {
+                LOG.debug("Could not stream the sync folder items response, requesting it again without streaming.",
+                          e);
+            }
+        }
         SyncFolderItemsResponseType response = exchangeService.syncFolderItems(syncFolderItemsRequest, targetUser);
         if (response == null)
         {
@@ -101,7 +185,7 @@ private static SyncFolderItemsResult syncFolderItems(final ExchangeService excha
             throw new ServiceCallException(ServiceCallException.Reason.OTHER, "Null response from Exchange service.");
         }
         ArrayOfResponseMessagesType array = response.getResponseMessages();
-        SyncFolderItemsResult result = new SyncFolderItemsResult(folder.getSyncStateToken());
+        SyncFolderItemsResult result = new SyncFolderItemsResult(oldSyncState);
         boolean hasMessages = false;
         for (SyncFolderItemsResponseMessageType message : array.getSyncFolderItemsResponseMessageArray())
         {
@@ -110,7 +194,8 @@ private static SyncFolderItemsResult syncFolderItems(final ExchangeService excha
             if (errorCode != null && errorCode != ResponseCodeType.NO_ERROR)
             {
                 LOG.debug(errorCode.toString());
-                throw new ServiceCallException(errorCode, "SOAP response contained an error.");
+                throw new ServiceCallException(errorCode, "SOAP response contained an error.",
+                                               BackOffHint.fromMessageXml(message.getMessageXml()));
             }
             if (message.isSetSyncState())
             {
@@ -123,13 +208,18 @@ private static SyncFolderItemsResult syncFolderItems(final ExchangeService excha
 
             if (message.isSetChanges())
             {
-                // There's also Update and Delete arrays, but we're not dealing with them yet
-                for (SyncFolderItemsCreateOrUpdateType create : message.getChanges().getCreateArray())
+                SyncFolderItemsChangesType changes = message.getChanges();
+                addItems(result, changes.getCreateArray(), metadataOnly);
+                // An updated item is fetched again in full, just like a new one.
+                addItems(result, changes.getUpdateArray(), metadataOnly);
+                for (SyncFolderItemsDeleteType delete : changes.getDeleteArray())
                 {
-                    if (create.isSetMessage() && create.getMessage().isSetItemId())
-                    {
-                        result.getIds().add(create.getMessage().getItemId().getId());
-                    }
+                    result.addChange(ExchangeEmail.deleted(delete.getItemId().getId()));
+                }
+                for (SyncFolderItemsReadFlagType readFlag : changes.getReadFlagChangeArray())
+                {
+                    result.addChange(ExchangeEmail.readFlagChanged(readFlag.getItemId().getId(),
+                                                                   readFlag.getIsRead()));
                 }
             }
         }
@@ -142,25 +232,95 @@ private static SyncFolderItemsResult syncFolderItems(final ExchangeService excha
         return result;
     }
 
+    private static void addItems(final SyncFolderItemsResult result, final SyncFolderItemsCreateOrUpdateType[] items,
+                                 final boolean metadataOnly)
+    {
+        for (SyncFolderItemsCreateOrUpdateType change : items)
+        {
+            if (change.isSetMessage() && change.getMessage().isSetItemId())
+            {
+                MessageType item = change.getMessage();
+                if (metadataOnly)
+                {
+                    result.addChange(new ExchangeEmail(item));
+                }
+                else
+                {
+                    result.addItem(item.getItemId().getId(),
+                                   item.isSetInternetMessageId() ? item.getInternetMessageId() : null,
+                                   item.isSetSize() ? item.getSize() : -1);
+                }
+            }
+        }
+    }
+
     /** The result returned from syncing a folder's items. */
     public static final class SyncFolderItemsResult
     {
         private final Vector<String> ids;
+        private final Map<String, String> messageKeys;
+        private final Vector<MailboxItem> changes;
         private boolean includesLastItem;
         private String syncState;
 
-        private SyncFolderItemsResult(final String oldSyncState)
+        SyncFolderItemsResult(final String oldSyncState)
         {
             ids = new Vector<String>();
+            messageKeys = new HashMap<String, String>();
+            changes = new Vector<MailboxItem>();
             syncState = oldSyncState;
         }
 
-        /** The ids returned by the sync request. */
+        /**
+         * Adds a new item to the result.
+         *
+         * @param id The Exchange id of the item.
+         * @param internetMessageId The item's Internet message id, or null if it wasn't asked for.
+         * @param size The item's size in bytes, or -1 if it wasn't asked for.
+         */
+        void addItem(final String id, final String internetMessageId, final long size)
+        {
+            ids.add(id);
+            String key = MessageDeduplicator.getMessageKey(internetMessageId, size);
+            if (key != null)
+            {
+                messageKeys.put(id, key);
+            }
+        }
+
+        /**
+         * Adds a change that is handed out as it is, without fetching the item.
+         *
+         * @param change The deletion or read flag change, or the whole item
+         * when only metadata is crawled.
+         */
+        void addChange(final MailboxItem change)
+        {
+            changes.add(change);
+        }
+
+        /** The ids of the new and updated items returned by the sync request, which need to be fetched. */
         public Vector<String> getIds()
         {
             return ids;
         }
 
+        /**
+         * The deletions and read flag changes returned by the sync request,
+         * along with the new items themselves when only metadata is crawled,
+         * in the order they came.
+         */
+        public Vector<MailboxItem> getChanges()
+        {
+            return changes;
+        }
+
+        /** The key of each new item's message, by item id, for the items that have one. */
+        Map<String, String> getMessageKeys()
+        {
+            return messageKeys;
+        }
+
         /**
          * The sync state returned by the request.
          * If there was a problem, this will be the same sync state
@@ -184,12 +344,12 @@ public boolean includesLastItem()
             return includesLastItem;
         }
 
-        private void setIncludesLastItem(final boolean includesLastItemFromResponse)
+        void setIncludesLastItem(final boolean includesLastItemFromResponse)
         {
             includesLastItem = includesLastItemFromResponse;
         }
 
-        private void setSyncState(final String newSyncState)
+        void setSyncState(final String newSyncState)
         {
             syncState = newSyncState;
         }
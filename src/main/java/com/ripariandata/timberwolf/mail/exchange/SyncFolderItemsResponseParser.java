@@ -0,0 +1,231 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import com.ripariandata.timberwolf.mail.exchange.SyncFolderItemsHelper.SyncFolderItemsResult;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Streams the changed items and sync state out of a SyncFolderItems response. */
+class SyncFolderItemsResponseParser extends StreamingResponseParser<SyncFolderItemsResult>
+{
+    private static final Logger LOG = LoggerFactory.getLogger(SyncFolderItemsResponseParser.class);
+
+    private final String oldSyncState;
+    private final boolean metadataOnly;
+
+    /**
+     * @param syncState The sync state sent with the request, which is kept
+     * if the response doesn't have a new one.
+     * @param itemsInResponse Whether new items are built from the properties
+     * in the response, instead of only their ids being read to fetch later.
+     */
+    SyncFolderItemsResponseParser(final String syncState, final boolean itemsInResponse)
+    {
+        super("SyncFolderItemsResponse");
+        oldSyncState = syncState;
+        metadataOnly = itemsInResponse;
+    }
+
+    @Override
+    SyncFolderItemsResult readResponse(final XMLStreamReader reader) throws XMLStreamException, ServiceCallException
+    {
+        SyncFolderItemsResult result = new SyncFolderItemsResult(oldSyncState);
+        boolean hasMessages = false;
+        while (nextChild(reader))
+        {
+            if (isElement(reader, MESSAGES_NAMESPACE, "ResponseMessages"))
+            {
+                while (nextChild(reader))
+                {
+                    hasMessages = true;
+                    readResponseMessage(reader, result);
+                }
+            }
+            else
+            {
+                skipElement(reader);
+            }
+        }
+        if (!hasMessages)
+        {
+            LOG.debug("Exchange responded without any messages");
+            // so that we don't keep calling over and over again
+            result.setIncludesLastItem(true);
+        }
+        return result;
+    }
+
+    private void readResponseMessage(final XMLStreamReader reader, final SyncFolderItemsResult result)
+            throws XMLStreamException, ServiceCallException
+    {
+        while (nextChild(reader))
+        {
+            if (isElement(reader, MESSAGES_NAMESPACE, "ResponseCode"))
+            {
+                checkResponseCode(reader);
+            }
+            else if (isElement(reader, MESSAGES_NAMESPACE, "SyncState"))
+            {
+                result.setSyncState(reader.getElementText());
+            }
+            else if (isElement(reader, MESSAGES_NAMESPACE, "IncludesLastItemInRange"))
+            {
+                result.setIncludesLastItem(readBoolean(reader));
+            }
+            else if (isElement(reader, MESSAGES_NAMESPACE, "Changes"))
+            {
+                readChanges(reader, result);
+            }
+            else
+            {
+                skipElement(reader);
+            }
+        }
+    }
+
+    private void readChanges(final XMLStreamReader reader, final SyncFolderItemsResult result)
+            throws XMLStreamException
+    {
+        while (nextChild(reader))
+        {
+            // An updated item is fetched again in full, just like a new one.
+            if (isElement(reader, TYPES_NAMESPACE, "Create") || isElement(reader, TYPES_NAMESPACE, "Update"))
+            {
+                while (nextChild(reader))
+                {
+                    if (isElement(reader, TYPES_NAMESPACE, "Message") && metadataOnly)
+                    {
+                        readMessage(reader, result);
+                    }
+                    else if (isElement(reader, TYPES_NAMESPACE, "Message"))
+                    {
+                        readMessageId(reader, result);
+                    }
+                    else
+                    {
+                        skipElement(reader);
+                    }
+                }
+            }
+            else if (isElement(reader, TYPES_NAMESPACE, "Delete"))
+            {
+                readDelete(reader, result);
+            }
+            else if (isElement(reader, TYPES_NAMESPACE, "ReadFlagChange"))
+            {
+                readReadFlagChange(reader, result);
+            }
+            else
+            {
+                skipElement(reader);
+            }
+        }
+    }
+
+    private static void readMessage(final XMLStreamReader reader, final SyncFolderItemsResult result)
+            throws XMLStreamException
+    {
+        ExchangeEmail email = new ExchangeEmail(reader);
+        if (email.getId() != null)
+        {
+            result.addChange(email);
+        }
+    }
+
+    private static void readMessageId(final XMLStreamReader reader, final SyncFolderItemsResult result)
+            throws XMLStreamException
+    {
+        String id = null;
+        String internetMessageId = null;
+        long size = -1;
+        while (nextChild(reader))
+        {
+            if (isElement(reader, TYPES_NAMESPACE, "ItemId"))
+            {
+                id = reader.getAttributeValue(null, "Id");
+                skipElement(reader);
+            }
+            else if (isElement(reader, TYPES_NAMESPACE, "InternetMessageId"))
+            {
+                internetMessageId = reader.getElementText();
+            }
+            else if (isElement(reader, TYPES_NAMESPACE, "Size"))
+            {
+                size = readLong(reader);
+            }
+            else
+            {
+                skipElement(reader);
+            }
+        }
+        if (id != null)
+        {
+            result.addItem(id, internetMessageId, size);
+        }
+    }
+
+    private static void readDelete(final XMLStreamReader reader, final SyncFolderItemsResult result)
+            throws XMLStreamException
+    {
+        String id = null;
+        while (nextChild(reader))
+        {
+            if (isElement(reader, TYPES_NAMESPACE, "ItemId"))
+            {
+                id = reader.getAttributeValue(null, "Id");
+            }
+            skipElement(reader);
+        }
+        if (id != null)
+        {
+            result.addChange(ExchangeEmail.deleted(id));
+        }
+    }
+
+    private static void readReadFlagChange(final XMLStreamReader reader, final SyncFolderItemsResult result)
+            throws XMLStreamException
+    {
+        String id = null;
+        boolean isRead = false;
+        while (nextChild(reader))
+        {
+            if (isElement(reader, TYPES_NAMESPACE, "ItemId"))
+            {
+                id = reader.getAttributeValue(null, "Id");
+                skipElement(reader);
+            }
+            else if (isElement(reader, TYPES_NAMESPACE, "IsRead"))
+            {
+                isRead = readBoolean(reader);
+            }
+            else
+            {
+                skipElement(reader);
+            }
+        }
+        if (id != null)
+        {
+            result.addChange(ExchangeEmail.readFlagChanged(id, isRead));
+        }
+    }
+}
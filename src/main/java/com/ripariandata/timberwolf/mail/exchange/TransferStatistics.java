@@ -0,0 +1,101 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps running totals of the bytes received from Exchange for each type of
+ * call, both as they came over the wire and after they were decompressed.
+ * For uncompressed responses the two are the same.
+ */
+public class TransferStatistics
+{
+    private final ConcurrentMap<String, Totals> totals = new ConcurrentHashMap<String, Totals>();
+
+    /**
+     * Adds a single response to the totals.
+     *
+     * @param callType The name of the call, such as "GetItem".
+     * @param compressedBytes The number of bytes read off the wire.
+     * @param uncompressedBytes The number of bytes after decompression.
+     */
+    void record(final String callType, final long compressedBytes, final long uncompressedBytes)
+    {
+        Totals callTotals = totals.get(callType);
+        if (callTotals == null)
+        {
+            totals.putIfAbsent(callType, new Totals());
+            callTotals = totals.get(callType);
+        }
+        callTotals.calls.incrementAndGet();
+        callTotals.compressed.addAndGet(compressedBytes);
+        callTotals.uncompressed.addAndGet(uncompressedBytes);
+    }
+
+    /** Returns the number of responses recorded for the given type of call. */
+    public long getCalls(final String callType)
+    {
+        Totals callTotals = totals.get(callType);
+        return callTotals == null ? 0 : callTotals.calls.get();
+    }
+
+    /** Returns the number of bytes that came over the wire for the given type of call. */
+    public long getCompressedBytes(final String callType)
+    {
+        Totals callTotals = totals.get(callType);
+        return callTotals == null ? 0 : callTotals.compressed.get();
+    }
+
+    /** Returns the number of bytes, once decompressed, received for the given type of call. */
+    public long getUncompressedBytes(final String callType)
+    {
+        Totals callTotals = totals.get(callType);
+        return callTotals == null ? 0 : callTotals.uncompressed.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Totals> entry : new TreeMap<String, Totals>(totals).entrySet())
+        {
+            if (builder.length() > 0)
+            {
+                builder.append("; ");
+            }
+            Totals callTotals = entry.getValue();
+            builder.append(String.format("%s: %d calls, %d bytes received, %d bytes uncompressed", entry.getKey(),
+                                         callTotals.calls.get(), callTotals.compressed.get(),
+                                         callTotals.uncompressed.get()));
+        }
+        return builder.toString();
+    }
+
+    /** The running totals for one type of call. */
+    private static final class Totals
+    {
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong compressed = new AtomicLong();
+        private final AtomicLong uncompressed = new AtomicLong();
+    }
+}
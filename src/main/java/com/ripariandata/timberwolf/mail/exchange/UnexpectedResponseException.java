@@ -0,0 +1,36 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+/**
+ * Thrown when a response from Exchange is laid out in a way that the
+ * streaming parsers don't handle.  The same request can be retried with the
+ * XmlBeans service calls, which handle every response the schema allows.
+ */
+public class UnexpectedResponseException extends ServiceCallException
+{
+    public UnexpectedResponseException(final String message)
+    {
+        super(Reason.OTHER, message);
+    }
+
+    public UnexpectedResponseException(final String message, final Throwable cause)
+    {
+        super(Reason.OTHER, message, cause);
+    }
+}
@@ -22,7 +22,7 @@
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-/** An iterator that runs FindFolderIterators for many users, flattening the results. */
+/** An iterator that runs FolderHierarchyIterators for many users, flattening the results. */
 public class UserIterator extends BaseChainIterator<MailboxItem>
 {
     private static final Logger LOG = LoggerFactory.getLogger(UserIterator.class);
@@ -46,7 +46,7 @@ protected Iterator<MailboxItem> createIterator()
             String user = users.next();
             try
             {
-                return new SafeIterator(user, new FindFolderIterator(service, config, user));
+                return new SafeIterator(user, new FolderHierarchyIterator(service, config, user));
             }
             catch (Exception e)
             {
@@ -0,0 +1,229 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * One request to Exchange and the response it got, as they went over the
+ * wire, for recording real traffic and replaying it later.
+ * <p/>
+ * In a file, each record is its length followed by the gzipped record, so
+ * a file that's cut off part way through, because the run was killed, still
+ * has every record before that point intact.
+ */
+final class WireRecord
+{
+    /** The version of the record format, written at the start of each record. */
+    private static final int VERSION = 1;
+    private static final String FILE_PREFIX = "exchange-wire-";
+    private static final String FILE_SUFFIX = ".rec";
+
+    private final String address;
+    private final byte[] request;
+    private final int responseCode;
+    private final String contentType;
+    private final String contentEncoding;
+    private final String retryAfter;
+    private final byte[] response;
+
+    /**
+     * @param url The address the request was sent to.
+     * @param requestBytes The request, before any compression.
+     * @param code The HTTP status code of the response.
+     * @param type The Content-Type header of the response, or null.
+     * @param encoding The Content-Encoding header of the response, or null.
+     * @param retry The Retry-After header of the response, or null.
+     * @param responseBytes The body of the response, as it came over the wire.
+     */
+    WireRecord(final String url, final byte[] requestBytes, final int code, final String type,
+               final String encoding, final String retry, final byte[] responseBytes)
+    {
+        address = url;
+        request = requestBytes;
+        responseCode = code;
+        contentType = type;
+        contentEncoding = encoding;
+        retryAfter = retry;
+        response = responseBytes;
+    }
+
+    String getAddress()
+    {
+        return address;
+    }
+
+    byte[] getRequest()
+    {
+        return request;
+    }
+
+    int getResponseCode()
+    {
+        return responseCode;
+    }
+
+    String getContentType()
+    {
+        return contentType;
+    }
+
+    String getContentEncoding()
+    {
+        return contentEncoding;
+    }
+
+    String getRetryAfter()
+    {
+        return retryAfter;
+    }
+
+    byte[] getResponse()
+    {
+        return response;
+    }
+
+    /**
+     * Writes this record to a recording.
+     *
+     * @return The number of bytes written.
+     */
+    int writeTo(final OutputStream out) throws IOException
+    {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(new GZIPOutputStream(compressed));
+        data.writeInt(VERSION);
+        data.writeUTF(address);
+        writeBytes(data, request);
+        data.writeInt(responseCode);
+        writeString(data, contentType);
+        writeString(data, contentEncoding);
+        writeString(data, retryAfter);
+        writeBytes(data, response);
+        data.close();
+
+        DataOutputStream framed = new DataOutputStream(out);
+        framed.writeInt(compressed.size());
+        compressed.writeTo(framed);
+        framed.flush();
+        return compressed.size() + Integer.SIZE / Byte.SIZE;
+    }
+
+    /**
+     * Reads the next record from a recording.
+     *
+     * @return The record, or null if the recording has ended.
+     * @throws IOException If the record can't be read, or is in a format this
+     * version of Timberwolf doesn't know.
+     */
+    static WireRecord readFrom(final InputStream in) throws IOException
+    {
+        DataInputStream framed = new DataInputStream(in);
+        int length;
+        try
+        {
+            length = framed.readInt();
+        }
+        catch (EOFException e)
+        {
+            return null;
+        }
+        byte[] compressed = new byte[length];
+        framed.readFully(compressed);
+
+        DataInputStream data = new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(compressed)));
+        int version = data.readInt();
+        if (version != VERSION)
+        {
+            throw new IOException("Unknown wire record version " + version + ".");
+        }
+        String url = data.readUTF();
+        byte[] requestBytes = readBytes(data);
+        int code = data.readInt();
+        String type = readString(data);
+        String encoding = readString(data);
+        String retry = readString(data);
+        byte[] responseBytes = readBytes(data);
+        return new WireRecord(url, requestBytes, code, type, encoding, retry, responseBytes);
+    }
+
+    /** The name of the recording file with the given number. */
+    static String fileName(final int index)
+    {
+        return String.format("%s%05d%s", FILE_PREFIX, index, FILE_SUFFIX);
+    }
+
+    /** The recording files in the given directory, in the order they were written. */
+    static List<File> listRecordings(final File directory)
+    {
+        List<File> recordings = new ArrayList<File>();
+        File[] files = directory.listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                if (file.isFile() && file.getName().startsWith(FILE_PREFIX) && file.getName().endsWith(FILE_SUFFIX))
+                {
+                    recordings.add(file);
+                }
+            }
+        }
+        Collections.sort(recordings);
+        return recordings;
+    }
+
+    private static void writeBytes(final DataOutputStream data, final byte[] bytes) throws IOException
+    {
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+    private static byte[] readBytes(final DataInputStream data) throws IOException
+    {
+        byte[] bytes = new byte[data.readInt()];
+        data.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeString(final DataOutputStream data, final String value) throws IOException
+    {
+        data.writeBoolean(value != null);
+        if (value != null)
+        {
+            data.writeUTF(value);
+        }
+    }
+
+    private static String readString(final DataInputStream data) throws IOException
+    {
+        return data.readBoolean() ? data.readUTF() : null;
+    }
+}
@@ -17,9 +17,13 @@
  */
 package com.ripariandata.timberwolf.services;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 import javax.naming.Context;
 import javax.naming.NamingEnumeration;
@@ -42,7 +46,11 @@
 public class LdapFetcher implements PrincipalFetcher
 {
     private static final Logger LOG = LoggerFactory.getLogger(PrincipalFetcher.class);
+    private static final String PRINCIPAL_ATTRIBUTE = "userPrincipalName";
+    private static final String HOME_SERVER_ATTRIBUTE = "msExchHomeServerName";
+    private static final String COMMON_NAME = "/cn=";
     private final String domainName;
+    private final Map<String, String> homeServers = new HashMap<String, String>();
 
     public LdapFetcher(final String aDomainName)
     {
@@ -65,9 +73,8 @@ public Iterable<String> getPrincipals() throws PrincipalFetchException
         List<String> rtnList = new LinkedList<String>();
         try
         {
-            String wantedAttribute = "userPrincipalName";
             String[] attributeFilter = {
-                    wantedAttribute
+                    PRINCIPAL_ATTRIBUTE, HOME_SERVER_ATTRIBUTE
             };
             SearchControls ctrl = new SearchControls();
             DirContext context = getInitialContext(defEnv);
@@ -79,14 +86,20 @@ public Iterable<String> getPrincipals() throws PrincipalFetchException
             {
                 SearchResult result = enumeration.next();
                 Attributes attribs = result.getAttributes();
-                Attribute attrib = attribs.get(wantedAttribute);
+                Attribute attrib = attribs.get(PRINCIPAL_ATTRIBUTE);
                 if (attrib != null)
                 {
+                    String homeServer = getHomeServer(attribs.get(HOME_SERVER_ATTRIBUTE));
                     NamingEnumeration<?> values =
                         ((BasicAttribute) attrib).getAll();
                     while (values.hasMore())
                     {
-                        rtnList.add(values.next().toString());
+                        String principal = values.next().toString();
+                        rtnList.add(principal);
+                        if (homeServer != null)
+                        {
+                            homeServers.put(principal, homeServer);
+                        }
                     }
                 }
             }
@@ -99,6 +112,31 @@ public Iterable<String> getPrincipals() throws PrincipalFetchException
         return rtnList;
     }
 
+    /**
+     * The mailbox server that holds each principal's mailbox, for the
+     * principals found by getPrincipals that have one.
+     */
+    public Map<String, String> getHomeServers()
+    {
+        return Collections.unmodifiableMap(homeServers);
+    }
+
+    /**
+     * Gets the server name out of a msExchHomeServerName value, which is the
+     * last part of a path like "/o=Org/ou=Group/cn=Configuration/cn=Servers/cn=MBX01".
+     */
+    static String getHomeServer(final Attribute attribute) throws NamingException
+    {
+        if (attribute == null || attribute.get() == null)
+        {
+            return null;
+        }
+        String path = attribute.get().toString();
+        int start = path.toLowerCase(Locale.ENGLISH).lastIndexOf(COMMON_NAME);
+        String server = start < 0 ? path : path.substring(start + COMMON_NAME.length());
+        return server.length() == 0 ? null : server.toLowerCase(Locale.ENGLISH);
+    }
+
     /**
      * This is just pulled out so it can be overridden for testing and
      * a mock object can be returned.
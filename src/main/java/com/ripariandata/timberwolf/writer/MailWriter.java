@@ -19,6 +19,8 @@
 
 import com.ripariandata.timberwolf.mail.MailboxItem;
 
+import java.util.Set;
+
 /**
  * MailWriter is an object that can take some MailboxItems and write them into
  * some repository.
@@ -27,4 +29,11 @@
 {
     /** Writes the given MailboxItems into the repository. */
     void write(Iterable<MailboxItem> mails);
+
+    /**
+     * Returns the MailboxItem header keys that this writer stores, so that
+     * mail stores can skip fetching anything else.  Headers not in this set
+     * may be missing from the items given to write.
+     */
+    Set<String> getRequiredHeaders();
 }
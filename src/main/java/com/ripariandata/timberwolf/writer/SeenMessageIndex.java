@@ -0,0 +1,49 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.writer;
+
+/**
+ * Remembers which messages have already been imported, across mailboxes
+ * and potentially across runs, so that a message sent to many users is only
+ * fetched and stored in full once.
+ * <p/>
+ * Messages are identified by a key made from their Internet message id and
+ * size, which are the same in every mailbox the message was delivered to.
+ */
+public interface SeenMessageIndex
+{
+    /**
+     * Returns the id of the item that was stored in full for the given
+     * message.
+     * @param messageKey The key of the message.
+     * @return The Exchange item id of the first copy of the message, or null
+     * if the message hasn't been seen.
+     */
+    String getFirstCopy(String messageKey);
+
+    /**
+     * Records the item that the given message has been stored in full as,
+     * unless another item already was.  This is atomic, even across runs
+     * sharing the index.
+     * @param messageKey The key of the message.
+     * @param itemId The Exchange item id of the copy that was stored.
+     * @return The Exchange item id of the first copy of the message, which
+     * is itemId unless another copy got there first.
+     */
+    String claimFirstCopy(String messageKey, String itemId);
+}
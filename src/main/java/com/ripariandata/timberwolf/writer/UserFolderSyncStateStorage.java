@@ -17,6 +17,8 @@
  */
 package com.ripariandata.timberwolf.writer;
 
+import java.util.List;
+
 /**
  * Stores all the sync states for all the folders for all the users,
  * potentially in a database or on disk.
@@ -41,4 +43,30 @@
      * @param syncState The sync state token.
      */
     void setSyncState(String user, String folderId, String syncState);
+
+    /**
+     * Returns the SyncState token for the last time the given user's list
+     * of folders was synced.
+     * @param user The user to check against.
+     * @return The last folder hierarchy sync state that was stored for the
+     * given user, or null if there isn't one.
+     */
+    String getLastHierarchySyncState(String user);
+
+    /**
+     * Returns the ids of the given user's folders, as they were when the
+     * last folder hierarchy sync state was stored.
+     * @param user The user to check against.
+     * @return The folder ids, or null if none have been stored.
+     */
+    List<String> getFolders(String user);
+
+    /**
+     * Set the list of folders in the given user's mailbox, and the
+     * hierarchy sync state token it's up to date with.
+     * @param user The user whose folders were synced.
+     * @param folderIds The ids of all of the user's folders.
+     * @param syncState The hierarchy sync state token.
+     */
+    void setFolderHierarchy(String user, List<String> folderIds, String syncState);
 }
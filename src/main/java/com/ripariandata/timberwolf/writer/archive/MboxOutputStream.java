@@ -0,0 +1,128 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.writer.archive;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The stream one message in an mbox file is written to.  Lines of the
+ * message that start with any number of '&gt;' followed by "From " are
+ * quoted with one more '&gt;', the way the mboxrd format does, so they
+ * can't be mistaken for the start of the next message, and can be
+ * unquoted again exactly.  Closing the stream ends the message with a
+ * blank line, but leaves the file open.
+ * <p/>
+ * Only the start of the current line is held back, so a message of any
+ * size goes through in constant memory.
+ */
+class MboxOutputStream extends OutputStream
+{
+    private static final byte[] FROM = {'F', 'r', 'o', 'm', ' '};
+    private static final int QUOTE = '>';
+    private static final int NEWLINE = '\n';
+
+    private final OutputStream out;
+    /** Whether the start of the current line is being held back. */
+    private boolean atLineStart = true;
+    /** The number of '>' held back at the start of the current line. */
+    private int quotes;
+    /** The number of bytes of "From " held back after the quotes. */
+    private int matched;
+    private int lastByte = NEWLINE;
+    private boolean closed;
+
+    /** @param output The mbox file to write the message to. */
+    MboxOutputStream(final OutputStream output)
+    {
+        out = output;
+    }
+
+    @Override
+    public void write(final int b) throws IOException
+    {
+        if (atLineStart)
+        {
+            if (matched == 0 && b == QUOTE)
+            {
+                quotes++;
+                return;
+            }
+            if (b == FROM[matched])
+            {
+                matched++;
+                if (matched == FROM.length)
+                {
+                    out.write(QUOTE);
+                    writeHeldBack();
+                }
+                return;
+            }
+            writeHeldBack();
+        }
+        out.write(b);
+        lastByte = b;
+        atLineStart = b == NEWLINE;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException
+    {
+        for (int i = off; i < off + len; i++)
+        {
+            write(b[i]);
+        }
+    }
+
+    /** Writes out the start of the line, once it's known not to need quoting. */
+    private void writeHeldBack() throws IOException
+    {
+        for (int i = 0; i < quotes; i++)
+        {
+            out.write(QUOTE);
+            lastByte = QUOTE;
+        }
+        out.write(FROM, 0, matched);
+        if (matched > 0)
+        {
+            lastByte = FROM[matched - 1];
+        }
+        quotes = 0;
+        matched = 0;
+        atLineStart = false;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (closed)
+        {
+            return;
+        }
+        closed = true;
+        if (atLineStart)
+        {
+            writeHeldBack();
+        }
+        if (lastByte != NEWLINE)
+        {
+            out.write(NEWLINE);
+        }
+        out.write(NEWLINE);
+    }
+}
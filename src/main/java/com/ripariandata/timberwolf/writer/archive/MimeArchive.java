@@ -0,0 +1,96 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.writer.archive;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.UUID;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An archive of the raw MIME content of mails, in a directory of a Hadoop
+ * file system, which can be HDFS or the local disk.
+ * <p/>
+ * Each user's mails are in gzipped mboxrd files under a directory named for
+ * the user, such as <tt>bkerr@example.com/1334102400000-abcdef....mbox.gz</tt>.
+ * A file is written to <tt>tmp</tt> first and renamed into place once it's
+ * complete, so a file is never seen half written.
+ * <p/>
+ * This class is safe to use from several threads at once, but each file
+ * it opens should only be written by one of them.
+ */
+public class MimeArchive
+{
+    private static final Logger LOG = LoggerFactory.getLogger(MimeArchive.class);
+    private static final String EXTENSION = ".mbox.gz";
+
+    private final FileSystem fs;
+    private final Path root;
+    private final Path temp;
+
+    /**
+     * @param fileSystem The file system to keep the archive on.
+     * @param directory The directory to keep the archive in.
+     */
+    public MimeArchive(final FileSystem fileSystem, final Path directory)
+    {
+        fs = fileSystem;
+        root = directory;
+        temp = new Path(directory, "tmp");
+    }
+
+    /**
+     * Creates an archive in the given directory.
+     *
+     * @param uri The directory, either a local path or a URI such as
+     * <tt>hdfs://namenode/timberwolf/mime</tt>.
+     * @return The archive.
+     */
+    public static MimeArchive create(final String uri)
+    {
+        try
+        {
+            FileSystem fileSystem = FileSystem.get(URI.create(uri), new Configuration());
+            return new MimeArchive(fileSystem, fileSystem.makeQualified(new Path(uri)));
+        }
+        catch (IOException e)
+        {
+            throw MimeArchiveException.log(LOG, new MimeArchiveException("Could not open the MIME archive at " + uri
+                                                                         + ".", e));
+        }
+    }
+
+    /**
+     * Starts a new file of the given user's mails.  Nothing is written until
+     * the first mail is added to it.
+     *
+     * @param user The principal name of the user the mails belong to.
+     * @return The file to add the mails to.
+     */
+    public MimeArchiveFile open(final String user)
+    {
+        String name = UUID.randomUUID().toString();
+        Path target = new Path(new Path(root, user), System.currentTimeMillis() + "-" + name + EXTENSION);
+        return new MimeArchiveFile(fs, new Path(temp, name), target);
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.writer.archive;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One gzipped mboxrd file in a MIME archive.  Mails are added to it one
+ * after another, and the file only shows up in the archive once it's
+ * committed.  Aborting it, or committing it without any mails, leaves
+ * nothing behind.
+ */
+public class MimeArchiveFile
+{
+    private static final Logger LOG = LoggerFactory.getLogger(MimeArchiveFile.class);
+    private static final String ENCODING = "US-ASCII";
+    private static final int BUFFER_SIZE = 65536;
+
+    private final FileSystem fs;
+    private final Path tempPath;
+    private final Path targetPath;
+    private final DateFormat fromDate;
+    private OutputStream out;
+    private int messageCount;
+    private boolean finished;
+
+    /**
+     * @param fileSystem The file system the archive is on.
+     * @param temp Where to write the file until it's complete.
+     * @param target Where the file goes once it's complete.
+     */
+    MimeArchiveFile(final FileSystem fileSystem, final Path temp, final Path target)
+    {
+        fs = fileSystem;
+        tempPath = temp;
+        targetPath = target;
+        // The date in the line that starts each message is in the form of asctime.
+        fromDate = new SimpleDateFormat("EEE MMM dd HH:mm:ss yyyy", Locale.US);
+        fromDate.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    /**
+     * Starts the next mail in the file.  The MIME content written to the
+     * stream is quoted as mboxrd needs, a line at a time, and closing the
+     * stream finishes the mail.
+     *
+     * @return The stream to write the mail's MIME content to.
+     * @throws IOException If the file couldn't be written.
+     */
+    public OutputStream newMessage() throws IOException
+    {
+        if (out == null)
+        {
+            out = new BufferedOutputStream(new GZIPOutputStream(fs.create(tempPath)), BUFFER_SIZE);
+        }
+        out.write(("From MAILER-DAEMON " + fromDate.format(new Date()) + "\n").getBytes(ENCODING));
+        messageCount++;
+        return new MboxOutputStream(out);
+    }
+
+    /** Returns the number of mails that have been started in the file. */
+    public int getMessageCount()
+    {
+        return messageCount;
+    }
+
+    /**
+     * Finishes the file and moves it into the archive.
+     *
+     * @throws IOException If the file couldn't be written or moved.
+     */
+    public void commit() throws IOException
+    {
+        if (out == null)
+        {
+            finished = true;
+            return;
+        }
+        out.close();
+        fs.mkdirs(targetPath.getParent());
+        if (!fs.rename(tempPath, targetPath))
+        {
+            throw new IOException("Could not move " + tempPath + " to " + targetPath + ".");
+        }
+        // If anything above failed, aborting still cleans up the temporary file.
+        finished = true;
+        LOG.debug("Archived {} mails in {}.", messageCount, targetPath);
+    }
+
+    /** Throws the file away, if it hasn't been committed. */
+    public void abort()
+    {
+        if (finished)
+        {
+            return;
+        }
+        finished = true;
+        if (out == null)
+        {
+            return;
+        }
+        try
+        {
+            out.close();
+        }
+        catch (IOException e)
+        {
+            // The file is being thrown away anyway.
+            LOG.debug("Could not close an aborted MIME archive file.", e);
+        }
+        try
+        {
+            fs.delete(tempPath, false);
+        }
+        catch (IOException e)
+        {
+            LOG.warn("Could not delete the unfinished MIME archive file " + tempPath + ".", e);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.writer.blob;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The stream a new blob is written to.  It works out the hash of the
+ * content as it's written, and hands the content to the store under that
+ * hash when it's committed.
+ */
+public abstract class BlobOutputStream extends OutputStream
+{
+    private static final Logger LOG = LoggerFactory.getLogger(BlobOutputStream.class);
+    private static final String ALGORITHM = "SHA-256";
+    private static final int BYTE_MASK = 0xFF;
+    private static final int HEX_BASE = 16;
+
+    private final OutputStream out;
+    private final MessageDigest digest;
+    private boolean finished;
+
+    /** @param output The stream that holds the content until it's stored. */
+    protected BlobOutputStream(final OutputStream output)
+    {
+        out = output;
+        digest = newDigest();
+    }
+
+    private static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance(ALGORITHM);
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            // Every JVM is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the lowercase hex SHA-256 hash of the given bytes, the way blobs
+     * are named.
+     */
+    public static String hash(final byte[] content)
+    {
+        return toHex(newDigest().digest(content));
+    }
+
+    private static String toHex(final byte[] bytes)
+    {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes)
+        {
+            String digits = Integer.toString(b & BYTE_MASK, HEX_BASE);
+            if (digits.length() == 1)
+            {
+                hex.append('0');
+            }
+            hex.append(digits);
+        }
+        return hex.toString();
+    }
+
+    @Override
+    public void write(final int b) throws IOException
+    {
+        out.write(b);
+        digest.update((byte) b);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException
+    {
+        out.write(b, off, len);
+        digest.update(b, off, len);
+    }
+
+    /**
+     * Finishes the blob and stores it.
+     *
+     * @return The hash that the blob is stored under.
+     * @throws IOException If the content couldn't be written.
+     */
+    public String commit() throws IOException
+    {
+        finished = true;
+        out.close();
+        String hash = toHex(digest.digest());
+        store(hash);
+        return hash;
+    }
+
+    /** Throws the blob away, if it hasn't been committed. */
+    public void abort()
+    {
+        if (finished)
+        {
+            return;
+        }
+        finished = true;
+        try
+        {
+            out.close();
+        }
+        catch (IOException e)
+        {
+            // The content is being thrown away anyway.
+            LOG.debug("Could not close an aborted blob.", e);
+        }
+        discard();
+    }
+
+    /** Closing a blob without committing it throws it away. */
+    @Override
+    public void close()
+    {
+        abort();
+    }
+
+    /**
+     * Moves the written content to where blobs with the given hash are kept,
+     * or drops it if that blob is already stored.
+     *
+     * @param hash The hash of the content.
+     * @throws IOException If the content couldn't be stored.
+     */
+    protected abstract void store(String hash) throws IOException;
+
+    /** Drops the written content. */
+    protected abstract void discard();
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.writer.blob;
+
+/**
+ * BlobStore keeps blobs of binary content, each named by the SHA-256 hash
+ * of its content, so content that's stored many times is only kept once.
+ * <p/>
+ * Blobs can also be found by an alias that's known before their content
+ * is, so that content which is already stored doesn't have to be fetched
+ * again to find out its hash.
+ * <p/>
+ * Implementations must be safe to use from several threads at once.
+ */
+public interface BlobStore
+{
+    /**
+     * Starts a new blob.  Whatever is written to it is stored once it's
+     * committed, and thrown away if it's aborted instead.
+     *
+     * @return The stream to write the blob's content to.
+     */
+    BlobOutputStream create();
+
+    /**
+     * Returns whether a blob with the given hash is stored.
+     *
+     * @param hash The lowercase hex SHA-256 hash of the blob's content.
+     * @return True if the blob is stored.
+     */
+    boolean contains(String hash);
+
+    /**
+     * Finds the blob that was given an alias.
+     *
+     * @param alias The alias.
+     * @return The hash of the blob with that alias, or null if there isn't one.
+     */
+    String find(String alias);
+
+    /**
+     * Gives a stored blob an alias, replacing the blob that had it before.
+     *
+     * @param alias The alias.
+     * @param hash The hash of the blob.
+     */
+    void alias(String alias, String hash);
+}
@@ -0,0 +1,238 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.writer.blob;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.util.UUID;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A BlobStore that keeps blobs as files in a directory of a Hadoop file
+ * system, which can be HDFS or the local disk.
+ * <p/>
+ * Each blob is at <tt>blobs/ab/abcdef...</tt> under the directory, where
+ * <tt>abcdef...</tt> is its hash.  Blobs are written to <tt>tmp</tt> first
+ * and renamed into place once they're complete, so a blob is never seen
+ * half written.  Each alias is a small file under <tt>aliases</tt>, named by
+ * the hash of the alias and holding the hash of its blob.
+ */
+public class FileSystemBlobStore implements BlobStore
+{
+    private static final Logger LOG = LoggerFactory.getLogger(FileSystemBlobStore.class);
+    private static final String ENCODING = "UTF-8";
+    private static final int FAN_OUT_LENGTH = 2;
+
+    private final FileSystem fs;
+    private final Path blobs;
+    private final Path aliases;
+    private final Path temp;
+
+    /**
+     * @param fileSystem The file system to keep blobs on.
+     * @param root The directory to keep blobs in.
+     */
+    public FileSystemBlobStore(final FileSystem fileSystem, final Path root)
+    {
+        fs = fileSystem;
+        blobs = new Path(root, "blobs");
+        aliases = new Path(root, "aliases");
+        temp = new Path(root, "tmp");
+    }
+
+    /**
+     * Creates a store in the given directory.
+     *
+     * @param uri The directory, either a local path or a URI such as
+     * <tt>hdfs://namenode/timberwolf/attachments</tt>.
+     * @return The store.
+     */
+    public static FileSystemBlobStore create(final String uri)
+    {
+        try
+        {
+            FileSystem fileSystem = FileSystem.get(URI.create(uri), new Configuration());
+            return new FileSystemBlobStore(fileSystem, fileSystem.makeQualified(new Path(uri)));
+        }
+        catch (IOException e)
+        {
+            throw BlobStoreException.log(LOG, new BlobStoreException("Could not open the blob store at " + uri
+                                                                     + ".", e));
+        }
+    }
+
+    private Path blobPath(final String hash)
+    {
+        return new Path(new Path(blobs, hash.substring(0, FAN_OUT_LENGTH)), hash);
+    }
+
+    private Path aliasPath(final String alias)
+    {
+        return new Path(aliases, BlobOutputStream.hash(encode(alias)));
+    }
+
+    private static byte[] encode(final String text)
+    {
+        try
+        {
+            return text.getBytes(ENCODING);
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            // Every JVM is required to support UTF-8.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Path newTempPath()
+    {
+        return new Path(temp, UUID.randomUUID().toString());
+    }
+
+    /** Moves a finished file into place, unless something else already put the same file there. */
+    private void moveIntoPlace(final Path from, final Path to) throws IOException
+    {
+        fs.mkdirs(to.getParent());
+        if (!fs.rename(from, to) && !fs.exists(to))
+        {
+            throw new IOException("Could not move " + from + " to " + to + ".");
+        }
+        // If another writer got there first, the rename leaves our copy behind.
+        fs.delete(from, false);
+    }
+
+    @Override
+    public BlobOutputStream create()
+    {
+        final Path tempPath = newTempPath();
+        try
+        {
+            return new BlobOutputStream(fs.create(tempPath))
+            {
+                @Override
+                protected void store(final String hash) throws IOException
+                {
+                    Path blobPath = blobPath(hash);
+                    if (fs.exists(blobPath))
+                    {
+                        LOG.debug("Blob {} is already stored.", hash);
+                        fs.delete(tempPath, false);
+                    }
+                    else
+                    {
+                        moveIntoPlace(tempPath, blobPath);
+                    }
+                }
+
+                @Override
+                protected void discard()
+                {
+                    try
+                    {
+                        fs.delete(tempPath, false);
+                    }
+                    catch (IOException e)
+                    {
+                        LOG.warn("Could not delete the unfinished blob " + tempPath + ".", e);
+                    }
+                }
+            };
+        }
+        catch (IOException e)
+        {
+            throw BlobStoreException.log(LOG, new BlobStoreException("Could not start a new blob at " + tempPath
+                                                                     + ".", e));
+        }
+    }
+
+    @Override
+    public boolean contains(final String hash)
+    {
+        try
+        {
+            return fs.exists(blobPath(hash));
+        }
+        catch (IOException e)
+        {
+            throw BlobStoreException.log(LOG, new BlobStoreException("Could not look for blob " + hash + ".", e));
+        }
+    }
+
+    @Override
+    public String find(final String alias)
+    {
+        Path path = aliasPath(alias);
+        try
+        {
+            if (!fs.exists(path))
+            {
+                return null;
+            }
+            BufferedReader in = new BufferedReader(new InputStreamReader(fs.open(path), ENCODING));
+            try
+            {
+                String hash = in.readLine();
+                // The blob may have been cleaned up since the alias was made.
+                return hash != null && contains(hash) ? hash : null;
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException e)
+        {
+            throw BlobStoreException.log(LOG, new BlobStoreException("Could not read alias " + alias + ".", e));
+        }
+    }
+
+    @Override
+    public void alias(final String alias, final String hash)
+    {
+        Path tempPath = newTempPath();
+        try
+        {
+            OutputStream out = fs.create(tempPath);
+            try
+            {
+                out.write(encode(hash));
+            }
+            finally
+            {
+                out.close();
+            }
+            Path path = aliasPath(alias);
+            // Renames don't replace existing files, so an old alias is removed first.
+            fs.delete(path, false);
+            moveIntoPlace(tempPath, path);
+        }
+        catch (IOException e)
+        {
+            throw BlobStoreException.log(LOG, new BlobStoreException("Could not write alias " + alias + ".", e));
+        }
+    }
+}
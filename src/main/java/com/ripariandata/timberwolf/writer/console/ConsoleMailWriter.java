@@ -20,6 +20,11 @@
 import com.ripariandata.timberwolf.mail.MailboxItem;
 import com.ripariandata.timberwolf.writer.MailWriter;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
 /**
  * Writes a series of mails to the console, for debugging purposes.
  *
@@ -29,6 +34,31 @@ public final class ConsoleMailWriter implements MailWriter
     private static final String BETWEEN_MAIL =
             "===========================================================";
 
+    /** The headers to print, or null to print every header each mail has. */
+    private final Set<String> headers;
+
+    /** Creates a writer that prints every header of each mail. */
+    public ConsoleMailWriter()
+    {
+        headers = null;
+    }
+
+    /** @param headerKeys The headers to print for each mail. */
+    public ConsoleMailWriter(final Set<String> headerKeys)
+    {
+        headers = Collections.unmodifiableSet(new HashSet<String>(headerKeys));
+    }
+
+    @Override
+    public Set<String> getRequiredHeaders()
+    {
+        if (headers == null)
+        {
+            return new HashSet<String>(Arrays.asList(MailboxItem.possibleHeaderKeys()));
+        }
+        return headers;
+    }
+
     @Override
     public void write(final Iterable<MailboxItem> mails)
     {
@@ -37,11 +67,14 @@ public void write(final Iterable<MailboxItem> mails)
             System.out.println(BETWEEN_MAIL);
             for (String key : mail.getHeaderKeys())
             {
-                System.out.print(key);
-                System.out.print(": ");
+                if (headers == null || headers.contains(key))
+                {
+                    System.out.print(key);
+                    System.out.print(": ");
 
-                String value = mail.getHeader(key);
-                System.out.println(value);
+                    String value = mail.getHeader(key);
+                    System.out.println(value);
+                }
             }
         }
     }
@@ -0,0 +1,55 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.writer.console;
+
+import com.ripariandata.timberwolf.writer.SeenMessageIndex;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A basic implementation of SeenMessageIndex that just keeps the index in
+ * memory, so messages are only recognized for the rest of the run.
+ */
+public class InMemorySeenMessageIndex implements SeenMessageIndex
+{
+    private Map<String, String> firstCopies;
+
+    public InMemorySeenMessageIndex()
+    {
+        firstCopies = new HashMap<String, String>();
+    }
+
+    @Override
+    public synchronized String getFirstCopy(final String messageKey)
+    {
+        return firstCopies.get(messageKey);
+    }
+
+    @Override
+    public synchronized String claimFirstCopy(final String messageKey, final String itemId)
+    {
+        String firstCopy = firstCopies.get(messageKey);
+        if (firstCopy == null)
+        {
+            firstCopies.put(messageKey, itemId);
+            return itemId;
+        }
+        return firstCopy;
+    }
+}
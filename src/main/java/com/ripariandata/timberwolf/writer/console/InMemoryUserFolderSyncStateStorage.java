@@ -19,7 +19,9 @@
 
 import com.ripariandata.timberwolf.writer.UserFolderSyncStateStorage;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -29,10 +31,14 @@
 public class InMemoryUserFolderSyncStateStorage implements UserFolderSyncStateStorage
 {
     private Map<String, Map<String, String>> syncStates;
+    private Map<String, String> hierarchySyncStates;
+    private Map<String, List<String>> folderLists;
 
     public InMemoryUserFolderSyncStateStorage()
     {
         syncStates = new HashMap<String, Map<String, String>>();
+        hierarchySyncStates = new HashMap<String, String>();
+        folderLists = new HashMap<String, List<String>>();
     }
 
     @Override
@@ -58,4 +64,23 @@ public void setSyncState(final String user, final String folderId, final String
         folders.put(folderId, syncState);
 
     }
+
+    @Override
+    public String getLastHierarchySyncState(final String user)
+    {
+        return hierarchySyncStates.get(user);
+    }
+
+    @Override
+    public List<String> getFolders(final String user)
+    {
+        return folderLists.get(user);
+    }
+
+    @Override
+    public void setFolderHierarchy(final String user, final List<String> folderIds, final String syncState)
+    {
+        folderLists.put(user, new ArrayList<String>(folderIds));
+        hierarchySyncStates.put(user, syncState);
+    }
 }
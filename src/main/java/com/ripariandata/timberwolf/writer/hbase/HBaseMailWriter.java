@@ -21,7 +21,11 @@
 import com.ripariandata.timberwolf.writer.MailWriter;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.util.Bytes;
@@ -40,6 +44,12 @@ public final class HBaseMailWriter implements MailWriter
     /** The column family to use for our headers. */
     private byte[] columnFamily;
 
+    /**
+     * The MailboxItem headers to store, including the row key header, or
+     * null to store every header each item has.
+     */
+    private Set<String> headers;
+
     /** The default column family to use if left unspecified. */
     public static final String DEFAULT_COLUMN_FAMILY = "h";
 
@@ -51,11 +61,18 @@ public final class HBaseMailWriter implements MailWriter
 
     private HBaseMailWriter(final IHBaseTable table,
                             final String mailboxItemKeyHeader,
-                            final String hbaseColumnFamily)
+                            final String hbaseColumnFamily,
+                            final Set<String> headerKeys)
     {
         this.mailTable = table;
         this.keyHeader = mailboxItemKeyHeader;
         this.columnFamily = Bytes.toBytes(hbaseColumnFamily);
+        if (headerKeys != null)
+        {
+            Set<String> stored = new HashSet<String>(headerKeys);
+            stored.add(mailboxItemKeyHeader);
+            this.headers = Collections.unmodifiableSet(stored);
+        }
     }
 
     /**
@@ -74,6 +91,27 @@ public static MailWriter create(final HBaseManager hbase,
                                     final String tableName,
                                     final String keyHeader,
                                     final String columnFamily)
+    {
+        return create(hbase, tableName, keyHeader, columnFamily, null);
+    }
+
+    /**
+     * Creates an HBaseMailWriter that stores only the given headers, and
+     * the row key, of each MailboxItem.  If the table specified by tableName
+     * does not currently exist, it will be created with the specified
+     * columnFamily.
+     * @param hbase The HBase instance to connect to.
+     * @param tableName The table to connect to.
+     * @param keyHeader The MailboxItem header to use as a row key.
+     * @param columnFamily The column family to add mail headers to.
+     * @param headerKeys The MailboxItem headers to store, or null to store them all.
+     * @return A new HBaseMailWriter instance with the specified settings.
+     */
+    public static MailWriter create(final HBaseManager hbase,
+                                    final String tableName,
+                                    final String keyHeader,
+                                    final String columnFamily,
+                                    final Set<String> headerKeys)
     {
         List<String> columnFamilies = new ArrayList<String>();
         columnFamilies.add(columnFamily);
@@ -84,7 +122,7 @@ public static MailWriter create(final HBaseManager hbase,
         }
 
         IHBaseTable table = hbase.getTable(tableName);
-        return new HBaseMailWriter(table, keyHeader, columnFamily);
+        return new HBaseMailWriter(table, keyHeader, columnFamily, headerKeys);
     }
 
     /**
@@ -98,7 +136,34 @@ public static MailWriter create(final IHBaseTable table,
                                     final String keyHeader,
                                     final String columnFamily)
     {
-        return new HBaseMailWriter(table, keyHeader, columnFamily);
+        return create(table, keyHeader, columnFamily, null);
+    }
+
+    /**
+     * Creates an HBaseMailWriter that stores only the given headers, and
+     * the row key, of each MailboxItem.
+     * @param table The IHBaseTable to write to.
+     * @param keyHeader The MailboxItem header to use as a row key.
+     * @param columnFamily The column family to add mail headers to.
+     * @param headerKeys The MailboxItem headers to store, or null to store them all.
+     * @return A new HBaseMailWriter instance with the specified settings.
+     */
+    public static MailWriter create(final IHBaseTable table,
+                                    final String keyHeader,
+                                    final String columnFamily,
+                                    final Set<String> headerKeys)
+    {
+        return new HBaseMailWriter(table, keyHeader, columnFamily, headerKeys);
+    }
+
+    @Override
+    public Set<String> getRequiredHeaders()
+    {
+        if (headers == null)
+        {
+            return new HashSet<String>(Arrays.asList(MailboxItem.possibleHeaderKeys()));
+        }
+        return headers;
     }
 
     /**
@@ -118,8 +183,11 @@ public void write(final Iterable<MailboxItem> mails)
 
             for (String headerKey : headerKeys)
             {
-                mailboxItemPut.add(columnFamily, Bytes.toBytes(headerKey),
-                        Bytes.toBytes(mailboxItem.getHeader(headerKey)));
+                if (headers == null || headers.contains(headerKey))
+                {
+                    mailboxItemPut.add(columnFamily, Bytes.toBytes(headerKey),
+                            Bytes.toBytes(mailboxItem.getHeader(headerKey)));
+                }
             }
 
             mailTable.put(mailboxItemPut);
@@ -0,0 +1,88 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.writer.hbase;
+
+import com.ripariandata.timberwolf.writer.SeenMessageIndex;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Keeps the index of seen messages in an hbase table.  It can share the
+ * table that sync states are kept in, since its values are stored under a
+ * column of their own.
+ */
+public class HBaseSeenMessageIndex implements SeenMessageIndex
+{
+    /** The table wherein the index is stored. */
+    private IHBaseTable table;
+
+    private static final String INDEX_COLUMN_FAMILY = "s";
+    private static final String INDEX_COLUMN_QUALIFIER = "m";
+
+    /**
+     * Constructs a HBaseSeenMessageIndex from a HBaseManager and a given
+     * table name.
+     * @param hBaseManager The HBaseManager to use to store the index.
+     * @param indexTable The table name to use. If the table does not exist
+     *                   it will be created.
+     */
+    public HBaseSeenMessageIndex(final HBaseManager hBaseManager, final String indexTable)
+    {
+        List<String> columnFamilies = new ArrayList<String>();
+        columnFamilies.add(INDEX_COLUMN_FAMILY);
+
+        /** If the table already exists it will be simply grabbed not recreated. */
+        table = hBaseManager.createTable(indexTable, columnFamilies);
+    }
+
+    @Override
+    public String getFirstCopy(final String messageKey)
+    {
+        Result result = table.get(new Get(Bytes.toBytes(messageKey)));
+        if (result.isEmpty())
+        {
+            return null;
+        }
+        byte[] value = result.getValue(Bytes.toBytes(INDEX_COLUMN_FAMILY), Bytes.toBytes(INDEX_COLUMN_QUALIFIER));
+        return value == null ? null : Bytes.toString(value);
+    }
+
+    @Override
+    public String claimFirstCopy(final String messageKey, final String itemId)
+    {
+        byte[] row = Bytes.toBytes(messageKey);
+        byte[] family = Bytes.toBytes(INDEX_COLUMN_FAMILY);
+        byte[] qualifier = Bytes.toBytes(INDEX_COLUMN_QUALIFIER);
+        Put put = new Put(row);
+        put.add(family, qualifier, Bytes.toBytes(itemId));
+
+        // The put only happens if no other run has claimed the message yet,
+        // and goes straight to the table rather than waiting for a flush.
+        if (table.checkAndPut(row, family, qualifier, null, put))
+        {
+            return itemId;
+        }
+        return getFirstCopy(messageKey);
+    }
+}
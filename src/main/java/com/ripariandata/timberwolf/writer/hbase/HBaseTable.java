@@ -57,6 +57,30 @@ public final void put(final Put put)
         puts.add(put);
     }
 
+    /**
+     * Atomically puts a Put to the underlying HTable, if a cell has the
+     * given value.  Unlike put, this doesn't wait for a flush.
+     * @param row The row of the cell to check.
+     * @param family The column family of the cell to check.
+     * @param qualifier The column qualifier of the cell to check.
+     * @param value The value the cell must have, or null if it must not exist.
+     * @param put The Put to put to the underlying HTable.
+     * @return True if the cell matched and the Put was put.
+     */
+    @Override
+    public final boolean checkAndPut(final byte[] row, final byte[] family, final byte[] qualifier,
+                                     final byte[] value, final Put put)
+    {
+        try
+        {
+            return table.checkAndPut(row, family, qualifier, value, put);
+        }
+        catch (IOException e)
+        {
+            throw HBaseRuntimeException.log(LOG, new HBaseRuntimeException("Could not check and put to HBase!", e));
+        }
+    }
+
     @Override
     public final Result get(final Get get)
     {
@@ -20,6 +20,7 @@
 import com.ripariandata.timberwolf.writer.UserFolderSyncStateStorage;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.apache.hadoop.hbase.client.Get;
@@ -35,6 +36,10 @@ public class HBaseUserFolderSyncStateStorage implements UserFolderSyncStateStora
 
     private static final String SYNC_COLUMN_FAMILY = "s";
     private static final String SYNC_COLUMN_QUALIFIER = "v";
+    private static final String HIERARCHY_COLUMN_QUALIFIER = "h";
+    private static final String FOLDERS_COLUMN_QUALIFIER = "f";
+    /** Separates the folder ids in the folders column, which never appears in an id. */
+    private static final String FOLDER_SEPARATOR = " ";
 
     /**
      * Constructs a HBaseUserFolderSyncStateStorage
@@ -92,6 +97,77 @@ public void setSyncState(final String user,
         table.flush();
     }
 
+    /**
+     * Determines the last folder hierarchy sync state of this user.
+     * @param user The username.
+     * @return The last recorded hierarchy sync state for that user.
+     */
+    @Override
+    public String getLastHierarchySyncState(final String user)
+    {
+        return getUserValue(user, HIERARCHY_COLUMN_QUALIFIER);
+    }
+
+    /**
+     * Determines the folders this user had at the last hierarchy sync.
+     * @param user The username.
+     * @return The ids of the user's folders, or null if there aren't any recorded.
+     */
+    @Override
+    public List<String> getFolders(final String user)
+    {
+        String folders = getUserValue(user, FOLDERS_COLUMN_QUALIFIER);
+        if (folders == null)
+        {
+            return null;
+        }
+        if (folders.length() == 0)
+        {
+            return new ArrayList<String>();
+        }
+        return new ArrayList<String>(Arrays.asList(folders.split(FOLDER_SEPARATOR)));
+    }
+
+    /**
+     * Sets the folders of a given user, along with the hierarchy sync
+     * state they're up to date with, in one row so they always match.
+     * @param user The user who is being updated.
+     * @param folderIds The ids of all the user's folders.
+     * @param syncState The new hierarchy state to record for later.
+     */
+    @Override
+    public void setFolderHierarchy(final String user, final List<String> folderIds, final String syncState)
+    {
+        StringBuilder folders = new StringBuilder();
+        for (String folderId : folderIds)
+        {
+            if (folders.length() > 0)
+            {
+                folders.append(FOLDER_SEPARATOR);
+            }
+            folders.append(folderId);
+        }
+        Put put = new Put(Bytes.toBytes(user));
+        put.add(Bytes.toBytes(SYNC_COLUMN_FAMILY), Bytes.toBytes(FOLDERS_COLUMN_QUALIFIER),
+                Bytes.toBytes(folders.toString()));
+        put.add(Bytes.toBytes(SYNC_COLUMN_FAMILY), Bytes.toBytes(HIERARCHY_COLUMN_QUALIFIER),
+                Bytes.toBytes(syncState));
+
+        table.put(put);
+        table.flush();
+    }
+
+    /** Reads one of the values stored for a whole user, rather than one of their folders. */
+    private String getUserValue(final String user, final String qualifier)
+    {
+        Result result = table.get(new Get(Bytes.toBytes(user)));
+        if (result.isEmpty())
+        {
+            return null;
+        }
+        return Bytes.toString(result.getValue(Bytes.toBytes(SYNC_COLUMN_FAMILY), Bytes.toBytes(qualifier)));
+    }
+
     /** Given the user and folderId of interest, return the expected key. */
     private byte[] primaryKey(final String user, final String folderId)
     {
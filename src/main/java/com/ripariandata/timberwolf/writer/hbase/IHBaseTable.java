@@ -27,6 +27,7 @@
 public interface IHBaseTable
 {
     void put(Put put);
+    boolean checkAndPut(byte[] row, byte[] family, byte[] qualifier, byte[] value, Put put);
     Result get(Get get);
     void flush();
     String getName();
@@ -33,6 +33,10 @@
 import java.sql.Statement;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
 import org.apache.commons.lang.StringUtils;
@@ -57,6 +61,7 @@ public class HiveMailWriter implements MailWriter
     private FileSystem hdfs;
     private Connection hive;
     private String tableName;
+    private boolean tableReady;
 
     static
     {
@@ -163,6 +168,81 @@ private void createTable()
         }
     }
 
+    /**
+     * Returns the columns of the existing table, in order.
+     * Hive reports column names in lower case.
+     */
+    private List<String> describeTable()
+    {
+        try
+        {
+            Statement statement = hive.createStatement();
+            ResultSet describeResult = statement.executeQuery("describe " + tableName);
+            List<String> columns = new ArrayList<String>();
+            while (describeResult.next())
+            {
+                String column = describeResult.getString(1);
+                // Partition and detailed table information follow a blank or commented line.
+                if (column == null || column.trim().length() == 0 || column.trim().startsWith("#"))
+                {
+                    break;
+                }
+                columns.add(column.trim());
+            }
+            return columns;
+        }
+        catch (SQLException e)
+        {
+            String msg = "Error describing table " + tableName;
+            throw HiveMailWriterException.log(LOG, new HiveMailWriterException(msg, e));
+        }
+    }
+
+    /**
+     * Brings a table created by an older version up to date.
+     *
+     * Headers are only ever appended to MailboxItem.possibleHeaderKeys(),
+     * so a table whose columns are a prefix of the value headers just needs
+     * the missing ones added. Anything else can't be loaded safely, since
+     * Hive matches the fields in each row to columns by position.
+     */
+    private void migrateTable()
+    {
+        List<String> columns = describeTable();
+        boolean compatible = columns.size() <= VALUE_HEADER_KEYS.length;
+        for (int i = 0; compatible && i < columns.size(); i++)
+        {
+            compatible = columns.get(i).equalsIgnoreCase(VALUE_HEADER_KEYS[i]);
+        }
+        if (!compatible)
+        {
+            String msg = "Table " + tableName + " has columns " + columns + " but Timberwolf writes "
+                         + Arrays.asList(VALUE_HEADER_KEYS) + "; use a new table or migrate it by hand.";
+            throw HiveMailWriterException.log(LOG, new HiveMailWriterException(msg, null));
+        }
+        if (columns.size() == VALUE_HEADER_KEYS.length)
+        {
+            return;
+        }
+
+        String[] missing = Arrays.copyOfRange(VALUE_HEADER_KEYS, columns.size(), VALUE_HEADER_KEYS.length);
+        LOG.info("Adding columns {} to table {}.", Arrays.asList(missing), tableName);
+        try
+        {
+            Statement statement = hive.createStatement();
+            String[] alterQueryTokens = {
+                "alter table", tableName, "add columns",
+                "(", StringUtils.join(missing, " string, "), "string )"
+            };
+            statement.executeQuery(StringUtils.join(alterQueryTokens, " "));
+        }
+        catch (SQLException e)
+        {
+            String msg = "Error adding columns to table " + tableName;
+            throw HiveMailWriterException.log(LOG, new HiveMailWriterException(msg, e));
+        }
+    }
+
     private void loadTempFile(final Path tempFile)
     {
         try
@@ -262,9 +342,17 @@ private void closeHdfs()
 
     public void write(final Iterable<MailboxItem> mail)
     {
-        if (!tableExists())
+        if (!tableReady)
         {
-            createTable();
+            if (tableExists())
+            {
+                migrateTable();
+            }
+            else
+            {
+                createTable();
+            }
+            tableReady = true;
         }
 
         Path tempFile = writeTemporaryFile(mail);
@@ -278,6 +366,13 @@ public void write(final Iterable<MailboxItem> mail)
         }
     }
 
+    /** Every header is a column of the table, so all of them are needed. */
+    @Override
+    public Set<String> getRequiredHeaders()
+    {
+        return new HashSet<String>(Arrays.asList(MailboxItem.possibleHeaderKeys()));
+    }
+
     public void close()
     {
         closeHdfs();
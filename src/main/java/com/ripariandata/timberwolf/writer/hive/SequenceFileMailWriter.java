@@ -23,8 +23,11 @@
 import java.io.IOException;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.hadoop.conf.Configuration;
@@ -96,6 +99,13 @@ private void write(final Iterable<MailboxItem> mails, final SequenceFile.Writer
         }
     }
 
+    /** Every header is written as one of the columns of each row. */
+    @Override
+    public Set<String> getRequiredHeaders()
+    {
+        return new HashSet<String>(Arrays.asList(MailboxItem.possibleHeaderKeys()));
+    }
+
     @Override
     public void write(final Iterable<MailboxItem> mails)
     {
@@ -0,0 +1,198 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import com.microsoft.schemas.exchange.services.x2006.messages.ResponseCodeType;
+
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/** Tests for the AdaptiveRateLimiter. */
+public class AdaptiveRateLimiterTest
+{
+    /** A rate limiter with a clock that only moves when the test, or a wait, moves it. */
+    private static class FakeClockLimiter extends AdaptiveRateLimiter
+    {
+        private long time;
+        private final List<Long> waits = new ArrayList<Long>();
+
+        FakeClockLimiter(final int minRate, final int maxRate)
+        {
+            super(minRate, maxRate);
+        }
+
+        void advance(final long millis)
+        {
+            time += TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+
+        @Override
+        long now()
+        {
+            return time;
+        }
+
+        @Override
+        void sleep(final long nanos)
+        {
+            waits.add(TimeUnit.NANOSECONDS.toMillis(nanos));
+            time += nanos;
+        }
+    }
+
+    private static final HttpErrorException SERVER_BUSY =
+            new HttpErrorException(HttpURLConnection.HTTP_INTERNAL_ERROR, ResponseCodeType.ERROR_SERVER_BUSY, 0);
+
+    @Test
+    public void testRequestsArePaced() throws ServiceCallException
+    {
+        FakeClockLimiter limiter = new FakeClockLimiter(1, 50);
+        assertEquals(AdaptiveRateLimiter.DEFAULT_INITIAL_RATE, limiter.getRate(), 0.001);
+        limiter.acquire();
+        limiter.acquire();
+        limiter.acquire();
+        // The first request goes right away, and the rest are spaced at 10 per second.
+        assertEquals(2, limiter.waits.size());
+        assertEquals(100, (long) limiter.waits.get(0));
+        assertEquals(100, (long) limiter.waits.get(1));
+
+        limiter.advance(1000);
+        limiter.acquire();
+        assertEquals(2, limiter.waits.size());
+    }
+
+    @Test
+    public void testUnlimited() throws ServiceCallException
+    {
+        FakeClockLimiter limiter = new FakeClockLimiter(0, 0);
+        assertFalse(limiter.isEnabled());
+        for (int i = 0; i < 100; i++)
+        {
+            limiter.acquire();
+        }
+        limiter.onError(100, SERVER_BUSY);
+        assertEquals(0, limiter.waits.size());
+        assertEquals(0, limiter.getDecreases());
+        assertEquals("unlimited", AdaptiveRateLimiter.unlimited().toString());
+    }
+
+    @Test
+    public void testAdditiveIncrease()
+    {
+        FakeClockLimiter limiter = new FakeClockLimiter(1, 12);
+        for (int i = 0; i < 10; i++)
+        {
+            limiter.onSuccess(100);
+        }
+        // Ten successes at ten per second add about one request per second.
+        assertEquals(11, limiter.getRate(), 0.1);
+        for (int i = 0; i < 100; i++)
+        {
+            limiter.onSuccess(100);
+        }
+        assertEquals(12, limiter.getRate(), 0.001);
+        assertEquals(100, limiter.getSmoothedLatency(), 0.001);
+    }
+
+    @Test
+    public void testThrottlingHalvesRate()
+    {
+        FakeClockLimiter limiter = new FakeClockLimiter(2, 50);
+        limiter.onError(100, SERVER_BUSY);
+        assertEquals(5, limiter.getRate(), 0.001);
+
+        // More errors in the same second don't cut the rate again.
+        limiter.onError(100, new HttpErrorException(HttpURLConnection.HTTP_UNAVAILABLE));
+        assertEquals(5, limiter.getRate(), 0.001);
+
+        limiter.advance(1000);
+        limiter.onError(100, new ServiceCallException(ResponseCodeType.ERROR_SERVER_BUSY, "Busy."));
+        assertEquals(2.5, limiter.getRate(), 0.001);
+
+        // The rate never goes below the minimum.
+        limiter.advance(1000);
+        limiter.onError(100, new HttpErrorException(429));
+        assertEquals(2, limiter.getRate(), 0.001);
+        assertEquals(3, limiter.getDecreases());
+        assertEquals(4, limiter.getThrottles());
+    }
+
+    @Test
+    public void testOtherErrorsDontChangeRate()
+    {
+        FakeClockLimiter limiter = new FakeClockLimiter(1, 50);
+        limiter.onError(100, new ServiceCallException(ResponseCodeType.ERROR_ITEM_NOT_FOUND, "Not found."));
+        limiter.onError(100, new HttpErrorException(HttpURLConnection.HTTP_UNAUTHORIZED));
+        assertEquals(10, limiter.getRate(), 0.001);
+        assertEquals(0, limiter.getThrottles());
+    }
+
+    @Test
+    public void testLatencySpike()
+    {
+        FakeClockLimiter limiter = new FakeClockLimiter(1, 50);
+        for (int i = 0; i < 10; i++)
+        {
+            limiter.onSuccess(200);
+        }
+        double rate = limiter.getRate();
+        limiter.onSuccess(500);
+        assertEquals(rate + 1 / rate, limiter.getRate(), 0.001);
+        limiter.onSuccess(2000);
+        assertEquals((rate + 1 / rate) / 2, limiter.getRate(), 0.001);
+        assertEquals(1, limiter.getDecreases());
+    }
+
+    @Test
+    public void testSmallLatenciesAreNotSpikes()
+    {
+        FakeClockLimiter limiter = new FakeClockLimiter(1, 50);
+        limiter.onSuccess(10);
+        limiter.onSuccess(200);
+        assertEquals(0, limiter.getDecreases());
+    }
+
+    @Test
+    public void testThrottlingClassification()
+    {
+        assertTrue(AdaptiveRateLimiter.isThrottling(SERVER_BUSY));
+        assertTrue(AdaptiveRateLimiter.isThrottling(new HttpErrorException(HttpURLConnection.HTTP_UNAVAILABLE)));
+        assertTrue(AdaptiveRateLimiter.isThrottling(new ServiceCallException(ServiceCallException.Reason.OTHER,
+                "Read timed out.", new SocketTimeoutException())));
+        assertFalse(AdaptiveRateLimiter.isThrottling(new HttpErrorException(HttpURLConnection.HTTP_INTERNAL_ERROR)));
+        assertFalse(AdaptiveRateLimiter.isThrottling(new ServiceCallException(ServiceCallException.Reason.OTHER,
+                "Null response from Exchange service.")));
+    }
+
+    @Test
+    public void testBounds()
+    {
+        assertEquals(3, new AdaptiveRateLimiter(1, 3).getRate(), 0.001);
+        assertEquals(20, new AdaptiveRateLimiter(20, 30).getRate(), 0.001);
+        assertEquals(5, new AdaptiveRateLimiter(10, 5).getMinRate(), 0.001);
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import com.microsoft.schemas.exchange.services.x2006.messages.GetItemResponseType;
+import com.microsoft.schemas.exchange.services.x2006.messages.GetItemType;
+import com.microsoft.schemas.exchange.services.x2006.messages.SyncFolderItemsResponseType;
+import com.microsoft.schemas.exchange.services.x2006.messages.SyncFolderItemsType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/** Tests for the AsyncExchangeService. */
+public class AsyncExchangeServiceTest
+{
+    private static final String URL = "https://cas1.example.com/ews/exchange.asmx";
+
+    private static ExchangeService mockService()
+    {
+        ExchangeService service = mock(ExchangeService.class);
+        when(service.getEndpoints()).thenReturn(new EndpointBalancer(Arrays.asList(URL)));
+        return service;
+    }
+
+    @Test
+    public void testLimitIsPerEndpoint()
+    {
+        ExchangeService service = mock(ExchangeService.class);
+        EndpointBalancer endpoints = new EndpointBalancer(
+                Arrays.asList(URL, "https://cas2.example.com/ews/exchange.asmx"));
+        when(service.getEndpoints()).thenReturn(endpoints);
+
+        AsyncExchangeService async = new AsyncExchangeService(service, 4);
+        assertEquals(4, endpoints.getMaxOutstanding());
+        async.shutdown();
+    }
+
+    @Test
+    public void testCalls() throws ServiceCallException, HttpErrorException
+    {
+        ExchangeService service = mockService();
+        SyncFolderItemsType syncRequest = SyncFolderItemsType.Factory.newInstance();
+        SyncFolderItemsResponseType syncResponse = SyncFolderItemsResponseType.Factory.newInstance();
+        GetItemType getRequest = GetItemType.Factory.newInstance();
+        GetItemResponseType getResponse = GetItemResponseType.Factory.newInstance();
+        when(service.syncFolderItems(syncRequest, "bkerr")).thenReturn(syncResponse);
+        when(service.getItem(getRequest, "bkerr")).thenReturn(getResponse);
+
+        AsyncExchangeService async = new AsyncExchangeService(service, 2);
+        Future<SyncFolderItemsResponseType> sync = async.syncFolderItems(syncRequest, "bkerr");
+        Future<GetItemResponseType> get = async.getItem(getRequest, "bkerr");
+
+        assertSame(syncResponse, AsyncExchangeService.await(sync));
+        assertSame(getResponse, AsyncExchangeService.await(get));
+        async.shutdown();
+    }
+
+    @Test
+    public void testExceptionsAreRethrown() throws ServiceCallException, HttpErrorException
+    {
+        ExchangeService service = mockService();
+        when(service.getItem(any(GetItemType.class), eq("bkerr"))).thenThrow(new HttpErrorException(503));
+        when(service.syncFolderItems(any(SyncFolderItemsType.class), eq("bkerr")))
+                .thenThrow(new ServiceCallException(ServiceCallException.Reason.OTHER, "Oops."));
+
+        AsyncExchangeService async = new AsyncExchangeService(service, 1);
+        try
+        {
+            AsyncExchangeService.await(async.getItem(GetItemType.Factory.newInstance(), "bkerr"));
+            fail("No exception was thrown.");
+        }
+        catch (HttpErrorException e)
+        {
+            assertEquals(503, e.getErrorCode());
+        }
+
+        try
+        {
+            AsyncExchangeService.await(async.syncFolderItems(SyncFolderItemsType.Factory.newInstance(), "bkerr"));
+            fail("No exception was thrown.");
+        }
+        catch (ServiceCallException e)
+        {
+            assertEquals("Oops.", e.getMessage());
+        }
+        async.shutdown();
+    }
+
+    @Test
+    public void testRequestsInFlightAreLimited() throws Exception
+    {
+        final int limit = 3;
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger mostInFlight = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(limit);
+
+        ExchangeService service = mockService();
+        when(service.getItem(any(GetItemType.class), eq("bkerr"))).thenAnswer(new Answer<GetItemResponseType>()
+        {
+            @Override
+            public GetItemResponseType answer(final InvocationOnMock invocation) throws InterruptedException
+            {
+                int current = inFlight.incrementAndGet();
+                synchronized (mostInFlight)
+                {
+                    mostInFlight.set(Math.max(mostInFlight.get(), current));
+                }
+                started.countDown();
+                release.await();
+                inFlight.decrementAndGet();
+                return null;
+            }
+        });
+
+        AsyncExchangeService async = new AsyncExchangeService(service, limit);
+        List<Future<GetItemResponseType>> futures = new ArrayList<Future<GetItemResponseType>>();
+        for (int i = 0; i < 10; i++)
+        {
+            futures.add(async.getItem(GetItemType.Factory.newInstance(), "bkerr"));
+        }
+
+        started.await(5, TimeUnit.SECONDS);
+        Thread.sleep(100);
+        assertEquals(limit, inFlight.get());
+        release.countDown();
+        for (Future<GetItemResponseType> future : futures)
+        {
+            AsyncExchangeService.await(future);
+        }
+        assertEquals(limit, mostInFlight.get());
+        async.shutdown();
+    }
+}
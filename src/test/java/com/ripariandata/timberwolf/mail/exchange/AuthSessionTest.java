@@ -0,0 +1,284 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.PrivilegedAction;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.Subject;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/** Tests for the AuthSession. */
+public class AuthSessionTest
+{
+    private static final String ADDRESS = "https://cas1.example.com/ews/exchange.asmx";
+
+    /** A session whose tokens last a minute, with a clock that only moves when the test moves it. */
+    private static class FakeTokenSession extends AuthSession
+    {
+        private long time;
+        private int tokens;
+
+        @Override
+        Token createToken(final String host)
+        {
+            tokens++;
+            return new Token("token" + tokens, 60000);
+        }
+
+        @Override
+        long now()
+        {
+            return time;
+        }
+    }
+
+    private static HttpURLConnection answered(final int code, final Map<String, List<String>> headers)
+        throws IOException
+    {
+        HttpURLConnection conn = mock(HttpURLConnection.class);
+        when(conn.getURL()).thenReturn(new URL(ADDRESS));
+        when(conn.getResponseCode()).thenReturn(code);
+        when(conn.getHeaderFields()).thenReturn(headers);
+        return conn;
+    }
+
+    @Test
+    public void testNewConnectionsAuthenticate() throws IOException
+    {
+        FakeTokenSession session = new FakeTokenSession();
+        URL url = new URL(ADDRESS);
+        HttpURLConnection first = mock(HttpURLConnection.class);
+        session.prepare(first, url, false);
+        verify(first).setRequestProperty("Authorization", "Negotiate token1");
+        session.update(answered(HttpURLConnection.HTTP_OK, new HashMap<String, List<String>>()));
+
+        HttpURLConnection reused = mock(HttpURLConnection.class);
+        session.prepare(reused, url, true);
+        verify(reused, never()).setRequestProperty(eq("Authorization"), anyString());
+
+        HttpURLConnection fresh = mock(HttpURLConnection.class);
+        session.prepare(fresh, url, false);
+        verify(fresh).setRequestProperty("Authorization", "Negotiate token2");
+        assertEquals(2, session.getHandshakes());
+        assertEquals(3, session.getCalls());
+        assertEquals(666.7, session.getHandshakesPerThousandCalls(), 0.1);
+        assertEquals("2 handshakes in 3 calls (666.7 per 1000 calls, 0 by the JDK), 0 rejected", session.toString());
+    }
+
+    @Test
+    public void testReauthenticatesAfterExpiry() throws IOException
+    {
+        FakeTokenSession session = new FakeTokenSession();
+        URL url = new URL(ADDRESS);
+        session.prepare(mock(HttpURLConnection.class), url, false);
+        session.update(answered(HttpURLConnection.HTTP_OK, null));
+
+        session.time = 59999;
+        HttpURLConnection beforeExpiry = mock(HttpURLConnection.class);
+        session.prepare(beforeExpiry, url, true);
+        verify(beforeExpiry, never()).setRequestProperty(eq("Authorization"), anyString());
+
+        session.time = 60000;
+        HttpURLConnection afterExpiry = mock(HttpURLConnection.class);
+        session.prepare(afterExpiry, url, true);
+        verify(afterExpiry).setRequestProperty("Authorization", "Negotiate token2");
+    }
+
+    @Test
+    public void testRejectionForgetsSession() throws IOException
+    {
+        FakeTokenSession session = new FakeTokenSession();
+        URL url = new URL(ADDRESS);
+        Map<String, List<String>> headers = new HashMap<String, List<String>>();
+        headers.put("Set-Cookie", Arrays.asList("X-BackEndCookie=S-1-5-21=abc; path=/ews"));
+        session.prepare(mock(HttpURLConnection.class), url, false);
+        session.update(answered(HttpURLConnection.HTTP_OK, headers));
+        assertEquals(1, session.getCookies(url).size());
+
+        HttpURLConnection withCookie = mock(HttpURLConnection.class);
+        session.prepare(withCookie, url, true);
+        verify(withCookie).setRequestProperty("Cookie", "X-BackEndCookie=S-1-5-21=abc");
+
+        session.update(answered(HttpURLConnection.HTTP_UNAUTHORIZED, null));
+        assertEquals(1, session.getRejections());
+        assertTrue(session.getCookies(url).isEmpty());
+
+        HttpURLConnection afterRejection = mock(HttpURLConnection.class);
+        session.prepare(afterRejection, url, true);
+        verify(afterRejection).setRequestProperty("Authorization", "Negotiate token2");
+        verify(afterRejection, never()).setRequestProperty(eq("Cookie"), anyString());
+    }
+
+    @Test
+    public void testNoSubjectLeavesAuthenticationToJdk() throws IOException
+    {
+        AuthSession session = new AuthSession();
+        assertNull(session.createToken("cas1.example.com"));
+        HttpURLConnection conn = mock(HttpURLConnection.class);
+        session.prepare(conn, new URL(ADDRESS), false);
+        verify(conn, never()).setRequestProperty(eq("Authorization"), anyString());
+        assertEquals(0, session.getHandshakes());
+        assertEquals(1, session.getCalls());
+    }
+
+    @Test
+    public void testCountsHandshakesTheJdkMade() throws IOException
+    {
+        FakeTokenSession session = new FakeTokenSession();
+        URL url = new URL(ADDRESS);
+        HttpURLConnection first = answered(HttpURLConnection.HTTP_OK, null);
+        session.prepare(first, url, false);
+        session.update(first, true);
+        assertEquals(1, session.getHandshakes());
+
+        // Expected to reuse the first connection, and did.
+        HttpURLConnection reused = answered(HttpURLConnection.HTTP_OK, null);
+        session.prepare(reused, url, true);
+        session.update(reused, false);
+        assertEquals(1, session.getHandshakes());
+
+        // Expected to reuse a connection, but went out on a new one without a token.
+        HttpURLConnection missed = answered(HttpURLConnection.HTTP_OK, null);
+        session.prepare(missed, url, true);
+        verify(missed, never()).setRequestProperty(eq("Authorization"), anyString());
+        session.update(missed, true);
+        assertEquals(2, session.getHandshakes());
+        assertEquals(1, session.getJdkHandshakes());
+        assertEquals(3, session.getCalls());
+    }
+
+    @Test
+    public void testNewConnectionWithoutNegotiateIsNotCounted() throws IOException
+    {
+        AuthSession session = new AuthSession();
+        HttpURLConnection conn = answered(HttpURLConnection.HTTP_OK, null);
+        session.prepare(conn, new URL(ADDRESS), true);
+        session.update(conn, true);
+        assertEquals(0, session.getHandshakes());
+        assertEquals(0, session.getJdkHandshakes());
+    }
+
+    @Test
+    public void testFailedTokenOnlyDisablesThatServer() throws IOException
+    {
+        final AuthSession session = new AuthSession()
+        {
+            @Override
+            Token createToken(final String host)
+            {
+                if (host.startsWith("cas1"))
+                {
+                    return super.createToken(host);
+                }
+                return new Token("token", 60000);
+            }
+        };
+        final HttpURLConnection failed = mock(HttpURLConnection.class);
+        final HttpURLConnection other = mock(HttpURLConnection.class);
+        Subject.doAs(new Subject(), new PrivilegedAction<Void>()
+        {
+            @Override
+            public Void run()
+            {
+                try
+                {
+                    session.prepare(failed, new URL(ADDRESS), false);
+                    session.prepare(other, new URL("https://cas2.example.com/ews/exchange.asmx"), false);
+                }
+                catch (IOException e)
+                {
+                    throw new RuntimeException(e);
+                }
+                return null;
+            }
+        });
+        verify(failed, never()).setRequestProperty(eq("Authorization"), anyString());
+        verify(other).setRequestProperty("Authorization", "Negotiate token");
+        assertEquals(1, session.getHandshakes());
+    }
+
+    @Test
+    public void testTokensAreMadeOutsideTheLock() throws Exception
+    {
+        final CountDownLatch making = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(1);
+        final AuthSession session = new AuthSession()
+        {
+            @Override
+            Token createToken(final String host)
+            {
+                making.countDown();
+                try
+                {
+                    finish.await(5, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                return new Token("token", 60000);
+            }
+        };
+        Thread slow = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    session.prepare(mock(HttpURLConnection.class), new URL(ADDRESS), false);
+                }
+                catch (IOException e)
+                {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        slow.start();
+        assertTrue(making.await(5, TimeUnit.SECONDS));
+
+        // The other request's session state can be read while the token is being made.
+        session.update(answered(HttpURLConnection.HTTP_OK, null));
+        assertEquals(1, session.getCalls());
+        assertFalse(session.getHandshakes() > 0);
+        finish.countDown();
+        slow.join();
+        assertEquals(1, session.getHandshakes());
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/** A RequestBody that was already rendered to bytes, for tests and test tools. */
+public class ByteArrayRequestBody implements RequestBody
+{
+    private final byte[] data;
+
+    public ByteArrayRequestBody(final byte[] bytes)
+    {
+        data = bytes;
+    }
+
+    /** Renders the given body to a byte array. */
+    public static byte[] toBytes(final RequestBody request)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try
+        {
+            request.writeTo(bytes);
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException("Could not write the request to memory.", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public void writeTo(final OutputStream out) throws IOException
+    {
+        out.write(data);
+    }
+
+    @Override
+    public String getAnchorMailbox()
+    {
+        return null;
+    }
+
+    @Override
+    public String toString()
+    {
+        return new String(data);
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/** Tests for the ContentDecoder. */
+public class ContentDecoderTest
+{
+    private static final String BODY = "<Envelope><Body>Some response from Exchange</Body></Envelope>";
+
+    private static String readAll(final InputStream stream) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int b = stream.read();
+        while (b >= 0)
+        {
+            bytes.write(b);
+            b = stream.read();
+        }
+        return bytes.toString("UTF-8");
+    }
+
+    private static InputStream deflate(final boolean raw) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DeflaterOutputStream stream = new DeflaterOutputStream(bytes, new Deflater(Deflater.DEFAULT_COMPRESSION, raw));
+        stream.write(BODY.getBytes("UTF-8"));
+        stream.close();
+        return new ByteArrayInputStream(bytes.toByteArray());
+    }
+
+    @Test
+    public void testIdentity() throws IOException
+    {
+        InputStream stream = new ByteArrayInputStream(BODY.getBytes("UTF-8"));
+        assertSame(stream, ContentDecoder.decode(null, stream));
+        assertSame(stream, ContentDecoder.decode("identity", stream));
+        assertSame(stream, ContentDecoder.decode("", stream));
+    }
+
+    @Test
+    public void testGzip() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream stream = new GZIPOutputStream(bytes);
+        stream.write(BODY.getBytes("UTF-8"));
+        stream.close();
+        assertEquals(BODY, readAll(ContentDecoder.decode("GZIP", new ByteArrayInputStream(bytes.toByteArray()))));
+    }
+
+    @Test
+    public void testZlibDeflate() throws IOException
+    {
+        assertEquals(BODY, readAll(ContentDecoder.decode("deflate", deflate(false))));
+    }
+
+    @Test
+    public void testRawDeflate() throws IOException
+    {
+        assertEquals(BODY, readAll(ContentDecoder.decode("deflate", deflate(true))));
+    }
+
+    @Test
+    public void testUnsupportedEncoding()
+    {
+        try
+        {
+            ContentDecoder.decode("compress", new ByteArrayInputStream(new byte[0]));
+            fail("No exception was thrown.");
+        }
+        catch (IOException e)
+        {
+            assertEquals("Unsupported content encoding \"compress\".", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,330 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import com.microsoft.schemas.exchange.services.x2006.messages.ResponseCodeType;
+
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/** Tests for the EndpointBalancer. */
+public class EndpointBalancerTest
+{
+    private static final String A = "https://cas1.example.com/ews/exchange.asmx";
+    private static final String B = "https://cas2.example.com/ews/exchange.asmx";
+    private static final String C = "https://cas3.example.com/ews/exchange.asmx";
+
+    /** A balancer with a clock that only moves when the test moves it. */
+    private static class FakeClockBalancer extends EndpointBalancer
+    {
+        private long time;
+
+        FakeClockBalancer(final int threshold, final long openMillis, final String... urls)
+        {
+            super(Arrays.asList(urls), threshold, openMillis);
+        }
+
+        void advance(final long millis)
+        {
+            time += TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+
+        @Override
+        long now()
+        {
+            return time;
+        }
+
+        /** Sends one request that ends the given way, and returns where it went. */
+        String send(final Exception error) throws ServiceCallException
+        {
+            Endpoint endpoint = acquire();
+            release(endpoint, error);
+            return endpoint.getUrl();
+        }
+    }
+
+    private static ServiceCallException connectionRefused()
+    {
+        return new ServiceCallException(ServiceCallException.Reason.OTHER, "Connection refused.",
+                                        new ConnectException());
+    }
+
+    @Test
+    public void testTakesTurnsWhenIdle() throws ServiceCallException
+    {
+        FakeClockBalancer balancer = new FakeClockBalancer(3, 1000, A, B, C);
+        assertEquals(A, balancer.send(null));
+        assertEquals(B, balancer.send(null));
+        assertEquals(C, balancer.send(null));
+        assertEquals(A, balancer.send(null));
+        assertEquals(2, balancer.getRequests(A));
+    }
+
+    @Test
+    public void testFewestOutstanding() throws ServiceCallException
+    {
+        FakeClockBalancer balancer = new FakeClockBalancer(3, 1000, A, B, C);
+        EndpointBalancer.Endpoint first = balancer.acquire();
+        EndpointBalancer.Endpoint second = balancer.acquire();
+        EndpointBalancer.Endpoint third = balancer.acquire();
+        assertEquals(A, first.getUrl());
+        assertEquals(B, second.getUrl());
+        assertEquals(C, third.getUrl());
+        assertEquals(1, balancer.getOutstanding(B));
+
+        // B finishes while A and C are still working, so it gets the next two.
+        balancer.release(second, null);
+        EndpointBalancer.Endpoint fourth = balancer.acquire();
+        assertEquals(B, fourth.getUrl());
+        balancer.release(fourth, null);
+        assertEquals(B, balancer.acquire().getUrl());
+        assertEquals(1, balancer.getOutstanding(B));
+        assertEquals(1, balancer.getOutstanding(A));
+    }
+
+    @Test
+    public void testBreakerOpensAfterFailuresInARow() throws ServiceCallException
+    {
+        FakeClockBalancer balancer = new FakeClockBalancer(2, 1000, A, B);
+        assertEquals(A, balancer.send(connectionRefused()));
+        assertEquals(B, balancer.send(null));
+        assertFalse(balancer.isOpen(A));
+        assertEquals(A, balancer.send(connectionRefused()));
+        assertTrue(balancer.isOpen(A));
+        assertEquals(2, balancer.getFailures(A));
+
+        assertEquals(B, balancer.send(null));
+        assertEquals(B, balancer.send(null));
+        assertEquals(B, balancer.send(null));
+    }
+
+    @Test
+    public void testSuccessResetsFailures() throws ServiceCallException
+    {
+        FakeClockBalancer balancer = new FakeClockBalancer(2, 1000, A);
+        balancer.send(connectionRefused());
+        balancer.send(null);
+        balancer.send(connectionRefused());
+        assertFalse(balancer.isOpen(A));
+    }
+
+    @Test
+    public void testTrialAfterCooldown() throws ServiceCallException
+    {
+        FakeClockBalancer balancer = new FakeClockBalancer(1, 1000, A, B);
+        assertEquals(A, balancer.send(connectionRefused()));
+        balancer.advance(999);
+        assertEquals(B, balancer.send(null));
+        balancer.advance(1);
+
+        // Only one trial at a time goes to A.
+        EndpointBalancer.Endpoint trial = balancer.acquire();
+        assertEquals(A, trial.getUrl());
+        assertEquals(B, balancer.send(null));
+        balancer.release(trial, null);
+        assertFalse(balancer.isOpen(A));
+        assertEquals(A, balancer.send(null));
+    }
+
+    @Test
+    public void testFailedTrialReopens() throws ServiceCallException
+    {
+        FakeClockBalancer balancer = new FakeClockBalancer(3, 1000, A, B);
+        balancer.send(connectionRefused());
+        balancer.send(null);
+        balancer.send(connectionRefused());
+        balancer.send(null);
+        balancer.send(connectionRefused());
+        assertTrue(balancer.isOpen(A));
+
+        balancer.advance(1000);
+        assertEquals(A, balancer.send(new HttpErrorException(HttpURLConnection.HTTP_BAD_GATEWAY)));
+        assertTrue(balancer.isOpen(A));
+        balancer.advance(999);
+        assertEquals(B, balancer.send(null));
+        assertEquals(B, balancer.send(null));
+    }
+
+    @Test
+    public void testAllOpenUsesSoonest() throws ServiceCallException
+    {
+        FakeClockBalancer balancer = new FakeClockBalancer(1, 1000, A, B);
+        balancer.send(connectionRefused());
+        balancer.advance(10);
+        balancer.send(connectionRefused());
+        assertTrue(balancer.isOpen(A));
+        assertTrue(balancer.isOpen(B));
+        assertEquals(A, balancer.send(null));
+        assertTrue(balancer.toString().contains(B + ": 1 requests, 1 failures, stopped 1 times (stopped now)"));
+    }
+
+    @Test
+    public void testRequestErrorsDontCount() throws ServiceCallException
+    {
+        FakeClockBalancer balancer = new FakeClockBalancer(1, 1000, A);
+        balancer.send(new ServiceCallException(ResponseCodeType.ERROR_ITEM_NOT_FOUND, "Not found."));
+        balancer.send(new HttpErrorException(HttpURLConnection.HTTP_INTERNAL_ERROR));
+        balancer.send(new HttpErrorException(HttpURLConnection.HTTP_UNAVAILABLE, ResponseCodeType.ERROR_SERVER_BUSY,
+                                             0));
+        assertFalse(balancer.isOpen(A));
+        assertEquals(0, balancer.getFailures(A));
+    }
+
+    @Test
+    public void testIsEndpointFailure()
+    {
+        assertTrue(EndpointBalancer.isEndpointFailure(connectionRefused()));
+        assertTrue(EndpointBalancer.isEndpointFailure(
+                new ServiceCallException(ServiceCallException.Reason.OTHER, "Read timed out.",
+                                         new SocketTimeoutException())));
+        assertTrue(EndpointBalancer.isEndpointFailure(new HttpErrorException(HttpURLConnection.HTTP_BAD_GATEWAY)));
+        assertTrue(EndpointBalancer.isEndpointFailure(new HttpErrorException(HttpURLConnection.HTTP_UNAVAILABLE)));
+        assertTrue(EndpointBalancer.isEndpointFailure(
+                new HttpErrorException(HttpURLConnection.HTTP_GATEWAY_TIMEOUT)));
+        assertFalse(EndpointBalancer.isEndpointFailure(new HttpErrorException(HttpURLConnection.HTTP_UNAUTHORIZED)));
+        assertFalse(EndpointBalancer.isEndpointFailure(
+                new ServiceCallException(ServiceCallException.Reason.OTHER, "Empty response.")));
+        assertFalse(EndpointBalancer.isEndpointFailure(
+                new ServiceCallException(ResponseCodeType.ERROR_SERVER_BUSY, "Busy.")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNeedsAnEndpoint()
+    {
+        new EndpointBalancer(Arrays.<String>asList());
+    }
+
+    @Test
+    public void testMailboxesStickToEndpoint() throws ServiceCallException
+    {
+        EndpointBalancer balancer = new EndpointBalancer(Arrays.asList(A, B, C));
+        String first = balancer.acquire("bkerr@example.com").getUrl();
+        String second = balancer.acquire("dkramer@example.com").getUrl();
+        assertFalse(first.equals(second));
+
+        // Even though another endpoint is idle, each mailbox keeps to its own.
+        assertEquals(first, balancer.acquire("BKerr@example.com").getUrl());
+        assertEquals(second, balancer.acquire("dkramer@example.com").getUrl());
+        assertEquals(2, balancer.getOutstanding(first));
+        assertEquals(0, balancer.getRerouted());
+    }
+
+    @Test
+    public void testHomeServerSharesRoute() throws ServiceCallException
+    {
+        Map<String, String> homeServers = new HashMap<String, String>();
+        homeServers.put("bkerr@example.com", "mbx01");
+        homeServers.put("dkramer@example.com", "mbx01");
+        EndpointBalancer balancer = new EndpointBalancer(Arrays.asList(A, B), 3, 1000, homeServers);
+        assertEquals("mbx01", balancer.getRoute("BKERR@example.com"));
+        assertEquals("abarnes@example.com", balancer.getRoute("abarnes@example.com"));
+
+        String first = balancer.acquire("bkerr@example.com").getUrl();
+        assertEquals(first, balancer.acquire("dkramer@example.com").getUrl());
+        assertFalse(first.equals(balancer.acquire("abarnes@example.com").getUrl()));
+        assertTrue(balancer.toString().endsWith("2 mailbox routes, 0 moved"));
+    }
+
+    @Test
+    public void testRouteMovesOffFailedEndpoint() throws ServiceCallException
+    {
+        FakeClockBalancer balancer = new FakeClockBalancer(1, 1000, A, B);
+        EndpointBalancer.Endpoint endpoint = balancer.acquire("bkerr@example.com");
+        String failed = endpoint.getUrl();
+        balancer.release(endpoint, connectionRefused());
+        assertTrue(balancer.isOpen(failed));
+
+        String moved = balancer.acquire("bkerr@example.com").getUrl();
+        assertFalse(failed.equals(moved));
+        assertEquals(moved, balancer.acquire("bkerr@example.com").getUrl());
+        assertEquals(1, balancer.getRerouted());
+    }
+
+    @Test
+    public void testLimitsOutstandingPerEndpoint() throws Exception
+    {
+        final EndpointBalancer balancer = new EndpointBalancer(Arrays.asList(A, B));
+        balancer.limitOutstanding(1);
+        EndpointBalancer.Endpoint first = balancer.acquire("bkerr@example.com");
+        EndpointBalancer.Endpoint second = balancer.acquire();
+        assertFalse(first.getUrl().equals(second.getUrl()));
+
+        // Both endpoints are full, and the mailbox's route waits for its own.
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final AtomicReference<String> waited = new AtomicReference<String>();
+        Thread waiting = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    waited.set(balancer.acquire("bkerr@example.com").getUrl());
+                    acquired.countDown();
+                }
+                catch (ServiceCallException e)
+                {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        waiting.start();
+        assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+        balancer.release(second, null);
+        assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+        balancer.release(first, null);
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        waiting.join();
+        assertEquals(first.getUrl(), waited.get());
+        assertEquals(1, balancer.getOutstanding(first.getUrl()));
+    }
+
+    @Test
+    public void testInterruptedWaitFails() throws ServiceCallException
+    {
+        EndpointBalancer balancer = new EndpointBalancer(Arrays.asList(A));
+        balancer.limitOutstanding(1);
+        balancer.acquire();
+        Thread.currentThread().interrupt();
+        try
+        {
+            balancer.acquire();
+            fail("No exception was thrown.");
+        }
+        catch (ServiceCallException e)
+        {
+            assertTrue(Thread.interrupted());
+        }
+        assertEquals(1, balancer.getOutstanding(A));
+    }
+}
@@ -107,6 +107,45 @@ public void testBody()
         assertNull(mail.getHeader("Body"));
     }
 
+    @Test
+    public void testTruncateBody()
+    {
+        final int maxLength = 10;
+        MessageType mockedMessage = mock(MessageType.class);
+        when(mockedMessage.isSetBody()).thenReturn(true);
+        BodyType body = BodyType.Factory.newInstance();
+        body.setStringValue("This is an email message.");
+        when(mockedMessage.getBody()).thenReturn(body);
+
+        ExchangeEmail mail = new ExchangeEmail(mockedMessage);
+        mail.truncateBody(0);
+        assertEquals("This is an email message.", mail.getHeader("Body"));
+        assertFalse(mail.hasKey("Body Truncated"));
+
+        mail.truncateBody(body.getStringValue().length());
+        assertFalse(mail.hasKey("Body Truncated"));
+
+        mail.truncateBody(maxLength);
+        assertEquals("This is an", mail.getHeader("Body"));
+        assertEquals("true", mail.getHeader("Body Truncated"));
+    }
+
+    @Test
+    public void testTruncateBodyKeepsWholeCharacters()
+    {
+        final int maxLength = 3;
+        MessageType mockedMessage = mock(MessageType.class);
+        when(mockedMessage.isSetBody()).thenReturn(true);
+        BodyType body = BodyType.Factory.newInstance();
+        body.setStringValue("ab\uD83D\uDE00c");
+        when(mockedMessage.getBody()).thenReturn(body);
+
+        ExchangeEmail mail = new ExchangeEmail(mockedMessage);
+        mail.truncateBody(maxLength);
+        assertEquals("ab", mail.getHeader("Body"));
+        assertEquals("true", mail.getHeader("Body Truncated"));
+    }
+
     @Test
     public void testItemId()
     {
@@ -276,7 +315,7 @@ public void testMultipleProperties()
     public void testPossibleHeaders()
     {
         String[] headers = ExchangeEmail.possibleHeaderKeys();
-        assertEquals(8, headers.length);
+        assertEquals(15, headers.length);
         assertEquals("Body", headers[0]);
         assertEquals("Subject", headers[1]);
         assertEquals("Time Sent", headers[2]);
@@ -285,5 +324,12 @@ public void testPossibleHeaders()
         assertEquals("To", headers[5]);
         assertEquals("Cc", headers[6]);
         assertEquals("Bcc", headers[7]);
+        assertEquals("Body Truncated", headers[8]);
+        assertEquals("Attachments", headers[9]);
+        assertEquals("Copy Of", headers[10]);
+        assertEquals("Is Read", headers[11]);
+        assertEquals("Deleted", headers[12]);
+        assertEquals("Export", headers[13]);
+        assertEquals("Attachments Missing", headers[14]);
     }
 }
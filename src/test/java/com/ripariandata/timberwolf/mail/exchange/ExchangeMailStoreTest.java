@@ -17,23 +17,22 @@
  */
 package com.ripariandata.timberwolf.mail.exchange;
 
-import com.microsoft.schemas.exchange.services.x2006.messages.ArrayOfResponseMessagesType;
-import com.microsoft.schemas.exchange.services.x2006.messages.FindFolderResponseMessageType;
-import com.microsoft.schemas.exchange.services.x2006.messages.FindFolderResponseType;
+import com.microsoft.schemas.exchange.services.x2006.messages.GetItemType;
 import com.microsoft.schemas.exchange.services.x2006.messages.ResponseCodeType;
-import com.microsoft.schemas.exchange.services.x2006.types.ArrayOfFoldersType;
-import com.microsoft.schemas.exchange.services.x2006.types.DistinguishedFolderIdNameType;
-import com.microsoft.schemas.exchange.services.x2006.types.FindFolderParentType;
-import com.microsoft.schemas.exchange.services.x2006.types.FolderIdType;
-import com.microsoft.schemas.exchange.services.x2006.types.FolderType;
+import com.microsoft.schemas.exchange.services.x2006.messages.SyncFolderItemsResponseMessageType;
+import com.microsoft.schemas.exchange.services.x2006.messages.SyncFolderItemsResponseType;
+import com.microsoft.schemas.exchange.services.x2006.messages.SyncFolderItemsType;
 import com.microsoft.schemas.exchange.services.x2006.types.MessageType;
+import com.microsoft.schemas.exchange.services.x2006.types.SyncFolderItemsChangesType;
 import com.ripariandata.timberwolf.mail.MailboxItem;
 import com.ripariandata.timberwolf.writer.UserFolderSyncStateStorage;
 import com.ripariandata.timberwolf.writer.console.InMemoryUserFolderSyncStateStorage;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Queue;
 import java.util.Vector;
 import org.apache.xmlbeans.XmlException;
 import org.junit.Before;
@@ -44,8 +43,10 @@
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -69,7 +70,7 @@ public void testGetMailFind0()
                    ServiceCallException
     {
         // Exchange returns 0 mail when syncFolderItems is called
-        defaultMockFindFolders();
+        defaultMockSyncFolderHierarchy();
         mockSyncFolderItems(new String[0], "newSyncState");
         ExchangeMailStore store = new ExchangeMailStore(getService());
         for (MailboxItem mailboxItem : store.getMail(defaultUser, new InMemoryUserFolderSyncStateStorage()))
@@ -84,7 +85,7 @@ public void testGetMailFind0Folders()
                    ServiceCallException
     {
         // Exchange returns 0 mail when syncFolderItems is called
-        mockFindFolders(new FolderType[0]);
+        mockSyncFolderHierarchy(getDefaultUser());
         ExchangeMailStore store = new ExchangeMailStore(getService());
         for (MailboxItem mailboxItem : store.getMail(defaultUser, new InMemoryUserFolderSyncStateStorage()))
         {
@@ -105,7 +106,7 @@ public void testGetMailGet0()
             ids[i] = "the" + i + "id";
         }
         mockSyncFolderItems(ids, "new sync state");
-        defaultMockFindFolders();
+        defaultMockSyncFolderHierarchy();
 
         try
         {
@@ -126,7 +127,7 @@ public void testGetMail30()
         // Exchange returns 30 in SyncFolderItems and 30 in GetItems
         final int count = 30;
         List<String> requestedList = generateIds(0, count, getDefaultFolderId());
-        defaultMockFindFolders();
+        defaultMockSyncFolderHierarchy();
         MessageType[] messages = mockSyncFolderItems(0, 512, count, "newSyncState");
         mockGetItem(messages, 0, count, 0, count, getDefaultFolderId());
         int i = 0;
@@ -180,6 +181,102 @@ public void testSyncFolderItemsOneIdPageTwoItemPages()
         assertEquals(itemsInExchange, index);
     }
 
+    @Test
+    public void testSyncFolderItemsHandsOutOtherChangesFirst()
+            throws IOException, ServiceCallException, HttpErrorException, XmlException
+    {
+        final int itemsInExchange = 2;
+        final int pageSize = 10;
+        final String newSyncState = "New Sync State";
+        Configuration config = new Configuration(pageSize, pageSize);
+        List<String> ids = generateIds(0, itemsInExchange, getDefaultFolderId());
+        SyncFolderItemsResponseType response = SyncFolderItemsResponseType.Factory.newInstance();
+        SyncFolderItemsResponseMessageType message =
+                response.addNewResponseMessages().addNewSyncFolderItemsResponseMessage();
+        message.setResponseCode(ResponseCodeType.NO_ERROR);
+        message.setSyncState(newSyncState);
+        message.setIncludesLastItemInRange(true);
+        SyncFolderItemsChangesType changes = message.addNewChanges();
+        changes.addNewCreate().addNewMessage().addNewItemId().setId(ids.get(0));
+        changes.addNewUpdate().addNewMessage().addNewItemId().setId(ids.get(1));
+        changes.addNewDelete().addNewItemId().setId("deleted");
+        when(getService().syncFolderItems(any(SyncFolderItemsType.class), eq(getDefaultUser())))
+                .thenReturn(response);
+        mockGetItem(createMockMessages(getDefaultFolderId(), 0, itemsInExchange), ids);
+
+        SyncFolderItemIterator mailIterator = new SyncFolderItemIterator(getService(), config, getDefaultFolder());
+
+        assertTrue(mailIterator.hasNext());
+        MailboxItem deleted = mailIterator.next();
+        assertEquals("deleted", deleted.getHeader("Item ID"));
+        assertEquals("true", deleted.getHeader("Deleted"));
+        for (String id : ids)
+        {
+            assertTrue(mailIterator.hasNext());
+            assertEquals("", getDefaultFolder().getSyncStateToken());
+            assertEquals(id, mailIterator.next().getHeader("Item ID"));
+        }
+        assertFalse(mailIterator.hasNext());
+        assertEquals(newSyncState, getDefaultFolder().getSyncStateToken());
+    }
+
+    private SyncFolderItemsResponseType syncResponseWithSubjects(final String syncState, final boolean includesLast,
+                                                                 final String... ids)
+    {
+        SyncFolderItemsResponseType response = SyncFolderItemsResponseType.Factory.newInstance();
+        SyncFolderItemsResponseMessageType message =
+                response.addNewResponseMessages().addNewSyncFolderItemsResponseMessage();
+        message.setResponseCode(ResponseCodeType.NO_ERROR);
+        message.setSyncState(syncState);
+        message.setIncludesLastItemInRange(includesLast);
+        SyncFolderItemsChangesType changes = message.addNewChanges();
+        for (String id : ids)
+        {
+            MessageType created = changes.addNewCreate().addNewMessage();
+            created.addNewItemId().setId(id);
+            created.setSubject("Subject of " + id);
+        }
+        return response;
+    }
+
+    @Test
+    public void testMetadataOnlyNeverGetsItems()
+            throws IOException, ServiceCallException, HttpErrorException, XmlException
+    {
+        final int pageSize = 2;
+        Configuration config = new Configuration(pageSize, pageSize).withMetadataOnly(true);
+        FolderContext folder = getDefaultFolder();
+        when(getService().syncFolderItems(
+                likeThis(SyncFolderItemsHelper.getSyncFolderItemsRequest(config, folder, "")),
+                eq(getDefaultUser())))
+                .thenReturn(syncResponseWithSubjects("SYNC2", false, "one", "two", "three"));
+        when(getService().syncFolderItems(
+                likeThis(SyncFolderItemsHelper.getSyncFolderItemsRequest(config, folder, "SYNC2")),
+                eq(getDefaultUser())))
+                .thenReturn(syncResponseWithSubjects("SYNC3", true, "four"));
+        Queue<FolderContext> folders = new LinkedList<FolderContext>();
+        folders.add(folder);
+
+        Iterator<MailboxItem> mail =
+                new CoalescingItemIterator(getService(), config, getDefaultUser(), folders, new ItemPageSizer(config));
+
+        for (String id : new String[]{"one", "two", "three"})
+        {
+            assertTrue(mail.hasNext());
+            MailboxItem item = mail.next();
+            assertEquals(id, item.getHeader("Item ID"));
+            assertEquals("Subject of " + id, item.getHeader("Subject"));
+        }
+        // A page of items is handed out before the next sync.
+        assertEquals("", folder.getSyncStateToken());
+        assertTrue(mail.hasNext());
+        assertEquals("four", mail.next().getHeader("Item ID"));
+        assertFalse(mail.hasNext());
+        assertEquals("SYNC3", folder.getSyncStateToken());
+        verify(getService(), never()).getItem(any(GetItemType.class), any(String.class));
+        verify(getService(), never()).getItemStreaming(any(GetItemType.class), any(String.class));
+    }
+
     @Test
     public void testSyncFolderItemsOneIdPageFiveItemPages()
             throws IOException, ServiceCallException,
@@ -361,43 +458,7 @@ public void testSyncFolderItemsItemPageLargerThanIdPage()
     public void testGetMailWithPagingAndFolders() throws ServiceCallException, HttpErrorException, XmlException,
                                                          IOException
     {
-        FindFolderResponseType folderResponse = mock(FindFolderResponseType.class);
-        ArrayOfResponseMessagesType folderArr = mock(ArrayOfResponseMessagesType.class);
-        FindFolderResponseMessageType folderMsgs = mock(FindFolderResponseMessageType.class);
-        when(folderMsgs.getResponseCode()).thenReturn(ResponseCodeType.NO_ERROR);
-        FindFolderParentType parent = mock(FindFolderParentType.class);
-        when(parent.isSetFolders()).thenReturn(true);
-        ArrayOfFoldersType folders = mock(ArrayOfFoldersType.class);
-
-        FolderType folderOne = mock(FolderType.class);
-        FolderIdType folderOneId = mock(FolderIdType.class);
-        when(folderOne.isSetFolderId()).thenReturn(true);
-        when(folderOneId.getId()).thenReturn("FOLDER-ONE-ID");
-        when(folderOne.getFolderId()).thenReturn(folderOneId);
-
-        FolderType folderTwo = mock(FolderType.class);
-        FolderIdType folderTwoId = mock(FolderIdType.class);
-        when(folderTwo.isSetFolderId()).thenReturn(true);
-        when(folderTwoId.getId()).thenReturn("FOLDER-TWO-ID");
-        when(folderTwo.getFolderId()).thenReturn(folderTwoId);
-
-        FolderType folderThree = mock(FolderType.class);
-        FolderIdType folderThreeId = mock(FolderIdType.class);
-        when(folderThree.isSetFolderId()).thenReturn(true);
-        when(folderThreeId.getId()).thenReturn("FOLDER-THREE-ID");
-        when(folderThree.getFolderId()).thenReturn(folderThreeId);
-
-        when(folders.getFolderArray()).thenReturn(new FolderType[]{folderOne, folderTwo, folderThree});
-        when(parent.getFolders()).thenReturn(folders);
-        when(folderMsgs.getRootFolder()).thenReturn(parent);
-        when(folderMsgs.isSetRootFolder()).thenReturn(true);
-        FindFolderResponseMessageType[] fFRMT = new FindFolderResponseMessageType[]{folderMsgs};
-        when(folderArr.getFindFolderResponseMessageArray()).thenReturn(fFRMT);
-        when(folderResponse.getResponseMessages()).thenReturn(folderArr);
-
-        when(getService().findFolder(likeThis(FindFolderHelper.getFindFoldersRequest(DistinguishedFolderIdNameType
-                                                                                             .MSGFOLDERROOT)),
-                                     eq(getDefaultUser()))).thenReturn(folderResponse);
+        mockSyncFolderHierarchy(getDefaultUser(), "FOLDER-ONE-ID", "FOLDER-TWO-ID", "FOLDER-THREE-ID");
         final int offsetZero = 0;
         final int offsetFive = 5;
         final int offsetTen = 10;
@@ -406,29 +467,31 @@ public void testGetMailWithPagingAndFolders() throws ServiceCallException, HttpE
         final int countThree = 3;
         final int countFive = 5;
         final int countTen = 10;
+        // GetItem requests are filled up with ids from as many folders as it takes.
         mockSyncFolderItems("FOLDER-ONE-ID", offsetZero, maxIdTen, countTwo, "", "FOLDER-ONE-SYNC2", true);
-        mockGetItem(new MessageType[]{mockMessageItemId("FOLDER-ONE-ID:the #0 id"),
-                mockMessageItemId("FOLDER-ONE-ID:the #1 id")},
-                    generateIds(offsetZero, countTwo, "FOLDER-ONE-ID"));
         mockSyncFolderItems("FOLDER-TWO-ID", offsetZero, maxIdTen, countTen, null, "FOLDER-TWO-SYNC2", false);
-        mockGetItem(new MessageType[]{mockMessageItemId("FOLDER-TWO-ID:the #0 id"),
+        List<String> firstPage = generateIds(offsetZero, countTwo, "FOLDER-ONE-ID");
+        firstPage.addAll(generateIds(offsetZero, countThree, "FOLDER-TWO-ID"));
+        mockGetItem(new MessageType[]{mockMessageItemId("FOLDER-ONE-ID:the #0 id"),
+                mockMessageItemId("FOLDER-ONE-ID:the #1 id"),
+                mockMessageItemId("FOLDER-TWO-ID:the #0 id"),
                 mockMessageItemId("FOLDER-TWO-ID:the #1 id"),
-                mockMessageItemId("FOLDER-TWO-ID:the #2 id"),
-                mockMessageItemId("FOLDER-TWO-ID:the #3 id"),
-                mockMessageItemId("FOLDER-TWO-ID:the #4 id")},
-                    generateIds(offsetZero, countFive, "FOLDER-TWO-ID"));
-        mockGetItem(new MessageType[]{mockMessageItemId("FOLDER-TWO-ID:the #5 id"),
+                mockMessageItemId("FOLDER-TWO-ID:the #2 id")},
+                    firstPage);
+        mockGetItem(new MessageType[]{mockMessageItemId("FOLDER-TWO-ID:the #3 id"),
+                mockMessageItemId("FOLDER-TWO-ID:the #4 id"),
+                mockMessageItemId("FOLDER-TWO-ID:the #5 id"),
                 mockMessageItemId("FOLDER-TWO-ID:the #6 id"),
-                mockMessageItemId("FOLDER-TWO-ID:the #7 id"),
-                mockMessageItemId("FOLDER-TWO-ID:the #8 id"),
-                mockMessageItemId("FOLDER-TWO-ID:the #9 id")},
-                    generateIds(offsetFive, countFive, "FOLDER-TWO-ID"));
+                mockMessageItemId("FOLDER-TWO-ID:the #7 id")},
+                    generateIds(countThree, countFive, "FOLDER-TWO-ID"));
         mockSyncFolderItems("FOLDER-TWO-ID", offsetTen, maxIdTen, countThree, "FOLDER-TWO-SYNC2", "FOLDER-TWO-SYNC3",
                             true);
-        mockGetItem(new MessageType[]{mockMessageItemId("FOLDER-TWO-ID:the #10 id"),
+        mockGetItem(new MessageType[]{mockMessageItemId("FOLDER-TWO-ID:the #8 id"),
+                mockMessageItemId("FOLDER-TWO-ID:the #9 id"),
+                mockMessageItemId("FOLDER-TWO-ID:the #10 id"),
                 mockMessageItemId("FOLDER-TWO-ID:the #11 id"),
                 mockMessageItemId("FOLDER-TWO-ID:the #12 id")},
-                    generateIds(offsetTen, countThree, "FOLDER-TWO-ID"));
+                    generateIds(countThree + countFive, countFive, "FOLDER-TWO-ID"));
         mockSyncFolderItems("FOLDER-THREE-ID", offsetZero, maxIdTen, countTwo, "", "FOLDER-THREE-SYNC2",
                             true);
         mockGetItem(new MessageType[]{mockMessageItemId("FOLDER-THREE-ID:the #0 id"),
@@ -438,7 +501,8 @@ public void testGetMailWithPagingAndFolders() throws ServiceCallException, HttpE
         final int idPageSize = 10;
         final int getItemPageSize = 5;
         ExchangeMailStore store = new ExchangeMailStore(getService(), idPageSize, getItemPageSize);
-        Iterator<MailboxItem> mail = store.getMail(defaultUser, new InMemoryUserFolderSyncStateStorage()).iterator();
+        UserFolderSyncStateStorage syncStates = new InMemoryUserFolderSyncStateStorage();
+        Iterator<MailboxItem> mail = store.getMail(defaultUser, syncStates).iterator();
         final int folderIdTwoCount = 13;
         final int folderIdOtherCount = 2;
         for (String folder : new String[]{"FOLDER-ONE-ID", "FOLDER-TWO-ID", "FOLDER-THREE-ID"})
@@ -448,9 +512,17 @@ public void testGetMailWithPagingAndFolders() throws ServiceCallException, HttpE
                 assertTrue(mail.hasNext());
                 MailboxItem item = mail.next();
                 assertEquals(folder + ":the #" + i + " id", item.getHeader("Item ID"));
+                if (folder == "FOLDER-TWO-ID" && i == countThree)
+                {
+                    // The first page has been handed out, but not all of folder two's first sync.
+                    assertEquals("FOLDER-ONE-SYNC2", syncStates.getLastSyncState(getDefaultUser(), "FOLDER-ONE-ID"));
+                    assertEquals(null, syncStates.getLastSyncState(getDefaultUser(), "FOLDER-TWO-ID"));
+                }
             }
         }
         assertFalse(mail.hasNext());
+        assertEquals("FOLDER-TWO-SYNC3", syncStates.getLastSyncState(getDefaultUser(), "FOLDER-TWO-ID"));
+        assertEquals("FOLDER-THREE-SYNC2", syncStates.getLastSyncState(getDefaultUser(), "FOLDER-THREE-ID"));
     }
 
     @Test
@@ -458,20 +530,8 @@ public void testGetMailMultipleUsers() throws ServiceCallException, HttpErrorExc
     {
         final String aliceFolderId = "ALICE-FOLDER";
         final String bobFolderId = "BOB-FOLDER";
-        FolderType aliceFolder = mock(FolderType.class);
-        FolderIdType aliceId = mock(FolderIdType.class);
-        when(aliceFolder.isSetFolderId()).thenReturn(true);
-        when(aliceFolder.getFolderId()).thenReturn(aliceId);
-        when(aliceId.getId()).thenReturn(aliceFolderId);
-
-        FolderType bobFolder = mock(FolderType.class);
-        FolderIdType bobId = mock(FolderIdType.class);
-        when(bobFolder.isSetFolderId()).thenReturn(true);
-        when(bobFolder.getFolderId()).thenReturn(bobId);
-        when(bobId.getId()).thenReturn(bobFolderId);
-
-        mockFindFolders(new FolderType[]{aliceFolder}, "alice");
-        mockFindFolders(new FolderType[]{bobFolder}, "bob");
+        mockSyncFolderHierarchy("alice", aliceFolderId);
+        mockSyncFolderHierarchy("bob", bobFolderId);
         final int maxIdCount = 10;
         final int folderCount = 2;
         mockSyncFolderItems(createMockMessages(aliceFolderId, 0, folderCount),
@@ -524,13 +584,7 @@ public void testGetMailWithSyncStates() throws ServiceCallException, HttpErrorEx
         final int getItemPageSize = 5;
         final int totalMessageCount = 5;
 
-        FolderType aliceFolder = mock(FolderType.class);
-        FolderIdType aliceId = mock(FolderIdType.class);
-        when(aliceFolder.isSetFolderId()).thenReturn(true);
-        when(aliceFolder.getFolderId()).thenReturn(aliceId);
-        when(aliceId.getId()).thenReturn(aliceFolderId);
-
-        mockFindFolders(new FolderType[]{aliceFolder}, aliceUsername);
+        mockSyncFolderHierarchy(aliceUsername, aliceFolderId);
 
         UserFolderSyncStateStorage mockSyncStates = mock(UserFolderSyncStateStorage.class);
 
@@ -381,7 +381,8 @@ private BodyType sendRequest(final EnvelopeDocument envelope) throws SendRequest
 
         try
         {
-            HttpURLConnection conn = connectionFactory.newInstance(endpoint, request.getBytes(SOAP_ENCODING));
+            RequestBody body = new ByteArrayRequestBody(request.getBytes(SOAP_ENCODING));
+            HttpURLConnection conn = connectionFactory.newInstance(endpoint, body);
 
             int code = conn.getResponseCode();
 
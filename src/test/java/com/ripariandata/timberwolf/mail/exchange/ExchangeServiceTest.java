@@ -17,32 +17,63 @@
  */
 package com.ripariandata.timberwolf.mail.exchange;
 
-import com.microsoft.schemas.exchange.services.x2006.messages.FindFolderDocument;
-import com.microsoft.schemas.exchange.services.x2006.messages.FindFolderResponseType;
-import com.microsoft.schemas.exchange.services.x2006.messages.FindFolderType;
+import com.microsoft.schemas.exchange.services.x2006.messages.ExportItemsType;
+import com.microsoft.schemas.exchange.services.x2006.messages.GetAttachmentType;
 import com.microsoft.schemas.exchange.services.x2006.messages.GetItemDocument;
 import com.microsoft.schemas.exchange.services.x2006.messages.GetItemResponseType;
 import com.microsoft.schemas.exchange.services.x2006.messages.GetItemType;
+import com.microsoft.schemas.exchange.services.x2006.messages.ResponseCodeType;
+import com.microsoft.schemas.exchange.services.x2006.messages.ResponseMessageType;
 import com.microsoft.schemas.exchange.services.x2006.messages.SyncFolderItemsDocument;
+import com.microsoft.schemas.exchange.services.x2006.messages.SyncFolderItemsResponseMessageType;
 import com.microsoft.schemas.exchange.services.x2006.messages.SyncFolderItemsResponseType;
 import com.microsoft.schemas.exchange.services.x2006.messages.SyncFolderItemsType;
 import com.microsoft.schemas.exchange.services.x2006.types.ExchangeImpersonationType;
+import com.microsoft.schemas.exchange.services.x2006.types.MessageType;
+import com.ripariandata.timberwolf.mail.MailboxItem;
+import com.ripariandata.timberwolf.writer.archive.MimeArchive;
+import com.ripariandata.timberwolf.writer.archive.MimeArchiveFile;
+import com.ripariandata.timberwolf.writer.blob.BlobOutputStream;
+import com.ripariandata.timberwolf.writer.blob.BlobStore;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.ConnectException;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.xmlbeans.XmlException;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.xmlsoap.schemas.soap.envelope.EnvelopeDocument;
 
+import static com.ripariandata.timberwolf.mail.exchange.IsRequestBody.writing;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.stub;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -190,67 +221,6 @@
                 + "  </m:ResponseMessages>"
                 + "</GetItemResponse>";
 
-    private static final String FIND_FOLDER_REQUEST = "<mes:FindFolder Traversal=\"Shallow\" "
-    + "xmlns:mes=\"http://schemas.microsoft.com/exchange/services/2006/messages\" "
-    + "xmlns:typ=\"http://schemas.microsoft.com/exchange/services/2006/types\">"
-    + "<mes:FolderShape>"
-    + "<typ:BaseShape>AllProperties</typ:BaseShape>"
-    + "</mes:FolderShape>"
-    + "<mes:ParentFolderIds>"
-    + "<typ:DistinguishedFolderId Id=\"msgfolderroot\"/>"
-    + "</mes:ParentFolderIds>"
-    + "</mes:FindFolder>";
-
-    private static final String FIND_FOLDER_RESPONSE = "<m:FindFolderResponse "
-    + "xmlns:m=\"http://schemas.microsoft.com/exchange/services/2006/messages\" "
-    + "xmlns:t=\"http://schemas.microsoft.com/exchange/services/2006/types\" "
-    + "xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" "
-    + "xmlns:xsd=\"http://www.w3.org/2001/XMLSchema\" xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\">"
-    + "<m:ResponseMessages>"
-    + "<m:FindFolderResponseMessage ResponseClass=\"Success\">"
-    + "<m:ResponseCode>NoError</m:ResponseCode>"
-    + "<m:RootFolder TotalItemsInView=\"12\" IncludesLastItemInRange=\"true\">"
-    + "<t:Folders>"
-    + "<t:Folder>"
-    + "<t:FolderId Id=\"AAAWAGJrZXJyQGludC50YXJ0YXJ1cy5jb20ALgAAAAAAb"
-    + "Ck8HJcmPEi9+6mY2w+80AEA+aDFFTolzk2yM0Sg+YQ84AAAAGxq3AAA\" "
-    + "ChangeKey=\"AQAAABYAAAD5oMUVOiXOTbIzRKD5hDzgAAAAbbf5\"/>"
-    + "<t:ParentFolderId Id=\"AAAWAGJrZXJyQGludC50YXJ0YXJ1cy5jb20ALgAAAAAAbCk8HJcmPEi9+6m"
-    + "Y2w+80AEA+aDFFTolzk2yM0Sg+YQ84AAAAGxq1gAA\" ChangeKey=\"AQAAAA==\"/>"
-    + "<t:FolderClass>IPF.Note</t:FolderClass>"
-    + "<t:DisplayName>Deleted Items</t:DisplayName>"
-    + "<t:TotalCount>0</t:TotalCount>"
-    + "<t:ChildFolderCount>0</t:ChildFolderCount>"
-    + "<t:UnreadCount>0</t:UnreadCount>"
-    + "</t:Folder>"
-    + "<t:Folder>"
-    + "<t:FolderId Id=\"AAAWAGJrZXJyQGludC50YXJ0YXJ1cy5jb20ALgAAAAAAbCk8HJcmPEi9+6mY2w+80AEA+aDFFTo"
-    + "lzk2yM0Sg+YQ84AAAAGxq5AAA\" ChangeKey=\"AQAAABYAAAD5oMUVOiXOTbIzRKD5hDzgAAAAbbf9\"/>"
-    + "<t:ParentFolderId Id=\"AAAWAGJrZXJyQGludC50YXJ0YXJ1cy5jb20ALgAAAAAAbCk8HJ"
-    + "cmPEi9+6mY2w+80AEA+aDFFTolzk2yM0Sg+YQ84AAAAGxq1gAA\" ChangeKey=\"AQAAAA==\"/>"
-    + "<t:FolderClass>IPF.Note</t:FolderClass>"
-    + "<t:DisplayName>Drafts</t:DisplayName>"
-    + "<t:TotalCount>0</t:TotalCount>"
-    + "<t:ChildFolderCount>0</t:ChildFolderCount>"
-    + "<t:UnreadCount>0</t:UnreadCount>"
-    + "</t:Folder>"
-    + "<t:Folder>"
-    + "<t:FolderId Id=\"AAAWAGJrZXJyQGludC50YXJ0YXJ1cy5jb20ALgAAAAAAbCk8HJcmPEi9+6mY2w+80AEA+aDFF"
-    + "Tolzk2yM0Sg+YQ84AAAAGxq2QAA\" ChangeKey=\"AQAAABYAAAD5oMUVOiXOTbIzRKD5hDzgAAAAbhaq\"/>"
-    + "<t:ParentFolderId Id=\"AAAWAGJrZXJyQGludC50YXJ0YXJ1cy5jb20ALgAAAAAAbCk8HJcmPEi9+6mY2w+80AEA+aDFFT"
-    + "olzk2yM0Sg+YQ84AAAAGxq1gAA\" ChangeKey=\"AQAAAA==\"/>"
-    + "<t:FolderClass>IPF.Note</t:FolderClass>"
-    + "<t:DisplayName>Inbox</t:DisplayName>"
-    + "<t:TotalCount>101</t:TotalCount>"
-    + "<t:ChildFolderCount>0</t:ChildFolderCount>"
-    + "<t:UnreadCount>100</t:UnreadCount>"
-    + "</t:Folder>"
-    + "</t:Folders>"
-    + "</m:RootFolder>"
-    + "</m:FindFolderResponseMessage>"
-    + "</m:ResponseMessages>"
-    + "</m:FindFolderResponse>";
-
     private static String soap(final String body)
     {
         return SOAP_PRELUDE + body + SOAP_FINALE;
@@ -296,25 +266,6 @@ public void testGetItem()
         assertEquals(expected.toString(), response.toString());
     }
 
-    @Test
-    public void testFindFolder()
-        throws UnsupportedEncodingException, XmlException, ServiceCallException, IOException, HttpErrorException
-    {
-       MockHttpUrlConnectionFactory factory = new MockHttpUrlConnectionFactory();
-       factory.forRequest(URL, soap(FIND_FOLDER_REQUEST).getBytes("UTF-8"))
-               .respondWith(HttpURLConnection.HTTP_OK, soap(FIND_FOLDER_RESPONSE).getBytes("UTF-8"));
-
-        FindFolderType findFolder = FindFolderDocument.Factory.parse(FIND_FOLDER_REQUEST).getFindFolder();
-
-        ExchangeService service = new ExchangeService(URL, factory);
-        FindFolderResponseType response = service.findFolder(findFolder, "bkerr");
-
-        FindFolderResponseType expected = EnvelopeDocument.Factory.parse(soap(FIND_FOLDER_RESPONSE))
-                .getEnvelope().getBody().getFindFolderResponse();
-
-        assertEquals(expected.toString(), response.toString());
-    }
-
     @Test
     public void testResponseCodeException()
         throws UnsupportedEncodingException, ServiceCallException, XmlException, ServiceCallException,
@@ -323,7 +274,7 @@ public void testResponseCodeException()
         HttpUrlConnectionFactory factory = mock(HttpUrlConnectionFactory.class);
         HttpURLConnection conn = mock(HttpURLConnection.class);
         stub(conn.getResponseCode()).toThrow(new IOException("Cannot read code."));
-        when(factory.newInstance(URL, soap(SYNC_FOLDER_ITEMS_REQUEST).getBytes("UTF-8")))
+        when(factory.newInstance(eq(URL), writing(soap(SYNC_FOLDER_ITEMS_REQUEST).getBytes("UTF-8"))))
             .thenReturn(conn);
 
         ExchangeService service = new ExchangeService(URL, factory);
@@ -350,7 +301,7 @@ public void testInputStreamException()
         HttpUrlConnectionFactory factory = mock(HttpUrlConnectionFactory.class);
         HttpURLConnection conn = mock(HttpURLConnection.class);
         stub(conn.getInputStream()).toThrow(new IOException("Cannot read code."));
-        when(factory.newInstance(URL, soap(SYNC_FOLDER_ITEMS_REQUEST).getBytes("UTF-8"))).thenReturn(conn);
+        when(factory.newInstance(eq(URL), writing(soap(SYNC_FOLDER_ITEMS_REQUEST).getBytes("UTF-8")))).thenReturn(conn);
 
         ExchangeService service = new ExchangeService(URL, factory);
         SyncFolderItemsType
@@ -376,7 +327,7 @@ public void testEmptyResponse()
         HttpURLConnection conn = mock(HttpURLConnection.class);
         when(conn.getResponseCode()).thenReturn(HttpURLConnection.HTTP_OK);
         when(conn.getInputStream()).thenReturn(new ByteArrayInputStream(new byte[] {}));
-        when(factory.newInstance(URL, soap(SYNC_FOLDER_ITEMS_REQUEST).getBytes("UTF-8"))).thenReturn(conn);
+        when(factory.newInstance(eq(URL), writing(soap(SYNC_FOLDER_ITEMS_REQUEST).getBytes("UTF-8")))).thenReturn(conn);
 
         ExchangeService service = new ExchangeService(URL, factory);
         SyncFolderItemsType
@@ -403,7 +354,7 @@ public void testAvailableException()
         stub(response.available()).toThrow(new IOException());
         when(conn.getResponseCode()).thenReturn(HttpURLConnection.HTTP_OK);
         when(conn.getInputStream()).thenReturn(response);
-        when(factory.newInstance(URL, soap(SYNC_FOLDER_ITEMS_REQUEST).getBytes("UTF-8"))).thenReturn(conn);
+        when(factory.newInstance(eq(URL), writing(soap(SYNC_FOLDER_ITEMS_REQUEST).getBytes("UTF-8")))).thenReturn(conn);
 
         ExchangeService service = new ExchangeService(URL, factory);
         SyncFolderItemsType
@@ -497,7 +448,7 @@ public void testHttpErrorResponse()
         final int defaultBufValue = 64;
         when(conn.getInputStream()).thenReturn(new ByteArrayInputStream(new byte[] {defaultBufValue, defaultBufValue,
                 defaultBufValue }));
-        when(factory.newInstance(URL, soap(SYNC_FOLDER_ITEMS_REQUEST).getBytes("UTF-8"))).thenReturn(conn);
+        when(factory.newInstance(eq(URL), writing(soap(SYNC_FOLDER_ITEMS_REQUEST).getBytes("UTF-8")))).thenReturn(conn);
 
         ExchangeService service = new ExchangeService(URL, factory);
         SyncFolderItemsType
@@ -514,6 +465,580 @@ public void testHttpErrorResponse()
         }
     }
 
+    @Test
+    public void testConnectionReleased()
+        throws XmlException, ServiceCallException, IOException, HttpErrorException
+    {
+        HttpUrlConnectionFactory factory = mock(HttpUrlConnectionFactory.class);
+        HttpURLConnection conn = mock(HttpURLConnection.class);
+        when(conn.getResponseCode()).thenReturn(HttpURLConnection.HTTP_OK);
+        when(conn.getInputStream()).thenReturn(
+                new ByteArrayInputStream(soap(SYNC_FOLDER_ITEMS_RESPONSE).getBytes("UTF-8")));
+        when(factory.newInstance(eq(URL), writing(soap(SYNC_FOLDER_ITEMS_REQUEST).getBytes("UTF-8")))).thenReturn(conn);
+
+        ExchangeService service = new ExchangeService(URL, factory);
+        SyncFolderItemsType
+                request = SyncFolderItemsDocument.Factory.parse(SYNC_FOLDER_ITEMS_REQUEST).getSyncFolderItems();
+        service.syncFolderItems(request, "bkerr");
+
+        verify(factory).release(conn);
+    }
+
+    @Test
+    public void testConnectionReleasedAfterError()
+        throws XmlException, ServiceCallException, IOException
+    {
+        HttpUrlConnectionFactory factory = mock(HttpUrlConnectionFactory.class);
+        HttpURLConnection conn = mock(HttpURLConnection.class);
+        when(conn.getResponseCode()).thenReturn(HttpURLConnection.HTTP_INTERNAL_ERROR);
+        when(conn.getInputStream()).thenReturn(new ByteArrayInputStream(new byte[] {}));
+        when(factory.newInstance(eq(URL), writing(soap(SYNC_FOLDER_ITEMS_REQUEST).getBytes("UTF-8")))).thenReturn(conn);
+
+        ExchangeService service = new ExchangeService(URL, factory);
+        SyncFolderItemsType
+                request = SyncFolderItemsDocument.Factory.parse(SYNC_FOLDER_ITEMS_REQUEST).getSyncFolderItems();
+        try
+        {
+            service.syncFolderItems(request, "bkerr");
+            fail("No exception was thrown.");
+        }
+        catch (HttpErrorException e)
+        {
+            verify(factory).release(conn);
+        }
+    }
+
+    private static final String SOAP_FAULT_RESPONSE =
+        "<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+                + "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\">"
+                + "<s:Body>"
+                + "<s:Fault><faultcode>s:Client</faultcode><faultstring>Bad request.</faultstring></s:Fault>"
+                + "</s:Body>"
+                + "</s:Envelope>";
+
+    @Test
+    public void testGetItemStreaming()
+        throws XmlException, ServiceCallException, IOException, HttpErrorException
+    {
+        MockHttpUrlConnectionFactory factory = new MockHttpUrlConnectionFactory();
+        factory.forRequest(URL, soap(GET_ITEM_REQUEST).getBytes("UTF-8"))
+               .respondWith(HttpURLConnection.HTTP_OK, soap(GET_ITEM_RESPONSE).getBytes("UTF-8"));
+
+        ExchangeService service = new ExchangeService(URL, factory);
+        assertTrue(service.isStreamingParserEnabled());
+        Vector<MailboxItem> items =
+                service.getItemStreaming(GetItemDocument.Factory.parse(GET_ITEM_REQUEST).getGetItem(), "bkerr");
+
+        MessageType message = EnvelopeDocument.Factory.parse(soap(GET_ITEM_RESPONSE)).getEnvelope().getBody()
+                .getGetItemResponse().getResponseMessages().getGetItemResponseMessageArray(0).getItems()
+                .getMessageArray(0);
+        ExchangeEmail expected = new ExchangeEmail(message);
+        assertEquals(1, items.size());
+        MailboxItem item = items.get(0);
+        assertEquals(new HashSet<String>(Arrays.asList(expected.getHeaderKeys())),
+                     new HashSet<String>(Arrays.asList(item.getHeaderKeys())));
+        for (String key : expected.getHeaderKeys())
+        {
+            assertEquals(expected.getHeader(key), item.getHeader(key));
+        }
+        assertEquals("User2@example.com", item.getHeader("Sender"));
+        assertEquals("User1@example.com;", item.getHeader("To"));
+    }
+
+    @Test
+    public void testGetAttachmentStreaming()
+        throws ServiceCallException, IOException, HttpErrorException
+    {
+        String response =
+            "<m:GetAttachmentResponse xmlns:m=\"http://schemas.microsoft.com/exchange/services/2006/messages\""
+            + " xmlns:t=\"http://schemas.microsoft.com/exchange/services/2006/types\">"
+            + "<m:ResponseMessages>"
+            + "<m:GetAttachmentResponseMessage ResponseClass=\"Success\">"
+            + "<m:ResponseCode>NoError</m:ResponseCode>"
+            + "<m:Attachments>"
+            + "<t:FileAttachment><t:AttachmentId Id=\"att0\"/><t:Name>hello.txt</t:Name>"
+            + "<t:Content>SGVsbG8s\nIGF0dGFj\naG1lbnQh</t:Content></t:FileAttachment>"
+            + "</m:Attachments>"
+            + "</m:GetAttachmentResponseMessage>"
+            + "<m:GetAttachmentResponseMessage ResponseClass=\"Success\">"
+            + "<m:ResponseCode>NoError</m:ResponseCode>"
+            + "<m:Attachments>"
+            + "<t:ItemAttachment><t:AttachmentId Id=\"att1\"/><t:Name>Forwarded</t:Name></t:ItemAttachment>"
+            + "</m:Attachments>"
+            + "</m:GetAttachmentResponseMessage>"
+            + "</m:ResponseMessages>"
+            + "</m:GetAttachmentResponse>";
+        HttpUrlConnectionFactory factory = mock(HttpUrlConnectionFactory.class);
+        HttpURLConnection conn = mock(HttpURLConnection.class);
+        when(conn.getResponseCode()).thenReturn(HttpURLConnection.HTTP_OK);
+        when(conn.getInputStream()).thenReturn(new ByteArrayInputStream(soap(response).getBytes("UTF-8")));
+        when(factory.newInstance(eq(URL), any(RequestBody.class))).thenReturn(conn);
+
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        BlobStore store = mock(BlobStore.class);
+        when(store.create()).thenReturn(new BlobOutputStream(content)
+        {
+            @Override
+            protected void store(final String hash)
+            {
+            }
+
+            @Override
+            protected void discard()
+            {
+                fail("The attachment should have been stored.");
+            }
+        });
+        GetAttachmentType request = GetAttachmentType.Factory.newInstance();
+        request.addNewAttachmentIds().addNewAttachmentId().setId("att0");
+
+        List<String> hashes = new ExchangeService(URL, factory).getAttachmentStreaming(request, "bkerr", store);
+        assertEquals(2, hashes.size());
+        assertEquals("fa3efc15c7d86ddf33c6c6b38504eeecfb87e565a3a0561fa393c043e44f574e", hashes.get(0));
+        assertNull(hashes.get(1));
+        assertEquals("Hello, attachment!", content.toString("UTF-8"));
+    }
+
+    private static final String GET_ITEM_MIME_RESPONSE =
+        "<m:GetItemResponse xmlns:m=\"http://schemas.microsoft.com/exchange/services/2006/messages\""
+        + " xmlns:t=\"http://schemas.microsoft.com/exchange/services/2006/types\">"
+        + "<m:ResponseMessages>"
+        + "<m:GetItemResponseMessage ResponseClass=\"Success\">"
+        + "<m:ResponseCode>NoError</m:ResponseCode>"
+        + "<m:Items><t:Message>"
+        + "<t:MimeContent CharacterSet=\"UTF-8\">U3ViamVjdDogSGkNCg0K\nRnJvbSBoZXJlIG9uLg0K</t:MimeContent>"
+        + "<t:ItemId Id=\"item0\" ChangeKey=\"ck0\"/>"
+        + "<t:Subject>Hi</t:Subject>"
+        + "</t:Message></m:Items>"
+        + "</m:GetItemResponseMessage>"
+        + "<m:GetItemResponseMessage ResponseClass=\"Error\">"
+        + "<m:MessageText>The specified object was not found in the store.</m:MessageText>"
+        + "<m:ResponseCode>ErrorItemNotFound</m:ResponseCode>"
+        + "<m:DescriptiveLinkKey>0</m:DescriptiveLinkKey>"
+        + "<m:Items/>"
+        + "</m:GetItemResponseMessage>"
+        + "</m:ResponseMessages>"
+        + "</m:GetItemResponse>";
+
+    @Test
+    public void testGetItemStreamingWithMime()
+        throws ServiceCallException, IOException, HttpErrorException
+    {
+        HttpUrlConnectionFactory factory = mock(HttpUrlConnectionFactory.class);
+        HttpURLConnection conn = mock(HttpURLConnection.class);
+        when(conn.getResponseCode()).thenReturn(HttpURLConnection.HTTP_OK);
+        when(conn.getInputStream())
+                .thenReturn(new ByteArrayInputStream(soap(GET_ITEM_MIME_RESPONSE).getBytes("UTF-8")));
+        when(factory.newInstance(eq(URL), any(RequestBody.class))).thenReturn(conn);
+
+        ByteArrayOutputStream mime = new ByteArrayOutputStream();
+        MimeArchiveFile file = mock(MimeArchiveFile.class);
+        when(file.newMessage()).thenReturn(mime);
+        MimeArchive archive = mock(MimeArchive.class);
+        when(archive.open("bkerr")).thenReturn(file);
+        GetItemType request = GetItemHelper.getGetItemMimeRequest(Arrays.asList("item0", "item1"), null);
+
+        Vector<MailboxItem> items = new ExchangeService(URL, factory).getItemStreaming(request, "bkerr", archive);
+        assertEquals(1, items.size());
+        assertEquals("item0", items.get(0).getHeader("Item ID"));
+        assertEquals("Hi", items.get(0).getHeader("Subject"));
+        assertFalse(items.get(0).hasKey("Body"));
+        assertEquals("Subject: Hi\r\n\r\nFrom here on.\r\n", mime.toString("UTF-8"));
+        verify(file).commit();
+    }
+
+    @Test
+    public void testGetItemWithMimeArchivesOneResponse() throws ServiceCallException, IOException
+    {
+        MimeArchiveFile first = mock(MimeArchiveFile.class);
+        MimeArchiveFile second = mock(MimeArchiveFile.class);
+        when(first.newMessage()).thenReturn(new ByteArrayOutputStream());
+        when(second.newMessage()).thenReturn(new ByteArrayOutputStream());
+        MimeArchive archive = mock(MimeArchive.class);
+        when(archive.open("bkerr")).thenReturn(first, second);
+
+        // A hedged call reads the same response twice with the same parser.
+        GetItemResponseParser parser = new GetItemResponseParser(archive, "bkerr");
+        assertEquals(1, parser.parse(new ByteArrayInputStream(soap(GET_ITEM_MIME_RESPONSE).getBytes("UTF-8")),
+                                     "UTF-8").size());
+        assertEquals(1, parser.parse(new ByteArrayInputStream(soap(GET_ITEM_MIME_RESPONSE).getBytes("UTF-8")),
+                                     "UTF-8").size());
+        verify(first).commit();
+        verify(second, never()).commit();
+        verify(second).abort();
+    }
+
+    @Test
+    public void testGetItemStreamingCutsBodies() throws ServiceCallException, IOException
+    {
+        String response =
+            "<m:GetItemResponse xmlns:m=\"http://schemas.microsoft.com/exchange/services/2006/messages\""
+            + " xmlns:t=\"http://schemas.microsoft.com/exchange/services/2006/types\">"
+            + "<m:ResponseMessages>"
+            + "<m:GetItemResponseMessage ResponseClass=\"Success\">"
+            + "<m:ResponseCode>NoError</m:ResponseCode>"
+            + "<m:Items>"
+            + "<t:Message><t:ItemId Id=\"item0\"/><t:Body BodyType=\"Text\">Fish &amp; chips"
+            + "<![CDATA[ <for> ]]>everyone</t:Body><t:Subject>Lunch</t:Subject></t:Message>"
+            + "<t:Message><t:ItemId Id=\"item1\"/><t:Body BodyType=\"Text\">Short</t:Body></t:Message>"
+            + "</m:Items>"
+            + "</m:GetItemResponseMessage>"
+            + "</m:ResponseMessages>"
+            + "</m:GetItemResponse>";
+        final int maxBodyLength = 20;
+        GetItemResponseParser parser = new GetItemResponseParser(maxBodyLength);
+        Vector<MailboxItem> items = parser.parse(new ByteArrayInputStream(soap(response).getBytes("UTF-8")), "UTF-8");
+        assertEquals(2, items.size());
+        assertEquals("Fish & chips <for> e", items.get(0).getHeader("Body"));
+        assertEquals("true", items.get(0).getHeader("Body Truncated"));
+        assertEquals("Lunch", items.get(0).getHeader("Subject"));
+        assertEquals("Short", items.get(1).getHeader("Body"));
+        assertFalse(items.get(1).hasKey("Body Truncated"));
+    }
+
+    @Test
+    public void testExportItemsStreaming()
+        throws ServiceCallException, IOException, HttpErrorException
+    {
+        String response =
+            "<m:ExportItemsResponse xmlns:m=\"http://schemas.microsoft.com/exchange/services/2006/messages\""
+            + " xmlns:t=\"http://schemas.microsoft.com/exchange/services/2006/types\">"
+            + "<m:ResponseMessages>"
+            + "<m:ExportItemsResponseMessage ResponseClass=\"Success\">"
+            + "<m:ResponseCode>NoError</m:ResponseCode>"
+            + "<m:ItemId Id=\"item0\" ChangeKey=\"ck0\"/>"
+            + "<m:Data>SGVsbG8s\nIGV4cG9ydCE=</m:Data>"
+            + "</m:ExportItemsResponseMessage>"
+            + "<m:ExportItemsResponseMessage ResponseClass=\"Error\">"
+            + "<m:MessageText>The specified object was not found in the store.</m:MessageText>"
+            + "<m:ResponseCode>ErrorItemNotFound</m:ResponseCode>"
+            + "<m:DescriptiveLinkKey>0</m:DescriptiveLinkKey>"
+            + "</m:ExportItemsResponseMessage>"
+            + "</m:ResponseMessages>"
+            + "</m:ExportItemsResponse>";
+        HttpUrlConnectionFactory factory = mock(HttpUrlConnectionFactory.class);
+        HttpURLConnection conn = mock(HttpURLConnection.class);
+        when(conn.getResponseCode()).thenReturn(HttpURLConnection.HTTP_OK);
+        when(conn.getInputStream()).thenReturn(new ByteArrayInputStream(soap(response).getBytes("UTF-8")));
+        when(factory.newInstance(eq(URL), any(RequestBody.class))).thenReturn(conn);
+
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        BlobStore store = mock(BlobStore.class);
+        when(store.create()).thenReturn(new BlobOutputStream(content)
+        {
+            @Override
+            protected void store(final String hash)
+            {
+            }
+
+            @Override
+            protected void discard()
+            {
+                fail("The exported item should have been stored.");
+            }
+        });
+        ExportItemsType request = ExportItemsHelper.getExportItemsRequest(Arrays.asList("item0", "item1"));
+
+        Vector<MailboxItem> items = new ExchangeService(URL, factory).exportItemsStreaming(request, "bkerr", store);
+        assertEquals(1, items.size());
+        assertEquals("item0", items.get(0).getHeader("Item ID"));
+        assertEquals("fd124517a6f441809e9d2cb75eb042eacc1db96cf5fda7442f369ab9721e5bf6",
+                     items.get(0).getHeader("Export"));
+        assertNull(items.get(0).getHeader("Subject"));
+        assertEquals("Hello, export!", content.toString("UTF-8"));
+    }
+
+    @Test
+    public void testSyncFolderItemsStreaming()
+        throws XmlException, ServiceCallException, IOException, HttpErrorException
+    {
+        MockHttpUrlConnectionFactory factory = new MockHttpUrlConnectionFactory();
+        factory.forRequest(URL, soap(SYNC_FOLDER_ITEMS_REQUEST).getBytes("UTF-8"))
+               .respondWith(HttpURLConnection.HTTP_OK, soap(SYNC_FOLDER_ITEMS_RESPONSE).getBytes("UTF-8"));
+        SyncFolderItemsType request =
+                SyncFolderItemsDocument.Factory.parse(SYNC_FOLDER_ITEMS_REQUEST).getSyncFolderItems();
+        SyncFolderItemsResponseMessageType expected =
+                EnvelopeDocument.Factory.parse(soap(SYNC_FOLDER_ITEMS_RESPONSE)).getEnvelope().getBody()
+                        .getSyncFolderItemsResponse().getResponseMessages().getSyncFolderItemsResponseMessageArray(0);
+
+        ExchangeService service = new ExchangeService(URL, factory);
+        SyncFolderItemsHelper.SyncFolderItemsResult result = service.syncFolderItemsStreaming(request, "bkerr");
+
+        assertEquals(expected.getSyncState(), result.getSyncState());
+        assertFalse(result.includesLastItem());
+        assertEquals(2, result.getIds().size());
+        assertEquals(expected.getChanges().getCreateArray(0).getMessage().getItemId().getId(), result.getIds().get(0));
+        assertEquals(expected.getChanges().getCreateArray(1).getMessage().getItemId().getId(), result.getIds().get(1));
+    }
+
+    @Test
+    public void testSyncFolderItemsStreamingOtherChanges()
+        throws XmlException, ServiceCallException, IOException, HttpErrorException
+    {
+        String response =
+            "<m:SyncFolderItemsResponse xmlns:m=\"http://schemas.microsoft.com/exchange/services/2006/messages\""
+            + " xmlns:t=\"http://schemas.microsoft.com/exchange/services/2006/types\">"
+            + "<m:ResponseMessages>"
+            + "<m:SyncFolderItemsResponseMessage ResponseClass=\"Success\">"
+            + "<m:ResponseCode>NoError</m:ResponseCode>"
+            + "<m:SyncState>newState</m:SyncState>"
+            + "<m:IncludesLastItemInRange>true</m:IncludesLastItemInRange>"
+            + "<m:Changes>"
+            + "<t:Update><t:Message><t:ItemId Id=\"updated\" ChangeKey=\"CQAAAB\"/></t:Message></t:Update>"
+            + "<t:Delete><t:ItemId Id=\"deleted\" ChangeKey=\"CQAAAC\"/></t:Delete>"
+            + "<t:ReadFlagChange><t:ItemId Id=\"unread\" ChangeKey=\"CQAAAD\"/>"
+            + "<t:IsRead>false</t:IsRead></t:ReadFlagChange>"
+            + "</m:Changes>"
+            + "</m:SyncFolderItemsResponseMessage>"
+            + "</m:ResponseMessages>"
+            + "</m:SyncFolderItemsResponse>";
+        MockHttpUrlConnectionFactory factory = new MockHttpUrlConnectionFactory();
+        factory.forRequest(URL, soap(SYNC_FOLDER_ITEMS_REQUEST).getBytes("UTF-8"))
+               .respondWith(HttpURLConnection.HTTP_OK, soap(response).getBytes("UTF-8"));
+        SyncFolderItemsType request =
+                SyncFolderItemsDocument.Factory.parse(SYNC_FOLDER_ITEMS_REQUEST).getSyncFolderItems();
+
+        ExchangeService service = new ExchangeService(URL, factory);
+        SyncFolderItemsHelper.SyncFolderItemsResult result = service.syncFolderItemsStreaming(request, "bkerr");
+
+        assertEquals("newState", result.getSyncState());
+        assertTrue(result.includesLastItem());
+        assertEquals(1, result.getIds().size());
+        assertEquals("updated", result.getIds().get(0));
+        assertEquals(2, result.getChanges().size());
+        assertEquals("deleted", result.getChanges().get(0).getHeader("Item ID"));
+        assertEquals("true", result.getChanges().get(0).getHeader("Deleted"));
+        assertEquals("unread", result.getChanges().get(1).getHeader("Item ID"));
+        assertEquals("false", result.getChanges().get(1).getHeader("Is Read"));
+    }
+
+    @Test
+    public void testSyncFolderItemsStreamingMetadataOnly()
+        throws XmlException, ServiceCallException, IOException, HttpErrorException
+    {
+        String response =
+            "<m:SyncFolderItemsResponse xmlns:m=\"http://schemas.microsoft.com/exchange/services/2006/messages\""
+            + " xmlns:t=\"http://schemas.microsoft.com/exchange/services/2006/types\">"
+            + "<m:ResponseMessages>"
+            + "<m:SyncFolderItemsResponseMessage ResponseClass=\"Success\">"
+            + "<m:ResponseCode>NoError</m:ResponseCode>"
+            + "<m:SyncState>newState</m:SyncState>"
+            + "<m:IncludesLastItemInRange>true</m:IncludesLastItemInRange>"
+            + "<m:Changes>"
+            + "<t:Create><t:Message><t:ItemId Id=\"created\" ChangeKey=\"CQAAAA\"/>"
+            + "<t:Subject>Hello</t:Subject>"
+            + "<t:From><t:Mailbox><t:EmailAddress>alice@example.com</t:EmailAddress></t:Mailbox></t:From>"
+            + "</t:Message></t:Create>"
+            + "<t:Delete><t:ItemId Id=\"deleted\" ChangeKey=\"CQAAAC\"/></t:Delete>"
+            + "</m:Changes>"
+            + "</m:SyncFolderItemsResponseMessage>"
+            + "</m:ResponseMessages>"
+            + "</m:SyncFolderItemsResponse>";
+        MockHttpUrlConnectionFactory factory = new MockHttpUrlConnectionFactory();
+        factory.forRequest(URL, soap(SYNC_FOLDER_ITEMS_REQUEST).getBytes("UTF-8"))
+               .respondWith(HttpURLConnection.HTTP_OK, soap(response).getBytes("UTF-8"));
+        SyncFolderItemsType request =
+                SyncFolderItemsDocument.Factory.parse(SYNC_FOLDER_ITEMS_REQUEST).getSyncFolderItems();
+
+        ExchangeService service = new ExchangeService(URL, factory);
+        SyncFolderItemsHelper.SyncFolderItemsResult result =
+                service.syncFolderItemsStreaming(request, "bkerr", true);
+
+        assertEquals("newState", result.getSyncState());
+        assertEquals(0, result.getIds().size());
+        assertEquals(2, result.getChanges().size());
+        assertEquals("created", result.getChanges().get(0).getHeader("Item ID"));
+        assertEquals("Hello", result.getChanges().get(0).getHeader("Subject"));
+        assertEquals("alice@example.com", result.getChanges().get(0).getHeader("Sender"));
+        assertEquals("deleted", result.getChanges().get(1).getHeader("Item ID"));
+    }
+
+    @Test
+    public void testSyncFolderHierarchyStreaming()
+        throws ServiceCallException, IOException, HttpErrorException
+    {
+        String response =
+            "<m:SyncFolderHierarchyResponse xmlns:m=\"http://schemas.microsoft.com/exchange/services/2006/messages\""
+            + " xmlns:t=\"http://schemas.microsoft.com/exchange/services/2006/types\">"
+            + "<m:ResponseMessages>"
+            + "<m:SyncFolderHierarchyResponseMessage ResponseClass=\"Success\">"
+            + "<m:ResponseCode>NoError</m:ResponseCode>"
+            + "<m:SyncState>newHierarchyState</m:SyncState>"
+            + "<m:IncludesLastFolderInRange>false</m:IncludesLastFolderInRange>"
+            + "<m:Changes>"
+            + "<t:Create><t:Folder><t:FolderId Id=\"created\" ChangeKey=\"AQAAAA\"/></t:Folder></t:Create>"
+            + "<t:Create><t:CalendarFolder><t:FolderId Id=\"calendar\" ChangeKey=\"AQAAAB\"/></t:CalendarFolder>"
+            + "</t:Create>"
+            + "<t:Update><t:Folder><t:FolderId Id=\"renamed\" ChangeKey=\"AQAAAC\"/></t:Folder></t:Update>"
+            + "<t:Delete><t:FolderId Id=\"deleted\" ChangeKey=\"AQAAAD\"/></t:Delete>"
+            + "</m:Changes>"
+            + "</m:SyncFolderHierarchyResponseMessage>"
+            + "</m:ResponseMessages>"
+            + "</m:SyncFolderHierarchyResponse>";
+        HttpUrlConnectionFactory factory = mock(HttpUrlConnectionFactory.class);
+        HttpURLConnection conn = mock(HttpURLConnection.class);
+        when(conn.getResponseCode()).thenReturn(HttpURLConnection.HTTP_OK);
+        when(conn.getInputStream()).thenReturn(new ByteArrayInputStream(soap(response).getBytes("UTF-8")));
+        when(factory.newInstance(eq(URL), any(RequestBody.class))).thenReturn(conn);
+
+        SyncFolderHierarchyHelper.FolderHierarchyResult result = new ExchangeService(URL, factory)
+                .syncFolderHierarchyStreaming(SyncFolderHierarchyHelper.getSyncFolderHierarchyRequest("oldState"),
+                                              "bkerr");
+
+        assertEquals("newHierarchyState", result.getSyncState());
+        assertFalse(result.includesLastFolder());
+        assertEquals(Arrays.asList("created", "renamed"), result.getCreatedFolderIds());
+        assertEquals(Arrays.asList("deleted"), result.getDeletedFolderIds());
+    }
+
+    @Test
+    public void testStreamingSoapFault()
+        throws XmlException, ServiceCallException, IOException, HttpErrorException
+    {
+        MockHttpUrlConnectionFactory factory = new MockHttpUrlConnectionFactory();
+        factory.forRequest(URL, soap(GET_ITEM_REQUEST).getBytes("UTF-8"))
+               .respondWith(HttpURLConnection.HTTP_OK, SOAP_FAULT_RESPONSE.getBytes("UTF-8"));
+
+        ExchangeService service = new ExchangeService(URL, factory);
+        try
+        {
+            service.getItemStreaming(GetItemDocument.Factory.parse(GET_ITEM_REQUEST).getGetItem(), "bkerr");
+            fail("No exception was thrown.");
+        }
+        catch (UnexpectedResponseException e)
+        {
+            assertEquals("SOAP response contained Fault instead of GetItemResponse.", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testStreamingErrorResponseCode()
+        throws XmlException, ServiceCallException, IOException, HttpErrorException
+    {
+        String errorResponse = GET_ITEM_RESPONSE.replace("ResponseClass=\"Success\"", "ResponseClass=\"Error\"")
+                                                .replace("NoError", "ErrorAccessDenied");
+        MockHttpUrlConnectionFactory factory = new MockHttpUrlConnectionFactory();
+        factory.forRequest(URL, soap(GET_ITEM_REQUEST).getBytes("UTF-8"))
+               .respondWith(HttpURLConnection.HTTP_OK, soap(errorResponse).getBytes("UTF-8"));
+
+        ExchangeService service = new ExchangeService(URL, factory);
+        try
+        {
+            service.getItemStreaming(GetItemDocument.Factory.parse(GET_ITEM_REQUEST).getGetItem(), "bkerr");
+            fail("No exception was thrown.");
+        }
+        catch (ServiceCallException e)
+        {
+            assertFalse(e instanceof UnexpectedResponseException);
+            assertEquals(ResponseCodeType.ERROR_ACCESS_DENIED, e.getSoapError());
+        }
+    }
+
+    @Test
+    public void testStreamingSkipsItemNotFound()
+        throws XmlException, ServiceCallException, IOException, HttpErrorException
+    {
+        String response = GET_ITEM_RESPONSE.replace(
+                "<m:ResponseMessages>",
+                "<m:ResponseMessages>"
+                + "<m:GetItemResponseMessage ResponseClass=\"Error\">"
+                + "<m:MessageText>The specified object was not found in the store.</m:MessageText>"
+                + "<m:ResponseCode>ErrorItemNotFound</m:ResponseCode>"
+                + "<m:DescriptiveLinkKey>0</m:DescriptiveLinkKey>"
+                + "<m:Items />"
+                + "</m:GetItemResponseMessage>");
+        MockHttpUrlConnectionFactory factory = new MockHttpUrlConnectionFactory();
+        factory.forRequest(URL, soap(GET_ITEM_REQUEST).getBytes("UTF-8"))
+               .respondWith(HttpURLConnection.HTTP_OK, soap(response).getBytes("UTF-8"));
+
+        ExchangeService service = new ExchangeService(URL, factory);
+        Vector<MailboxItem> items =
+                service.getItemStreaming(GetItemDocument.Factory.parse(GET_ITEM_REQUEST).getGetItem(), "bkerr");
+        assertEquals(1, items.size());
+        assertEquals("AAAlAFVz", items.get(0).getHeader("Item ID"));
+    }
+
+    @Test
+    public void testStreamingMalformedResponse()
+        throws XmlException, ServiceCallException, IOException, HttpErrorException
+    {
+        MockHttpUrlConnectionFactory factory = new MockHttpUrlConnectionFactory();
+        factory.forRequest(URL, soap(GET_ITEM_REQUEST).getBytes("UTF-8"))
+               .respondWith(HttpURLConnection.HTTP_OK, soap("<GetItemResponse").getBytes("UTF-8"));
+
+        ExchangeService service = new ExchangeService(URL, factory, true);
+        try
+        {
+            service.getItemStreaming(GetItemDocument.Factory.parse(GET_ITEM_REQUEST).getGetItem(), "bkerr");
+            fail("No exception was thrown.");
+        }
+        catch (UnexpectedResponseException e)
+        {
+            assertEquals("The streaming parser could not read the response.", e.getMessage());
+        }
+    }
+
+    private GetItemResponseType getCompressedItem(final ExchangeService service, final HttpUrlConnectionFactory factory,
+                                                  final String encoding, final byte[] compressed)
+            throws XmlException, ServiceCallException, IOException, HttpErrorException
+    {
+        HttpURLConnection conn = mock(HttpURLConnection.class);
+        when(conn.getResponseCode()).thenReturn(HttpURLConnection.HTTP_OK);
+        when(conn.getContentEncoding()).thenReturn(encoding);
+        when(conn.getInputStream()).thenReturn(new ByteArrayInputStream(compressed));
+        when(factory.newInstance(eq(URL), writing(soap(GET_ITEM_REQUEST).getBytes("UTF-8")))).thenReturn(conn);
+
+        return service.getItem(GetItemDocument.Factory.parse(GET_ITEM_REQUEST).getGetItem(), "bkerr");
+    }
+
+    @Test
+    public void testCompressedResponses()
+        throws XmlException, ServiceCallException, IOException, HttpErrorException
+    {
+        byte[] uncompressed = soap(GET_ITEM_RESPONSE).getBytes("UTF-8");
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        GZIPOutputStream gzipStream = new GZIPOutputStream(gzipped);
+        gzipStream.write(uncompressed);
+        gzipStream.close();
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        DeflaterOutputStream deflateStream = new DeflaterOutputStream(deflated);
+        deflateStream.write(uncompressed);
+        deflateStream.close();
+
+        HttpUrlConnectionFactory factory = mock(HttpUrlConnectionFactory.class);
+        ExchangeService service = new ExchangeService(URL, factory);
+        GetItemResponseType expected = EnvelopeDocument.Factory.parse(soap(GET_ITEM_RESPONSE))
+                                       .getEnvelope().getBody().getGetItemResponse();
+
+        assertEquals(expected.toString(),
+                     getCompressedItem(service, factory, "gzip", gzipped.toByteArray()).toString());
+        assertEquals(expected.toString(),
+                     getCompressedItem(service, factory, "deflate", deflated.toByteArray()).toString());
+
+        TransferStatistics stats = service.getTransferStatistics();
+        assertEquals(2, stats.getCalls(ExchangeService.GET_ITEM));
+        assertEquals(gzipped.size() + deflated.size(), stats.getCompressedBytes(ExchangeService.GET_ITEM));
+        assertEquals(2 * uncompressed.length, stats.getUncompressedBytes(ExchangeService.GET_ITEM));
+        assertEquals(0, stats.getCalls(ExchangeService.SYNC_FOLDER_ITEMS));
+    }
+
+    @Test
+    public void testUnsupportedContentEncoding()
+        throws XmlException, ServiceCallException, IOException, HttpErrorException
+    {
+        HttpUrlConnectionFactory factory = mock(HttpUrlConnectionFactory.class);
+        ExchangeService service = new ExchangeService(URL, factory);
+        try
+        {
+            getCompressedItem(service, factory, "br", soap(GET_ITEM_RESPONSE).getBytes("UTF-8"));
+            fail("No exception was thrown.");
+        }
+        catch (ServiceCallException e)
+        {
+            assertEquals("There was an error decompressing the response with content encoding br.", e.getMessage());
+        }
+    }
+
     public void charsetTestHelper(final String charset)
             throws UnsupportedEncodingException, XmlException, ServiceCallException, IOException
     {
@@ -524,7 +1049,7 @@ public void charsetTestHelper(final String charset)
         when(conn.getInputStream()).thenReturn(new ByteArrayInputStream(new byte[] {defaultBufValue, defaultBufValue,
                 defaultBufValue }));
         when(conn.getHeaderField("Content-Type")).thenReturn(charset);
-        when(factory.newInstance(URL, soap(SYNC_FOLDER_ITEMS_REQUEST).getBytes("UTF-8"))).thenReturn(conn);
+        when(factory.newInstance(eq(URL), writing(soap(SYNC_FOLDER_ITEMS_REQUEST).getBytes("UTF-8")))).thenReturn(conn);
 
         ExchangeService service = new ExchangeService(URL, factory);
         SyncFolderItemsType
@@ -563,20 +1088,391 @@ public void testOnePart()
         charsetTestHelper("Content-Type: text/html");
     }
 
+    private static EnvelopeDocument render(final RequestBody request) throws XmlException, IOException
+    {
+        return EnvelopeDocument.Factory.parse(new ByteArrayInputStream(ByteArrayRequestBody.toBytes(request)));
+    }
+
     @Test
-    public void testEmptyRequest()
+    public void testEmptyRequest() throws XmlException, IOException
     {
-        ExchangeService service = new ExchangeService(URL);
+        GetItemType getItem = GetItemType.Factory.newInstance();
 
-        EnvelopeDocument request = service.createEmptyRequest("bkerr@INT.TARTARUS.COM");
+        EnvelopeDocument request = render(RequestTemplate.GET_ITEM.newRequest("bkerr@INT.TARTARUS.COM", getItem));
         assertTrue(request.getEnvelope().isSetHeader());
         assertTrue(request.getEnvelope().getHeader().isSetExchangeImpersonation());
         ExchangeImpersonationType impersonation = request.getEnvelope().getHeader().getExchangeImpersonation();
         assertTrue(impersonation.getConnectingSID().isSetPrincipalName());
         assertEquals("bkerr@INT.TARTARUS.COM", impersonation.getConnectingSID().getPrincipalName());
+        assertTrue(request.getEnvelope().getBody().isSetGetItem());
 
-        request = service.createEmptyRequest("korganizer@INT.TARTARUS.COM");
+        request = render(RequestTemplate.GET_ITEM.newRequest("korganizer@INT.TARTARUS.COM", getItem));
         assertEquals("korganizer@INT.TARTARUS.COM", request.getEnvelope().getHeader().getExchangeImpersonation()
                                                            .getConnectingSID().getPrincipalName());
     }
+
+    @Test
+    public void testRequestTemplateEscapesUser() throws XmlException, IOException
+    {
+        EnvelopeDocument request = render(RequestTemplate.SYNC_FOLDER_ITEMS.newRequest(
+                "<b&k>", SyncFolderItemsType.Factory.newInstance()));
+        assertEquals("<b&k>", request.getEnvelope().getHeader().getExchangeImpersonation()
+                                     .getConnectingSID().getPrincipalName());
+        assertTrue(request.getEnvelope().getBody().isSetSyncFolderItems());
+    }
+
+    @Test
+    public void testExportItemsRequestHasServerVersion() throws XmlException, IOException
+    {
+        ExportItemsType exportItems = ExportItemsHelper.getExportItemsRequest(Arrays.asList("item0"));
+        RequestBody request = RequestTemplate.EXPORT_ITEMS.newRequest("bkerr", exportItems);
+        String xml = new String(ByteArrayRequestBody.toBytes(request), "UTF-8");
+        String header = xml.substring(xml.indexOf("<soapenv:Header>"), xml.indexOf("</soapenv:Header>"));
+        assertTrue(header.contains("<typ:RequestServerVersion xmlns:typ=\""
+                                   + StreamingResponseParser.TYPES_NAMESPACE + "\" Version=\"Exchange2010_SP1\"/>"));
+        EnvelopeDocument envelope = render(request);
+        assertEquals("bkerr", envelope.getEnvelope().getHeader().getExchangeImpersonation()
+                                      .getConnectingSID().getPrincipalName());
+
+        // Everything else is in the 2007 SP1 schema, which is what no version means.
+        String getItem = RequestTemplate.GET_ITEM.newRequest("bkerr", GetItemType.Factory.newInstance()).toString();
+        assertFalse(getItem.contains("RequestServerVersion"));
+    }
+
+    @Test
+    public void testRequestTemplateMatchesEnvelope() throws XmlException, IOException
+    {
+        SyncFolderItemsType syncFolderItems = SyncFolderItemsDocument.Factory.parse(SYNC_FOLDER_ITEMS_REQUEST)
+                                                                             .getSyncFolderItems();
+        RequestBody request = RequestTemplate.SYNC_FOLDER_ITEMS.newRequest("bkerr", syncFolderItems);
+        assertEquals(soap(SYNC_FOLDER_ITEMS_REQUEST), new String(ByteArrayRequestBody.toBytes(request), "UTF-8"));
+        assertEquals(soap(SYNC_FOLDER_ITEMS_REQUEST), request.toString());
+    }
+
+    private static final String SERVER_BUSY_FAULT =
+            "<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+            + "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\">"
+            + "<s:Body>"
+            + "<s:Fault>"
+            + "<faultcode xmlns:a=\"http://schemas.microsoft.com/exchange/services/2006/types\">"
+            + "a:ErrorServerBusy</faultcode>"
+            + "<faultstring xml:lang=\"en-US\">The server cannot service this request right now.</faultstring>"
+            + "<detail>"
+            + "<e:ResponseCode xmlns:e=\"http://schemas.microsoft.com/exchange/services/2006/errors\">"
+            + "ErrorServerBusy</e:ResponseCode>"
+            + "<e:MessageXml xmlns:e=\"http://schemas.microsoft.com/exchange/services/2006/errors\">"
+            + "<t:Value xmlns:t=\"http://schemas.microsoft.com/exchange/services/2006/types\" "
+            + "Name=\"BackOffMilliseconds\">29943</t:Value>"
+            + "</e:MessageXml>"
+            + "</detail>"
+            + "</s:Fault>"
+            + "</s:Body>"
+            + "</s:Envelope>";
+
+    private static final String SERVER_BUSY_RESPONSE =
+            GET_ITEM_RESPONSE.replace("ResponseClass=\"Success\"", "ResponseClass=\"Error\"")
+                             .replace("<m:ResponseCode>NoError</m:ResponseCode>",
+                                      "<m:ResponseCode>ErrorServerBusy</m:ResponseCode>"
+                                      + "<m:MessageXml>"
+                                      + "<t:Value Name=\"Policy\">MaxConcurrency</t:Value>"
+                                      + "<t:Value Name=\"BackOffMilliseconds\">2500</t:Value>"
+                                      + "</m:MessageXml>");
+
+    @Test
+    public void testServerBusyFault()
+        throws XmlException, ServiceCallException, IOException, HttpErrorException
+    {
+        HttpUrlConnectionFactory factory = mock(HttpUrlConnectionFactory.class);
+        HttpURLConnection conn = mock(HttpURLConnection.class);
+        when(conn.getResponseCode()).thenReturn(HttpURLConnection.HTTP_INTERNAL_ERROR);
+        when(conn.getInputStream()).thenThrow(new IOException("Server returned HTTP response code: 500"));
+        when(conn.getErrorStream()).thenReturn(new ByteArrayInputStream(SERVER_BUSY_FAULT.getBytes("UTF-8")));
+        when(factory.newInstance(eq(URL), writing(soap(GET_ITEM_REQUEST).getBytes("UTF-8")))).thenReturn(conn);
+
+        ExchangeService service = new ExchangeService(URL, factory);
+        try
+        {
+            service.getItem(GetItemDocument.Factory.parse(GET_ITEM_REQUEST).getGetItem(), "bkerr");
+            fail("No exception was thrown.");
+        }
+        catch (HttpErrorException e)
+        {
+            assertEquals(HttpURLConnection.HTTP_INTERNAL_ERROR, e.getErrorCode());
+            assertEquals(ResponseCodeType.ERROR_SERVER_BUSY, e.getSoapError());
+            assertEquals(29943, e.getBackOffMillis());
+            assertTrue(RetryPolicy.isTransient(e));
+        }
+    }
+
+    @Test
+    public void testRetryAfterHeader()
+        throws XmlException, ServiceCallException, IOException, HttpErrorException
+    {
+        HttpUrlConnectionFactory factory = mock(HttpUrlConnectionFactory.class);
+        HttpURLConnection conn = mock(HttpURLConnection.class);
+        when(conn.getResponseCode()).thenReturn(HttpURLConnection.HTTP_UNAVAILABLE);
+        when(conn.getHeaderField("Retry-After")).thenReturn("7");
+        when(conn.getErrorStream()).thenReturn(new ByteArrayInputStream(new byte[0]));
+        when(factory.newInstance(eq(URL), writing(soap(GET_ITEM_REQUEST).getBytes("UTF-8")))).thenReturn(conn);
+
+        ExchangeService service = new ExchangeService(URL, factory);
+        try
+        {
+            service.getItem(GetItemDocument.Factory.parse(GET_ITEM_REQUEST).getGetItem(), "bkerr");
+            fail("No exception was thrown.");
+        }
+        catch (HttpErrorException e)
+        {
+            assertEquals(HttpURLConnection.HTTP_UNAVAILABLE, e.getErrorCode());
+            assertEquals(null, e.getSoapError());
+            assertEquals(7000, e.getBackOffMillis());
+            assertTrue(RetryPolicy.isTransient(e));
+        }
+    }
+
+    @Test
+    public void testStreamingServerBusy()
+        throws XmlException, ServiceCallException, IOException, HttpErrorException
+    {
+        MockHttpUrlConnectionFactory factory = new MockHttpUrlConnectionFactory();
+        factory.forRequest(URL, soap(GET_ITEM_REQUEST).getBytes("UTF-8"))
+               .respondWith(HttpURLConnection.HTTP_OK, soap(SERVER_BUSY_RESPONSE).getBytes("UTF-8"));
+
+        ExchangeService service = new ExchangeService(URL, factory);
+        try
+        {
+            service.getItemStreaming(GetItemDocument.Factory.parse(GET_ITEM_REQUEST).getGetItem(), "bkerr");
+            fail("No exception was thrown.");
+        }
+        catch (ServiceCallException e)
+        {
+            assertFalse(e instanceof UnexpectedResponseException);
+            assertEquals(ResponseCodeType.ERROR_SERVER_BUSY, e.getSoapError());
+            assertEquals(2500, e.getBackOffMillis());
+            assertTrue(RetryPolicy.isTransient(e));
+        }
+    }
+
+    @Test
+    public void testServerBusyMessageXml() throws XmlException, ServiceCallException, HttpErrorException
+    {
+        EnvelopeDocument response = EnvelopeDocument.Factory.parse(soap(SERVER_BUSY_RESPONSE));
+        ResponseMessageType message = response.getEnvelope().getBody().getGetItemResponse().getResponseMessages()
+                                              .getGetItemResponseMessageArray(0);
+        assertEquals(2500, BackOffHint.fromMessageXml(message.getMessageXml()));
+        assertEquals(0, BackOffHint.fromMessageXml(null));
+    }
+
+    @Test
+    public void testRateLimiterSeesThrottling()
+        throws XmlException, ServiceCallException, IOException, HttpErrorException
+    {
+        HttpUrlConnectionFactory factory = mock(HttpUrlConnectionFactory.class);
+        HttpURLConnection conn = mock(HttpURLConnection.class);
+        when(conn.getResponseCode()).thenReturn(HttpURLConnection.HTTP_INTERNAL_ERROR);
+        when(conn.getErrorStream()).thenReturn(new ByteArrayInputStream(SERVER_BUSY_FAULT.getBytes("UTF-8")));
+        when(factory.newInstance(eq(URL), writing(soap(GET_ITEM_REQUEST).getBytes("UTF-8")))).thenReturn(conn);
+
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(1, 50);
+        ExchangeService service = new ExchangeService(URL, factory, true, limiter);
+        try
+        {
+            service.getItem(GetItemDocument.Factory.parse(GET_ITEM_REQUEST).getGetItem(), "bkerr");
+            fail("No exception was thrown.");
+        }
+        catch (HttpErrorException e)
+        {
+            assertEquals(1, limiter.getThrottles());
+            assertEquals(AdaptiveRateLimiter.DEFAULT_INITIAL_RATE / 2, limiter.getRate(), 0.001);
+        }
+        assertTrue(service.getRateLimiter() == limiter);
+        assertFalse(new ExchangeService(URL, factory).getRateLimiter().isEnabled());
+    }
+
+    private HttpURLConnection respondingWith(final String response) throws IOException
+    {
+        HttpURLConnection conn = mock(HttpURLConnection.class);
+        when(conn.getResponseCode()).thenReturn(HttpURLConnection.HTTP_OK);
+        when(conn.getInputStream()).thenReturn(new ByteArrayInputStream(soap(response).getBytes("UTF-8")));
+        return conn;
+    }
+
+    @Test
+    public void testRequestsAvoidFailedEndpoint()
+        throws XmlException, ServiceCallException, IOException, HttpErrorException
+    {
+        final String down = "https://cas1.example.com/ews/exchange.asmx";
+        final String up = "https://cas2.example.com/ews/exchange.asmx";
+        HttpUrlConnectionFactory factory = mock(HttpUrlConnectionFactory.class);
+        when(factory.newInstance(eq(down), any(RequestBody.class)))
+            .thenThrow(new ServiceCallException(ServiceCallException.Reason.OTHER, "Connection refused.",
+                                                new ConnectException()));
+        HttpURLConnection first = respondingWith(GET_ITEM_RESPONSE);
+        HttpURLConnection second = respondingWith(GET_ITEM_RESPONSE);
+        when(factory.newInstance(eq(up), any(RequestBody.class))).thenReturn(first, second);
+
+        EndpointBalancer balancer = new EndpointBalancer(Arrays.asList(down, up), 1, 60000);
+        ExchangeService service = new ExchangeService(balancer, factory, false, AdaptiveRateLimiter.unlimited());
+        GetItemType request = GetItemDocument.Factory.parse(GET_ITEM_REQUEST).getGetItem();
+        try
+        {
+            service.getItem(request, "bkerr");
+            fail("No exception was thrown.");
+        }
+        catch (ServiceCallException e)
+        {
+            assertTrue(balancer.isOpen(down));
+        }
+        service.getItem(request, "bkerr");
+        service.getItem(request, "bkerr");
+
+        assertEquals(1, balancer.getRequests(down));
+        assertEquals(2, balancer.getRequests(up));
+        assertEquals(0, balancer.getOutstanding(down));
+        assertEquals(0, balancer.getOutstanding(up));
+        assertTrue(service.getEndpoints() == balancer);
+    }
+
+    @Test
+    public void testReplayRecordedExchange()
+        throws XmlException, ServiceCallException, IOException, HttpErrorException
+    {
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        GZIPOutputStream gzipStream = new GZIPOutputStream(gzipped);
+        gzipStream.write(soap(GET_ITEM_RESPONSE).getBytes("UTF-8"));
+        gzipStream.close();
+        HttpUrlConnectionFactory network = mock(HttpUrlConnectionFactory.class);
+        HttpURLConnection conn = mock(HttpURLConnection.class);
+        when(conn.getResponseCode()).thenReturn(HttpURLConnection.HTTP_OK);
+        when(conn.getContentEncoding()).thenReturn("gzip");
+        when(conn.getInputStream()).thenReturn(new ByteArrayInputStream(gzipped.toByteArray()));
+        when(network.newInstance(eq(URL), writing(soap(GET_ITEM_REQUEST).getBytes("UTF-8")))).thenReturn(conn);
+
+        File directory = File.createTempFile("timberwolf-recordings", "");
+        assertTrue(directory.delete() && directory.mkdir());
+        RecordingHttpUrlConnectionFactory recorder =
+                new RecordingHttpUrlConnectionFactory(network, directory,
+                                                      RecordingHttpUrlConnectionFactory.DEFAULT_MAX_FILE_BYTES);
+        GetItemType request = GetItemDocument.Factory.parse(GET_ITEM_REQUEST).getGetItem();
+        Vector<MailboxItem> recorded = new ExchangeService(URL, recorder).getItemStreaming(request, "bkerr");
+        recorder.close();
+
+        ExchangeService replayed = new ExchangeService(URL, new ReplayHttpUrlConnectionFactory(directory));
+        Vector<MailboxItem> items = replayed.getItemStreaming(request, "bkerr");
+        WireRecordingTest.deleteAll(directory);
+        assertEquals(recorded.size(), items.size());
+        assertEquals(recorded.get(0).getHeader("Item ID"), items.get(0).getHeader("Item ID"));
+        assertEquals(gzipped.size(), replayed.getTransferStatistics().getCompressedBytes(ExchangeService.GET_ITEM));
+    }
+
+    /** A connection that doesn't answer until it's closed, or the test gives up on it. */
+    private HttpURLConnection hanging() throws IOException
+    {
+        final CountDownLatch closed = new CountDownLatch(1);
+        HttpURLConnection conn = mock(HttpURLConnection.class);
+        when(conn.getResponseCode()).thenAnswer(new Answer<Integer>()
+        {
+            @Override
+            public Integer answer(final InvocationOnMock invocation) throws Throwable
+            {
+                closed.await(5, TimeUnit.SECONDS);
+                throw new IOException("Socket closed");
+            }
+        });
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(final InvocationOnMock invocation)
+            {
+                closed.countDown();
+                return null;
+            }
+        }).when(conn).disconnect();
+        return conn;
+    }
+
+    @Test
+    public void testDeadlineClosesSlowCall()
+        throws XmlException, ServiceCallException, IOException, HttpErrorException
+    {
+        HttpUrlConnectionFactory factory = mock(HttpUrlConnectionFactory.class);
+        HttpURLConnection conn = hanging();
+        when(factory.newInstance(eq(URL), any(RequestBody.class))).thenReturn(conn);
+
+        LatencyPolicy latency = new LatencyPolicy(0, 100, 0, 0);
+        ExchangeService service = new ExchangeService(new EndpointBalancer(Arrays.asList(URL)), factory, false,
+                                                      AdaptiveRateLimiter.unlimited(), latency);
+        GetItemType request = GetItemDocument.Factory.parse(GET_ITEM_REQUEST).getGetItem();
+        long start = System.currentTimeMillis();
+        try
+        {
+            service.getItem(request, "bkerr");
+            fail("No exception was thrown.");
+        }
+        catch (ServiceCallException e)
+        {
+            assertTrue(e.getCause() instanceof SocketTimeoutException);
+            assertTrue(System.currentTimeMillis() - start < 4000);
+        }
+        verify(conn).disconnect();
+        assertEquals(1, latency.getExpired(ExchangeService.GET_ITEM));
+        assertTrue(service.getLatencyPolicy() == latency);
+    }
+
+    @Test
+    public void testHedgedCallTakesFirstAnswer()
+        throws XmlException, ServiceCallException, IOException, HttpErrorException
+    {
+        HttpUrlConnectionFactory factory = mock(HttpUrlConnectionFactory.class);
+        HttpURLConnection slow = hanging();
+        HttpURLConnection fast = respondingWith(GET_ITEM_RESPONSE);
+        when(factory.newInstance(eq(URL), any(RequestBody.class))).thenReturn(slow, fast);
+
+        LatencyPolicy latency = new LatencyPolicy(0, 0, 0, 100);
+        for (int i = 0; i < 20; i++)
+        {
+            latency.record(ExchangeService.GET_ITEM, 1);
+        }
+        ExchangeService service = new ExchangeService(new EndpointBalancer(Arrays.asList(URL)), factory, false,
+                                                      AdaptiveRateLimiter.unlimited(), latency);
+        GetItemType request = GetItemDocument.Factory.parse(GET_ITEM_REQUEST).getGetItem();
+        GetItemResponseType response = service.getItem(request, "bkerr");
+        slow.disconnect();
+
+        assertEquals(1, response.getResponseMessages().sizeOfGetItemResponseMessageArray());
+        assertEquals(1, latency.getHedges(ExchangeService.GET_ITEM));
+        assertEquals(1, latency.getHedgeWins(ExchangeService.GET_ITEM));
+    }
+
+    @Test
+    public void testHedgedCallClosesLosingAttempt()
+        throws XmlException, ServiceCallException, IOException, HttpErrorException, InterruptedException
+    {
+        HttpUrlConnectionFactory factory = mock(HttpUrlConnectionFactory.class);
+        HttpURLConnection slow = hanging();
+        HttpURLConnection fast = respondingWith(GET_ITEM_RESPONSE);
+        when(factory.newInstance(eq(URL), any(RequestBody.class))).thenReturn(slow, fast);
+
+        LatencyPolicy latency = new LatencyPolicy(0, 0, 0, 100);
+        for (int i = 0; i < 20; i++)
+        {
+            latency.record(ExchangeService.GET_ITEM, 1);
+        }
+        EndpointBalancer balancer = new EndpointBalancer(Arrays.asList(URL));
+        ExchangeService service = new ExchangeService(balancer, factory, false, AdaptiveRateLimiter.unlimited(),
+                                                      latency);
+        GetItemType request = GetItemDocument.Factory.parse(GET_ITEM_REQUEST).getGetItem();
+        service.getItem(request, "bkerr");
+
+        // The slow attempt is closed without waiting for its deadline, and
+        // its failure isn't held against the endpoint.
+        verify(slow, timeout(2000)).disconnect();
+        for (int i = 0; i < 100 && balancer.getOutstanding(URL) > 0; i++)
+        {
+            Thread.sleep(20);
+        }
+        assertEquals(0, balancer.getOutstanding(URL));
+        verify(factory).release(slow);
+        assertEquals(0, balancer.getFailures(URL));
+    }
 }
@@ -18,9 +18,6 @@
 package com.ripariandata.timberwolf.mail.exchange;
 
 import com.microsoft.schemas.exchange.services.x2006.messages.ArrayOfResponseMessagesType;
-import com.microsoft.schemas.exchange.services.x2006.messages.FindFolderResponseMessageType;
-import com.microsoft.schemas.exchange.services.x2006.messages.FindFolderResponseType;
-import com.microsoft.schemas.exchange.services.x2006.messages.FindFolderType;
 import com.microsoft.schemas.exchange.services.x2006.messages.GetItemResponseType;
 import com.microsoft.schemas.exchange.services.x2006.messages.GetItemType;
 import com.microsoft.schemas.exchange.services.x2006.messages.ItemInfoResponseMessageType;
@@ -28,16 +25,13 @@
 import com.microsoft.schemas.exchange.services.x2006.messages.SyncFolderItemsResponseMessageType;
 import com.microsoft.schemas.exchange.services.x2006.messages.SyncFolderItemsResponseType;
 import com.microsoft.schemas.exchange.services.x2006.messages.SyncFolderItemsType;
-import com.microsoft.schemas.exchange.services.x2006.types.ArrayOfFoldersType;
 import com.microsoft.schemas.exchange.services.x2006.types.ArrayOfRealItemsType;
-import com.microsoft.schemas.exchange.services.x2006.types.DistinguishedFolderIdNameType;
-import com.microsoft.schemas.exchange.services.x2006.types.FindFolderParentType;
-import com.microsoft.schemas.exchange.services.x2006.types.FolderIdType;
-import com.microsoft.schemas.exchange.services.x2006.types.FolderType;
 import com.microsoft.schemas.exchange.services.x2006.types.ItemIdType;
 import com.microsoft.schemas.exchange.services.x2006.types.MessageType;
 import com.microsoft.schemas.exchange.services.x2006.types.SyncFolderItemsChangesType;
 import com.microsoft.schemas.exchange.services.x2006.types.SyncFolderItemsCreateOrUpdateType;
+import com.microsoft.schemas.exchange.services.x2006.types.SyncFolderItemsDeleteType;
+import com.microsoft.schemas.exchange.services.x2006.types.SyncFolderItemsReadFlagType;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -250,7 +244,7 @@ protected void mockSyncFolderItems(
         ArrayOfResponseMessagesType arrayOfResponseMessages = mock(ArrayOfResponseMessagesType.class);
         SyncFolderItemsResponseMessageType syncFolderItemsResponseMessage =
                 mock(SyncFolderItemsResponseMessageType.class);
-        SyncFolderItemsChangesType syncFolderItemsChanges = mock(SyncFolderItemsChangesType.class);
+        SyncFolderItemsChangesType syncFolderItemsChanges = mockSyncFolderItemsChanges();
 
         LOG.debug("Expecting SyncFolderItems with User:{} Request:\n{}", folder.getUser(), syncItems);
         when(service.syncFolderItems(likeThis(syncItems), eq(folder.getUser()))).thenReturn(syncItemsResponse);
@@ -267,42 +261,34 @@ protected void mockSyncFolderItems(
         when(syncFolderItemsChanges.getCreateArray()).thenReturn(syncFolderItemsCreateOrUpdate);
     }
 
-    protected void defaultMockFindFolders() throws ServiceCallException, HttpErrorException
+    /** Mocks the changes in a SyncFolderItems response, with no changes of any kind until some are stubbed. */
+    protected static SyncFolderItemsChangesType mockSyncFolderItemsChanges()
     {
-        FolderType folderType = mock(FolderType.class);
-        FolderIdType folderIdType = mock(FolderIdType.class);
-        when(folderType.isSetFolderId()).thenReturn(true);
-        when(folderType.getFolderId()).thenReturn(folderIdType);
-        when(folderIdType.getId()).thenReturn(DEFAULT_FOLDER_ID);
-        mockFindFolders(new FolderType[]{folderType});
+        SyncFolderItemsChangesType changes = mock(SyncFolderItemsChangesType.class);
+        when(changes.getCreateArray()).thenReturn(new SyncFolderItemsCreateOrUpdateType[0]);
+        when(changes.getUpdateArray()).thenReturn(new SyncFolderItemsCreateOrUpdateType[0]);
+        when(changes.getDeleteArray()).thenReturn(new SyncFolderItemsDeleteType[0]);
+        when(changes.getReadFlagChangeArray()).thenReturn(new SyncFolderItemsReadFlagType[0]);
+        return changes;
     }
 
-    protected void mockFindFolders(final FolderType[] folders) throws ServiceCallException, HttpErrorException
+    protected void defaultMockSyncFolderHierarchy() throws ServiceCallException, HttpErrorException
     {
-        mockFindFolders(folders, defaultUser);
+        mockSyncFolderHierarchy(defaultUser, DEFAULT_FOLDER_ID);
     }
 
-    protected void mockFindFolders(final FolderType[] folders, final String user)
+    protected void mockSyncFolderHierarchy(final String user, final String... folderIds)
             throws ServiceCallException, HttpErrorException
     {
-        FindFolderType findFolder =
-                FindFolderHelper.getFindFoldersRequest(DistinguishedFolderIdNameType.MSGFOLDERROOT);
-        FindFolderResponseType findFolderResponse = mock(FindFolderResponseType.class);
-        ArrayOfResponseMessagesType findFolderArrayOfResponseMessages = mock(ArrayOfResponseMessagesType.class);
-        FindFolderResponseMessageType findFolderResponseMessage = mock(FindFolderResponseMessageType.class);
-        FindFolderParentType findFolderParent = mock(FindFolderParentType.class);
-        ArrayOfFoldersType arrayOfFolders = mock(ArrayOfFoldersType.class);
-        when(findFolderParent.getFolders()).thenReturn(arrayOfFolders);
-        when(service.findFolder(likeThis(findFolder), eq(user))).thenReturn(findFolderResponse);
-        when(findFolderResponse.getResponseMessages()).thenReturn(findFolderArrayOfResponseMessages);
-        when(findFolderArrayOfResponseMessages.getFindFolderResponseMessageArray())
-                .thenReturn(new FindFolderResponseMessageType[]{findFolderResponseMessage});
-        when(findFolderResponseMessage.getResponseCode()).thenReturn(ResponseCodeType.NO_ERROR);
-        when(findFolderResponseMessage.isSetRootFolder()).thenReturn(true);
-        when(findFolderResponseMessage.getRootFolder()).thenReturn(findFolderParent);
-        when(findFolderParent.isSetFolders()).thenReturn(true);
-        when(findFolderParent.getFolders()).thenReturn(arrayOfFolders);
-        when(arrayOfFolders.getFolderArray()).thenReturn(folders);
+        SyncFolderHierarchyHelper.FolderHierarchyResult result =
+                new SyncFolderHierarchyHelper.FolderHierarchyResult(null);
+        for (String folderId : folderIds)
+        {
+            result.addCreatedFolder(folderId);
+        }
+        result.setSyncState(user + "-HIERARCHY-SYNC");
+        when(service.syncFolderHierarchyStreaming(likeThis(SyncFolderHierarchyHelper.getSyncFolderHierarchyRequest(
+                null)), eq(user))).thenReturn(result);
     }
 
     protected MessageType mockMessageItemId(final String itemId)
@@ -0,0 +1,196 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/** Runs ExchangeService over each of the configurable transports against a local server. */
+public class ExchangeTransportTest
+{
+    private static final String SYNC_FOLDER_HIERARCHY_RESPONSE =
+            "<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+            + "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\">"
+            + "<s:Body>"
+            + "<m:SyncFolderHierarchyResponse "
+            + "xmlns:m=\"http://schemas.microsoft.com/exchange/services/2006/messages\" "
+            + "xmlns:t=\"http://schemas.microsoft.com/exchange/services/2006/types\">"
+            + "<m:ResponseMessages>"
+            + "<m:SyncFolderHierarchyResponseMessage ResponseClass=\"Success\">"
+            + "<m:ResponseCode>NoError</m:ResponseCode>"
+            + "<m:SyncState>state</m:SyncState>"
+            + "<m:IncludesLastFolderInRange>true</m:IncludesLastFolderInRange>"
+            + "<m:Changes>"
+            + "<t:Create><t:Folder><t:FolderId Id=\"inbox-id\" ChangeKey=\"AQ==\"/></t:Folder></t:Create>"
+            + "</m:Changes>"
+            + "</m:SyncFolderHierarchyResponseMessage>"
+            + "</m:ResponseMessages>"
+            + "</m:SyncFolderHierarchyResponse>"
+            + "</s:Body>"
+            + "</s:Envelope>";
+
+    private LocalExchangeServer server;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        server = new LocalExchangeServer();
+        server.respondWith(HttpURLConnection.HTTP_OK, SYNC_FOLDER_HIERARCHY_RESPONSE.getBytes("UTF-8"));
+    }
+
+    @After
+    public void tearDown()
+    {
+        server.stop();
+    }
+
+    private ExchangeService createService(final Configuration.Transport transport)
+    {
+        Configuration config = new Configuration(1, 1).withTransport(transport);
+        return new ExchangeService(server.getUrl(), ExchangeMailStore.createConnectionFactory(config));
+    }
+
+    private void syncFolders(final ExchangeService service, final int times)
+            throws ServiceCallException, HttpErrorException
+    {
+        for (int i = 0; i < times; i++)
+        {
+            SyncFolderHierarchyHelper.FolderHierarchyResult result = service.syncFolderHierarchyStreaming(
+                    SyncFolderHierarchyHelper.getSyncFolderHierarchyRequest(null), "bkerr");
+            assertEquals(Arrays.asList("inbox-id"), result.getCreatedFolderIds());
+        }
+    }
+
+    @Test
+    public void testTransportSelection()
+    {
+        Configuration config = new Configuration(1, 1);
+        assertTrue(ExchangeMailStore.createConnectionFactory(config) instanceof FallbackHttpUrlConnectionFactory);
+        assertTrue(ExchangeMailStore.createConnectionFactory(config.withTransport(Configuration.Transport.BASIC))
+                   instanceof SaslHttpUrlConnectionFactory);
+        assertEquals(Configuration.DEFAULT_TRANSPORT, config.withTransport(null).getTransport());
+    }
+
+    @Test
+    public void testBasicTransport() throws ServiceCallException, HttpErrorException
+    {
+        syncFolders(createService(Configuration.Transport.BASIC), 3);
+        assertEquals(3, server.getRequestCount());
+    }
+
+    @Test
+    public void testPooledTransportFallsBack() throws ServiceCallException, HttpErrorException
+    {
+        server.setClosesConnections(true);
+        Configuration config = new Configuration(1, 1);
+        FallbackHttpUrlConnectionFactory factory =
+                (FallbackHttpUrlConnectionFactory) ExchangeMailStore.createConnectionFactory(config);
+        ExchangeService service = new ExchangeService(server.getUrl(), factory);
+        syncFolders(service, FallbackHttpUrlConnectionFactory.DEFAULT_CLOSED_CONNECTION_LIMIT - 1);
+        assertFalse(factory.hasFallenBack(server.getUrl()));
+        syncFolders(service, 2);
+        assertTrue(factory.hasFallenBack(server.getUrl()));
+        assertEquals(FallbackHttpUrlConnectionFactory.DEFAULT_CLOSED_CONNECTION_LIMIT + 1, server.getRequestCount());
+        assertEquals(FallbackHttpUrlConnectionFactory.DEFAULT_CLOSED_CONNECTION_LIMIT + 1,
+                     server.getConnectionCount());
+    }
+
+    @Test
+    public void testPooledTransport() throws ServiceCallException, HttpErrorException
+    {
+        syncFolders(createService(Configuration.Transport.POOLED), 3);
+        assertEquals(3, server.getRequestCount());
+        assertEquals(1, server.getConnectionCount());
+    }
+
+    private static byte[] gzip(final byte[] data) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream stream = new GZIPOutputStream(bytes);
+        stream.write(data);
+        stream.close();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] gunzip(final byte[] data) throws IOException
+    {
+        GZIPInputStream stream = new GZIPInputStream(new ByteArrayInputStream(data));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int b = stream.read();
+        while (b >= 0)
+        {
+            bytes.write(b);
+            b = stream.read();
+        }
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void testCompressedResponse() throws ServiceCallException, HttpErrorException, IOException
+    {
+        byte[] response = SYNC_FOLDER_HIERARCHY_RESPONSE.getBytes("UTF-8");
+        byte[] compressed = gzip(response);
+        server.respondWith(HttpURLConnection.HTTP_OK, compressed);
+        server.setContentEncoding("gzip");
+
+        ExchangeService service = createService(Configuration.Transport.POOLED);
+        syncFolders(service, 2);
+        assertEquals("gzip, deflate", server.getLastRequestHeader("Accept-Encoding"));
+        assertEquals(2 * compressed.length,
+                     service.getTransferStatistics().getCompressedBytes(ExchangeService.SYNC_FOLDER_HIERARCHY));
+        assertEquals(2 * response.length,
+                     service.getTransferStatistics().getUncompressedBytes(ExchangeService.SYNC_FOLDER_HIERARCHY));
+        assertEquals(1, server.getConnectionCount());
+    }
+
+    @Test
+    public void testCompressedRequest() throws ServiceCallException, HttpErrorException, IOException
+    {
+        Configuration config = new Configuration(1, 1).withRequestCompression(1);
+        ExchangeService service = new ExchangeService(server.getUrl(),
+                                                      ExchangeMailStore.createConnectionFactory(config));
+        syncFolders(service, 1);
+        assertEquals("gzip", server.getLastRequestHeader("Content-Encoding"));
+        String request = new String(gunzip(server.getLastRequest()), "UTF-8");
+        assertTrue(request.contains("SyncFolderHierarchy"));
+    }
+
+    @Test
+    public void testSmallRequestsAreNotCompressed() throws ServiceCallException, HttpErrorException, IOException
+    {
+        Configuration config = new Configuration(1, 1).withRequestCompression(1000000);
+        ExchangeService service = new ExchangeService(server.getUrl(),
+                                                      ExchangeMailStore.createConnectionFactory(config));
+        syncFolders(service, 1);
+        assertEquals(null, server.getLastRequestHeader("Content-Encoding"));
+        assertTrue(new String(server.getLastRequest(), "UTF-8").contains("SyncFolderHierarchy"));
+    }
+}
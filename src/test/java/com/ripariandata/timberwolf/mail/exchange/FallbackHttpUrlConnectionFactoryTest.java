@@ -0,0 +1,93 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import java.net.HttpURLConnection;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/** Tests the FallbackHttpUrlConnectionFactory. */
+public class FallbackHttpUrlConnectionFactoryTest
+{
+    private static final String ADDRESS = "https://cas01.example.com/ews/exchange.asmx";
+
+    private HttpUrlConnectionFactory preferred;
+    private HttpUrlConnectionFactory fallback;
+    private FallbackHttpUrlConnectionFactory factory;
+    private RequestBody request;
+
+    @Before
+    public void setUp()
+    {
+        preferred = mock(HttpUrlConnectionFactory.class);
+        fallback = mock(HttpUrlConnectionFactory.class);
+        factory = new FallbackHttpUrlConnectionFactory(preferred, fallback, 2);
+        request = new ByteArrayRequestBody("<request/>".getBytes());
+    }
+
+    private HttpURLConnection respond(final HttpUrlConnectionFactory from, final String connectionHeader)
+        throws ServiceCallException
+    {
+        HttpURLConnection connection = mock(HttpURLConnection.class);
+        when(connection.getHeaderField("Connection")).thenReturn(connectionHeader);
+        when(from.newInstance(anyString(), any(RequestBody.class))).thenReturn(connection);
+        HttpURLConnection made = factory.newInstance(ADDRESS, request);
+        assertSame(connection, made);
+        factory.release(made);
+        return made;
+    }
+
+    @Test
+    public void testFallsBackAfterClosedConnections() throws ServiceCallException
+    {
+        HttpURLConnection first = respond(preferred, "close");
+        verify(preferred).release(first);
+        assertFalse(factory.hasFallenBack(ADDRESS));
+        respond(preferred, "Close");
+        assertTrue(factory.hasFallenBack(ADDRESS));
+
+        HttpURLConnection later = respond(fallback, null);
+        verify(fallback).release(later);
+        verify(preferred, never()).release(later);
+        assertTrue(factory.hasFallenBack(ADDRESS));
+        assertFalse(factory.hasFallenBack("https://cas02.example.com/ews/exchange.asmx"));
+    }
+
+    @Test
+    public void testKeptAliveConnectionResetsTheCount() throws ServiceCallException
+    {
+        respond(preferred, "close");
+        respond(preferred, "keep-alive");
+        respond(preferred, "close");
+        respond(preferred, null);
+        respond(preferred, "close");
+        assertFalse(factory.hasFallenBack(ADDRESS));
+        verify(fallback, never()).newInstance(anyString(), any(RequestBody.class));
+    }
+}
@@ -18,28 +18,48 @@
 package com.ripariandata.timberwolf.mail.exchange;
 
 import com.microsoft.schemas.exchange.services.x2006.messages.ArrayOfResponseMessagesType;
+import com.microsoft.schemas.exchange.services.x2006.messages.ExportItemsType;
+import com.microsoft.schemas.exchange.services.x2006.messages.GetAttachmentType;
 import com.microsoft.schemas.exchange.services.x2006.messages.GetItemResponseType;
 import com.microsoft.schemas.exchange.services.x2006.messages.GetItemType;
 import com.microsoft.schemas.exchange.services.x2006.messages.ItemInfoResponseMessageType;
 import com.microsoft.schemas.exchange.services.x2006.messages.ResponseCodeType;
+import com.microsoft.schemas.exchange.services.x2006.types.ArrayOfRealItemsType;
+import com.microsoft.schemas.exchange.services.x2006.types.BodyTypeResponseType;
 import com.microsoft.schemas.exchange.services.x2006.types.DefaultShapeNamesType;
+import com.microsoft.schemas.exchange.services.x2006.types.FileAttachmentType;
 import com.microsoft.schemas.exchange.services.x2006.types.MessageType;
 import com.microsoft.schemas.exchange.services.x2006.types.NonEmptyArrayOfBaseItemIdsType;
 import com.ripariandata.timberwolf.mail.MailboxItem;
+import com.ripariandata.timberwolf.writer.archive.MimeArchive;
+import com.ripariandata.timberwolf.writer.blob.BlobStore;
+import com.ripariandata.timberwolf.writer.console.InMemorySeenMessageIndex;
 
 import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Vector;
 
 import org.apache.xmlbeans.XmlException;
 import org.junit.Test;
 
+import static com.ripariandata.timberwolf.mail.exchange.IsXmlBeansRequest.likeThis;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -98,6 +118,81 @@ public void testGetGetItemsRequest100()
         assertEquals(getItem.xmlText(), GetItemHelper.getGetItemsRequest(ids).xmlText());
     }
 
+    @Test
+    public void testGetGetItemsRequestWithHeaders()
+    {
+        ArrayList<String> ids = new ArrayList<String>();
+        ids.add("idNumber0");
+        GetItemType request = GetItemHelper.getGetItemsRequest(
+                ids, new HashSet<String>(Arrays.asList("Subject", "Sender", "Item ID")));
+
+        assertTrue(request.validate());
+        assertEquals(DefaultShapeNamesType.ID_ONLY, request.getItemShape().getBaseShape());
+        String xml = request.xmlText();
+        assertTrue(xml.contains("FieldURI=\"item:Subject\""));
+        assertTrue(xml.contains("FieldURI=\"message:From\""));
+        assertTrue(xml.contains("FieldURI=\"message:Sender\""));
+        assertFalse(xml.contains("item:Body"));
+        assertFalse(xml.contains("message:ToRecipients"));
+    }
+
+    @Test
+    public void testGetGetItemsRequestWithBodyFormat()
+    {
+        ArrayList<String> ids = new ArrayList<String>();
+        ids.add("idNumber0");
+
+        GetItemType request = GetItemHelper.getGetItemsRequest(ids, null, Configuration.BodyFormat.TEXT);
+        assertTrue(request.validate());
+        assertEquals(BodyTypeResponseType.TEXT, request.getItemShape().getBodyType());
+
+        request = GetItemHelper.getGetItemsRequest(ids, null, Configuration.BodyFormat.BEST);
+        assertFalse(request.getItemShape().isSetBodyType());
+    }
+
+    @Test
+    public void testGetItemsTruncatesBodies() throws ServiceCallException, HttpErrorException
+    {
+        final int maxBodySize = 4;
+        Configuration config = new Configuration(1, 1).withBody(Configuration.BodyFormat.TEXT, maxBodySize);
+        Vector<String> ids = new Vector<String>();
+        ids.add("id0");
+        ids.add("id1");
+        MessageType shortMessage = MessageType.Factory.newInstance();
+        shortMessage.addNewItemId().setId("id0");
+        shortMessage.addNewBody().setStringValue("Hi");
+        MessageType longMessage = MessageType.Factory.newInstance();
+        longMessage.addNewItemId().setId("id1");
+        longMessage.addNewBody().setStringValue("Hello there");
+        GetItemResponseType response = GetItemResponseType.Factory.newInstance();
+        ItemInfoResponseMessageType message =
+                response.addNewResponseMessages().addNewGetItemResponseMessage();
+        message.setResponseCode(ResponseCodeType.NO_ERROR);
+        message.addNewItems().setMessageArray(new MessageType[] {shortMessage, longMessage});
+        when(getService().getItem(likeThis(GetItemHelper.getGetItemsRequest(ids, null,
+                                                                            Configuration.BodyFormat.TEXT)),
+                                  eq(getDefaultUser())))
+                .thenReturn(response);
+
+        Vector<MailboxItem> items = GetItemHelper.getItems(2, 0, ids, getService(), getDefaultUser(), config);
+        assertEquals("Hi", items.get(0).getHeader("Body"));
+        assertFalse(items.get(0).hasKey("Body Truncated"));
+        assertEquals("Hell", items.get(1).getHeader("Body"));
+        assertEquals("true", items.get(1).getHeader("Body Truncated"));
+    }
+
+    @Test
+    public void testGetGetItemsRequestWithIdHeaderOnly()
+    {
+        ArrayList<String> ids = new ArrayList<String>();
+        ids.add("idNumber0");
+        GetItemType request = GetItemHelper.getGetItemsRequest(ids, new HashSet<String>(Arrays.asList("Item ID")));
+
+        assertTrue(request.validate());
+        assertEquals(DefaultShapeNamesType.ID_ONLY, request.getItemShape().getBaseShape());
+        assertFalse(request.getItemShape().isSetAdditionalProperties());
+    }
+
     @Test
     public void testGetItems0()
             throws ServiceCallException, HttpErrorException
@@ -226,4 +321,551 @@ public void testGetItemsWithErrorResponse()
         }
     }
 
+    @Test
+    public void testGetItemsSkipsItemNotFound()
+            throws ServiceCallException, HttpErrorException
+    {
+        ItemInfoResponseMessageType notFound = mock(ItemInfoResponseMessageType.class);
+        when(notFound.getResponseCode()).thenReturn(ResponseCodeType.ERROR_ITEM_NOT_FOUND);
+        MessageType message = MessageType.Factory.newInstance();
+        message.addNewItemId().setId("efgh");
+        ItemInfoResponseMessageType found = mock(ItemInfoResponseMessageType.class);
+        when(found.getResponseCode()).thenReturn(ResponseCodeType.NO_ERROR);
+        ArrayOfRealItemsType foundItems = mock(ArrayOfRealItemsType.class);
+        when(found.getItems()).thenReturn(foundItems);
+        when(foundItems.getMessageArray()).thenReturn(new MessageType[]{message});
+        ArrayOfResponseMessagesType responseArr = mock(ArrayOfResponseMessagesType.class);
+        when(responseArr.getGetItemResponseMessageArray())
+                .thenReturn(new ItemInfoResponseMessageType[]{notFound, found});
+        GetItemResponseType getResponse = mock(GetItemResponseType.class);
+        when(getResponse.getResponseMessages()).thenReturn(responseArr);
+        when(getService().getItem(any(GetItemType.class), eq(getDefaultUser()))).thenReturn(getResponse);
+
+        Vector<String> ids = new Vector<String>();
+        ids.add("abcd");
+        ids.add("efgh");
+
+        Vector<MailboxItem> items = GetItemHelper.getItems(2, 0, ids, getService(), getDefaultUser());
+        assertEquals(1, items.size());
+        assertEquals("efgh", items.get(0).getHeader("Item ID"));
+    }
+
+
+    @Test
+    public void testGetItemsStreaming()
+            throws ServiceCallException, HttpErrorException
+    {
+        Vector<String> ids = new Vector<String>();
+        ids.add("id1");
+        Vector<MailboxItem> streamed = new Vector<MailboxItem>();
+        streamed.add(mock(MailboxItem.class));
+        when(getService().isStreamingParserEnabled()).thenReturn(true);
+        when(getService().getItemStreaming(likeThis(GetItemHelper.getGetItemsRequest(ids)), eq(getDefaultUser())))
+                .thenReturn(streamed);
+
+        assertSame(streamed, GetItemHelper.getItems(1, 0, ids, getService(), getDefaultUser()));
+    }
+
+    @Test
+    public void testGetItemsStreamingFallback()
+            throws ServiceCallException, HttpErrorException, XmlException, IOException
+    {
+        Vector<String> ids = new Vector<String>();
+        ids.add("id1");
+        mockGetItem(new MessageType[]{mockMessageItemId("id1")}, ids);
+        when(getService().isStreamingParserEnabled()).thenReturn(true);
+        when(getService().getItemStreaming(likeThis(GetItemHelper.getGetItemsRequest(ids)), eq(getDefaultUser())))
+                .thenThrow(new UnexpectedResponseException("Can't stream this."));
+
+        Vector<MailboxItem> items = GetItemHelper.getItems(1, 0, ids, getService(), getDefaultUser());
+        assertEquals(1, items.size());
+        assertEquals("id1", items.get(0).getHeader(idHeaderKey));
+    }
+
+    @Test
+    public void testGetItemIteratorRetriesServerBusy()
+            throws ServiceCallException, HttpErrorException
+    {
+        Vector<String> ids = new Vector<String>();
+        ids.add("id1");
+        Vector<MailboxItem> streamed = new Vector<MailboxItem>();
+        streamed.add(mock(MailboxItem.class));
+        when(getService().isStreamingParserEnabled()).thenReturn(true);
+        when(getService().getItemStreaming(likeThis(GetItemHelper.getGetItemsRequest(ids)), eq(getDefaultUser())))
+                .thenThrow(new HttpErrorException(HttpURLConnection.HTTP_UNAVAILABLE))
+                .thenReturn(streamed);
+
+        Configuration config = getDefaultConfig().withRetryPolicy(new RetryPolicy(2, 0, 0, 0));
+        GetItemIterator iterator = new GetItemIterator(getService(), ids, config, getDefaultFolder());
+        assertTrue(iterator.hasNext());
+        assertSame(streamed.get(0), iterator.next());
+        assertFalse(iterator.hasNext());
+        assertEquals(1, config.getRetryPolicy().getRetries(ExchangeService.GET_ITEM));
+        assertEquals(1, config.getRetryPolicy().getRecovered(ExchangeService.GET_ITEM));
+    }
+
+    @Test
+    public void testGetItemIteratorShrinksPageAfterTimeout()
+            throws ServiceCallException, HttpErrorException, XmlException, IOException
+    {
+        Vector<String> ids = new Vector<String>(generateIds(0, 6, "FOLDER"));
+        when(getService().getItem(likeThis(GetItemHelper.getGetItemsRequest(ids.subList(0, 4))),
+                                  eq(getDefaultUser())))
+                .thenThrow(new ServiceCallException(ServiceCallException.Reason.OTHER, "Read timed out.",
+                                                    new SocketTimeoutException()));
+        MessageType[] messages = createMockMessages("FOLDER", 0, 6);
+        mockGetItem(new MessageType[]{messages[0], messages[1]}, ids.subList(0, 2));
+        mockGetItem(new MessageType[]{messages[2], messages[3], messages[4], messages[5]}, ids.subList(2, 6));
+
+        Configuration config = new Configuration(10, 4).withAdaptiveItemPages(1, 8, 0, 0)
+                                                       .withRetryPolicy(new RetryPolicy(2, 0, 0, 0));
+        ItemPageSizer pageSizer = new ItemPageSizer(config);
+        GetItemIterator iterator = new GetItemIterator(getService(), ids, config, getDefaultFolder(), pageSizer);
+        for (int i = 0; i < 6; i++)
+        {
+            assertTrue(iterator.hasNext());
+            assertEquals("FOLDER:the #" + i + " id", iterator.next().getHeader(idHeaderKey));
+        }
+        assertFalse(iterator.hasNext());
+        assertEquals(8, pageSizer.getPageSize());
+    }
+
+    private static MessageType message(final String id, final String subject, final String body, final int size)
+    {
+        MessageType message = MessageType.Factory.newInstance();
+        message.addNewItemId().setId(id);
+        if (subject != null)
+        {
+            message.setSubject(subject);
+        }
+        if (body != null)
+        {
+            message.addNewBody().setStringValue(body);
+        }
+        if (size >= 0)
+        {
+            message.setSize(size);
+        }
+        return message;
+    }
+
+    private static GetItemResponseType response(final MessageType... messages)
+    {
+        GetItemResponseType response = GetItemResponseType.Factory.newInstance();
+        ItemInfoResponseMessageType message = response.addNewResponseMessages().addNewGetItemResponseMessage();
+        message.setResponseCode(ResponseCodeType.NO_ERROR);
+        message.addNewItems().setMessageArray(messages);
+        return response;
+    }
+
+    @Test
+    public void testGetItemsInTwoPasses() throws ServiceCallException, HttpErrorException
+    {
+        final int largeItemSize = 1000;
+        final int smallSize = 100;
+        final int largeSize = 5000;
+        Configuration config = new Configuration(1, 1).withLargeItemSize(largeItemSize);
+        Vector<String> ids = new Vector<String>(Arrays.asList("id0", "id1", "id2"));
+        when(getService().getItem(likeThis(GetItemHelper.getGetItemHeadersRequest(ids, null)), eq(getDefaultUser())))
+                .thenReturn(response(message("id0", "Small", null, smallSize),
+                                     message("id1", "Large", null, largeSize),
+                                     message("id2", "Also small", null, smallSize)));
+        when(getService().getItem(likeThis(GetItemHelper.getGetItemBodiesRequest(Arrays.asList("id0", "id2"),
+                                                                                 Configuration.BodyFormat.BEST)),
+                                  eq(getDefaultUser())))
+                .thenReturn(response(message("id0", null, "small body", -1), message("id2", null, "other", -1)));
+        when(getService().getItem(likeThis(GetItemHelper.getGetItemBodiesRequest(Arrays.asList("id1"),
+                                                                                 Configuration.BodyFormat.BEST)),
+                                  eq(getDefaultUser())))
+                .thenReturn(response(message("id1", null, "large body", -1)));
+
+        Vector<MailboxItem> items = GetItemHelper.getItems(3, 0, ids, getService(), getDefaultUser(), config);
+        assertEquals(3, items.size());
+        assertEquals("Small", items.get(0).getHeader("Subject"));
+        assertEquals("small body", items.get(0).getHeader("Body"));
+        assertEquals("Large", items.get(1).getHeader("Subject"));
+        assertEquals("large body", items.get(1).getHeader("Body"));
+        assertEquals("other", items.get(2).getHeader("Body"));
+        assertFalse(items.get(1).hasKey("Body Truncated"));
+    }
+
+    @Test
+    public void testGetItemsInTwoPassesCutsStreamedBodies() throws ServiceCallException, HttpErrorException
+    {
+        final int largeItemSize = 1000;
+        final int largeSize = 5000;
+        final int maxBodySize = 4;
+        Configuration config = new Configuration(1, 1).withLargeItemSize(largeItemSize)
+                                                      .withBody(Configuration.BodyFormat.TEXT, maxBodySize);
+        Vector<String> ids = new Vector<String>(Arrays.asList("id0"));
+        when(getService().isStreamingParserEnabled()).thenReturn(true);
+        Vector<MailboxItem> headers = new Vector<MailboxItem>();
+        headers.add(new ExchangeEmail(message("id0", "Large", null, largeSize)));
+        when(getService().getItemStreaming(likeThis(GetItemHelper.getGetItemHeadersRequest(ids, null)),
+                                           eq(getDefaultUser())))
+                .thenReturn(headers);
+        // What the parser makes of a body it had to cut down.
+        ExchangeEmail bodyOnly = new ExchangeEmail(message("id0", null, "Hell", -1));
+        bodyOnly.markBodyMissing();
+        bodyOnly.setBody(new ExchangeEmail(message("id0", null, "Hell", -1)));
+        Vector<MailboxItem> streamed = new Vector<MailboxItem>();
+        streamed.add(bodyOnly);
+        when(getService().getItemStreaming(likeThis(GetItemHelper.getGetItemBodiesRequest(
+                ids, Configuration.BodyFormat.TEXT)), eq(getDefaultUser()), eq(maxBodySize)))
+                .thenReturn(streamed);
+
+        Vector<MailboxItem> items = GetItemHelper.getItems(1, 0, ids, getService(), getDefaultUser(), config);
+        assertEquals(1, items.size());
+        assertEquals("Large", items.get(0).getHeader("Subject"));
+        assertEquals("Hell", items.get(0).getHeader("Body"));
+        assertEquals("true", items.get(0).getHeader("Body Truncated"));
+    }
+
+    @Test
+    public void testGetItemsSkipsLargeBodyThatTimesOut() throws ServiceCallException, HttpErrorException
+    {
+        final int largeItemSize = 1000;
+        final int largeSize = 5000;
+        Configuration config = new Configuration(1, 1).withLargeItemSize(largeItemSize)
+                                                      .withRetryPolicy(new RetryPolicy(2, 0, 0, 0));
+        Vector<String> ids = new Vector<String>(Arrays.asList("id0"));
+        when(getService().getItem(likeThis(GetItemHelper.getGetItemHeadersRequest(ids, null)), eq(getDefaultUser())))
+                .thenReturn(response(message("id0", "Large", null, largeSize)));
+        when(getService().getItem(likeThis(GetItemHelper.getGetItemBodiesRequest(ids, Configuration.BodyFormat.BEST)),
+                                  eq(getDefaultUser())))
+                .thenThrow(new ServiceCallException(ServiceCallException.Reason.OTHER, "Read timed out.",
+                                                    new SocketTimeoutException()));
+
+        Vector<MailboxItem> items = GetItemHelper.getItems(1, 0, ids, getService(), getDefaultUser(), config);
+        assertEquals(1, items.size());
+        assertEquals("Large", items.get(0).getHeader("Subject"));
+        assertFalse(items.get(0).hasKey("Body"));
+        assertEquals("true", items.get(0).getHeader("Body Truncated"));
+        // The page is retried by its caller, so the body isn't retried on its own.
+        verify(getService(), times(1)).getItem(
+                likeThis(GetItemHelper.getGetItemBodiesRequest(ids, Configuration.BodyFormat.BEST)),
+                eq(getDefaultUser()));
+        assertEquals(0, config.getRetryPolicy().getRetries(ExchangeService.GET_ITEM));
+    }
+
+    @Test
+    public void testGetItemHeadersRequestLeavesOutBody()
+    {
+        GetItemType request = GetItemHelper.getGetItemHeadersRequest(Arrays.asList("id0"), null);
+        assertTrue(request.validate());
+        String xml = request.xmlText();
+        assertTrue(xml.contains("FieldURI=\"item:Size\""));
+        assertTrue(xml.contains("FieldURI=\"item:Subject\""));
+        assertFalse(xml.contains("item:Body"));
+    }
+
+    private static MessageType messageWithAttachment(final String id, final String internetMessageId,
+                                                     final String attachmentId)
+    {
+        final int attachmentSize = 10;
+        MessageType message = message(id, "Attached", null, -1);
+        message.setInternetMessageId(internetMessageId);
+        FileAttachmentType attachment = message.addNewAttachments().addNewFileAttachment();
+        attachment.addNewAttachmentId().setId(attachmentId);
+        attachment.setName("report.pdf");
+        attachment.setSize(attachmentSize);
+        return message;
+    }
+
+    @Test
+    public void testGetItemsStoresSharedAttachmentOnce() throws ServiceCallException, HttpErrorException
+    {
+        String alias = "<m1@example.com>/0/report.pdf/10";
+        BlobStore store = mock(BlobStore.class);
+        when(store.find(alias)).thenReturn(null, "abc123");
+        Configuration config = new Configuration(1, 1).withAttachmentStore(store);
+        Vector<String> ids = new Vector<String>(Arrays.asList("id0", "id1"));
+        when(getService().getItem(any(GetItemType.class), eq(getDefaultUser())))
+                .thenReturn(response(messageWithAttachment("id0", "<m1@example.com>", "att0"),
+                                     messageWithAttachment("id1", "<m1@example.com>", "att1")));
+        when(getService().getAttachmentStreaming(any(GetAttachmentType.class), eq(getDefaultUser()), eq(store)))
+                .thenReturn(Arrays.asList("abc123"));
+
+        Vector<MailboxItem> items = GetItemHelper.getItems(2, 0, ids, getService(), getDefaultUser(), config);
+        assertEquals(2, items.size());
+        assertEquals("abc123 report.pdf;", items.get(0).getHeader("Attachments"));
+        assertEquals("abc123 report.pdf;", items.get(1).getHeader("Attachments"));
+        assertFalse(items.get(0).hasKey("Attachments Missing"));
+        verify(getService(), times(1)).getAttachmentStreaming(any(GetAttachmentType.class), eq(getDefaultUser()),
+                                                              eq(store));
+        verify(store).alias(alias, "abc123");
+    }
+
+    @Test
+    public void testGetItemsSkipsAttachmentsThatTimeOut() throws ServiceCallException, HttpErrorException
+    {
+        BlobStore store = mock(BlobStore.class);
+        Configuration config = new Configuration(1, 1).withAttachmentStore(store)
+                                                      .withRetryPolicy(new RetryPolicy(2, 0, 0, 0));
+        Vector<String> ids = new Vector<String>(Arrays.asList("id0"));
+        when(getService().getItem(any(GetItemType.class), eq(getDefaultUser())))
+                .thenReturn(response(messageWithAttachment("id0", "<m1@example.com>", "att0")));
+        when(getService().getAttachmentStreaming(any(GetAttachmentType.class), eq(getDefaultUser()), eq(store)))
+                .thenThrow(new ServiceCallException(ServiceCallException.Reason.OTHER, "Read timed out.",
+                                                    new SocketTimeoutException()));
+
+        Vector<MailboxItem> items = GetItemHelper.getItems(1, 0, ids, getService(), getDefaultUser(), config);
+        assertEquals(1, items.size());
+        assertEquals("Attached", items.get(0).getHeader("Subject"));
+        assertEquals("", items.get(0).getHeader("Attachments"));
+        assertEquals("true", items.get(0).getHeader("Attachments Missing"));
+        assertEquals(1, config.getRetryPolicy().getExhausted(ExchangeService.GET_ATTACHMENT));
+    }
+
+    @Test
+    public void testGetItemsAliasesSameNamedAttachmentsApart() throws ServiceCallException, HttpErrorException
+    {
+        BlobStore store = mock(BlobStore.class);
+        Configuration config = new Configuration(1, 1).withAttachmentStore(store);
+        MessageType message = messageWithAttachment("id0", "<m1@example.com>", "att0");
+        FileAttachmentType second = message.getAttachments().addNewFileAttachment();
+        second.addNewAttachmentId().setId("att1");
+        second.setName("report.pdf");
+        second.setSize(message.getAttachments().getFileAttachmentArray(0).getSize());
+        Vector<String> ids = new Vector<String>(Arrays.asList("id0"));
+        when(getService().getItem(any(GetItemType.class), eq(getDefaultUser()))).thenReturn(response(message));
+        when(getService().getAttachmentStreaming(any(GetAttachmentType.class), eq(getDefaultUser()), eq(store)))
+                .thenReturn(Arrays.asList("abc123", "def456"));
+
+        Vector<MailboxItem> items = GetItemHelper.getItems(1, 0, ids, getService(), getDefaultUser(), config);
+        assertEquals("abc123 report.pdf;def456 report.pdf;", items.get(0).getHeader("Attachments"));
+        verify(store).alias("<m1@example.com>/0/report.pdf/10", "abc123");
+        verify(store).alias("<m1@example.com>/1/report.pdf/10", "def456");
+    }
+
+    @Test
+    public void testGetItemsMarksPartlyStoredAttachments() throws ServiceCallException, HttpErrorException
+    {
+        BlobStore store = mock(BlobStore.class);
+        Configuration config = new Configuration(1, 1).withAttachmentStore(store);
+        MessageType message = messageWithAttachment("id0", "<m1@example.com>", "att0");
+        FileAttachmentType second = message.getAttachments().addNewFileAttachment();
+        second.addNewAttachmentId().setId("att1");
+        second.setName("notes.txt");
+        Vector<String> ids = new Vector<String>(Arrays.asList("id0"));
+        when(getService().getItem(any(GetItemType.class), eq(getDefaultUser()))).thenReturn(response(message));
+        when(getService().getAttachmentStreaming(any(GetAttachmentType.class), eq(getDefaultUser()), eq(store)))
+                .thenReturn(Arrays.asList("abc123", null));
+
+        Vector<MailboxItem> items = GetItemHelper.getItems(1, 0, ids, getService(), getDefaultUser(), config);
+        assertEquals("abc123 report.pdf;", items.get(0).getHeader("Attachments"));
+        assertEquals("true", items.get(0).getHeader("Attachments Missing"));
+    }
+
+    @Test
+    public void testGetItemsLeavesAttachmentsAloneWithoutStore() throws ServiceCallException, HttpErrorException
+    {
+        Vector<String> ids = new Vector<String>(Arrays.asList("id0"));
+        when(getService().getItem(any(GetItemType.class), eq(getDefaultUser())))
+                .thenReturn(response(messageWithAttachment("id0", "<m1@example.com>", "att0")));
+
+        Vector<MailboxItem> items = GetItemHelper.getItems(1, 0, ids, getService(), getDefaultUser(),
+                                                           new Configuration(1, 1));
+        assertFalse(items.get(0).hasKey("Attachments"));
+        verify(getService(), never()).getAttachmentStreaming(any(GetAttachmentType.class), any(String.class),
+                                                             any(BlobStore.class));
+    }
+
+    @Test
+    public void testGetItemsExportsWithExportStore() throws ServiceCallException, HttpErrorException
+    {
+        BlobStore store = mock(BlobStore.class);
+        Configuration config = new Configuration(1, 1).withExportStore(store);
+        Vector<String> ids = new Vector<String>(Arrays.asList("id0", "id1", "id2"));
+        Vector<MailboxItem> exported = new Vector<MailboxItem>();
+        exported.add(ExchangeEmail.exported("id1", "abc123"));
+        exported.add(ExchangeEmail.exported("id2", "def456"));
+        when(getService().exportItemsStreaming(likeThis(ExportItemsHelper.getExportItemsRequest(ids.subList(1, 3))),
+                                               eq(getDefaultUser()), eq(store)))
+                .thenReturn(exported);
+
+        Vector<MailboxItem> items = GetItemHelper.getItems(2, 1, ids, getService(), getDefaultUser(), config);
+        assertEquals(2, items.size());
+        assertEquals("id1", items.get(0).getHeader(idHeaderKey));
+        assertEquals("abc123", items.get(0).getHeader("Export"));
+        assertEquals("def456", items.get(1).getHeader("Export"));
+        verify(getService(), never()).getItem(any(GetItemType.class), any(String.class));
+    }
+
+    @Test
+    public void testOnlyFirstSyncIsExported()
+            throws ServiceCallException, HttpErrorException, XmlException, IOException
+    {
+        BlobStore store = mock(BlobStore.class);
+        Configuration config = new Configuration(10, 2).withExportStore(store);
+        ItemPageSizer pageSizer = new ItemPageSizer(config);
+
+        Vector<String> newIds = new Vector<String>(generateIds(0, 2, "NEW"));
+        Vector<MailboxItem> exported = new Vector<MailboxItem>();
+        exported.add(ExchangeEmail.exported(newIds.get(0), "abc123"));
+        exported.add(ExchangeEmail.exported(newIds.get(1), "def456"));
+        when(getService().exportItemsStreaming(likeThis(ExportItemsHelper.getExportItemsRequest(newIds)),
+                                               eq(getDefaultUser()), eq(store)))
+                .thenReturn(exported);
+        FolderContext newFolder = folderContext(getDefaultUser(), "NEW");
+        GetItemIterator iterator = new GetItemIterator(getService(), newIds, config, newFolder, pageSizer);
+        assertEquals("abc123", iterator.next().getHeader("Export"));
+        assertEquals("def456", iterator.next().getHeader("Export"));
+        assertFalse(iterator.hasNext());
+
+        Vector<String> oldIds = new Vector<String>(generateIds(0, 2, "OLD"));
+        mockGetItem(createMockMessages("OLD", 0, 2), oldIds);
+        FolderContext oldFolder = folderContext(getDefaultUser(), "OLD", "SYNC1");
+        iterator = new GetItemIterator(getService(), oldIds, config, oldFolder, pageSizer);
+        assertEquals(oldIds.get(0), iterator.next().getHeader(idHeaderKey));
+        assertFalse(iterator.next().hasKey("Export"));
+        assertFalse(iterator.hasNext());
+        verify(getService(), times(1)).exportItemsStreaming(any(ExportItemsType.class), any(String.class),
+                                                            any(BlobStore.class));
+    }
+
+    @Test
+    public void testGetItemMimeRequest()
+    {
+        GetItemType request = GetItemHelper.getGetItemMimeRequest(Arrays.asList("id0"), null);
+        assertTrue(request.validate());
+        assertTrue(request.getItemShape().getIncludeMimeContent());
+        String xml = request.xmlText();
+        assertTrue(xml.contains("FieldURI=\"item:Subject\""));
+        assertFalse(xml.contains("item:Body"));
+        assertFalse(xml.contains("item:Attachments"));
+    }
+
+    @Test
+    public void testGetItemsArchivesMimeWithArchive() throws ServiceCallException, HttpErrorException
+    {
+        BlobStore store = mock(BlobStore.class);
+        MimeArchive archive = mock(MimeArchive.class);
+        Configuration config = new Configuration(1, 1).withMimeArchive(archive).withAttachmentStore(store);
+        Vector<String> ids = new Vector<String>(Arrays.asList("id0"));
+        when(getService().getItemStreaming(likeThis(GetItemHelper.getGetItemMimeRequest(ids, null)),
+                                           eq(getDefaultUser()), eq(archive)))
+                .thenReturn(new Vector<MailboxItem>(Arrays.asList(new ExchangeEmail(message("id0", "Archived", null,
+                                                                                            -1)))));
+
+        Vector<MailboxItem> items = GetItemHelper.getItems(1, 0, ids, getService(), getDefaultUser(), config);
+        assertEquals(1, items.size());
+        assertEquals("Archived", items.get(0).getHeader("Subject"));
+        verify(getService(), never()).getItem(any(GetItemType.class), any(String.class));
+        verify(getService(), never()).getAttachmentStreaming(any(GetAttachmentType.class), any(String.class),
+                                                             any(BlobStore.class));
+    }
+
+    @Test
+    public void testGetItemsHandsOutCopiesWithoutFetchingThem() throws ServiceCallException, HttpErrorException
+    {
+        InMemorySeenMessageIndex index = new InMemorySeenMessageIndex();
+        Configuration config = new Configuration(1, 1).withMessageIndex(index);
+        MessageDeduplicator deduplicator = config.getMessageDeduplicator();
+        deduplicator.recordSynced("id0", "<all-hands@example.com> 2048");
+        deduplicator.recordSynced("id1", "<all-hands@example.com> 2048");
+        Vector<String> ids = new Vector<String>(Arrays.asList("id0", "id1"));
+        when(getService().getItem(likeThis(GetItemHelper.getGetItemsRequest(Arrays.asList("id0"), null,
+                                                                            Configuration.BodyFormat.BEST)),
+                                  eq(getDefaultUser())))
+                .thenReturn(response(message("id0", "All hands", "body", -1)));
+
+        Vector<MailboxItem> items = GetItemHelper.getItems(1, 0, ids, getService(), getDefaultUser(), config);
+        assertEquals(1, items.size());
+        assertEquals("All hands", items.get(0).getHeader("Subject"));
+        assertEquals("id0", index.getFirstCopy("<all-hands@example.com> 2048"));
+
+        items = GetItemHelper.getItems(1, 1, ids, getService(), getDefaultUser(), config);
+        assertEquals(1, items.size());
+        assertEquals("id1", items.get(0).getHeader("Item ID"));
+        assertEquals("id0", items.get(0).getHeader("Copy Of"));
+        assertFalse(items.get(0).hasKey("Body"));
+        assertEquals(null, deduplicator.getFirstCopy("id1"));
+        verify(getService(), times(1)).getItem(any(GetItemType.class), any(String.class));
+    }
+
+    @Test
+    public void testGetItemsOnlyIndexesFirstCopyOnceFetched() throws ServiceCallException, HttpErrorException
+    {
+        InMemorySeenMessageIndex index = new InMemorySeenMessageIndex();
+        Configuration config = new Configuration(1, 1).withMessageIndex(index);
+        MessageDeduplicator deduplicator = config.getMessageDeduplicator();
+        deduplicator.recordSynced("id0", "<all-hands@example.com> 2048");
+        deduplicator.recordSynced("id1", "<all-hands@example.com> 2048");
+        assertNull(index.getFirstCopy("<all-hands@example.com> 2048"));
+
+        // Both copies are in the same page, so neither has been stored yet.
+        Vector<String> ids = new Vector<String>(Arrays.asList("id0", "id1"));
+        when(getService().getItem(any(GetItemType.class), eq(getDefaultUser())))
+                .thenReturn(response(message("id0", "All hands", "body", -1),
+                                     message("id1", "All hands", "body", -1)));
+
+        Vector<MailboxItem> items = GetItemHelper.getItems(2, 0, ids, getService(), getDefaultUser(), config);
+        assertEquals(2, items.size());
+        assertFalse(items.get(1).hasKey("Copy Of"));
+        assertEquals("id0", index.getFirstCopy("<all-hands@example.com> 2048"));
+    }
+
+    @Test
+    public void testGetItemsDropsClaimOfDeletedFirstCopy() throws ServiceCallException, HttpErrorException
+    {
+        InMemorySeenMessageIndex index = new InMemorySeenMessageIndex();
+        Configuration config = new Configuration(1, 1).withMessageIndex(index);
+        MessageDeduplicator deduplicator = config.getMessageDeduplicator();
+        deduplicator.recordSynced("id0", "<all-hands@example.com> 2048");
+        deduplicator.recordSynced("id1", "<all-hands@example.com> 2048");
+        Vector<String> ids = new Vector<String>(Arrays.asList("id0", "id1"));
+        when(getService().getItem(likeThis(GetItemHelper.getGetItemsRequest(Arrays.asList("id0"), null,
+                                                                            Configuration.BodyFormat.BEST)),
+                                  eq(getDefaultUser())))
+                .thenReturn(response());
+        when(getService().getItem(likeThis(GetItemHelper.getGetItemsRequest(Arrays.asList("id1"), null,
+                                                                            Configuration.BodyFormat.BEST)),
+                                  eq(getDefaultUser())))
+                .thenReturn(response(message("id1", "All hands", "body", -1)));
+
+        assertEquals(0, GetItemHelper.getItems(1, 0, ids, getService(), getDefaultUser(), config).size());
+        assertNull(index.getFirstCopy("<all-hands@example.com> 2048"));
+
+        Vector<MailboxItem> items = GetItemHelper.getItems(1, 1, ids, getService(), getDefaultUser(), config);
+        assertEquals(1, items.size());
+        assertEquals("body", items.get(0).getHeader("Body"));
+        assertFalse(items.get(0).hasKey("Copy Of"));
+        assertEquals("id1", index.getFirstCopy("<all-hands@example.com> 2048"));
+    }
+
+    @Test
+    public void testGetItemsDropsClaimOfFailedFirstCopy() throws ServiceCallException, HttpErrorException
+    {
+        InMemorySeenMessageIndex index = new InMemorySeenMessageIndex();
+        Configuration config = new Configuration(1, 1).withMessageIndex(index);
+        MessageDeduplicator deduplicator = config.getMessageDeduplicator();
+        deduplicator.recordSynced("id0", "<all-hands@example.com> 2048");
+        deduplicator.recordSynced("id1", "<all-hands@example.com> 2048");
+        deduplicator.recordSynced("id2", "<all-hands@example.com> 2048");
+        Vector<String> ids = new Vector<String>(Arrays.asList("id0", "id1", "id2"));
+        when(getService().getItem(likeThis(GetItemHelper.getGetItemsRequest(Arrays.asList("id0"), null,
+                                                                            Configuration.BodyFormat.BEST)),
+                                  eq(getDefaultUser())))
+                .thenThrow(new ServiceCallException(ServiceCallException.Reason.OTHER, "Failed."));
+        when(getService().getItem(likeThis(GetItemHelper.getGetItemsRequest(Arrays.asList("id1"), null,
+                                                                            Configuration.BodyFormat.BEST)),
+                                  eq(getDefaultUser())))
+                .thenReturn(response(message("id1", "All hands", "body", -1)));
+
+        try
+        {
+            GetItemHelper.getItems(1, 0, ids, getService(), getDefaultUser(), config);
+            fail("The failed page should have thrown.");
+        }
+        catch (ServiceCallException e)
+        {
+            assertNull(index.getFirstCopy("<all-hands@example.com> 2048"));
+        }
+
+        assertEquals("body", GetItemHelper.getItems(1, 1, ids, getService(), getDefaultUser(), config).get(0)
+                                          .getHeader("Body"));
+        Vector<MailboxItem> items = GetItemHelper.getItems(1, 2, ids, getService(), getDefaultUser(), config);
+        assertEquals("id1", items.get(0).getHeader("Copy Of"));
+    }
 }
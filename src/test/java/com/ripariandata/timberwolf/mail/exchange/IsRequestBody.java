@@ -0,0 +1,54 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import java.util.Arrays;
+
+import org.mockito.ArgumentMatcher;
+
+import static org.mockito.Mockito.argThat;
+
+/**
+ * An ArgumentMatcher for request bodies given to mocked connection factories,
+ * which matches when the body writes exactly the expected bytes.
+ */
+public class IsRequestBody extends ArgumentMatcher<RequestBody>
+{
+    private final byte[] expected;
+
+    /**
+     * Creates a new request body matcher.
+     * @param expectedBytes The bytes the body should write.
+     */
+    public IsRequestBody(final byte[] expectedBytes)
+    {
+        expected = expectedBytes;
+    }
+
+    /** A Helper method to make the when calls cleaner. */
+    public static RequestBody writing(final byte[] expected)
+    {
+        return argThat(new IsRequestBody(expected));
+    }
+
+    @Override
+    public boolean matches(final Object o)
+    {
+        return o instanceof RequestBody && Arrays.equals(expected, ByteArrayRequestBody.toBytes((RequestBody) o));
+    }
+}
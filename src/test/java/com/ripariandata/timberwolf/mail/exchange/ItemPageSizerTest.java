@@ -0,0 +1,120 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import com.microsoft.schemas.exchange.services.x2006.messages.ResponseCodeType;
+
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/** Tests for the ItemPageSizer. */
+public class ItemPageSizerTest
+{
+    private static final int KB = 1024;
+
+    private static ItemPageSizer sizer(final int start, final int min, final int max, final int bytes,
+                                       final int millis)
+    {
+        return new ItemPageSizer(new Configuration(512, start).withAdaptiveItemPages(min, max, bytes, millis));
+    }
+
+    @Test
+    public void testFixedByDefault()
+    {
+        ItemPageSizer sizer = new ItemPageSizer(new Configuration(512, 64));
+        sizer.recordSuccess(64, KB, 10);
+        assertEquals(64, sizer.getPageSize());
+        sizer.recordFailure(new HttpErrorException(HttpURLConnection.HTTP_UNAVAILABLE));
+        assertEquals(64, sizer.getPageSize());
+    }
+
+    @Test
+    public void testStartsWithinBounds()
+    {
+        assertEquals(16, sizer(64, 4, 16, 0, 0).getPageSize());
+        assertEquals(100, sizer(64, 100, 200, 0, 0).getPageSize());
+    }
+
+    @Test
+    public void testGrowsAtMostDouble()
+    {
+        ItemPageSizer sizer = sizer(10, 1, 100, 1000 * KB, 5000);
+        sizer.recordSuccess(10, 10 * KB, 50);
+        assertEquals(20, sizer.getPageSize());
+        sizer.recordSuccess(20, 20 * KB, 100);
+        assertEquals(40, sizer.getPageSize());
+        sizer.recordSuccess(40, 40 * KB, 200);
+        assertEquals(80, sizer.getPageSize());
+        sizer.recordSuccess(80, 80 * KB, 400);
+        assertEquals(100, sizer.getPageSize());
+    }
+
+    @Test
+    public void testShrinksToTargetBytes()
+    {
+        // Half a megabyte an item, aiming for two megabytes.
+        ItemPageSizer sizer = sizer(64, 1, 512, 2048 * KB, 0);
+        sizer.recordSuccess(64, 64 * 512 * KB, 1000);
+        assertEquals(4, sizer.getPageSize());
+    }
+
+    @Test
+    public void testShrinksToTargetTime()
+    {
+        // A hundred milliseconds an item, aiming for a second.
+        ItemPageSizer sizer = sizer(64, 1, 512, 0, 1000);
+        sizer.recordSuccess(64, 0, 6400);
+        assertEquals(10, sizer.getPageSize());
+    }
+
+    @Test
+    public void testNeverBelowMinimum()
+    {
+        ItemPageSizer sizer = sizer(64, 8, 512, 1024 * KB, 0);
+        sizer.recordSuccess(64, 640 * 1024 * KB, 1000);
+        assertEquals(8, sizer.getPageSize());
+    }
+
+    @Test
+    public void testHalvesOnTransientFailure()
+    {
+        ItemPageSizer sizer = sizer(64, 8, 512, 0, 0);
+        sizer.recordFailure(new ServiceCallException(ServiceCallException.Reason.OTHER, "Read timed out.",
+                                                     new SocketTimeoutException()));
+        assertEquals(32, sizer.getPageSize());
+        sizer.recordFailure(new HttpErrorException(HttpURLConnection.HTTP_UNAVAILABLE));
+        assertEquals(16, sizer.getPageSize());
+        sizer.recordFailure(new ServiceCallException(ResponseCodeType.ERROR_SERVER_BUSY, "Busy."));
+        assertEquals(8, sizer.getPageSize());
+        sizer.recordFailure(new HttpErrorException(HttpURLConnection.HTTP_UNAVAILABLE));
+        assertEquals(8, sizer.getPageSize());
+    }
+
+    @Test
+    public void testKeepsSizeOnOtherFailures()
+    {
+        ItemPageSizer sizer = sizer(64, 8, 512, 0, 0);
+        sizer.recordFailure(new ServiceCallException(ResponseCodeType.ERROR_ITEM_NOT_FOUND, "Not found."));
+        sizer.recordFailure(new HttpErrorException(HttpURLConnection.HTTP_UNAUTHORIZED));
+        assertEquals(64, sizer.getPageSize());
+    }
+}
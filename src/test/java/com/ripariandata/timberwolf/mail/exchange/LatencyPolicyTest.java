@@ -0,0 +1,196 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import java.net.HttpURLConnection;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+/** Tests for the LatencyPolicy. */
+public class LatencyPolicyTest
+{
+    private static final String GET_ITEM = ExchangeService.GET_ITEM;
+
+    private static LatencyPolicy hedging(final int budget)
+    {
+        return new LatencyPolicy(0, 0, 0, budget);
+    }
+
+    @Test
+    public void testNoHedgingByDefault()
+    {
+        LatencyPolicy policy = new LatencyPolicy();
+        for (int i = 0; i < 100; i++)
+        {
+            policy.record(GET_ITEM, 100);
+        }
+        assertEquals(-1, policy.getHedgeDelay(GET_ITEM));
+    }
+
+    @Test
+    public void testSyncFolderItemsNotHedged()
+    {
+        LatencyPolicy policy = hedging(10);
+        for (int i = 0; i < 100; i++)
+        {
+            policy.record(ExchangeService.SYNC_FOLDER_ITEMS, 100);
+        }
+        assertEquals(-1, policy.getHedgeDelay(ExchangeService.SYNC_FOLDER_ITEMS));
+    }
+
+    @Test
+    public void testOnlyGetItemAndFolderHierarchyAreHedged()
+    {
+        LatencyPolicy policy = hedging(10);
+        String[] callTypes = {GET_ITEM, ExchangeService.SYNC_FOLDER_HIERARCHY, ExchangeService.EXPORT_ITEMS,
+                              ExchangeService.SYNC_FOLDER_ITEMS, ExchangeService.GET_ATTACHMENT};
+        for (String callType : callTypes)
+        {
+            for (int i = 0; i < 100; i++)
+            {
+                policy.record(callType, 100);
+            }
+        }
+        assertEquals(100, policy.getHedgeDelay(GET_ITEM));
+        assertEquals(100, policy.getHedgeDelay(ExchangeService.SYNC_FOLDER_HIERARCHY));
+        assertEquals(-1, policy.getHedgeDelay(ExchangeService.EXPORT_ITEMS));
+        assertEquals(-1, policy.getHedgeDelay(ExchangeService.SYNC_FOLDER_ITEMS));
+        assertEquals(-1, policy.getHedgeDelay(ExchangeService.GET_ATTACHMENT));
+    }
+
+    @Test
+    public void testHedgeDelayIsPercentile()
+    {
+        LatencyPolicy policy = hedging(10);
+        for (int i = 1; i < 20; i++)
+        {
+            policy.record(GET_ITEM, i * 100);
+        }
+        assertEquals(-1, policy.getHedgeDelay(GET_ITEM));
+
+        for (int i = 20; i <= 100; i++)
+        {
+            policy.record(GET_ITEM, i * 100);
+        }
+        assertEquals(9500, policy.getHedgeDelay(GET_ITEM));
+        assertEquals(-1, policy.getHedgeDelay(ExchangeService.SYNC_FOLDER_HIERARCHY));
+    }
+
+    @Test
+    public void testHedgeDelayUsesRecentCalls()
+    {
+        LatencyPolicy policy = hedging(10);
+        for (int i = 0; i < 500; i++)
+        {
+            policy.record(GET_ITEM, 5000);
+        }
+        for (int i = 0; i < 200; i++)
+        {
+            policy.record(GET_ITEM, 200);
+        }
+        assertEquals(200, policy.getHedgeDelay(GET_ITEM));
+    }
+
+    @Test
+    public void testMinimumHedgeDelay()
+    {
+        LatencyPolicy policy = hedging(10);
+        for (int i = 0; i < 20; i++)
+        {
+            policy.record(GET_ITEM, 1);
+        }
+        assertEquals(50, policy.getHedgeDelay(GET_ITEM));
+    }
+
+    @Test
+    public void testHedgeBudget()
+    {
+        LatencyPolicy policy = hedging(10);
+        for (int i = 0; i < 9; i++)
+        {
+            policy.getHedgeDelay(GET_ITEM);
+        }
+        assertFalse(policy.takeHedge(GET_ITEM));
+
+        policy.getHedgeDelay(GET_ITEM);
+        assertTrue(policy.takeHedge(GET_ITEM));
+        assertFalse(policy.takeHedge(GET_ITEM));
+
+        for (int i = 0; i < 10; i++)
+        {
+            policy.getHedgeDelay(GET_ITEM);
+        }
+        assertTrue(policy.takeHedge(GET_ITEM));
+        assertFalse(policy.takeHedge(GET_ITEM));
+        assertEquals(2, policy.getHedges(GET_ITEM));
+        assertEquals(0, policy.getHedges(ExchangeService.SYNC_FOLDER_HIERARCHY));
+
+        policy.recordHedgeWin(GET_ITEM);
+        assertEquals(1, policy.getHedgeWins(GET_ITEM));
+    }
+
+    @Test
+    public void testDeadlineClosesConnection()
+    {
+        LatencyPolicy policy = new LatencyPolicy(0, 50, 0, 0);
+        HttpURLConnection conn = mock(HttpURLConnection.class);
+        LatencyPolicy.Deadline deadline = policy.startDeadline(GET_ITEM, conn);
+
+        verify(conn, timeout(5000)).disconnect();
+        assertTrue(deadline.isExpired());
+        assertEquals(50, deadline.getMillis());
+        assertEquals(1, policy.getExpired(GET_ITEM));
+        assertEquals(0, policy.getExpired(ExchangeService.SYNC_FOLDER_HIERARCHY));
+    }
+
+    @Test
+    public void testCancelledDeadline() throws InterruptedException
+    {
+        LatencyPolicy policy = new LatencyPolicy(0, 50, 0, 0);
+        HttpURLConnection conn = mock(HttpURLConnection.class);
+        LatencyPolicy.Deadline deadline = policy.startDeadline(GET_ITEM, conn);
+        deadline.cancel();
+
+        Thread.sleep(200);
+        verify(conn, never()).disconnect();
+        assertFalse(deadline.isExpired());
+        assertEquals(0, policy.getExpired(GET_ITEM));
+    }
+
+    @Test
+    public void testNoDeadline()
+    {
+        LatencyPolicy policy = LatencyPolicy.none();
+        assertEquals(0, policy.getDeadline(GET_ITEM));
+        assertEquals(0, policy.getDeadline("Unknown"));
+
+        HttpURLConnection conn = mock(HttpURLConnection.class);
+        LatencyPolicy.Deadline deadline = policy.startDeadline(GET_ITEM, conn);
+        deadline.cancel();
+        assertFalse(deadline.isExpired());
+        assertEquals(0, deadline.getMillis());
+    }
+}
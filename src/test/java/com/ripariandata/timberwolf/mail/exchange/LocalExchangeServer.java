@@ -0,0 +1,230 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * A stub Exchange server running on localhost, which answers every request
+ * with the same canned response.  This can be used for testing the
+ * connection factories against real sockets.  It can also answer over
+ * HTTPS, with the self-signed certificate for localhost in localhost.jks.
+ */
+public class LocalExchangeServer
+{
+    private static final String PATH = "/ews/exchange.asmx";
+    private static final int BUFFER_SIZE = 1024;
+    private static final String KEY_STORE = "/localhost.jks";
+    private static final char[] KEY_STORE_PASSWORD = "timberwolf".toCharArray();
+
+    private final HttpServer server;
+    private final SSLContext sslContext;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final Set<InetSocketAddress> clients = Collections.synchronizedSet(new HashSet<InetSocketAddress>());
+    private volatile int status = HttpURLConnection.HTTP_OK;
+    private volatile byte[] response = new byte[0];
+    private volatile byte[] lastRequest;
+    private volatile Headers lastRequestHeaders;
+    private volatile String contentEncoding;
+    private volatile String cookie;
+    private volatile boolean closesConnections;
+
+    public LocalExchangeServer() throws IOException
+    {
+        this(false);
+    }
+
+    /** @param secure Whether the server answers over HTTPS rather than plain HTTP. */
+    public LocalExchangeServer(final boolean secure) throws IOException
+    {
+        if (secure)
+        {
+            sslContext = createSslContext();
+            HttpsServer https = HttpsServer.create(new InetSocketAddress("localhost", 0), 0);
+            https.setHttpsConfigurator(new HttpsConfigurator(sslContext));
+            server = https;
+        }
+        else
+        {
+            sslContext = null;
+            server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        }
+        server.createContext(PATH, new HttpHandler()
+        {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException
+            {
+                requests.incrementAndGet();
+                clients.add(exchange.getRemoteAddress());
+                lastRequest = readFully(exchange.getRequestBody());
+                lastRequestHeaders = exchange.getRequestHeaders();
+
+                byte[] body = response;
+                if (contentEncoding != null)
+                {
+                    exchange.getResponseHeaders().set("Content-Encoding", contentEncoding);
+                }
+                if (cookie != null)
+                {
+                    exchange.getResponseHeaders().set("Set-Cookie", cookie);
+                }
+                if (closesConnections)
+                {
+                    exchange.getResponseHeaders().set("Connection", "close");
+                }
+                exchange.sendResponseHeaders(status, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+    }
+
+    private static SSLContext createSslContext() throws IOException
+    {
+        InputStream stream = LocalExchangeServer.class.getResourceAsStream(KEY_STORE);
+        try
+        {
+            KeyStore keys = KeyStore.getInstance("JKS");
+            keys.load(stream, KEY_STORE_PASSWORD);
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(keys, KEY_STORE_PASSWORD);
+            TrustManagerFactory trustManagers =
+                    TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trustManagers.init(keys);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keyManagers.getKeyManagers(), trustManagers.getTrustManagers(), null);
+            return context;
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IOException("Could not set up TLS for the local server.", e);
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+
+    private static byte[] readFully(final InputStream stream) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read = stream.read(buffer);
+        while (read >= 0)
+        {
+            bytes.write(buffer, 0, read);
+            read = stream.read(buffer);
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Sets the status code and body that every following request will get. */
+    public void respondWith(final int statusCode, final byte[] body)
+    {
+        status = statusCode;
+        response = body;
+    }
+
+    /** Sets the Set-Cookie header sent with every following response. */
+    public void setCookie(final String setCookie)
+    {
+        cookie = setCookie;
+    }
+
+    /** Sets whether every following response closes its connection, rather than keeping it alive. */
+    public void setClosesConnections(final boolean close)
+    {
+        closesConnections = close;
+    }
+
+    /**
+     * Sets the Content-Encoding header sent with every following response.
+     * The body given to respondWith should already be encoded to match.
+     */
+    public void setContentEncoding(final String encoding)
+    {
+        contentEncoding = encoding;
+    }
+
+    /** The url of the server's Exchange endpoint. */
+    public String getUrl()
+    {
+        return (sslContext == null ? "http" : "https") + "://localhost:" + server.getAddress().getPort() + PATH;
+    }
+
+    /** A socket factory for clients that trusts this server's certificate, or null if it isn't using HTTPS. */
+    public SSLSocketFactory getClientSocketFactory()
+    {
+        return sslContext == null ? null : sslContext.getSocketFactory();
+    }
+
+    /** The number of requests the server has answered. */
+    public int getRequestCount()
+    {
+        return requests.get();
+    }
+
+    /** The number of distinct client connections the server has seen. */
+    public int getConnectionCount()
+    {
+        return clients.size();
+    }
+
+    /** The body of the most recent request, or null if there hasn't been one. */
+    public byte[] getLastRequest()
+    {
+        return lastRequest;
+    }
+
+    /** The value of a header from the most recent request, or null if it wasn't sent. */
+    public String getLastRequestHeader(final String name)
+    {
+        Headers headers = lastRequestHeaders;
+        return headers == null ? null : headers.getFirst(name);
+    }
+
+    public void stop()
+    {
+        server.stop(0);
+    }
+}
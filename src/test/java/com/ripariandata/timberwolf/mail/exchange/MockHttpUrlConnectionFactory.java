@@ -45,8 +45,10 @@ public MockRequest forRequest(final String address, final byte[] request)
         return new MockRequest(address, request);
     }
 
-    public HttpURLConnection newInstance(final String address, final byte[] request) throws ServiceCallException
+    public HttpURLConnection newInstance(final String address, final RequestBody requestBody)
+            throws ServiceCallException
     {
+        byte[] request = ByteArrayRequestBody.toBytes(requestBody);
         try
         {
             for (MockRequest mockRequest : requests)
@@ -77,6 +79,10 @@ public HttpURLConnection newInstance(final String address, final byte[] request)
                                        "There was no mocked request matching the given url and data.", null);
     }
 
+    public void release(final HttpURLConnection connection)
+    {
+    }
+
     /**
      * Represents a mock request.
      */
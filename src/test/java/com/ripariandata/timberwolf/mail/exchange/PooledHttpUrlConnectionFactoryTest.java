@@ -0,0 +1,254 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.HttpsURLConnection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Tests the PooledHttpUrlConnectionFactory against a local HTTPS server. */
+public class PooledHttpUrlConnectionFactoryTest
+{
+    private LocalExchangeServer server;
+    private String address;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        server = new LocalExchangeServer(true);
+        server.respondWith(HttpURLConnection.HTTP_OK, "<response/>".getBytes());
+        address = server.getUrl();
+    }
+
+    @After
+    public void tearDown()
+    {
+        server.stop();
+    }
+
+    private PooledHttpUrlConnectionFactory createFactory(final int maxConnections, final long idleTimeout,
+                                                         final AuthSession session)
+    {
+        return new PooledHttpUrlConnectionFactory(maxConnections, idleTimeout, 0, session,
+                                                  Configuration.DEFAULT_CONNECT_TIMEOUT,
+                                                  Configuration.DEFAULT_READ_TIMEOUT,
+                                                  server.getClientSocketFactory());
+    }
+
+    private PooledHttpUrlConnectionFactory createFactory(final int maxConnections, final long idleTimeout)
+    {
+        return createFactory(maxConnections, idleTimeout, new AuthSession());
+    }
+
+    private void send(final PooledHttpUrlConnectionFactory factory) throws ServiceCallException, IOException
+    {
+        HttpURLConnection connection = factory.newInstance(address, new ByteArrayRequestBody("<request/>".getBytes()));
+        assertEquals(HttpURLConnection.HTTP_OK, connection.getResponseCode());
+        factory.release(connection);
+    }
+
+    @Test
+    public void testReusesReleasedConnection() throws ServiceCallException, IOException
+    {
+        PooledHttpUrlConnectionFactory factory = createFactory(2, 60000);
+        send(factory);
+        assertEquals(1, factory.getConnectionsOpened());
+        assertEquals(0, factory.getConnectionsReused());
+
+        send(factory);
+        send(factory);
+        assertEquals(3, factory.getRequests());
+        assertEquals(1, factory.getConnectionsOpened());
+        assertEquals(2, factory.getConnectionsReused());
+        assertEquals(0, factory.getEvictions());
+        assertEquals(3, server.getRequestCount());
+        assertEquals(1, server.getConnectionCount());
+    }
+
+    @Test
+    public void testIdleConnectionsAreClosed() throws ServiceCallException, IOException, InterruptedException
+    {
+        PooledHttpUrlConnectionFactory factory = createFactory(2, 0);
+        send(factory);
+        Thread.sleep(5);
+        send(factory);
+        assertEquals(2, factory.getConnectionsOpened());
+        assertEquals(0, factory.getConnectionsReused());
+        assertEquals(1, factory.getEvictions());
+        assertEquals(2, server.getRequestCount());
+        assertEquals(2, server.getConnectionCount());
+    }
+
+    @Test
+    public void testPlainHttpIsNotCounted() throws ServiceCallException, IOException
+    {
+        LocalExchangeServer plain = new LocalExchangeServer();
+        try
+        {
+            plain.respondWith(HttpURLConnection.HTTP_OK, "<response/>".getBytes());
+            PooledHttpUrlConnectionFactory factory = new PooledHttpUrlConnectionFactory(2, 60000);
+            for (int i = 0; i < 2; i++)
+            {
+                HttpURLConnection connection = factory.newInstance(plain.getUrl(),
+                        new ByteArrayRequestBody("<request/>".getBytes()));
+                assertEquals(HttpURLConnection.HTTP_OK, connection.getResponseCode());
+                factory.release(connection);
+            }
+            assertEquals(0, factory.getRequests());
+            assertEquals(0, factory.getConnectionsOpened());
+            assertEquals(1, plain.getConnectionCount());
+        }
+        finally
+        {
+            plain.stop();
+        }
+    }
+
+    @Test
+    public void testLimitsConnectionsPerEndpoint() throws Exception
+    {
+        final PooledHttpUrlConnectionFactory factory = createFactory(1, 60000);
+        HttpURLConnection first = factory.newInstance(address, new ByteArrayRequestBody("<request/>".getBytes()));
+        first.getResponseCode();
+
+        final CountDownLatch secondSent = new CountDownLatch(1);
+        Thread second = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    send(factory);
+                    secondSent.countDown();
+                }
+                catch (Exception e)
+                {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        second.start();
+
+        assertFalse(secondSent.await(200, TimeUnit.MILLISECONDS));
+        factory.release(first);
+        assertTrue(secondSent.await(5, TimeUnit.SECONDS));
+        second.join();
+        assertEquals(1, factory.getConnectionsOpened());
+        assertEquals(1, factory.getConnectionsReused());
+    }
+
+    @Test
+    public void testReleasingForeignConnection() throws ServiceCallException, IOException
+    {
+        PooledHttpUrlConnectionFactory factory = createFactory(1, 60000);
+        SaslHttpUrlConnectionFactory other = new SaslHttpUrlConnectionFactory()
+        {
+            @Override
+            protected HttpURLConnection openConnection(final URL url) throws IOException
+            {
+                HttpsURLConnection connection = (HttpsURLConnection) super.openConnection(url);
+                connection.setSSLSocketFactory(server.getClientSocketFactory());
+                return connection;
+            }
+        };
+        HttpURLConnection foreign = other.newInstance(address, new ByteArrayRequestBody("<request/>".getBytes()));
+        foreign.getResponseCode();
+        factory.release(foreign);
+
+        send(factory);
+        assertEquals(1, factory.getConnectionsOpened());
+        assertEquals(0, factory.getConnectionsReused());
+    }
+
+    @Test
+    public void testReusesAuthentication() throws ServiceCallException, IOException
+    {
+        AuthSession session = new AuthSession()
+        {
+            @Override
+            Token createToken(final String host)
+            {
+                return new Token("dG9rZW4=", 60000);
+            }
+        };
+        PooledHttpUrlConnectionFactory factory = createFactory(2, 60000, session);
+        server.setCookie("exchangecookie=abc123; path=/");
+
+        send(factory);
+        assertEquals("Negotiate dG9rZW4=", server.getLastRequestHeader("Authorization"));
+        assertNull(server.getLastRequestHeader("Cookie"));
+
+        // The pooled connection is already authenticated, and keeps the cookie.
+        send(factory);
+        assertNull(server.getLastRequestHeader("Authorization"));
+        assertEquals("exchangecookie=abc123", server.getLastRequestHeader("Cookie"));
+        assertEquals(1, session.getHandshakes());
+        assertEquals(0, session.getJdkHandshakes());
+
+        server.respondWith(HttpURLConnection.HTTP_UNAUTHORIZED, new byte[0]);
+        HttpURLConnection rejected = factory.newInstance(address, new ByteArrayRequestBody("<request/>".getBytes()));
+        assertEquals(HttpURLConnection.HTTP_UNAUTHORIZED, rejected.getResponseCode());
+        factory.release(rejected);
+        assertEquals(1, session.getRejections());
+
+        server.respondWith(HttpURLConnection.HTTP_OK, "<response/>".getBytes());
+        server.setCookie(null);
+        HttpURLConnection retried = factory.newInstance(address, new ByteArrayRequestBody("<request/>".getBytes()));
+        assertEquals(HttpURLConnection.HTTP_OK, retried.getResponseCode());
+        factory.release(retried);
+        assertEquals("Negotiate dG9rZW4=", server.getLastRequestHeader("Authorization"));
+        assertNull(server.getLastRequestHeader("Cookie"));
+        assertEquals(2, session.getHandshakes());
+        assertEquals(4, session.getCalls());
+    }
+
+    @Test
+    public void testSendsAnchorMailbox() throws ServiceCallException, IOException
+    {
+        PooledHttpUrlConnectionFactory factory = createFactory(2, 60000);
+        send(factory);
+        assertNull(server.getLastRequestHeader("X-AnchorMailbox"));
+
+        RequestBody request = new ByteArrayRequestBody("<request/>".getBytes())
+        {
+            @Override
+            public String getAnchorMailbox()
+            {
+                return "bkerr@example.com";
+            }
+        };
+        HttpURLConnection connection = factory.newInstance(address, request);
+        assertEquals(HttpURLConnection.HTTP_OK, connection.getResponseCode());
+        factory.release(connection);
+        assertEquals("bkerr@example.com", server.getLastRequestHeader("X-AnchorMailbox"));
+    }
+}
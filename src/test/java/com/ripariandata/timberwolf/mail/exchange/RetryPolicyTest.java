@@ -0,0 +1,255 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import com.microsoft.schemas.exchange.services.x2006.messages.ResponseCodeType;
+
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/** Tests for the RetryPolicy. */
+public class RetryPolicyTest
+{
+    /** A policy that records its waits instead of sleeping. */
+    private static class RecordingPolicy extends RetryPolicy
+    {
+        private final List<Long> waits = new ArrayList<Long>();
+
+        RecordingPolicy(final int attempts, final int budget)
+        {
+            super(attempts, 100, 1000, budget);
+        }
+
+        @Override
+        void sleep(final long millis)
+        {
+            waits.add(millis);
+        }
+    }
+
+    /** A call that fails with the given exceptions, in order, and then succeeds. */
+    private static class FailingCall implements RetryPolicy.Call<String>
+    {
+        private final Exception[] failures;
+        private int calls;
+
+        FailingCall(final Exception... exceptions)
+        {
+            failures = exceptions;
+        }
+
+        @Override
+        public String call() throws ServiceCallException, HttpErrorException
+        {
+            calls++;
+            if (calls > failures.length)
+            {
+                return "done";
+            }
+            Exception e = failures[calls - 1];
+            if (e instanceof HttpErrorException)
+            {
+                throw (HttpErrorException) e;
+            }
+            throw (ServiceCallException) e;
+        }
+    }
+
+    private static ServiceCallException serverBusy(final long backOff)
+    {
+        return new ServiceCallException(ResponseCodeType.ERROR_SERVER_BUSY, "SOAP response contained an error.",
+                                        backOff);
+    }
+
+    private static ServiceCallException timeout()
+    {
+        return new ServiceCallException(ServiceCallException.Reason.OTHER, "Read timed out.",
+                                        new SocketTimeoutException("Read timed out"));
+    }
+
+    @Test
+    public void testClassification()
+    {
+        assertTrue(RetryPolicy.isTransient(new HttpErrorException(HttpURLConnection.HTTP_UNAVAILABLE)));
+        assertTrue(RetryPolicy.isTransient(new HttpErrorException(HttpURLConnection.HTTP_GATEWAY_TIMEOUT)));
+        assertTrue(RetryPolicy.isTransient(new HttpErrorException(HttpURLConnection.HTTP_INTERNAL_ERROR,
+                                                                  ResponseCodeType.ERROR_SERVER_BUSY, 0)));
+        assertFalse(RetryPolicy.isTransient(new HttpErrorException(HttpURLConnection.HTTP_INTERNAL_ERROR)));
+        assertFalse(RetryPolicy.isTransient(new HttpErrorException(HttpURLConnection.HTTP_UNAUTHORIZED)));
+        assertFalse(RetryPolicy.isTransient(new HttpErrorException(HttpURLConnection.HTTP_INTERNAL_ERROR,
+                                                                   ResponseCodeType.ERROR_INVALID_REQUEST, 0)));
+
+        assertTrue(RetryPolicy.isTransient(serverBusy(0)));
+        assertTrue(RetryPolicy.isTransient(new ServiceCallException(ResponseCodeType.ERROR_TIMEOUT_EXPIRED, "")));
+        assertTrue(RetryPolicy.isTransient(timeout()));
+        assertFalse(RetryPolicy.isTransient(new ServiceCallException(ResponseCodeType.ERROR_ITEM_NOT_FOUND, "")));
+        assertFalse(RetryPolicy.isTransient(new ServiceCallException(ServiceCallException.Reason.AUTHENTICATION,
+                                                                     "")));
+        assertFalse(RetryPolicy.isTransient(new ServiceCallException(ServiceCallException.Reason.OTHER,
+                                                                     "Null response from Exchange service.")));
+        assertFalse(RetryPolicy.isTransient(new UnexpectedResponseException("Can't stream this.")));
+    }
+
+    @Test
+    public void testTransientErrorsAreRetried() throws ServiceCallException, HttpErrorException
+    {
+        RecordingPolicy policy = new RecordingPolicy(4, 10);
+        FailingCall call = new FailingCall(new HttpErrorException(HttpURLConnection.HTTP_UNAVAILABLE), timeout());
+
+        assertEquals("done", policy.call(ExchangeService.GET_ITEM, call));
+        assertEquals(3, call.calls);
+        assertEquals(2, policy.waits.size());
+        // The first wait is at most the base back off, the second at most twice that.
+        assertTrue(policy.waits.get(0) <= 100);
+        assertTrue(policy.waits.get(1) <= 200);
+        assertEquals(3, policy.getAttempts(ExchangeService.GET_ITEM));
+        assertEquals(2, policy.getRetries(ExchangeService.GET_ITEM));
+        assertEquals(1, policy.getRecovered(ExchangeService.GET_ITEM));
+        assertEquals(0, policy.getExhausted(ExchangeService.GET_ITEM));
+        assertEquals(0, policy.getRetries(ExchangeService.SYNC_FOLDER_ITEMS));
+    }
+
+    @Test
+    public void testFatalErrorsAreNotRetried() throws HttpErrorException
+    {
+        RecordingPolicy policy = new RecordingPolicy(4, 10);
+        FailingCall call = new FailingCall(new ServiceCallException(ResponseCodeType.ERROR_ACCESS_DENIED, "Denied."));
+        try
+        {
+            policy.call(ExchangeService.SYNC_FOLDER_HIERARCHY, call);
+            fail("No exception was thrown.");
+        }
+        catch (ServiceCallException e)
+        {
+            assertEquals(ResponseCodeType.ERROR_ACCESS_DENIED, e.getSoapError());
+        }
+        assertEquals(1, call.calls);
+        assertEquals(0, policy.waits.size());
+        assertEquals(0, policy.getExhausted(ExchangeService.SYNC_FOLDER_HIERARCHY));
+    }
+
+    @Test
+    public void testGivesUpAfterMaxAttempts() throws ServiceCallException
+    {
+        RecordingPolicy policy = new RecordingPolicy(3, 10);
+        FailingCall call = new FailingCall(new HttpErrorException(HttpURLConnection.HTTP_UNAVAILABLE),
+                                           new HttpErrorException(HttpURLConnection.HTTP_UNAVAILABLE),
+                                           new HttpErrorException(HttpURLConnection.HTTP_BAD_GATEWAY));
+        try
+        {
+            policy.call(ExchangeService.SYNC_FOLDER_ITEMS, call);
+            fail("No exception was thrown.");
+        }
+        catch (HttpErrorException e)
+        {
+            assertEquals(HttpURLConnection.HTTP_BAD_GATEWAY, e.getErrorCode());
+        }
+        assertEquals(3, call.calls);
+        assertEquals(2, policy.getRetries(ExchangeService.SYNC_FOLDER_ITEMS));
+        assertEquals(1, policy.getExhausted(ExchangeService.SYNC_FOLDER_ITEMS));
+    }
+
+    @Test
+    public void testBackOffHintIsHonored() throws ServiceCallException, HttpErrorException
+    {
+        RecordingPolicy policy = new RecordingPolicy(4, 10);
+        FailingCall call = new FailingCall(serverBusy(750));
+
+        assertEquals("done", policy.call(ExchangeService.GET_ITEM, call));
+        assertEquals(1, policy.waits.size());
+        assertEquals(750, (long) policy.waits.get(0));
+        assertEquals(750, policy.getBackOffMillis(ExchangeService.GET_ITEM));
+    }
+
+    @Test
+    public void testBackOffHintLongerThanMaximum() throws HttpErrorException
+    {
+        RecordingPolicy policy = new RecordingPolicy(4, 10);
+        FailingCall call = new FailingCall(serverBusy(5000));
+        try
+        {
+            policy.call(ExchangeService.GET_ITEM, call);
+            fail("No exception was thrown.");
+        }
+        catch (ServiceCallException e)
+        {
+            assertEquals(5000, e.getBackOffMillis());
+        }
+        assertEquals(0, policy.waits.size());
+        assertEquals(1, policy.getExhausted(ExchangeService.GET_ITEM));
+    }
+
+    @Test
+    public void testRetryBudget() throws ServiceCallException, HttpErrorException
+    {
+        // With no budget beyond the reserve, only the first ten retries are allowed.
+        RecordingPolicy policy = new RecordingPolicy(2, 0);
+        for (int i = 0; i < 10; i++)
+        {
+            assertEquals("done", policy.call(ExchangeService.GET_ITEM, new FailingCall(timeout())));
+        }
+        try
+        {
+            policy.call(ExchangeService.GET_ITEM, new FailingCall(timeout()));
+            fail("No exception was thrown.");
+        }
+        catch (ServiceCallException e)
+        {
+            assertEquals("Read timed out.", e.getMessage());
+        }
+        assertEquals(10, policy.getRetries(ExchangeService.GET_ITEM));
+        assertEquals(1, policy.getExhausted(ExchangeService.GET_ITEM));
+    }
+
+    @Test
+    public void testRetryBudgetGrowsWithCalls() throws ServiceCallException, HttpErrorException
+    {
+        RecordingPolicy policy = new RecordingPolicy(2, 50);
+        for (int i = 0; i < 10; i++)
+        {
+            policy.call(ExchangeService.GET_ITEM, new FailingCall(timeout()));
+        }
+        // Each of those earned half a retry on top of using one, so twenty
+        // more successful calls leave room for a few more retries.
+        for (int i = 0; i < 20; i++)
+        {
+            policy.call(ExchangeService.GET_ITEM, new FailingCall());
+        }
+        assertEquals("done", policy.call(ExchangeService.GET_ITEM, new FailingCall(timeout())));
+        assertEquals(11, policy.getRetries(ExchangeService.GET_ITEM));
+    }
+
+    @Test
+    public void testConfigurationSharesPolicy()
+    {
+        Configuration config = new Configuration(10, 5);
+        assertTrue(config.getRetryPolicy() == config.withTransport(Configuration.Transport.BASIC).getRetryPolicy());
+        RetryPolicy policy = new RetryPolicy(1, 0, 0, 0);
+        assertTrue(policy == config.withRetryPolicy(policy).getRetryPolicy());
+        assertEquals(RetryPolicy.DEFAULT_MAX_ATTEMPTS, config.withRetryPolicy(null).getRetryPolicy().getMaxAttempts());
+    }
+}
@@ -0,0 +1,183 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import com.microsoft.schemas.exchange.services.x2006.messages.ResponseCodeType;
+import com.microsoft.schemas.exchange.services.x2006.messages.SyncFolderHierarchyType;
+import com.microsoft.schemas.exchange.services.x2006.types.DistinguishedFolderIdNameType;
+import com.ripariandata.timberwolf.writer.UserFolderSyncStateStorage;
+import com.ripariandata.timberwolf.writer.console.InMemoryUserFolderSyncStateStorage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Queue;
+
+import org.junit.Test;
+
+import static com.ripariandata.timberwolf.mail.exchange.IsXmlBeansRequest.likeThis;
+import static com.ripariandata.timberwolf.mail.exchange.SyncFolderHierarchyHelper.FolderHierarchyResult;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/** Test class for the SyncFolderHierarchy specific stuff. */
+public class SyncFolderHierarchyTest extends ExchangeTestBase
+{
+    private final UserFolderSyncStateStorage storage = new InMemoryUserFolderSyncStateStorage();
+
+    private Configuration config()
+    {
+        return getDefaultConfig().withSyncStateStorage(storage);
+    }
+
+    private void mockHierarchy(final String oldSyncState, final FolderHierarchyResult result)
+            throws ServiceCallException, HttpErrorException
+    {
+        when(getService().syncFolderHierarchyStreaming(
+                likeThis(SyncFolderHierarchyHelper.getSyncFolderHierarchyRequest(oldSyncState)),
+                eq(getDefaultUser()))).thenReturn(result);
+    }
+
+    private FolderHierarchyResult result(final String syncState, final String[] created, final String[] deleted)
+    {
+        FolderHierarchyResult result = new FolderHierarchyResult(null);
+        for (String folderId : created)
+        {
+            result.addCreatedFolder(folderId);
+        }
+        for (String folderId : deleted)
+        {
+            result.addDeletedFolder(folderId);
+        }
+        result.setSyncState(syncState);
+        return result;
+    }
+
+    @Test
+    public void testGetSyncFolderHierarchyRequest()
+    {
+        SyncFolderHierarchyType request = SyncFolderHierarchyHelper.getSyncFolderHierarchyRequest(null);
+        assertEquals("IdOnly", request.getFolderShape().getBaseShape().toString());
+        assertEquals(DistinguishedFolderIdNameType.MSGFOLDERROOT,
+                     request.getSyncFolderId().getDistinguishedFolderId().getId());
+        assertFalse(request.isSetSyncState());
+
+        request = SyncFolderHierarchyHelper.getSyncFolderHierarchyRequest("state");
+        assertEquals("state", request.getSyncState());
+    }
+
+    @Test
+    public void testFirstSync() throws ServiceCallException, HttpErrorException
+    {
+        mockHierarchy(null, result("state1", new String[]{"one", "two", "three"}, new String[0]));
+
+        Queue<String> folders = SyncFolderHierarchyHelper.syncFolders(getService(), config(), getDefaultUser());
+
+        assertEquals(Arrays.asList("one", "two", "three"), new ArrayList<String>(folders));
+        assertEquals("state1", storage.getLastHierarchySyncState(getDefaultUser()));
+        assertEquals(Arrays.asList("one", "two", "three"), storage.getFolders(getDefaultUser()));
+    }
+
+    @Test
+    public void testIncrementalSync() throws ServiceCallException, HttpErrorException
+    {
+        storage.setFolderHierarchy(getDefaultUser(), Arrays.asList("one", "two", "three"), "state1");
+        mockHierarchy("state1", result("state2", new String[]{"four"}, new String[]{"two"}));
+
+        Queue<String> folders = SyncFolderHierarchyHelper.syncFolders(getService(), config(), getDefaultUser());
+
+        assertEquals(Arrays.asList("one", "three", "four"), new ArrayList<String>(folders));
+        assertEquals("state2", storage.getLastHierarchySyncState(getDefaultUser()));
+        assertEquals(Arrays.asList("one", "three", "four"), storage.getFolders(getDefaultUser()));
+    }
+
+    @Test
+    public void testNoChanges() throws ServiceCallException, HttpErrorException
+    {
+        UserFolderSyncStateStorage mockStorage = mock(UserFolderSyncStateStorage.class);
+        when(mockStorage.getLastHierarchySyncState(getDefaultUser())).thenReturn("state1");
+        when(mockStorage.getFolders(getDefaultUser())).thenReturn(Arrays.asList("one"));
+        mockHierarchy("state1", result("state1", new String[0], new String[0]));
+
+        Queue<String> folders = SyncFolderHierarchyHelper.syncFolders(
+                getService(), getDefaultConfig().withSyncStateStorage(mockStorage), getDefaultUser());
+
+        assertEquals(Arrays.asList("one"), new ArrayList<String>(folders));
+        verify(mockStorage, never()).setFolderHierarchy(any(String.class), anyListOf(String.class),
+                                                        any(String.class));
+    }
+
+    @Test
+    public void testMultiplePages() throws ServiceCallException, HttpErrorException
+    {
+        FolderHierarchyResult first = result("state1", new String[]{"one", "two"}, new String[0]);
+        first.setIncludesLastFolder(false);
+        mockHierarchy(null, first);
+        mockHierarchy("state1", result("state2", new String[]{"three"}, new String[0]));
+
+        Queue<String> folders = SyncFolderHierarchyHelper.syncFolders(getService(), config(), getDefaultUser());
+
+        assertEquals(Arrays.asList("one", "two", "three"), new ArrayList<String>(folders));
+        assertEquals("state2", storage.getLastHierarchySyncState(getDefaultUser()));
+    }
+
+    @Test
+    public void testInvalidSyncState() throws ServiceCallException, HttpErrorException
+    {
+        storage.setFolderHierarchy(getDefaultUser(), Arrays.asList("gone", "one"), "stale");
+        when(getService().syncFolderHierarchyStreaming(
+                likeThis(SyncFolderHierarchyHelper.getSyncFolderHierarchyRequest("stale")),
+                eq(getDefaultUser())))
+                .thenThrow(new ServiceCallException(ResponseCodeType.ERROR_INVALID_SYNC_STATE_DATA, "Invalid"));
+        mockHierarchy(null, result("fresh", new String[]{"one", "two"}, new String[0]));
+
+        Queue<String> folders = SyncFolderHierarchyHelper.syncFolders(getService(), config(), getDefaultUser());
+
+        assertEquals(Arrays.asList("one", "two"), new ArrayList<String>(folders));
+        assertEquals("fresh", storage.getLastHierarchySyncState(getDefaultUser()));
+        assertEquals(Arrays.asList("one", "two"), storage.getFolders(getDefaultUser()));
+    }
+
+    @Test
+    public void testOtherErrorsThrown() throws HttpErrorException
+    {
+        try
+        {
+            when(getService().syncFolderHierarchyStreaming(
+                    likeThis(SyncFolderHierarchyHelper.getSyncFolderHierarchyRequest(null)),
+                    eq(getDefaultUser())))
+                    .thenThrow(new ServiceCallException(ResponseCodeType.ERROR_ACCESS_DENIED, "Denied"));
+            SyncFolderHierarchyHelper.syncFolders(getService(), config(), getDefaultUser());
+            fail("The error should have been thrown.");
+        }
+        catch (ServiceCallException e)
+        {
+            assertEquals(ResponseCodeType.ERROR_ACCESS_DENIED, e.getSoapError());
+        }
+        assertNull(storage.getLastHierarchySyncState(getDefaultUser()));
+    }
+}
@@ -22,12 +22,20 @@
 import com.microsoft.schemas.exchange.services.x2006.messages.SyncFolderItemsResponseMessageType;
 import com.microsoft.schemas.exchange.services.x2006.messages.SyncFolderItemsResponseType;
 import com.microsoft.schemas.exchange.services.x2006.messages.SyncFolderItemsType;
+import com.microsoft.schemas.exchange.services.x2006.types.BasePathToElementType;
 import com.microsoft.schemas.exchange.services.x2006.types.DefaultShapeNamesType;
 import com.microsoft.schemas.exchange.services.x2006.types.MessageType;
+import com.microsoft.schemas.exchange.services.x2006.types.PathToUnindexedFieldType;
 import com.microsoft.schemas.exchange.services.x2006.types.SyncFolderItemsChangesType;
 import com.microsoft.schemas.exchange.services.x2006.types.SyncFolderItemsCreateOrUpdateType;
+import com.microsoft.schemas.exchange.services.x2006.types.SyncFolderItemsReadFlagType;
+import com.microsoft.schemas.exchange.services.x2006.types.UnindexedFieldURIType;
+import com.ripariandata.timberwolf.mail.MailboxItem;
+import com.ripariandata.timberwolf.writer.console.InMemorySeenMessageIndex;
 import com.ripariandata.timberwolf.writer.console.InMemoryUserFolderSyncStateStorage;
 
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Vector;
 
@@ -38,8 +46,10 @@
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -242,7 +252,7 @@ public void testErrorResponseCode() throws ServiceCallException, HttpErrorExcept
         ArrayOfResponseMessagesType arrayOfResponseMessages = mock(ArrayOfResponseMessagesType.class);
         SyncFolderItemsResponseMessageType syncFolderItemsResponseMessage =
                 mock(SyncFolderItemsResponseMessageType.class);
-        SyncFolderItemsChangesType syncFolderItemsChanges = mock(SyncFolderItemsChangesType.class);
+        SyncFolderItemsChangesType syncFolderItemsChanges = mockSyncFolderItemsChanges();
 
         when(getService().syncFolderItems(likeThis(syncItems), eq(getDefaultFolder().getUser()))).
                 thenReturn(syncItemsResponse);
@@ -277,7 +287,7 @@ public void testUnsetIncludesLastItemInRange() throws ServiceCallException, Http
         ArrayOfResponseMessagesType arrayOfResponseMessages = mock(ArrayOfResponseMessagesType.class);
         SyncFolderItemsResponseMessageType syncFolderItemsResponseMessage =
                 mock(SyncFolderItemsResponseMessageType.class);
-        SyncFolderItemsChangesType syncFolderItemsChanges = mock(SyncFolderItemsChangesType.class);
+        SyncFolderItemsChangesType syncFolderItemsChanges = mockSyncFolderItemsChanges();
 
         when(getService().syncFolderItems(likeThis(syncItems), eq(getDefaultFolder().getUser())))
                 .thenReturn(syncItemsResponse);
@@ -315,7 +325,7 @@ public void testUnsetSyncState() throws ServiceCallException, HttpErrorException
         ArrayOfResponseMessagesType arrayOfResponseMessages = mock(ArrayOfResponseMessagesType.class);
         SyncFolderItemsResponseMessageType syncFolderItemsResponseMessage =
                 mock(SyncFolderItemsResponseMessageType.class);
-        SyncFolderItemsChangesType syncFolderItemsChanges = mock(SyncFolderItemsChangesType.class);
+        SyncFolderItemsChangesType syncFolderItemsChanges = mockSyncFolderItemsChanges();
 
         when(getService().syncFolderItems(likeThis(syncItems), eq(getDefaultFolder().getUser())))
                 .thenReturn(syncItemsResponse);
@@ -423,4 +433,157 @@ public void testUnsetItemId() throws ServiceCallException, HttpErrorException
         assertEquals(newSyncState, result.getSyncState());
     }
 
+
+    @Test
+    public void testSyncFolderItemsStreamingFallback() throws ServiceCallException, HttpErrorException
+    {
+        String[] ids = new String[]{"onlyId"};
+        mockSyncFolderItems(ids, "newSyncState");
+        when(getService().isStreamingParserEnabled()).thenReturn(true);
+        when(getService().syncFolderItemsStreaming(
+                likeThis(SyncFolderItemsHelper.getSyncFolderItemsRequest(getDefaultConfig(), getDefaultFolder())),
+                eq(getDefaultFolder().getUser()), eq(false)))
+                .thenThrow(new UnexpectedResponseException("Can't stream this."));
+
+        SyncFolderItemsResult result =
+                SyncFolderItemsHelper.syncFolderItems(getService(), getDefaultConfig(), getDefaultFolder());
+        assertEquals(1, result.getIds().size());
+        assertEquals("onlyId", result.getIds().get(0));
+        assertEquals("newSyncState", result.getSyncState());
+    }
+
+    @Test
+    public void testGetSyncFolderItemsRequestForDeduplication()
+    {
+        Configuration config = new Configuration(DEFAULT_MAX_ENTRIES, 0)
+                .withMessageIndex(new InMemorySeenMessageIndex());
+        SyncFolderItemsType request = SyncFolderItemsHelper.getSyncFolderItemsRequest(config, folderContext);
+        assertTrue(request.validate());
+        assertEquals(DefaultShapeNamesType.ID_ONLY, request.getItemShape().getBaseShape());
+        String xml = request.xmlText();
+        assertTrue(xml.contains("FieldURI=\"message:InternetMessageId\""));
+        assertTrue(xml.contains("FieldURI=\"item:Size\""));
+    }
+
+    private static MessageType syncedMessage(final String id, final String internetMessageId, final int size)
+    {
+        MessageType message = MessageType.Factory.newInstance();
+        message.addNewItemId().setId(id);
+        message.setInternetMessageId(internetMessageId);
+        message.setSize(size);
+        return message;
+    }
+
+    @Test
+    public void testSyncFolderItemsRecordsCopies() throws ServiceCallException, HttpErrorException
+    {
+        final int size = 2048;
+        Configuration config = new Configuration(DEFAULT_MAX_ENTRIES, 0)
+                .withMessageIndex(new InMemorySeenMessageIndex());
+        SyncFolderItemsResponseType response = SyncFolderItemsResponseType.Factory.newInstance();
+        SyncFolderItemsResponseMessageType message =
+                response.addNewResponseMessages().addNewSyncFolderItemsResponseMessage();
+        message.setResponseCode(ResponseCodeType.NO_ERROR);
+        message.setSyncState("newState");
+        message.setIncludesLastItemInRange(true);
+        SyncFolderItemsChangesType changes = message.addNewChanges();
+        changes.addNewCreate().setMessage(syncedMessage("id0", "<all-hands@example.com>", size));
+        changes.addNewCreate().setMessage(syncedMessage("id1", "<all-hands@example.com>", size));
+        changes.addNewCreate().setMessage(syncedMessage("id2", "<other@example.com>", size));
+        when(getService().syncFolderItems(any(SyncFolderItemsType.class), eq(getDefaultUser())))
+                .thenReturn(response);
+
+        SyncFolderItemsResult result = SyncFolderItemsHelper.syncFolderItems(getService(), config, folderContext);
+        assertEquals(3, result.getIds().size());
+        MessageDeduplicator deduplicator = config.getMessageDeduplicator();
+        assertNull(deduplicator.getFirstCopy("id0"));
+        // The first copy hasn't been fetched yet, so nothing refers to it.
+        assertNull(deduplicator.getFirstCopy("id1"));
+        assertNull(deduplicator.getFirstCopy("id2"));
+        assertEquals(1, deduplicator.getCopiesFound());
+
+        ExchangeEmail fetched = new ExchangeEmail(syncedMessage("id0", "<all-hands@example.com>", size));
+        deduplicator.fetched(Arrays.asList("id0", "id2"), Arrays.<MailboxItem>asList(fetched));
+        assertNull(deduplicator.getFirstCopy("id0"));
+        assertEquals("id0", deduplicator.getFirstCopy("id1"));
+    }
+
+    @Test
+    public void testSyncFolderItemsOtherChanges() throws ServiceCallException, HttpErrorException
+    {
+        SyncFolderItemsResponseType response = SyncFolderItemsResponseType.Factory.newInstance();
+        SyncFolderItemsResponseMessageType message =
+                response.addNewResponseMessages().addNewSyncFolderItemsResponseMessage();
+        message.setResponseCode(ResponseCodeType.NO_ERROR);
+        message.setSyncState("newState");
+        message.setIncludesLastItemInRange(true);
+        SyncFolderItemsChangesType changes = message.addNewChanges();
+        changes.addNewCreate().addNewMessage().addNewItemId().setId("created");
+        changes.addNewUpdate().addNewMessage().addNewItemId().setId("updated");
+        changes.addNewDelete().addNewItemId().setId("deleted");
+        SyncFolderItemsReadFlagType readFlag = changes.addNewReadFlagChange();
+        readFlag.addNewItemId().setId("read");
+        readFlag.setIsRead(true);
+        when(getService().syncFolderItems(any(SyncFolderItemsType.class), eq(getDefaultUser())))
+                .thenReturn(response);
+
+        SyncFolderItemsResult result =
+                SyncFolderItemsHelper.syncFolderItems(getService(), getDefaultConfig(), folderContext);
+        Vector<String> expected = new Vector<String>();
+        expected.add("created");
+        expected.add("updated");
+        assertEquals(expected, result.getIds());
+        assertEquals(2, result.getChanges().size());
+        MailboxItem deleted = result.getChanges().get(0);
+        assertEquals("deleted", deleted.getHeader("Item ID"));
+        assertEquals("true", deleted.getHeader("Deleted"));
+        assertNull(deleted.getHeader("Is Read"));
+        MailboxItem read = result.getChanges().get(1);
+        assertEquals("read", read.getHeader("Item ID"));
+        assertEquals("true", read.getHeader("Is Read"));
+        assertNull(read.getHeader("Deleted"));
+    }
+
+    @Test
+    public void testGetSyncFolderItemsRequestMetadataOnly()
+    {
+        Configuration config = getDefaultConfig().withMetadataOnly(true)
+                .withRequiredHeaders(new HashSet<String>(Arrays.asList("Item ID", "Subject", "Body", "Attachments")));
+        SyncFolderItemsType request = SyncFolderItemsHelper.getSyncFolderItemsRequest(config, folderContext);
+        assertEquals(DefaultShapeNamesType.ID_ONLY, request.getItemShape().getBaseShape());
+        BasePathToElementType[] fields = request.getItemShape().getAdditionalProperties().getPathArray();
+        assertEquals(1, fields.length);
+        assertEquals(UnindexedFieldURIType.ITEM_SUBJECT, ((PathToUnindexedFieldType) fields[0]).getFieldURI());
+    }
+
+    @Test
+    public void testSyncFolderItemsMetadataOnly() throws ServiceCallException, HttpErrorException
+    {
+        SyncFolderItemsResponseType response = SyncFolderItemsResponseType.Factory.newInstance();
+        SyncFolderItemsResponseMessageType message =
+                response.addNewResponseMessages().addNewSyncFolderItemsResponseMessage();
+        message.setResponseCode(ResponseCodeType.NO_ERROR);
+        message.setSyncState("newState");
+        message.setIncludesLastItemInRange(true);
+        SyncFolderItemsChangesType changes = message.addNewChanges();
+        MessageType created = changes.addNewCreate().addNewMessage();
+        created.addNewItemId().setId("created");
+        created.setSubject("Hello");
+        created.setIsRead(false);
+        changes.addNewDelete().addNewItemId().setId("deleted");
+        when(getService().syncFolderItems(any(SyncFolderItemsType.class), eq(getDefaultUser())))
+                .thenReturn(response);
+
+        SyncFolderItemsResult result = SyncFolderItemsHelper.syncFolderItems(
+                getService(), getDefaultConfig().withMetadataOnly(true), folderContext);
+        assertEquals(0, result.getIds().size());
+        assertEquals(2, result.getChanges().size());
+        MailboxItem item = result.getChanges().get(0);
+        assertEquals("created", item.getHeader("Item ID"));
+        assertEquals("Hello", item.getHeader("Subject"));
+        assertEquals("false", item.getHeader("Is Read"));
+        assertNull(item.getHeader("Deleted"));
+        assertEquals("deleted", result.getChanges().get(1).getHeader("Item ID"));
+        assertEquals("newState", result.getSyncState());
+    }
 }
@@ -66,4 +66,56 @@ public void testConfigurationWithNewSyncStateStorage()
         assertSame(newSyncStorage, newConfig.getSyncStateStorage());
         assertSame(oldSyncStateStorage, config.getSyncStateStorage());
     }
+
+    @Test
+    public void testConfigurationWithConnectionPool()
+    {
+        Configuration config = new Configuration(13, 3);
+        assertEquals(Configuration.DEFAULT_MAX_CONNECTIONS_PER_ENDPOINT, config.getMaxConnectionsPerEndpoint());
+        assertEquals(Configuration.DEFAULT_IDLE_CONNECTION_TIMEOUT, config.getIdleConnectionTimeout());
+
+        Configuration pooled = config.withConnectionPool(4, 1000);
+        assertEquals(4, pooled.getMaxConnectionsPerEndpoint());
+        assertEquals(1000, pooled.getIdleConnectionTimeout());
+        assertEquals(13, pooled.getIdPageSize());
+        assertEquals(3, pooled.getItemPageSize());
+        assertSame(config.getSyncStateStorage(), pooled.getSyncStateStorage());
+
+        pooled = config.withConnectionPool(0, -1);
+        assertEquals(1, pooled.getMaxConnectionsPerEndpoint());
+        assertEquals(0, pooled.getIdleConnectionTimeout());
+    }
+
+    @Test
+    public void testConfigurationWithMaxRequestsInFlight()
+    {
+        Configuration config = new Configuration(13, 3);
+        assertEquals(Configuration.DEFAULT_MAX_CONNECTIONS_PER_ENDPOINT, config.getMaxRequestsInFlight());
+        assertEquals(6, config.withMaxRequestsInFlight(6).getMaxRequestsInFlight());
+        assertEquals(1, config.withMaxRequestsInFlight(-2).getMaxRequestsInFlight());
+        assertEquals(6, config.withMaxRequestsInFlight(6).withTransport(null).getMaxRequestsInFlight());
+    }
+
+    @Test
+    public void testConfigurationWithRequestCompression()
+    {
+        Configuration config = new Configuration(13, 3);
+        assertEquals(Configuration.DEFAULT_REQUEST_COMPRESSION_THRESHOLD, config.getRequestCompressionThreshold());
+        assertEquals(4096, config.withRequestCompression(4096).getRequestCompressionThreshold());
+        assertEquals(0, config.withRequestCompression(-5).getRequestCompressionThreshold());
+    }
+
+    @Test
+    public void testConfigurationWithRequestRate()
+    {
+        Configuration config = new Configuration(13, 3);
+        assertEquals(AdaptiveRateLimiter.DEFAULT_MIN_RATE, config.getMinRequestRate());
+        assertEquals(AdaptiveRateLimiter.DEFAULT_MAX_RATE, config.getMaxRequestRate());
+        Configuration limited = config.withRequestRate(5, 20);
+        assertEquals(5, limited.getMinRequestRate());
+        assertEquals(20, limited.getMaxRequestRate());
+        assertEquals(20, limited.withTransport(Configuration.Transport.BASIC).getMaxRequestRate());
+        assertEquals(1, config.withRequestRate(-3, -1).getMinRequestRate());
+        assertEquals(0, config.withRequestRate(-3, -1).getMaxRequestRate());
+    }
 }
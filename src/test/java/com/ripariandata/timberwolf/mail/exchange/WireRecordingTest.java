@@ -0,0 +1,258 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.mail.exchange;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.ripariandata.timberwolf.Utilities.inputStreamToString;
+import static com.ripariandata.timberwolf.mail.exchange.IsRequestBody.writing;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/** Tests for recording Exchange traffic and replaying it. */
+public class WireRecordingTest
+{
+    private static final String URL = "https://example.com/ews/exchange.asmx";
+
+    private File root;
+
+    @Before
+    public void createDirectory() throws IOException
+    {
+        root = File.createTempFile("timberwolf-recordings", "");
+        assertTrue(root.delete() && root.mkdir());
+    }
+
+    @After
+    public void deleteDirectory()
+    {
+        deleteAll(root);
+    }
+
+    static void deleteAll(final File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+            {
+                deleteAll(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static HttpURLConnection responding(final int code, final String body, final String encoding)
+        throws IOException
+    {
+        HttpURLConnection conn = mock(HttpURLConnection.class);
+        when(conn.getResponseCode()).thenReturn(code);
+        when(conn.getHeaderField("Content-Type")).thenReturn("text/xml; charset=utf-8");
+        when(conn.getContentEncoding()).thenReturn(encoding);
+        if (code >= HttpURLConnection.HTTP_BAD_REQUEST)
+        {
+            when(conn.getErrorStream()).thenReturn(new ByteArrayInputStream(body.getBytes("UTF-8")));
+        }
+        else
+        {
+            when(conn.getInputStream()).thenReturn(new ByteArrayInputStream(body.getBytes("UTF-8")));
+        }
+        return conn;
+    }
+
+    /** Sends a request through the factory, reads part of the response, and releases the connection. */
+    private static String send(final HttpUrlConnectionFactory factory, final String request, final int readLength)
+        throws IOException, ServiceCallException
+    {
+        HttpURLConnection conn = factory.newInstance(URL, new ByteArrayRequestBody(request.getBytes("UTF-8")));
+        try
+        {
+            InputStream body = conn.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST ? conn.getErrorStream()
+                                                                                          : conn.getInputStream();
+            byte[] buffer = new byte[readLength];
+            int read = body.read(buffer);
+            return new String(buffer, 0, Math.max(read, 0), "UTF-8");
+        }
+        finally
+        {
+            factory.release(conn);
+        }
+    }
+
+    private static String replay(final HttpUrlConnectionFactory factory, final String request)
+        throws IOException, ServiceCallException
+    {
+        HttpURLConnection conn = factory.newInstance(URL, new ByteArrayRequestBody(request.getBytes("UTF-8")));
+        InputStream body = conn.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST ? conn.getErrorStream()
+                                                                                      : conn.getInputStream();
+        return inputStreamToString(body, "UTF-8");
+    }
+
+    @Test
+    public void testRecordAndReplay() throws IOException, ServiceCallException
+    {
+        HttpUrlConnectionFactory network = mock(HttpUrlConnectionFactory.class);
+        HttpURLConnection first = responding(HttpURLConnection.HTTP_OK, "first response", null);
+        HttpURLConnection second = responding(HttpURLConnection.HTTP_OK, "second response", null);
+        HttpURLConnection busy = responding(HttpURLConnection.HTTP_UNAVAILABLE, "busy", null);
+        when(network.newInstance(eq(URL), writing("<a/>".getBytes("UTF-8")))).thenReturn(first, second);
+        when(network.newInstance(eq(URL), writing("<b/>".getBytes("UTF-8")))).thenReturn(busy);
+        when(busy.getHeaderField("Retry-After")).thenReturn("5");
+
+        File directory = new File(root, "recordings");
+        RecordingHttpUrlConnectionFactory recorder =
+                new RecordingHttpUrlConnectionFactory(network, directory,
+                                                      RecordingHttpUrlConnectionFactory.DEFAULT_MAX_FILE_BYTES);
+        // Only part of the first response is read, but all of it is recorded.
+        assertEquals("first", send(recorder, "<a/>", 5));
+        assertEquals("second response", send(recorder, "<a/>", 100));
+        assertEquals("busy", send(recorder, "<b/>", 100));
+        recorder.close();
+        assertEquals(3, recorder.getRecords());
+        verify(network).release(first);
+        verify(network).release(busy);
+
+        ReplayHttpUrlConnectionFactory replayer = new ReplayHttpUrlConnectionFactory(directory);
+        assertEquals("first response", replay(replayer, "<a/>"));
+        assertEquals("second response", replay(replayer, "<a/>"));
+        assertEquals("second response", replay(replayer, "<a/>"));
+
+        HttpURLConnection replayedBusy =
+                replayer.newInstance(URL, new ByteArrayRequestBody("<b/>".getBytes("UTF-8")));
+        assertEquals(HttpURLConnection.HTTP_UNAVAILABLE, replayedBusy.getResponseCode());
+        assertEquals("5", replayedBusy.getHeaderField("Retry-After"));
+        assertEquals("text/xml; charset=utf-8", replayedBusy.getHeaderField("content-type"));
+        assertEquals("busy", inputStreamToString(replayedBusy.getErrorStream(), "UTF-8"));
+        try
+        {
+            replayedBusy.getInputStream();
+            fail("An error response shouldn't have an input stream.");
+        }
+        catch (IOException e)
+        {
+            assertTrue(e.getMessage().contains("503"));
+        }
+        assertEquals(4, replayer.getReplayed());
+
+        try
+        {
+            replay(replayer, "<c/>");
+            fail("No exception was thrown.");
+        }
+        catch (ServiceCallException e)
+        {
+            assertEquals(1, replayer.getMissed());
+        }
+    }
+
+    @Test
+    public void testRecordingRollsOver() throws IOException, ServiceCallException
+    {
+        HttpUrlConnectionFactory network = mock(HttpUrlConnectionFactory.class);
+        HttpURLConnection first = responding(HttpURLConnection.HTTP_OK, "one", "gzip");
+        HttpURLConnection second = responding(HttpURLConnection.HTTP_OK, "two", "gzip");
+        HttpURLConnection third = responding(HttpURLConnection.HTTP_OK, "three", "gzip");
+        when(network.newInstance(eq(URL), writing("<a/>".getBytes("UTF-8")))).thenReturn(first, second, third);
+
+        File directory = root;
+        RecordingHttpUrlConnectionFactory recorder = new RecordingHttpUrlConnectionFactory(network, directory, 1);
+        send(recorder, "<a/>", 100);
+        send(recorder, "<a/>", 100);
+        recorder.close();
+        assertEquals(2, WireRecord.listRecordings(directory).size());
+
+        // A later run adds to the recordings rather than replacing them.
+        recorder = new RecordingHttpUrlConnectionFactory(network, directory, 1);
+        send(recorder, "<a/>", 100);
+        recorder.close();
+        List<File> files = WireRecord.listRecordings(directory);
+        assertEquals(WireRecord.fileName(2), files.get(2).getName());
+
+        ReplayHttpUrlConnectionFactory replayer = new ReplayHttpUrlConnectionFactory(directory);
+        HttpURLConnection conn = replayer.newInstance(URL, new ByteArrayRequestBody("<a/>".getBytes("UTF-8")));
+        assertEquals("gzip", conn.getContentEncoding());
+        assertEquals("one", inputStreamToString(conn.getInputStream(), "UTF-8"));
+        assertEquals("two", replay(replayer, "<a/>"));
+        assertEquals("three", replay(replayer, "<a/>"));
+    }
+
+    @Test
+    public void testCutOffRecording() throws IOException, ServiceCallException
+    {
+        HttpUrlConnectionFactory network = mock(HttpUrlConnectionFactory.class);
+        HttpURLConnection first = responding(HttpURLConnection.HTTP_OK, "one", null);
+        HttpURLConnection second = responding(HttpURLConnection.HTTP_OK, "two", null);
+        when(network.newInstance(eq(URL), writing("<a/>".getBytes("UTF-8")))).thenReturn(first);
+        when(network.newInstance(eq(URL), writing("<b/>".getBytes("UTF-8")))).thenReturn(second);
+
+        File directory = root;
+        RecordingHttpUrlConnectionFactory recorder =
+                new RecordingHttpUrlConnectionFactory(network, directory,
+                                                      RecordingHttpUrlConnectionFactory.DEFAULT_MAX_FILE_BYTES);
+        send(recorder, "<a/>", 100);
+        send(recorder, "<b/>", 100);
+        recorder.close();
+
+        File file = WireRecord.listRecordings(directory).get(0);
+        RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+        truncated.setLength(file.length() - 1);
+        truncated.close();
+
+        ReplayHttpUrlConnectionFactory replayer = new ReplayHttpUrlConnectionFactory(directory);
+        assertEquals("one", replay(replayer, "<a/>"));
+        try
+        {
+            replay(replayer, "<b/>");
+            fail("No exception was thrown.");
+        }
+        catch (ServiceCallException e)
+        {
+            assertNull(e.getCause());
+        }
+    }
+
+    @Test
+    public void testNoRecordings() throws IOException
+    {
+        try
+        {
+            replay(new ReplayHttpUrlConnectionFactory(root), "<a/>");
+            fail("No exception was thrown.");
+        }
+        catch (ServiceCallException e)
+        {
+            assertEquals(ServiceCallException.Reason.OTHER, e.getReason());
+        }
+    }
+}
@@ -81,6 +81,15 @@ public void standardListTest() throws PrincipalFetchException
         Assert.assertTrue(results.contains("first@" + TEST_DOMAIN));
     }
 
+    @Test
+    public void homeServerTest() throws NamingException
+    {
+        String path = "/o=Example/ou=Exchange Administrative Group/cn=Configuration/cn=Servers/CN=MBX01";
+        Assert.assertEquals("mbx01", LdapFetcher.getHomeServer(new BasicAttribute("msExchHomeServerName", path)));
+        Assert.assertEquals("mbx02", LdapFetcher.getHomeServer(new BasicAttribute("msExchHomeServerName", "MBX02")));
+        Assert.assertNull(LdapFetcher.getHomeServer(null));
+    }
+
     @SuppressWarnings({ "unchecked", "rawtypes" })
     private LdapFetcher getTestFetcher(final String domainName, final String configurationEntry)
             throws PrincipalFetchException
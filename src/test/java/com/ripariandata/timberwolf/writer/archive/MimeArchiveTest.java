@@ -0,0 +1,150 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.writer.archive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/** Tests for archiving MIME content in a Hadoop file system. */
+public class MimeArchiveTest
+{
+    private static final String USER = "bkerr@example.com";
+
+    private File root;
+    private FileSystem fs;
+    private MimeArchive archive;
+
+    @Before
+    public void createArchive() throws IOException
+    {
+        root = File.createTempFile("timberwolf-mime", "");
+        assertTrue(root.delete() && root.mkdir());
+        fs = new RawLocalFileSystem();
+        fs.initialize(URI.create("file:///"), new Configuration());
+        archive = new MimeArchive(fs, new Path(root.getAbsolutePath()));
+    }
+
+    @After
+    public void deleteArchive() throws IOException
+    {
+        fs.delete(new Path(root.getAbsolutePath()), true);
+    }
+
+    private static void addMessage(final MimeArchiveFile file, final String mime) throws IOException
+    {
+        OutputStream out = file.newMessage();
+        out.write(mime.getBytes("UTF-8"));
+        out.close();
+    }
+
+    private String readArchived() throws IOException
+    {
+        File[] files = new File(root, USER).listFiles();
+        assertNotNull(files);
+        assertEquals(1, files.length);
+        assertTrue(files[0].getName().endsWith(".mbox.gz"));
+        InputStream in = new GZIPInputStream(new FileInputStream(files[0]));
+        try
+        {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) >= 0)
+            {
+                content.write(buffer, 0, read);
+            }
+            return content.toString("UTF-8");
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /** Takes the date out of the lines that start each message, since it's the time the test ran. */
+    private static String withoutDates(final String mbox)
+    {
+        return mbox.replaceAll("(?m)^From MAILER-DAEMON .*$", "From MAILER-DAEMON");
+    }
+
+    @Test
+    public void testCommitArchivesMessages() throws IOException
+    {
+        MimeArchiveFile file = archive.open(USER);
+        addMessage(file, "Subject: One\r\n\r\nFirst body.\r\n");
+        addMessage(file, "Subject: Two\r\n\r\nSecond body.");
+        assertEquals(2, file.getMessageCount());
+        file.commit();
+
+        assertEquals("From MAILER-DAEMON\nSubject: One\r\n\r\nFirst body.\r\n\n"
+                     + "From MAILER-DAEMON\nSubject: Two\r\n\r\nSecond body.\n\n",
+                     withoutDates(readArchived()));
+        assertTrue(readArchived().matches("From MAILER-DAEMON \\w{3} \\w{3} \\d\\d \\d\\d:\\d\\d:\\d\\d \\d{4}\n"
+                                          + "(?s).*"));
+        assertEquals(0, new File(root, "tmp").list().length);
+    }
+
+    @Test
+    public void testFromLinesAreQuoted() throws IOException
+    {
+        MimeArchiveFile file = archive.open(USER);
+        addMessage(file, "Subject: Quoting\n\nFrom the top.\n>From before.\n>>From\nFro\n>\nFrom");
+        file.commit();
+
+        assertEquals("From MAILER-DAEMON\nSubject: Quoting\n\n>From the top.\n>>From before.\n>>From\nFro\n>\n"
+                     + "From\n\n", withoutDates(readArchived()));
+    }
+
+    @Test
+    public void testAbortLeavesNothing() throws IOException
+    {
+        MimeArchiveFile file = archive.open(USER);
+        addMessage(file, "Subject: Half\r\n\r\n");
+        file.abort();
+        assertEquals(0, new File(root, "tmp").list().length);
+        assertFalse(new File(root, USER).exists());
+    }
+
+    @Test
+    public void testEmptyFileLeavesNothing() throws IOException
+    {
+        MimeArchiveFile file = archive.open(USER);
+        file.commit();
+        file.abort();
+        assertEquals(0, root.list().length);
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.writer.blob;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Tests for storing blobs in a Hadoop file system. */
+public class FileSystemBlobStoreTest
+{
+    private File root;
+    private FileSystem fs;
+    private FileSystemBlobStore store;
+
+    @Before
+    public void createStore() throws IOException
+    {
+        root = File.createTempFile("timberwolf-blobs", "");
+        assertTrue(root.delete() && root.mkdir());
+        // The raw file system leaves out the checksum files that would otherwise sit beside each blob.
+        fs = new RawLocalFileSystem();
+        fs.initialize(URI.create("file:///"), new Configuration());
+        store = new FileSystemBlobStore(fs, new Path(root.getAbsolutePath()));
+    }
+
+    @After
+    public void deleteStore() throws IOException
+    {
+        fs.delete(new Path(root.getAbsolutePath()), true);
+    }
+
+    private String write(final String content) throws IOException
+    {
+        BlobOutputStream blob = store.create();
+        blob.write(content.getBytes("UTF-8"));
+        return blob.commit();
+    }
+
+    private int countFiles(final File directory)
+    {
+        int count = 0;
+        File[] children = directory.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+            {
+                count += child.isDirectory() ? countFiles(child) : 1;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void testCommitStoresUnderHash() throws IOException
+    {
+        String hash = write("hello");
+        assertEquals("2cf24dba5fb0a30e26e83b2ac5b9e29e1b161e5c1fa7425e73043362938b9824", hash);
+        assertTrue(store.contains(hash));
+        assertTrue(new File(root, "blobs/2c/" + hash).isFile());
+        assertEquals(0, countFiles(new File(root, "tmp")));
+    }
+
+    @Test
+    public void testSameContentStoredOnce() throws IOException
+    {
+        String first = write("the same attachment");
+        String second = write("the same attachment");
+        assertEquals(first, second);
+        assertEquals(1, countFiles(new File(root, "blobs")));
+        assertEquals(0, countFiles(new File(root, "tmp")));
+    }
+
+    @Test
+    public void testAbortLeavesNothing() throws IOException
+    {
+        BlobOutputStream blob = store.create();
+        blob.write("half an attachment".getBytes("UTF-8"));
+        blob.abort();
+        assertEquals(0, countFiles(root));
+        assertFalse(store.contains(BlobOutputStream.hash("half an attachment".getBytes("UTF-8"))));
+    }
+
+    @Test
+    public void testAlias() throws IOException
+    {
+        assertNull(store.find("<id@example.com>/a.txt/5"));
+        String hash = write("hello");
+        store.alias("<id@example.com>/a.txt/5", hash);
+        assertEquals(hash, store.find("<id@example.com>/a.txt/5"));
+
+        String other = write("goodbye");
+        store.alias("<id@example.com>/a.txt/5", other);
+        assertEquals(other, store.find("<id@example.com>/a.txt/5"));
+    }
+
+    @Test
+    public void testAliasToMissingBlob()
+    {
+        store.alias("alias", "0000000000000000000000000000000000000000000000000000000000000000");
+        assertNull(store.find("alias"));
+    }
+}
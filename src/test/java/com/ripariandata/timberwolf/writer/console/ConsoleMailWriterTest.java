@@ -22,9 +22,12 @@
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -70,4 +73,29 @@ public void testWrite() throws IOException
 
         assertConsoleOutput(lines);
     }
+
+    @Test
+    public void testWriteChosenHeaders() throws IOException
+    {
+        MailboxItem item = mock(MailboxItem.class);
+        when(item.getHeaderKeys()).thenReturn(new String[] {"Body", "Subject", "Item ID"});
+        when(item.getHeader("Body")).thenReturn("Body text");
+        when(item.getHeader("Subject")).thenReturn("Lunch");
+        when(item.getHeader("Item ID")).thenReturn("id1");
+
+        ArrayList<MailboxItem> items = new ArrayList<MailboxItem>();
+        items.add(item);
+
+        ConsoleMailWriter writer = new ConsoleMailWriter(new HashSet<String>(Arrays.asList("Subject", "Item ID")));
+        writer.write(items);
+
+        String[] lines = new String[]{
+                "===========================================================",
+                "Subject: Lunch",
+                "Item ID: id1"
+        };
+
+        assertConsoleOutput(lines);
+        assertEquals(new HashSet<String>(Arrays.asList("Subject", "Item ID")), writer.getRequiredHeaders());
+    }
 }
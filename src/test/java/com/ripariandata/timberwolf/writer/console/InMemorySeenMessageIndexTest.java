@@ -0,0 +1,60 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.writer.console;
+
+import com.ripariandata.timberwolf.writer.SeenMessageIndex;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/** Tests for the InMemorySeenMessageIndex. */
+public class InMemorySeenMessageIndexTest
+{
+    private SeenMessageIndex index;
+
+    @Before
+    public void setUp()
+    {
+        index = new InMemorySeenMessageIndex();
+    }
+
+    @Test
+    public void testUnseen()
+    {
+        assertNull(index.getFirstCopy("<id@example.com> 100"));
+    }
+
+    @Test
+    public void testSeen()
+    {
+        assertEquals("item0", index.claimFirstCopy("<id@example.com> 100", "item0"));
+        assertEquals("item0", index.getFirstCopy("<id@example.com> 100"));
+        assertNull(index.getFirstCopy("<id@example.com> 101"));
+    }
+
+    @Test
+    public void testClaimedOnce()
+    {
+        assertEquals("item0", index.claimFirstCopy("<id@example.com> 100", "item0"));
+        assertEquals("item0", index.claimFirstCopy("<id@example.com> 100", "item1"));
+        assertEquals("item0", index.getFirstCopy("<id@example.com> 100"));
+    }
+}
@@ -19,6 +19,8 @@
 
 import com.ripariandata.timberwolf.writer.UserFolderSyncStateStorage;
 
+import java.util.Arrays;
+
 import org.junit.Before;
 import org.junit.Test;
 
@@ -96,4 +98,23 @@ public void testMultipleUsers()
         assertEquals("state", storage.getLastSyncState("user", "folder"));
         assertEquals("state2", storage.getLastSyncState("user2", "folder"));
     }
+
+    @Test
+    public void testNoHierarchy()
+    {
+        assertNull(storage.getLastHierarchySyncState("notUser"));
+        assertNull(storage.getFolders("notUser"));
+    }
+
+    @Test
+    public void testFolderHierarchy()
+    {
+        storage.setFolderHierarchy("user", Arrays.asList("folder", "folder2"), "state");
+        assertEquals("state", storage.getLastHierarchySyncState("user"));
+        assertEquals(Arrays.asList("folder", "folder2"), storage.getFolders("user"));
+        storage.setFolderHierarchy("user", Arrays.asList("folder2"), "state2");
+        assertEquals("state2", storage.getLastHierarchySyncState("user"));
+        assertEquals(Arrays.asList("folder2"), storage.getFolders("user"));
+        assertNull(storage.getFolders("user2"));
+    }
 }
@@ -0,0 +1,88 @@
+/**
+ * Copyright 2012 Riparian Data
+ * http://www.ripariandata.com
+ * contact@ripariandata.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ripariandata.timberwolf.writer.hbase;
+
+import com.ripariandata.timberwolf.MockHTable;
+
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Assert;
+import org.junit.Test;
+
+/** Runs mocked tests against the HBaseSeenMessageIndex class. */
+public class HBaseSeenMessageIndexTest
+{
+    private HBaseManager manager = new HBaseManager();
+
+    private IHBaseTable mockTable(final HBaseManager hbaseManager, final String tableName)
+    {
+        MockHTable table = MockHTable.create(tableName);
+        HBaseTable hbaseTable = new HBaseTable(table);
+        hbaseManager.addTable(hbaseTable);
+        return hbaseTable;
+    }
+
+    @Test
+    public void testUnseen()
+    {
+        String tableName = "testUnseenMessage";
+        mockTable(manager, tableName);
+
+        HBaseSeenMessageIndex index = new HBaseSeenMessageIndex(manager, tableName);
+        Assert.assertNull(index.getFirstCopy("<id@example.com> 100"));
+    }
+
+    @Test
+    public void testSeen()
+    {
+        String tableName = "testSeenMessage";
+        mockTable(manager, tableName);
+
+        HBaseSeenMessageIndex index = new HBaseSeenMessageIndex(manager, tableName);
+        Assert.assertEquals("item0", index.claimFirstCopy("<id@example.com> 100", "item0"));
+        Assert.assertEquals("item0", index.getFirstCopy("<id@example.com> 100"));
+    }
+
+    @Test
+    public void testClaimedOnce()
+    {
+        String tableName = "testClaimedOnce";
+        mockTable(manager, tableName);
+
+        HBaseSeenMessageIndex index = new HBaseSeenMessageIndex(manager, tableName);
+        Assert.assertEquals("item0", index.claimFirstCopy("<id@example.com> 100", "item0"));
+        // Another run sharing the table can't take the message over.
+        HBaseSeenMessageIndex other = new HBaseSeenMessageIndex(manager, tableName);
+        Assert.assertEquals("item0", other.claimFirstCopy("<id@example.com> 100", "item1"));
+        Assert.assertEquals("item0", index.getFirstCopy("<id@example.com> 100"));
+    }
+
+    @Test
+    public void testSharesTableWithSyncStates()
+    {
+        String tableName = "testSharedMetadata";
+        IHBaseTable hbaseTable = mockTable(manager, tableName);
+        Put put = new Put(Bytes.toBytes("user folder"));
+        put.add(Bytes.toBytes("s"), Bytes.toBytes("v"), Bytes.toBytes("state"));
+        hbaseTable.put(put);
+        hbaseTable.flush();
+
+        HBaseSeenMessageIndex index = new HBaseSeenMessageIndex(manager, tableName);
+        Assert.assertNull(index.getFirstCopy("user folder"));
+    }
+}
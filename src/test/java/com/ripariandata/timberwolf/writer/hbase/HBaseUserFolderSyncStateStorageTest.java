@@ -19,6 +19,9 @@
 
 import com.ripariandata.timberwolf.MockHTable;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.junit.Assert;
@@ -121,4 +124,34 @@ public void testUpdateExistingUser()
         updates.setSyncState(userName, folderId, state2);
         Assert.assertEquals(state2, updates.getLastSyncState(userName, folderId));
     }
+
+    @Test
+    public void testNoHierarchy()
+    {
+        String tableName = "testNoHierarchy";
+        mockTable(manager, tableName);
+
+        HBaseUserFolderSyncStateStorage updates = new HBaseUserFolderSyncStateStorage(manager, tableName);
+        Assert.assertNull(updates.getLastHierarchySyncState("not actually a username"));
+        Assert.assertNull(updates.getFolders("not actually a username"));
+    }
+
+    @Test
+    public void testFolderHierarchy()
+    {
+        String tableName = "testFolderHierarchy";
+        mockTable(manager, tableName);
+
+        HBaseUserFolderSyncStateStorage updates = new HBaseUserFolderSyncStateStorage(manager, tableName);
+        String userName = "A Generic Username";
+        updates.setSyncState(userName, "FolderOne", "FolderOneState");
+        updates.setFolderHierarchy(userName, Arrays.asList("FolderOne", "FolderTwo"), "HierarchyState");
+        Assert.assertEquals("HierarchyState", updates.getLastHierarchySyncState(userName));
+        Assert.assertEquals(Arrays.asList("FolderOne", "FolderTwo"), updates.getFolders(userName));
+        Assert.assertEquals("FolderOneState", updates.getLastSyncState(userName, "FolderOne"));
+
+        updates.setFolderHierarchy(userName, new ArrayList<String>(), "EmptyHierarchyState");
+        Assert.assertEquals("EmptyHierarchyState", updates.getLastHierarchySyncState(userName));
+        Assert.assertEquals(0, updates.getFolders(userName).size());
+    }
 }
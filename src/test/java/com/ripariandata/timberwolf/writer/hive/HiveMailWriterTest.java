@@ -36,12 +36,15 @@
 
 import org.junit.Test;
 
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.matches;
 import static org.mockito.Matchers.startsWith;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -102,6 +105,7 @@ public void testWritingToExistingTable() throws SQLException, IOException
         FileSystem hdfs = mock(FileSystem.class);
 
         PreparedStatement showStmt = createMockTableExistsResponse(hive, true);
+        Statement describeStmt = createMockDescribeResponse(hive, HiveMailWriter.VALUE_HEADER_KEYS);
 
         PreparedStatement loadStmt = mock(PreparedStatement.class);
         when(hive.prepareStatement("load data inpath ? into table new_table")).thenReturn(loadStmt);
@@ -116,10 +120,65 @@ public void testWritingToExistingTable() throws SQLException, IOException
         verify(loadStmt).setString(eq(1), startsWith("/tmp/timberwolf/"));
         verify(loadStmt).executeQuery();
 
+        verify(describeStmt, never()).executeQuery(startsWith("alter table"));
+
         verify(hdfs).mkdirs(eq(new Path("/tmp/timberwolf")));
         verify(hdfs).delete(any(Path.class), eq(false));
     }
 
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testWritingToOldTableAddsColumns() throws SQLException, IOException
+    {
+        Connection hive = mock(Connection.class);
+        FileSystem hdfs = mock(FileSystem.class);
+
+        createMockTableExistsResponse(hive, true);
+        String[] oldColumns = {"body", "subject", "time sent", "sender", "to", "cc", "bcc"};
+        Statement describeStmt = createMockDescribeResponse(hive, oldColumns);
+
+        PreparedStatement loadStmt = mock(PreparedStatement.class);
+        when(hive.prepareStatement("load data inpath ? into table old_table")).thenReturn(loadStmt);
+
+        when(hdfs.exists(eq(new Path("/tmp/timberwolf")))).thenReturn(true);
+        when(hdfs.create(any(Path.class))).thenReturn(new FSDataOutputStream(new ByteArrayOutputStream()));
+
+        HiveMailWriter writer = new HiveMailWriter(hdfs, hive, "old_table");
+        writer.write(new ArrayList<MailboxItem>());
+        writer.write(new ArrayList<MailboxItem>());
+
+        verify(describeStmt).executeQuery("describe old_table");
+        verify(describeStmt).executeQuery("alter table old_table add columns ( Body Truncated string, "
+                                          + "Attachments string, Copy Of string, Is Read string, "
+                                          + "Deleted string, Export string, Attachments Missing string )");
+        verify(loadStmt, times(2)).executeQuery();
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testWritingToIncompatibleTableFails() throws SQLException, IOException
+    {
+        Connection hive = mock(Connection.class);
+        FileSystem hdfs = mock(FileSystem.class);
+
+        createMockTableExistsResponse(hive, true);
+        Statement describeStmt = createMockDescribeResponse(hive, new String[] {"subject", "body"});
+
+        HiveMailWriter writer = new HiveMailWriter(hdfs, hive, "other_table");
+        try
+        {
+            writer.write(new ArrayList<MailboxItem>());
+            fail("Loaded mail into a table whose columns don't line up with the headers.");
+        }
+        catch (HiveMailWriterException e)
+        {
+            assertTrue(e.getMessage().contains("other_table"));
+        }
+
+        verify(describeStmt, never()).executeQuery(startsWith("alter table"));
+        verify(hdfs, never()).create(any(Path.class));
+    }
+
     @Test
     @SuppressWarnings("deprecation")
     public void testWritingAndFailing() throws SQLException, IOException
@@ -128,6 +187,7 @@ public void testWritingAndFailing() throws SQLException, IOException
         FileSystem hdfs = mock(FileSystem.class);
 
         PreparedStatement showStmt = createMockTableExistsResponse(hive, true);
+        Statement describeStmt = createMockDescribeResponse(hive, HiveMailWriter.VALUE_HEADER_KEYS);
 
         PreparedStatement loadStmt = mock(PreparedStatement.class);
         when(hive.prepareStatement("load data inpath ? into table new_table")).thenReturn(loadStmt);
@@ -175,4 +235,27 @@ private static PreparedStatement createMockTableExistsResponse(
         return showStmt;
     }
 
+    /**
+     * When the hive connection is asked to "describe" a table, the statement
+     * returned by this method answers with one row per given column, followed
+     * by the blank line Hive puts before the detailed table information.
+     */
+    private static Statement createMockDescribeResponse(final Connection hive, final String[] columns)
+            throws SQLException
+    {
+        Statement describeStmt = mock(Statement.class);
+        ResultSet describeResult = mock(ResultSet.class);
+        when(describeResult.next()).thenReturn(true);
+        String[] rest = new String[columns.length];
+        for (int i = 1; i < columns.length; i++)
+        {
+            rest[i - 1] = columns[i].toLowerCase();
+        }
+        rest[columns.length - 1] = "";
+        when(describeResult.getString(1)).thenReturn(columns[0].toLowerCase(), rest);
+        when(describeStmt.executeQuery(startsWith("describe "))).thenReturn(describeResult);
+        when(hive.createStatement()).thenReturn(describeStmt);
+        return describeStmt;
+    }
+
 }
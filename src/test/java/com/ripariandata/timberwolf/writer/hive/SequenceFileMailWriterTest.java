@@ -215,7 +215,8 @@ public void testWriteAllHeaders() throws IOException
         assertTrue(reader.next(key, value));
         assertEquals("key", key.toString());
         assertEquals(StringUtils.join(new String[] { "Here's an email.", "Subject!!", "11 o'clock", "jim@example.com",
-                                                     "james@example.com", "j@example.com", "jane@example.com" },
+                                                     "james@example.com", "j@example.com", "jane@example.com", "", "",
+                                                     "", "", "", "", "" },
                                       separator), value.toString());
         assertFalse(reader.next(key, value));
     }
@@ -235,7 +236,8 @@ public void testWriteSomeHeaders() throws IOException
         assertTrue(reader.next(key, value));
         assertEquals("key", key.toString());
         assertEquals(StringUtils.join(new String[] { "Body of an email.", "", "12 o'clock", "", "", "",
-                                                     "j@example.com" }, separator), value.toString());
+                                                     "j@example.com", "", "", "", "", "", "", "" }, separator),
+                     value.toString());
         assertFalse(reader.next(key, value));
     }
 
@@ -253,16 +255,17 @@ public void testWriteManyMails() throws IOException
         Text value = new Text();
         assertTrue(reader.next(key, value));
         assertEquals("key1", key.toString());
-        assertEquals(StringUtils.join(new String[] { "BodyOne", "SubjectTwo", "TimeSentThree", "", "", "", "" },
-                                      separator), value.toString());
+        assertEquals(StringUtils.join(new String[] { "BodyOne", "SubjectTwo", "TimeSentThree", "", "", "", "", "",
+                                                     "", "", "", "", "", "" }, separator), value.toString());
         assertTrue(reader.next(key, value));
         assertEquals("key2", key.toString());
-        assertEquals(StringUtils.join(new String[] { "BodyA", "SubjectB", "TimeSentC", "", "", "", "" }, separator),
-                     value.toString());
+        assertEquals(StringUtils.join(new String[] { "BodyA", "SubjectB", "TimeSentC", "", "", "", "", "", "", "",
+                                                     "", "", "", "" },
+                                      separator), value.toString());
         assertTrue(reader.next(key, value));
         assertEquals("key3", key.toString());
-        assertEquals(StringUtils.join(new String[] { "BodyDee", "SubjectEee", "TimeSentEff", "", "" , "", "" },
-                                      separator), value.toString());
+        assertEquals(StringUtils.join(new String[] { "BodyDee", "SubjectEee", "TimeSentEff", "", "" , "", "", "",
+                                                     "", "", "", "", "", "" }, separator), value.toString());
         assertFalse(reader.next(key, value));
     }
 
@@ -283,7 +286,9 @@ public void testWriteMailWithNoHeaders() throws IOException
         Text value = new Text();
         assertTrue(reader.next(key, value));
         assertEquals("key", key.toString());
-        assertEquals(StringUtils.join(new String[] { "", "", "", "", "", "", "" }, separator), value.toString());
+        assertEquals(StringUtils.join(new String[] { "", "", "", "", "", "", "", "", "", "", "", "", "",
+                                                     "" }, separator),
+                     value.toString());
     }
 
     /** An output stream that throws an exception whenever you try to write to it. */